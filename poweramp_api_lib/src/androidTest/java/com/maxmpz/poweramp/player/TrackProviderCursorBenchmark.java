@@ -0,0 +1,235 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.MatrixCursor;
+import android.media.MediaFormat;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Objects;
+
+/**
+ * Compares {@link TrackProviderCursorBuilder} against {@link MatrixCursor} for a track listing with the full track and metadata projection.<br>
+ * Measures the rows building and the {@link Cursor#fillWindow} which is what the provider side spends to send the cursor to Poweramp.<br>
+ * Runs as the instrumented test, as it needs the device CursorWindow. The first iterations are warmup and not counted
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackProviderCursorBenchmark {
+	private static final String TAG = "TrackProviderCursorBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int WARMUP_ITERATIONS = 3;
+
+	private static final int TEST_ROWS = 1000;
+	private static final int TEST_ITERATIONS = 5;
+
+	/** Same columns Poweramp requests for the track listings with metadata */
+	@SuppressLint("InlinedApi")
+	private static final String[] TRACK_AND_METADATA_PROJECTION = {
+			DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+			DocumentsContract.Document.COLUMN_MIME_TYPE,
+			DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+			DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+			DocumentsContract.Document.COLUMN_FLAGS,
+			DocumentsContract.Document.COLUMN_SIZE,
+
+			MediaStore.MediaColumns.TITLE,
+			MediaStore.MediaColumns.DURATION,
+			MediaStore.MediaColumns.ARTIST,
+			MediaStore.MediaColumns.ALBUM,
+			MediaStore.Audio.AudioColumns.YEAR,
+			TrackProviderConsts.COLUMN_ALBUM_ARTIST,
+			MediaStore.MediaColumns.COMPOSER,
+			TrackProviderConsts.COLUMN_GENRE,
+			MediaStore.Audio.AudioColumns.TRACK,
+			TrackProviderConsts.COLUMN_TRACK_ALT,
+			MediaFormat.KEY_SAMPLE_RATE,
+			MediaFormat.KEY_CHANNEL_COUNT,
+			MediaFormat.KEY_BIT_RATE,
+			TrackProviderConsts.COLUMN_BITS_PER_SAMPLE
+	};
+
+	public static class Report {
+		public int rows;
+		public int iterations;
+		/** Average per iteration */
+		public long matrixBuildNs;
+		public long matrixFillWindowNs;
+		public long fastBuildNs;
+		public long fastFillWindowNs;
+		/** Values differing between the cursors, should be 0 */
+		public int mismatches;
+
+		@Override
+		public String toString() {
+			return "rows=" + this.rows + " iterations=" + this.iterations
+					+ " matrix buildUs=" + this.matrixBuildNs / 1000 + " fillWindowUs=" + this.matrixFillWindowNs / 1000
+					+ " fast buildUs=" + this.fastBuildNs / 1000 + " fillWindowUs=" + this.fastFillWindowNs / 1000 + " mismatches=" + this.mismatches;
+		}
+	}
+
+
+	/** Both cursors should have the same values. The timings are just logged, as these vary per device */
+	@Test
+	public void testCursors() {
+		final Report report = TrackProviderCursorBenchmark.run(TrackProviderCursorBenchmark.TEST_ROWS, TrackProviderCursorBenchmark.TEST_ITERATIONS);
+		Assert.assertEquals(report.toString(), 0, report.mismatches);
+	}
+
+	/**
+	 * Runs both cursors for the given number of rows. The row values are generated before the measurement
+	 */
+	@SuppressLint("InlinedApi")
+	public static @NonNull Report run(final int rows, final int iterations) {
+		final String[] docIds = new String[rows];
+		final String[] titles = new String[rows];
+		for(int i = 0; i < rows; i++) {
+			docIds[i] = "root/Folder/track-" + i + ".mp3";
+			titles[i] = "Track " + i;
+		}
+
+		final Report report = new Report();
+		report.rows = rows;
+		report.iterations = iterations;
+
+		final CursorWindow window = new CursorWindow(TrackProviderCursorBenchmark.TAG);
+		try {
+			for(int it = -TrackProviderCursorBenchmark.WARMUP_ITERATIONS; it < iterations; it++) {
+				long start = System.nanoTime();
+				final MatrixCursor matrix = new MatrixCursor(TrackProviderCursorBenchmark.TRACK_AND_METADATA_PROJECTION, rows);
+				for(int i = 0; i < rows; i++) {
+					final MatrixCursor.RowBuilder row = matrix.newRow();
+					row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, docIds[i]);
+					row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, "audio/mpeg");
+					row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, titles[i]);
+					row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, 1600000000000L);
+					row.add(DocumentsContract.Document.COLUMN_FLAGS, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL);
+					row.add(DocumentsContract.Document.COLUMN_SIZE, 5000000L);
+					row.add(MediaStore.MediaColumns.TITLE, titles[i]);
+					row.add(MediaStore.MediaColumns.DURATION, 217000L);
+					row.add(MediaStore.MediaColumns.ARTIST, "Artist");
+					row.add(MediaStore.MediaColumns.ALBUM, "Album");
+					row.add(MediaStore.Audio.AudioColumns.YEAR, 2020);
+					row.add(TrackProviderConsts.COLUMN_ALBUM_ARTIST, "Album Artist");
+					row.add(MediaStore.MediaColumns.COMPOSER, "Composer");
+					row.add(TrackProviderConsts.COLUMN_GENRE, "Genre");
+					row.add(MediaStore.Audio.AudioColumns.TRACK, i + 1);
+					row.add(TrackProviderConsts.COLUMN_TRACK_ALT, rows - i);
+					row.add(MediaFormat.KEY_SAMPLE_RATE, 44100);
+					row.add(MediaFormat.KEY_CHANNEL_COUNT, 2);
+					row.add(MediaFormat.KEY_BIT_RATE, 128000);
+					row.add(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE, 16);
+				}
+				final long matrixBuildNs = System.nanoTime() - start;
+				start = System.nanoTime();
+				window.clear();
+				matrix.fillWindow(0, window);
+				final long matrixFillWindowNs = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(TrackProviderCursorBenchmark.TRACK_AND_METADATA_PROJECTION, rows);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+				for(int i = 0; i < rows; i++) {
+					c.newRow();
+					c.setString(s.documentId, docIds[i]);
+					c.setString(s.mimeType, "audio/mpeg");
+					c.setString(s.displayName, titles[i]);
+					c.setLong(s.lastModified, 1600000000000L);
+					c.setInt(s.flags, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL);
+					c.setLong(s.size, 5000000L);
+					c.setString(s.title, titles[i]);
+					c.setLong(s.duration, 217000L);
+					c.setString(s.artist, "Artist");
+					c.setString(s.album, "Album");
+					c.setInt(s.year, 2020);
+					c.setString(s.albumArtist, "Album Artist");
+					c.setString(s.composer, "Composer");
+					c.setString(s.genre, "Genre");
+					c.setInt(s.track, i + 1);
+					c.setInt(s.trackAlt, rows - i);
+					c.setInt(s.sampleRate, 44100);
+					c.setInt(s.channelCount, 2);
+					c.setInt(s.bitRate, 128000);
+					c.setInt(s.bitsPerSample, 16);
+				}
+				final Cursor fast = c.build();
+				final long fastBuildNs = System.nanoTime() - start;
+				start = System.nanoTime();
+				window.clear();
+				fast.fillWindow(0, window);
+				final long fastFillWindowNs = System.nanoTime() - start;
+
+				if(iterations - 1 == it) {
+					report.mismatches = TrackProviderCursorBenchmark.countMismatches(matrix, fast);
+				}
+				matrix.close();
+				fast.close();
+
+				if(0 <= it) {
+					report.matrixBuildNs += matrixBuildNs;
+					report.matrixFillWindowNs += matrixFillWindowNs;
+					report.fastBuildNs += fastBuildNs;
+					report.fastFillWindowNs += fastFillWindowNs;
+				}
+			}
+		} finally {
+			window.close();
+		}
+
+		if(0 < iterations) {
+			report.matrixBuildNs /= iterations;
+			report.matrixFillWindowNs /= iterations;
+			report.fastBuildNs /= iterations;
+			report.fastFillWindowNs /= iterations;
+		}
+		if(TrackProviderCursorBenchmark.LOG) Log.w(TrackProviderCursorBenchmark.TAG, "run " + report);
+		return report;
+	}
+
+	/** @return number of the values differing in type or string value, all the rows and columns are compared */
+	private static int countMismatches(@NonNull final Cursor a, @NonNull final Cursor b) {
+		int mismatches = Math.abs(a.getCount() - b.getCount()) + Math.abs(a.getColumnCount() - b.getColumnCount());
+		final int rows = Math.min(a.getCount(), b.getCount());
+		final int columns = Math.min(a.getColumnCount(), b.getColumnCount());
+		for(int i = 0; i < rows; i++) {
+			a.moveToPosition(i);
+			b.moveToPosition(i);
+			for(int col = 0; col < columns; col++) {
+				if(a.getType(col) != b.getType(col) || !Objects.equals(a.getString(col), b.getString(col))) {
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+}
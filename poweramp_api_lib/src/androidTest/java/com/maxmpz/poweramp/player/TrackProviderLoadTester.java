@@ -0,0 +1,306 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Runs N concurrent {@link TrackProviderTestClient} players against a track provider and reports the throughput, seek latency percentiles and thread counts.<br>
+ * Useful to check how the provider (e.g. {@link TrackProviderServer}) behaves with many sessions before a design change is measured on a device.<br>
+ * See {@link #runWithServer} for the self-contained run which needs neither Poweramp nor the track files, used by {@link #testServer} and {@link #testServerReadAhead}.<br>
+ * NOTE: each player uses its own thread, the thread counts reported include these
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackProviderLoadTester {
+	private static final String TAG = "TrackProviderLoadTester";
+	private static final boolean LOG = true;
+
+	/** Opens a new provider session and returns the Poweramp side of its socket */
+	public interface SessionFactory {
+		@NonNull TrackProviderTransport openSession(int playerIx) throws IOException;
+	}
+
+	public static class Report {
+		public int players;
+		public int failedPlayers;
+		public long bytesReceived;
+		public long elapsedNs;
+		/** Total throughput, bytes per second */
+		public long bytesPerSecond;
+		public int seekCount;
+		public int failedSeekCount;
+		public long seekP50Us;
+		public long seekP90Us;
+		public long seekP99Us;
+		public long seekMaxUs;
+		public int threadsBefore;
+		public int threadsPeak;
+		public int threadsAfter;
+		public TrackProviderTestClient.Result @NonNull[] results = new TrackProviderTestClient.Result[0];
+
+		@Override
+		public String toString() {
+			return "players=" + this.players + " failedPlayers=" + this.failedPlayers + " bytesReceived=" + this.bytesReceived
+					+ " elapsedMs=" + this.elapsedNs / 1000000 + " bytesPerSecond=" + this.bytesPerSecond
+					+ " seekCount=" + this.seekCount + " failedSeekCount=" + this.failedSeekCount
+					+ " seekUs p50=" + this.seekP50Us + " p90=" + this.seekP90Us + " p99=" + this.seekP99Us + " max=" + this.seekMaxUs
+					+ " threads before=" + this.threadsBefore + " peak=" + this.threadsPeak + " after=" + this.threadsAfter;
+		}
+	}
+
+	private static final int THREAD_SAMPLE_INTERVAL_MS = 50;
+
+	private static final int TEST_PLAYERS = 32;
+	/** Each read-ahead session has its own thread and ring */
+	private static final int TEST_READ_AHEAD_PLAYERS = 4;
+	private static final long TEST_TRACK_LENGTH = 2 * 1024 * 1024;
+	/** 4x CD quality, so the test completes in a few seconds */
+	private static final int TEST_BYTES_PER_SECOND = 4 * 176400;
+
+	/**
+	 * Stand-in track for {@link #runWithServer}: just the given number of bytes with unspecified content. Never blocks
+	 */
+	public static class SyntheticSource implements TrackProviderSource {
+		private final long mLength;
+		private long mPos;
+
+		public SyntheticSource(final long length) {
+			if(0 >= length) throw new IllegalArgumentException("bad length=" + length);
+			this.mLength = length;
+		}
+
+		@Override
+		public long getLength() {
+			return this.mLength;
+		}
+
+		@Override
+		public int read(@NonNull final ByteBuffer buf) {
+			final int size = (int)Math.min(buf.remaining(), this.mLength - this.mPos);
+			if(0 >= size) {
+				return -1;
+			}
+			buf.position(buf.position() + size); // The content doesn't matter to the test client
+			this.mPos += size;
+			return size;
+		}
+
+		@Override
+		public long seek(final long offsetBytes, final int ms) {
+			final long newPos = 0 <= offsetBytes ? offsetBytes : this.mLength + offsetBytes;
+			if(0 > newPos || this.mLength < newPos) {
+				return -1;
+			}
+			this.mPos = newPos;
+			return newPos;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+
+	/** All the players should play their tracks to EOF with the negotiated packet size, with all the seeks answered */
+	@Test
+	public void testServer() throws InterruptedException {
+		final TrackProviderServer.SessionConfig sessionConfig = new TrackProviderServer.SessionConfig();
+		sessionConfig.maxDataSize = TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE;
+		sessionConfig.readAhead = false; // SyntheticSource never blocks
+		final Report report = TrackProviderLoadTester.runWithServer(TrackProviderLoadTester.TEST_PLAYERS, TrackProviderLoadTester.TEST_TRACK_LENGTH, sessionConfig,
+				false, TrackProviderLoadTester.createTestConfig());
+		Assert.assertEquals(report.toString(), 0, report.failedPlayers);
+		Assert.assertEquals(report.toString(), 0, report.failedSeekCount);
+		Assert.assertTrue(report.toString(), 0 < report.seekCount);
+		for(final TrackProviderTestClient.Result result : report.results) {
+			Assert.assertEquals(result.toString(), TrackProviderLoadTester.TEST_TRACK_LENGTH, result.fileLength);
+			Assert.assertEquals(result.toString(), TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE, result.maxDataSize);
+			Assert.assertTrue(result.toString(), 0 < result.eofCount);
+		}
+	}
+
+	/** Same as {@link #testServer}, with the default read-ahead wrapping the sources and the final length sent via {@link TrackProviderServer#sendLength} */
+	@Test
+	public void testServerReadAhead() throws InterruptedException {
+		final TrackProviderServer.SessionConfig sessionConfig = new TrackProviderServer.SessionConfig();
+		sessionConfig.lengthEstimated = true;
+		final Report report = TrackProviderLoadTester.runWithServer(TrackProviderLoadTester.TEST_READ_AHEAD_PLAYERS, TrackProviderLoadTester.TEST_TRACK_LENGTH, sessionConfig,
+				true, TrackProviderLoadTester.createTestConfig());
+		Assert.assertEquals(report.toString(), 0, report.failedPlayers);
+		Assert.assertEquals(report.toString(), 0, report.failedSeekCount);
+		Assert.assertTrue(report.toString(), 0 < report.seekCount);
+		for(final TrackProviderTestClient.Result result : report.results) {
+			Assert.assertEquals(result.toString(), TrackProviderLoadTester.TEST_TRACK_LENGTH, result.fileLength);
+			Assert.assertEquals(result.toString(), 1, result.lengthUpdateCount);
+			Assert.assertTrue(result.toString(), result.lengthFinal);
+			Assert.assertTrue(result.toString(), 0 < result.eofCount);
+		}
+	}
+
+	private static TrackProviderTestClient.@NonNull Config createTestConfig() {
+		final TrackProviderTestClient.Config config = new TrackProviderTestClient.Config();
+		config.bytesPerSecond = TrackProviderLoadTester.TEST_BYTES_PER_SECOND;
+		config.seekIntervalMs = 500;
+		return config;
+	}
+
+	/**
+	 * Runs the players against a {@link TrackProviderServer} serving {@link SyntheticSource} tracks over the socket pairs.
+	 * This exercises the whole client and server path on a device without Poweramp or any track files
+	 * @param trackLength length of each synthetic track in bytes
+	 * @param sessionConfig the server session options
+	 * @param sendLength if true, trackLength is sent as the final length via {@link TrackProviderServer#sendLength} right after the session is opened
+	 */
+	public static @NonNull Report runWithServer(final int players, final long trackLength, final TrackProviderServer.@NonNull SessionConfig sessionConfig,
+			final boolean sendLength, final TrackProviderTestClient.@NonNull Config config) throws InterruptedException {
+		try(final TrackProviderServer server = new TrackProviderServer()) {
+			return TrackProviderLoadTester.run(new SessionFactory() {
+				@Override
+				public @NonNull TrackProviderTransport openSession(final int playerIx) throws IOException {
+					final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createSocketPair();
+					final SyntheticSource source = new SyntheticSource(trackLength);
+					server.open(fds[1], source, sessionConfig);
+					if(sendLength && !server.sendLength(source, trackLength, true)) throw new IOException("sendLength failed");
+					return new TrackProviderOsTransport(fds[0]);
+				}
+			}, players, config);
+		}
+	}
+
+
+	/**
+	 * Runs the players and waits for all of them to finish
+	 * @param config the config used by all players. Each player gets randomSeed + playerIx as the seed
+	 */
+	public static @NonNull Report run(@NonNull final SessionFactory factory, final int players, final TrackProviderTestClient.@NonNull Config config) throws InterruptedException {
+		final Report report = new Report();
+		report.players = players;
+		report.threadsBefore = Thread.activeCount();
+		report.threadsPeak = report.threadsBefore;
+
+		final TrackProviderTestClient.Result[] results = new TrackProviderTestClient.Result[players];
+		final Thread[] threads = new Thread[players];
+		final long startNs = System.nanoTime();
+
+		for(int i = 0; i < players; i++) {
+			final int playerIx = i;
+			final TrackProviderTestClient.Config playerConfig = copyConfig(config);
+			playerConfig.randomSeed = config.randomSeed + playerIx;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final TrackProviderTestClient client = new TrackProviderTestClient(playerConfig);
+					TrackProviderTestClient.Result result;
+					try {
+						result = client.run(factory.openSession(playerIx));
+					} catch(final Throwable th) {
+						result = new TrackProviderTestClient.Result();
+						result.error = th;
+					}
+					results[playerIx] = result;
+				}
+			}, TrackProviderLoadTester.TAG + "#" + i);
+			threads[i].start();
+		}
+
+		for(final Thread thread : threads) {
+			while(thread.isAlive()) {
+				final int active = Thread.activeCount();
+				if(active > report.threadsPeak) {
+					report.threadsPeak = active;
+				}
+				thread.join(THREAD_SAMPLE_INTERVAL_MS);
+			}
+		}
+
+		report.elapsedNs = System.nanoTime() - startNs;
+		report.threadsAfter = Thread.activeCount();
+		report.results = results;
+
+		long[] latencies = new long[64];
+		int latencyCount = 0;
+		for(final TrackProviderTestClient.Result result : results) {
+			if(null == result || null != result.error) {
+				report.failedPlayers++;
+				if(TrackProviderLoadTester.LOG) Log.w(TrackProviderLoadTester.TAG, "run FAIL result=" + result);
+			}
+			if(null == result) {
+				continue;
+			}
+			report.bytesReceived += result.bytesReceived;
+			report.failedSeekCount += result.failedSeekCount;
+			if(latencyCount + result.seekCount > latencies.length) {
+				latencies = Arrays.copyOf(latencies, Math.max(latencies.length * 2, latencyCount + result.seekCount));
+			}
+			System.arraycopy(result.seekLatenciesNs, 0, latencies, latencyCount, result.seekCount);
+			latencyCount += result.seekCount;
+		}
+		report.seekCount = latencyCount;
+		report.bytesPerSecond = 0 < report.elapsedNs ? report.bytesReceived * 1000000000L / report.elapsedNs : 0;
+
+		if(0 < latencyCount) {
+			Arrays.sort(latencies, 0, latencyCount);
+			report.seekP50Us = percentile(latencies, latencyCount, 50) / 1000;
+			report.seekP90Us = percentile(latencies, latencyCount, 90) / 1000;
+			report.seekP99Us = percentile(latencies, latencyCount, 99) / 1000;
+			report.seekMaxUs = latencies[latencyCount - 1] / 1000;
+		}
+
+		if(TrackProviderLoadTester.LOG) Log.w(TrackProviderLoadTester.TAG, "run " + report);
+		return report;
+	}
+
+	/** Nearest-rank percentile of the first count sorted values */
+	private static long percentile(final long @NonNull[] sorted, final int count, final int percent) {
+		final int rank = (int)Math.ceil(percent / 100.0 * count);
+		return sorted[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+	private static TrackProviderTestClient.@NonNull Config copyConfig(final TrackProviderTestClient.@NonNull Config config) {
+		final TrackProviderTestClient.Config copy = new TrackProviderTestClient.Config();
+		copy.bytesPerSecond = config.bytesPerSecond;
+		copy.randomSeeks = config.randomSeeks;
+		copy.seekIntervalMs = config.seekIntervalMs;
+		copy.scriptedSeeks = config.scriptedSeeks;
+		copy.seekWithMs = config.seekWithMs;
+		copy.durationMs = config.durationMs;
+		copy.pauseEveryMs = config.pauseEveryMs;
+		copy.pauseMs = config.pauseMs;
+		copy.seeksAfterEOF = config.seeksAfterEOF;
+		copy.acceptedMaxDataSize = config.acceptedMaxDataSize;
+		copy.acceptLengthUpdates = config.acceptLengthUpdates;
+		copy.maxBytes = config.maxBytes;
+		copy.randomSeed = config.randomSeed;
+		return copy;
+	}
+}
@@ -0,0 +1,261 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures the throughput vs the seek latency trade-off of the {@link TrackProviderProto.SeekCheckPolicy} modes.<br>
+ * For each policy, the proto serves the synthetic track over the socket pair to {@link TrackProviderTestClient}, which reads as fast as possible
+ * and issues the random seeks. The throughput and the seek request to seek result latencies are measured on the client side,
+ * the transport calls come from {@link TrackProviderProtoMetrics} on the proto side.<br>
+ * Runs as the instrumented test, as it needs the device sockets. The first iterations are warmup and not counted.
+ * {@link TrackProviderProto.SeekCheckPolicy#edgeTriggered} needs API 30+, below that it's measured as everyBytes(fallbackBytes)
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackProviderSeekPolicyBenchmark {
+	private static final String TAG = "TrackProviderSeekPolicyBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int WARMUP_ITERATIONS = 2;
+
+	/** Provider read buffer size, same as in the example provider */
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final int TEST_TOTAL_BYTES = 16 * 1024 * 1024;
+	private static final int TEST_SEEKS = 16;
+	private static final int TEST_ITERATIONS = 3;
+
+	/** The policies measured by {@link #run(int, int, int)} */
+	public static final TrackProviderProto.SeekCheckPolicy @NonNull[] DEFAULT_POLICIES = {
+			TrackProviderProto.SeekCheckPolicy.DEFAULT,
+			TrackProviderProto.SeekCheckPolicy.everyBytes(256 * 1024),
+			TrackProviderProto.SeekCheckPolicy.everyMicros(2000),
+			TrackProviderProto.SeekCheckPolicy.edgeTriggered(256 * 1024),
+	};
+
+	public static class Entry {
+		public TrackProviderProto.@NonNull SeekCheckPolicy policy;
+		/** Client side throughput, bytes per second, averaged over the iterations */
+		public long bytesPerSecond;
+		/** Proto transport calls per MB of data sent */
+		public long callsPerMB;
+		public int seekCount;
+		/** Number of the failed sessions, these are not counted in the other fields */
+		public int failedCount;
+		public long seekP50Us;
+		public long seekP99Us;
+		public long seekMaxUs;
+
+		Entry(final TrackProviderProto.@NonNull SeekCheckPolicy policy) {
+			this.policy = policy;
+		}
+
+		@Override
+		public String toString() {
+			return "policy=[" + this.policy + "] bytesPerSecond=" + this.bytesPerSecond + " callsPerMB=" + this.callsPerMB
+					+ " seekCount=" + this.seekCount + " failedCount=" + this.failedCount + " seekUs p50=" + this.seekP50Us + " p99=" + this.seekP99Us + " max=" + this.seekMaxUs;
+		}
+	}
+
+	public static class Report {
+		public int totalBytes;
+		public int seeks;
+		public int iterations;
+		public int sdkInt;
+		public Entry @NonNull[] entries = new Entry[0];
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("totalBytes=").append(this.totalBytes).append(" seeks=").append(this.seeks).append(" iterations=").append(this.iterations)
+					.append(" sdkInt=").append(this.sdkInt);
+			for(final Entry entry : this.entries) {
+				sb.append("\n").append(entry);
+			}
+			return sb.toString();
+		}
+	}
+
+
+	/** Each policy should serve all the sessions and answer all the seeks. The throughput and latencies are just logged, as these vary per device */
+	@Test
+	public void testPolicies() {
+		final Report report = TrackProviderSeekPolicyBenchmark.run(TrackProviderSeekPolicyBenchmark.TEST_TOTAL_BYTES, TrackProviderSeekPolicyBenchmark.TEST_SEEKS,
+				TrackProviderSeekPolicyBenchmark.TEST_ITERATIONS);
+		for(final Entry entry : report.entries) {
+			Assert.assertEquals(entry.toString(), 0, entry.failedCount);
+			Assert.assertEquals(entry.toString(), TrackProviderSeekPolicyBenchmark.TEST_SEEKS * TrackProviderSeekPolicyBenchmark.TEST_ITERATIONS, entry.seekCount);
+		}
+	}
+
+	/** Runs {@link #DEFAULT_POLICIES} */
+	public static @NonNull Report run(final int totalBytes, final int seeks, final int iterations) {
+		return TrackProviderSeekPolicyBenchmark.run(TrackProviderSeekPolicyBenchmark.DEFAULT_POLICIES, totalBytes, seeks, iterations);
+	}
+
+	/**
+	 * @param totalBytes the synthetic track length
+	 * @param seeks number of the random seeks per session, issued evenly while the client reads the track
+	 */
+	public static @NonNull Report run(final TrackProviderProto.SeekCheckPolicy @NonNull[] policies, final int totalBytes, final int seeks, final int iterations) {
+		if(0 >= totalBytes || 0 > seeks) throw new IllegalArgumentException("bad totalBytes=" + totalBytes + " seeks=" + seeks);
+		final Report report = new Report();
+		report.totalBytes = totalBytes;
+		report.seeks = seeks;
+		report.iterations = iterations;
+		report.sdkInt = Build.VERSION.SDK_INT;
+		report.entries = new Entry[policies.length];
+
+		final TrackProviderTestClient.Config config = new TrackProviderTestClient.Config();
+		config.bytesPerSecond = 0; // Read as fast as possible
+		config.randomSeeks = seeks;
+		// With the unlimited rate, the seek interval is counted in bytes (ms * 1 / 1000), so this issues a seek every totalBytes / (seeks + 1) bytes read
+		config.seekIntervalMs = (long)totalBytes * 1000 / (seeks + 1);
+		config.seekWithMs = false;
+		config.seeksAfterEOF = 0;
+
+		final ByteBuffer data = TrackProviderBufferPool.getDefault().acquire(TrackProviderSeekPolicyBenchmark.BUFFER_SIZE);
+		final TrackProviderProtoMetrics metrics = new TrackProviderProtoMetrics();
+		try {
+			for(int i = 0; i < policies.length; i++) {
+				final TrackProviderProto.SeekCheckPolicy policy = policies[i];
+				final Entry entry = new Entry(policy);
+				long bytes = 0;
+				long elapsedNs = 0;
+				long calls = 0;
+				long sentBytes = 0;
+				long[] latencies = new long[64];
+				int latencyCount = 0;
+
+				for(int it = -TrackProviderSeekPolicyBenchmark.WARMUP_ITERATIONS; it < iterations; it++) {
+					config.randomSeed = it;
+					final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createSocketPair();
+					metrics.reset();
+					final Thread provider = TrackProviderSeekPolicyBenchmark.startProvider(fds[1], totalBytes, policy, metrics, data);
+					final TrackProviderTestClient.Result result = new TrackProviderTestClient(config).run(new TrackProviderOsTransport(fds[0]));
+					provider.join();
+					if(null != result.error) {
+						Log.e(TrackProviderSeekPolicyBenchmark.TAG, "run FAIL policy=" + policy, result.error);
+						if(0 <= it) {
+							entry.failedCount++;
+						}
+						continue;
+					}
+					if(0 <= it) {
+						bytes += result.bytesReceived;
+						elapsedNs += result.elapsedNs;
+						calls += metrics.getSyscalls();
+						sentBytes += metrics.getBytesSent();
+						if(latencyCount + result.seekCount > latencies.length) {
+							latencies = Arrays.copyOf(latencies, Math.max(latencies.length * 2, latencyCount + result.seekCount));
+						}
+						System.arraycopy(result.seekLatenciesNs, 0, latencies, latencyCount, result.seekCount);
+						latencyCount += result.seekCount;
+					}
+				}
+
+				entry.bytesPerSecond = 0 < elapsedNs ? bytes * 1000000000L / elapsedNs : 0;
+				entry.callsPerMB = 0 < sentBytes ? calls * 1024 * 1024 / sentBytes : 0;
+				entry.seekCount = latencyCount;
+				if(0 < latencyCount) {
+					Arrays.sort(latencies, 0, latencyCount);
+					entry.seekP50Us = latencies[(latencyCount - 1) / 2] / 1000;
+					entry.seekP99Us = latencies[Math.max(0, (int)Math.ceil(0.99 * latencyCount) - 1)] / 1000;
+					entry.seekMaxUs = latencies[latencyCount - 1] / 1000;
+				}
+				report.entries[i] = entry;
+			}
+		} catch(final IOException | InterruptedException ex) {
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		} finally {
+			TrackProviderBufferPool.getDefault().release(data);
+		}
+
+		if(TrackProviderSeekPolicyBenchmark.LOG) Log.w(TrackProviderSeekPolicyBenchmark.TAG, "run " + report);
+		return report;
+	}
+
+	/** Starts the thread serving the synthetic track with the given policy until the client closes the socket */
+	private static @NonNull Thread startProvider(@NonNull final ParcelFileDescriptor pfd, final long length, final TrackProviderProto.@NonNull SeekCheckPolicy policy,
+	                                             @NonNull final TrackProviderProtoMetrics metrics, @NonNull final ByteBuffer data
+	) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try(final TrackProviderProto proto = TrackProviderOsTransport.createProto(pfd, length)) {
+					proto.setSeekCheckPolicy(policy);
+					proto.setMetrics(metrics);
+					proto.sendHeader();
+
+					long pos = 0;
+					while(true) {
+						while(pos < length) {
+							data.clear().limit((int)Math.min(TrackProviderSeekPolicyBenchmark.BUFFER_SIZE, length - pos));
+							final TrackProviderProto.SeekRequest seekRequest = proto.sendData2(data);
+							if(TrackProviderSeekPolicyBenchmark.isSeek(seekRequest)) {
+								pos = TrackProviderSeekPolicyBenchmark.seek(proto, seekRequest, length);
+							} else {
+								pos += data.limit();
+							}
+						}
+						final TrackProviderProto.SeekRequest seekRequest = proto.sendEOFAndWaitForSeekOrClose2();
+						if(!TrackProviderSeekPolicyBenchmark.isSeek(seekRequest)) {
+							break; // Client closed the socket
+						}
+						pos = TrackProviderSeekPolicyBenchmark.seek(proto, seekRequest, length);
+					}
+				} catch(final TrackProviderProto.TrackProviderProtoClosed ex) {
+					// Client closed the socket while we were sending
+				} catch(final Throwable th) {
+					Log.e(TrackProviderSeekPolicyBenchmark.TAG, "", th);
+				}
+			}
+		}, TrackProviderSeekPolicyBenchmark.TAG + "#provider");
+		thread.start();
+		return thread;
+	}
+
+	private static boolean isSeek(final TrackProviderProto.@Nullable SeekRequest seekRequest) {
+		return null != seekRequest && TrackProviderProto.INVALID_SEEK_POS != seekRequest.offsetBytes;
+	}
+
+	/** Sends the seek result for the request, the synthetic data has no content, so any in-range position is accepted as is */
+	private static long seek(@NonNull final TrackProviderProto proto, final TrackProviderProto.@NonNull SeekRequest seekRequest, final long length) {
+		final long newPos = Math.max(0, Math.min(length, 0 <= seekRequest.offsetBytes ? seekRequest.offsetBytes : length + seekRequest.offsetBytes));
+		proto.sendSeekResult(newPos);
+		return newPos;
+	}
+}
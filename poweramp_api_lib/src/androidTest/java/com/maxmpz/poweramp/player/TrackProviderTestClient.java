@@ -0,0 +1,327 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stand-in for the Poweramp side of the {@link TrackProviderProto} wire format, for testing and load-testing the track providers without Poweramp.<br>
+ * Reads the header (answering the offered PROTO_CAP_* flags), consumes the data at the configured rate, stalls as if paused,
+ * and issues random or scripted seek requests (with or without the ms hint), including seeks after EOF.<br>
+ * See {@link TrackProviderLoadTester} to run many clients concurrently.<br>
+ * THREADING: any single thread per client
+ */
+public class TrackProviderTestClient {
+	private static final String TAG = "TrackProviderTestClient";
+	private static final boolean LOG = false;
+
+	/** Simulated player configuration. Defaults are a 1411 kbps (CD quality) player with a few random seeks */
+	public static class Config {
+		/** Data consumption rate, bytes per second. <= 0 means unlimited */
+		public int bytesPerSecond = 176400;
+		/** Number of the random seeks issued while playing */
+		public int randomSeeks = 4;
+		/** Interval between the random seeks, in the milliseconds of the playback */
+		public long seekIntervalMs = 2000;
+		/** If not null, these byte offsets are used for the seeks instead of the random ones, in order. < 0 offsets seek from the end of the file */
+		public long @Nullable[] scriptedSeeks;
+		/** If true, the seek requests include the ms hint, otherwise only the byte offset is sent, same as older Poweramp builds do */
+		public boolean seekWithMs = true;
+		/** Track duration used to calculate the ms hint. If <= 0, the ms hint is calculated from bytesPerSecond */
+		public long durationMs;
+		/** If > 0, the client stops reading for pauseMs every pauseEveryMs of the playback, simulating Poweramp pause */
+		public long pauseEveryMs;
+		public long pauseMs = 1000;
+		/** Number of the seeks issued after EOF, e.g. Poweramp seeking back to the start after the repeat */
+		public int seeksAfterEOF = 1;
+		/** Data size accepted in response to the provider offered larger packets. MAX_DATA_SIZE means the larger packets are not accepted */
+		public int acceptedMaxDataSize = TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE;
+		/** If true, the length updates offered by the provider are accepted, otherwise the client behaves as the older Poweramp builds */
+		public boolean acceptLengthUpdates = true;
+		/** If > 0, the client closes the session after this many data bytes received */
+		public long maxBytes;
+		public long randomSeed = 1;
+	}
+
+	/** Results of a single {@link #run} */
+	public static class Result {
+		public long fileLength;
+		public int maxDataSize;
+		public long bytesReceived;
+		public long packetsReceived;
+		public int eofCount;
+		/** Number of the received length updates. fileLength is the last received length then */
+		public int lengthUpdateCount;
+		public boolean lengthFinal;
+		public int seekCount;
+		public int failedSeekCount;
+		/** Seek request to seek result latencies, ns. First seekCount entries are valid */
+		public long @NonNull[] seekLatenciesNs = new long[16];
+		public long elapsedNs;
+		/** Not null if the session failed */
+		public @Nullable Throwable error;
+
+		void addSeekLatency(final long latencyNs) {
+			if(this.seekCount == this.seekLatenciesNs.length) {
+				this.seekLatenciesNs = Arrays.copyOf(this.seekLatenciesNs, this.seekCount * 2);
+			}
+			this.seekLatenciesNs[this.seekCount++] = latencyNs;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " fileLength=" + this.fileLength + " maxDataSize=" + this.maxDataSize + " bytesReceived=" + this.bytesReceived
+					+ " packetsReceived=" + this.packetsReceived + " eofCount=" + this.eofCount + " lengthUpdateCount=" + this.lengthUpdateCount + " seekCount=" + this.seekCount
+					+ " failedSeekCount=" + this.failedSeekCount + " elapsedMs=" + this.elapsedNs / 1000000 + " error=" + this.error;
+		}
+	}
+
+	private final @NonNull Config mConfig;
+	private final @NonNull ByteBuffer mBuf;
+	private final @NonNull Random mRandom;
+	private int mScriptedSeekIx;
+
+
+	public TrackProviderTestClient(@NonNull final Config config) {
+		this.mConfig = config;
+		this.mRandom = new Random(config.randomSeed);
+		final ByteBuffer buf = ByteBuffer.allocateDirect(TrackProviderProto.MAX_PACKET_HEADER_SIZE + 0xFFFF); // Max unsigned DATA_SIZE
+		buf.order(ByteOrder.nativeOrder());
+		this.mBuf = buf;
+	}
+
+	/**
+	 * Plays the session until EOF (and the configured seeks after EOF) or maxBytes, then closes the transport
+	 * @param transport the Poweramp side of the provider socket, in the blocking mode. Closed by this method
+	 * @return the result, with {@link Result#error} set if the session failed
+	 */
+	public @NonNull Result run(@NonNull final TrackProviderTransport transport) {
+		final Config config = this.mConfig;
+		final Result result = new Result();
+		final long startNs = System.nanoTime();
+		try {
+			this.readHeader(transport, result);
+
+			long nextSeekBytes = config.seekIntervalMs * Math.max(config.bytesPerSecond, 1) / 1000;
+			int randomSeeksLeft = config.randomSeeks;
+			int seeksAfterEOFLeft = config.seeksAfterEOF;
+			long nextPauseBytes = 0 < config.pauseEveryMs ? config.pauseEveryMs * Math.max(config.bytesPerSecond, 1) / 1000 : Long.MAX_VALUE;
+			long playedBytes = 0; // Bytes consumed since the start, used for the pacing
+			long pos = 0;
+
+			while(0 >= config.maxBytes || result.bytesReceived < config.maxBytes) {
+				if(0 < randomSeeksLeft && playedBytes >= nextSeekBytes) {
+					randomSeeksLeft--;
+					nextSeekBytes = playedBytes + config.seekIntervalMs * Math.max(config.bytesPerSecond, 1) / 1000;
+					final long newPos = this.seek(transport, result, this.nextSeekOffset(result.fileLength));
+					if(0 <= newPos) {
+						pos = newPos;
+					}
+					continue;
+				}
+				if(playedBytes >= nextPauseBytes) {
+					nextPauseBytes = playedBytes + config.pauseEveryMs * Math.max(config.bytesPerSecond, 1) / 1000;
+					if(TrackProviderTestClient.LOG) Log.w(TrackProviderTestClient.TAG, "run pause pauseMs=" + config.pauseMs);
+					Thread.sleep(config.pauseMs);
+				}
+
+				final int type = this.readPacket(transport);
+				final int dataSize = TrackProviderProto.getPacketDataSize(this.mBuf);
+				if(TrackProviderProto.PACKET_TYPE_LENGTH == type) {
+					this.onLengthUpdate(result);
+					continue;
+				}
+				if(TrackProviderProto.PACKET_TYPE_DATA != type) {
+					throw new IOException("unexpected packet type=" + type);
+				}
+				result.packetsReceived++;
+				if(0 == dataSize) { // EOF
+					result.eofCount++;
+					if(TrackProviderTestClient.LOG) Log.w(TrackProviderTestClient.TAG, "run EOF pos=" + pos);
+					if(0 >= seeksAfterEOFLeft) {
+						break;
+					}
+					seeksAfterEOFLeft--;
+					final long newPos = this.seek(transport, result, this.nextSeekOffset(result.fileLength));
+					if(0 <= newPos) {
+						pos = newPos;
+					}
+					continue;
+				}
+				result.bytesReceived += dataSize;
+				playedBytes += dataSize;
+				pos += dataSize;
+
+				if(0 < config.bytesPerSecond) {
+					// Sleep until the consumed bytes are "played"
+					final long dueNs = startNs + playedBytes * 1000000000L / config.bytesPerSecond;
+					final long sleepNs = dueNs - System.nanoTime();
+					if(1000000 <= sleepNs) {
+						Thread.sleep(sleepNs / 1000000, (int)(sleepNs % 1000000));
+					}
+				}
+			}
+		} catch(final Throwable th) {
+			if(TrackProviderTestClient.LOG) Log.e(TrackProviderTestClient.TAG, "", th);
+			result.error = th;
+		} finally {
+			transport.close();
+			result.elapsedNs = System.nanoTime() - startNs;
+		}
+		return result;
+	}
+
+	private void readHeader(@NonNull final TrackProviderTransport transport, @NonNull final Result result) throws IOException {
+		final ByteBuffer buf = this.mBuf;
+		final int type = this.readPacket(transport);
+		if(TrackProviderProto.PACKET_TYPE_HEADER != type || TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES > TrackProviderProto.getPacketDataSize(buf)) {
+			throw new IOException("bad header type=" + type);
+		}
+		result.fileLength = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+		result.maxDataSize = buf.getInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES);
+		final int caps = buf.getInt(TrackProviderProto.PACKET_RESERVED_IX);
+
+		int acceptedCaps = 0;
+		if(0 != (caps & TrackProviderProto.PROTO_CAP_LARGE_PACKETS) && TrackProviderProto.MAX_DATA_SIZE < this.mConfig.acceptedMaxDataSize) {
+			acceptedCaps |= TrackProviderProto.PROTO_CAP_LARGE_PACKETS;
+			result.maxDataSize = this.mConfig.acceptedMaxDataSize;
+		}
+		if(0 != (caps & TrackProviderProto.PROTO_CAP_LENGTH_UPDATES) && this.mConfig.acceptLengthUpdates) {
+			acceptedCaps |= TrackProviderProto.PROTO_CAP_LENGTH_UPDATES;
+		}
+		if(0 != caps) {
+			// Answer the offered caps, same as Poweramp does
+			buf.clear();
+			TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_CAPS, 2 * TrackProviderProto.INTEGER_BYTES, 0);
+			buf.putInt(TrackProviderProto.PACKET_DATA_IX, result.maxDataSize);
+			buf.putInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.INTEGER_BYTES, acceptedCaps);
+			buf.limit(TrackProviderProto.PACKET_DATA_IX + 2 * TrackProviderProto.INTEGER_BYTES);
+			this.writeFully(transport, buf);
+		}
+		if(TrackProviderTestClient.LOG) Log.w(TrackProviderTestClient.TAG, "readHeader fileLength=" + result.fileLength + " caps=" + caps);
+	}
+
+	private void onLengthUpdate(@NonNull final Result result) throws IOException {
+		final ByteBuffer buf = this.mBuf;
+		if(TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES > TrackProviderProto.getPacketDataSize(buf)) throw new IOException("bad length packet");
+		result.fileLength = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+		result.lengthFinal = 0 != (buf.getInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES) & TrackProviderProto.LENGTH_FLAG_FINAL);
+		result.lengthUpdateCount++;
+		if(TrackProviderTestClient.LOG) Log.w(TrackProviderTestClient.TAG, "onLengthUpdate fileLength=" + result.fileLength + " final=" + result.lengthFinal);
+	}
+
+	/**
+	 * Sends the seek request, then skips the data packets until the seek result
+	 * @return the new position, or < 0 if the provider failed the seek
+	 */
+	private long seek(@NonNull final TrackProviderTransport transport, @NonNull final Result result, final long offsetBytes) throws IOException {
+		final Config config = this.mConfig;
+		final ByteBuffer buf = this.mBuf;
+		final boolean withMs = config.seekWithMs;
+		buf.clear();
+		TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_SEEK,
+				withMs ? TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES : TrackProviderProto.LONG_BYTES, 0);
+		buf.putLong(TrackProviderProto.PACKET_DATA_IX, offsetBytes);
+		if(withMs) {
+			buf.putInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES, this.getSeekMs(offsetBytes, result.fileLength));
+		}
+		buf.limit(TrackProviderProto.PACKET_DATA_IX + (withMs ? TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES : TrackProviderProto.LONG_BYTES));
+
+		final long startNs = System.nanoTime();
+		this.writeFully(transport, buf);
+
+		while(true) {
+			final int type = this.readPacket(transport);
+			if(TrackProviderProto.PACKET_TYPE_SEEK_RES == type) {
+				result.addSeekLatency(System.nanoTime() - startNs);
+				final long newPos = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+				if(0 > newPos) {
+					result.failedSeekCount++;
+				}
+				if(TrackProviderTestClient.LOG) Log.w(TrackProviderTestClient.TAG, "seek offsetBytes=" + offsetBytes + " newPos=" + newPos);
+				return newPos;
+			}
+			// Data (including EOF) and length packets sent before the seek result are ignored, same as Poweramp does
+			if(TrackProviderProto.PACKET_TYPE_DATA != type && TrackProviderProto.PACKET_TYPE_LENGTH != type) {
+				throw new IOException("unexpected packet type=" + type);
+			}
+		}
+	}
+
+	private long nextSeekOffset(final long fileLength) {
+		final long[] scriptedSeeks = this.mConfig.scriptedSeeks;
+		if(null != scriptedSeeks && 0 < scriptedSeeks.length) {
+			return scriptedSeeks[this.mScriptedSeekIx++ % scriptedSeeks.length];
+		}
+		return (long)(this.mRandom.nextDouble() * fileLength);
+	}
+
+	private int getSeekMs(final long offsetBytes, final long fileLength) {
+		final long pos = 0 <= offsetBytes ? offsetBytes : fileLength + offsetBytes;
+		final Config config = this.mConfig;
+		if(0 < config.durationMs) {
+			return (int)(pos * config.durationMs / fileLength);
+		}
+		return (int)(pos * 1000 / Math.max(config.bytesPerSecond, 1));
+	}
+
+	/**
+	 * Reads the whole packet into mBuf
+	 * @return the packet type
+	 */
+	private int readPacket(@NonNull final TrackProviderTransport transport) throws IOException {
+		final ByteBuffer buf = this.mBuf;
+		buf.clear();
+		buf.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE);
+		this.readFully(transport, buf);
+		if(TrackProviderProto.PACKET_TAG != buf.getInt(0)) {
+			throw new IOException("bad packet tag=" + Integer.toHexString(buf.getInt(0)));
+		}
+		final int dataSize = TrackProviderProto.getPacketDataSize(buf);
+		buf.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE + dataSize);
+		this.readFully(transport, buf);
+		return buf.getShort(4);
+	}
+
+	private void readFully(@NonNull final TrackProviderTransport transport, @NonNull final ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(0 > transport.read(buf, false)) {
+				throw new EOFException("provider closed the socket");
+			}
+		}
+	}
+
+	private void writeFully(@NonNull final TrackProviderTransport transport, @NonNull final ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			transport.write(buf);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares {@link TrackProviderProto#sendData2} vectored writes against the former path, which sent each packet with two sendto() calls
+ * (header, then payload) followed by the poll() for the seek request.<br>
+ * Both paths send the same data over the socket pair to a thread which just reads and discards it, so the difference is the provider side cost.<br>
+ * Runs as the instrumented test, as it needs the device sockets. The first iterations are warmup and not counted
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackProviderWritevBenchmark {
+	private static final String TAG = "TrackProviderWritevBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int WARMUP_ITERATIONS = 3;
+
+	private static final int TEST_TOTAL_BYTES = 4 * 1024 * 1024;
+	private static final int TEST_BUFFER_SIZE = 32 * 1024;
+	private static final int TEST_ITERATIONS = 5;
+
+	public static class Report {
+		public int totalBytes;
+		public int bufferSize;
+		public int iterations;
+		/** Average per iteration */
+		public long twoCallsNs;
+		public long twoCallsCalls;
+		public long writevNs;
+		/** Transport calls, see {@link TrackProviderProtoMetrics#getSyscalls()} */
+		public long writevCalls;
+
+		@Override
+		public String toString() {
+			return "totalBytes=" + this.totalBytes + " bufferSize=" + this.bufferSize + " iterations=" + this.iterations
+					+ " twoCalls us=" + this.twoCallsNs / 1000 + " MBps=" + Report.mbps(this.totalBytes, this.twoCallsNs) + " calls=" + this.twoCallsCalls
+					+ " writev us=" + this.writevNs / 1000 + " MBps=" + Report.mbps(this.totalBytes, this.writevNs) + " calls=" + this.writevCalls;
+		}
+
+		private static long mbps(final long bytes, final long ns) {
+			return 0 < ns ? bytes * 1000 / ns : 0;
+		}
+	}
+
+
+	/** Vectored writes should need fewer transport calls than the former path. The timings are just logged, as these vary per device */
+	@Test
+	public void testWritevCalls() {
+		final Report report = TrackProviderWritevBenchmark.run(TrackProviderWritevBenchmark.TEST_TOTAL_BYTES, TrackProviderWritevBenchmark.TEST_BUFFER_SIZE,
+				TrackProviderWritevBenchmark.TEST_ITERATIONS);
+		Assert.assertTrue(report.toString(), 0 < report.writevCalls);
+		Assert.assertTrue(report.toString(), report.writevCalls < report.twoCallsCalls);
+	}
+
+	/**
+	 * Sends totalBytes with both paths, bufferSize bytes per {@link TrackProviderProto#sendData2} call, same as the provider read buffer.
+	 * {@link TrackProviderProto#MAX_DATA_SIZE} packets are used for both
+	 */
+	public static @NonNull Report run(final int totalBytes, final int bufferSize, final int iterations) {
+		if(0 >= totalBytes || 0 >= bufferSize) throw new IllegalArgumentException("bad totalBytes=" + totalBytes + " bufferSize=" + bufferSize);
+		final Report report = new Report();
+		report.totalBytes = totalBytes;
+		report.bufferSize = bufferSize;
+		report.iterations = iterations;
+
+		final TrackProviderBufferPool pool = TrackProviderBufferPool.getDefault();
+		final ByteBuffer data = pool.acquire(bufferSize);
+		final ByteBuffer header = pool.acquire(TrackProviderProto.MAX_PACKET_HEADER_SIZE);
+		final TrackProviderProtoMetrics metrics = new TrackProviderProtoMetrics();
+		try {
+			for(int it = -TrackProviderWritevBenchmark.WARMUP_ITERATIONS; it < iterations; it++) {
+				// Two sendto() calls and poll() per packet
+				ParcelFileDescriptor[] fds = ParcelFileDescriptor.createSocketPair();
+				Thread drain = TrackProviderWritevBenchmark.startDrain(fds[0]);
+				final FileDescriptor socket = fds[1].getFileDescriptor();
+				final StructPollfd[] pollFds = new StructPollfd[] { new StructPollfd() };
+				pollFds[0].fd = socket;
+				pollFds[0].events = (short)OsConstants.POLLIN;
+
+				long start = System.nanoTime();
+				long twoCallsCalls = 0;
+				for(int sent = 0; sent < totalBytes; ) {
+					data.clear().limit(Math.min(bufferSize, totalBytes - sent));
+					sent += data.limit();
+					while(data.hasRemaining()) {
+						final int size = Math.min(data.remaining(), TrackProviderProto.MAX_DATA_SIZE);
+						header.clear();
+						TrackProviderProto.putPacketHeader(header, 0, TrackProviderProto.PACKET_TYPE_DATA, size, 0);
+						header.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE);
+						twoCallsCalls += TrackProviderWritevBenchmark.sendFully(socket, header);
+
+						final int limit = data.limit();
+						data.limit(data.position() + size);
+						twoCallsCalls += TrackProviderWritevBenchmark.sendFully(socket, data);
+						data.limit(limit);
+
+						Os.poll(pollFds, 0);
+						twoCallsCalls++;
+					}
+				}
+				final long twoCallsNs = System.nanoTime() - start;
+				fds[1].close();
+				drain.join();
+
+				// Vectored writes via the proto
+				fds = ParcelFileDescriptor.createSocketPair();
+				drain = TrackProviderWritevBenchmark.startDrain(fds[0]);
+				final long writevNs;
+				try(final TrackProviderProto proto = TrackProviderOsTransport.createProto(fds[1], totalBytes)) {
+					proto.setMetrics(metrics);
+					proto.sendHeader();
+					metrics.reset();
+
+					start = System.nanoTime();
+					for(int sent = 0; sent < totalBytes; ) {
+						data.clear().limit(Math.min(bufferSize, totalBytes - sent));
+						sent += data.limit();
+						proto.sendData2(data); // No seeks, the drain thread never sends anything
+					}
+					writevNs = System.nanoTime() - start;
+				}
+				drain.join();
+
+				if(0 <= it) {
+					report.twoCallsNs += twoCallsNs;
+					report.twoCallsCalls += twoCallsCalls;
+					report.writevNs += writevNs;
+					report.writevCalls += metrics.getSyscalls();
+				}
+			}
+		} catch(final IOException | ErrnoException | InterruptedException ex) {
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		} finally {
+			pool.release(data);
+			pool.release(header);
+		}
+
+		if(0 < iterations) {
+			report.twoCallsNs /= iterations;
+			report.twoCallsCalls /= iterations;
+			report.writevNs /= iterations;
+			report.writevCalls /= iterations;
+		}
+		if(TrackProviderWritevBenchmark.LOG) Log.w(TrackProviderWritevBenchmark.TAG, "run " + report);
+		return report;
+	}
+
+	/**
+	 * Sends buf position..limit with blocking sendto() calls
+	 * @return number of sendto() calls
+	 */
+	private static int sendFully(@NonNull final FileDescriptor socket, @NonNull final ByteBuffer buf) throws ErrnoException, IOException {
+		int calls = 0;
+		while(buf.hasRemaining()) {
+			final int res = Os.sendto(socket, buf, 0, null, 0);
+			if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+			calls++;
+		}
+		return calls;
+	}
+
+	/** Starts the thread reading and discarding everything from pfd until EOF, then closing it */
+	private static @NonNull Thread startDrain(@NonNull final ParcelFileDescriptor pfd) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final byte[] buf = new byte[64 * 1024];
+				try {
+					//noinspection StatementWithEmptyBody
+					while(0 < Os.read(pfd.getFileDescriptor(), buf, 0, buf.length)) {
+						// Discard
+					}
+				} catch(final ErrnoException | InterruptedIOException ex) {
+					Log.e(TrackProviderWritevBenchmark.TAG, "", ex);
+				} finally {
+					try {
+						pfd.close();
+					} catch(final IOException ex) {
+						Log.e(TrackProviderWritevBenchmark.TAG, "", ex);
+					}
+				}
+			}
+		}, TrackProviderWritevBenchmark.TAG + "#drain");
+		thread.start();
+		return thread;
+	}
+}
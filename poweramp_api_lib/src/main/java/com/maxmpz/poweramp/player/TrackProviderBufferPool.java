@@ -0,0 +1,219 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+/**
+ * Bounded thread-safe pool of the direct buffers, shared by the track provider streaming sessions.<br>
+ * Direct buffers memory is released only on GC, so allocating them per session grows the native memory under churn, e.g. when a rescan opens hundreds of tracks.<br>
+ * Buffers are pooled in power of two size classes from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. Larger buffers are allocated as is and not pooled.
+ * Other sizes get a slice of the pooled buffer, so the acquired buffer capacity is always the requested size.
+ * The released buffers are kept while the pooled bytes are under the pool limit, otherwise they're left for GC
+ */
+public class TrackProviderBufferPool {
+	public static final int MIN_BUFFER_SIZE = 256;
+	public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+	/** Default limit for the free buffers kept by {@link #getDefault()} pool */
+	public static final int DEFAULT_MAX_POOLED_BYTES = 2 * 1024 * 1024;
+
+	private static final int MIN_CLASS_SHIFT = 8; // MIN_BUFFER_SIZE
+	private static final int CLASSES = 11; // MIN_BUFFER_SIZE..MAX_BUFFER_SIZE
+
+	private static volatile TrackProviderBufferPool sDefault;
+
+	private final int mMaxPooledBytes;
+	/** Free buffers per size class. Guarded by this */
+	@SuppressWarnings("unchecked")
+	private final @NonNull ArrayDeque<ByteBuffer> @NonNull[] mFree = new ArrayDeque[TrackProviderBufferPool.CLASSES];
+	/** Pooled buffers of the acquired slices, by the slice. Guarded by this */
+	private final @NonNull IdentityHashMap<ByteBuffer, ByteBuffer> mSliceParents = new IdentityHashMap<>();
+	private long mPooledBytes;
+	private long mInUseBytes;
+	private long mHighWaterInUseBytes;
+	private int mInUseCount;
+	private long mAllocatedCount;
+	private long mReusedCount;
+	private long mDroppedCount;
+
+
+	/** @return the pool shared by the API lib classes */
+	public static @NonNull TrackProviderBufferPool getDefault() {
+		TrackProviderBufferPool pool = TrackProviderBufferPool.sDefault;
+		if(null == pool) {
+			synchronized(TrackProviderBufferPool.class) {
+				pool = TrackProviderBufferPool.sDefault;
+				if(null == pool) {
+					pool = TrackProviderBufferPool.sDefault = new TrackProviderBufferPool(TrackProviderBufferPool.DEFAULT_MAX_POOLED_BYTES);
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * @param maxPooledBytes the maximum bytes of the free buffers kept by the pool
+	 */
+	public TrackProviderBufferPool(final int maxPooledBytes) {
+		if(0 > maxPooledBytes) throw new IllegalArgumentException("bad maxPooledBytes=" + maxPooledBytes);
+		this.mMaxPooledBytes = maxPooledBytes;
+		for(int i = 0; i < TrackProviderBufferPool.CLASSES; i++) {
+			this.mFree[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * @param size the minimum required buffer size
+	 * @return the cleared direct buffer in the native byte order, with the capacity and the limit equal to size, so clear() never exposes more than size bytes.
+	 * Should be returned with {@link #release} once not used anymore
+	 */
+	public @NonNull ByteBuffer acquire(final int size) {
+		if(0 >= size) throw new IllegalArgumentException("bad size=" + size);
+		final int classIx = TrackProviderBufferPool.getClassIx(size);
+		final int capacity = 0 <= classIx ? TrackProviderBufferPool.MIN_BUFFER_SIZE << classIx : size;
+		ByteBuffer buf = null;
+		synchronized(this) {
+			if(0 <= classIx) {
+				buf = this.mFree[classIx].pollFirst();
+			}
+			if(null != buf) {
+				this.mPooledBytes -= capacity;
+				this.mReusedCount++;
+			} else {
+				this.mAllocatedCount++;
+			}
+			this.mInUseCount++;
+			this.mInUseBytes += capacity;
+			if(this.mInUseBytes > this.mHighWaterInUseBytes) {
+				this.mHighWaterInUseBytes = this.mInUseBytes;
+			}
+		}
+		if(null == buf) {
+			buf = ByteBuffer.allocateDirect(capacity);
+			if(null == buf) throw new OutOfMemoryError("capacity=" + capacity); // Never happens, for the null analysis
+		}
+		buf.clear();
+		buf.order(ByteOrder.nativeOrder());
+		if(capacity == size) {
+			return buf;
+		}
+		buf.limit(size);
+		final ByteBuffer slice = buf.slice();
+		if(null == slice) throw new AssertionError(); // Never happens, for the null analysis
+		slice.order(ByteOrder.nativeOrder()); // Slices are always big endian
+		synchronized(this) {
+			this.mSliceParents.put(slice, buf);
+		}
+		return slice;
+	}
+
+	/**
+	 * Returns the buffer acquired from this pool. The buffer shouldn't be used after this call, including its duplicates and slices
+	 */
+	public void release(@NonNull ByteBuffer buf) {
+		synchronized(this) {
+			final ByteBuffer parent = this.mSliceParents.remove(buf);
+			if(null != parent) {
+				buf = parent;
+			}
+		}
+		final int capacity = buf.capacity();
+		final int classIx = TrackProviderBufferPool.getClassIx(capacity);
+		final boolean pooled = 0 <= classIx && TrackProviderBufferPool.MIN_BUFFER_SIZE << classIx == capacity && buf.isDirect() && !buf.isReadOnly();
+		synchronized(this) {
+			this.mInUseCount--;
+			this.mInUseBytes -= capacity;
+			if(pooled && this.mPooledBytes + capacity <= this.mMaxPooledBytes) {
+				this.mFree[classIx].addFirst(buf); // LIFO, so the recently used (likely paged in) buffers are reused first
+				this.mPooledBytes += capacity;
+			} else {
+				this.mDroppedCount++;
+			}
+		}
+	}
+
+	/** Drops all the free buffers, e.g. on the low memory */
+	public synchronized void trim() {
+		for(int i = 0; i < TrackProviderBufferPool.CLASSES; i++) {
+			this.mFree[i].clear();
+		}
+		this.mPooledBytes = 0;
+	}
+
+	/** @return number of the buffers acquired and not yet released */
+	public synchronized int getInUseCount() {
+		return this.mInUseCount;
+	}
+
+	/** @return capacity of the buffers acquired and not yet released */
+	public synchronized long getInUseBytes() {
+		return this.mInUseBytes;
+	}
+
+	/** @return the maximum {@link #getInUseBytes()} since this pool was created */
+	public synchronized long getHighWaterInUseBytes() {
+		return this.mHighWaterInUseBytes;
+	}
+
+	/** @return capacity of the free buffers kept by the pool */
+	public synchronized long getPooledBytes() {
+		return this.mPooledBytes;
+	}
+
+	/** @return number of the buffers allocated by the pool, including the non-pooled large buffers */
+	public synchronized long getAllocatedCount() {
+		return this.mAllocatedCount;
+	}
+
+	/** @return number of the buffers reused from the pool */
+	public synchronized long getReusedCount() {
+		return this.mReusedCount;
+	}
+
+	/** @return number of the released buffers not kept due to the pool limit or size */
+	public synchronized long getDroppedCount() {
+		return this.mDroppedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " inUseCount=" + this.mInUseCount + " inUseBytes=" + this.mInUseBytes + " highWaterInUseBytes=" + this.mHighWaterInUseBytes
+				+ " pooledBytes=" + this.mPooledBytes + " allocatedCount=" + this.mAllocatedCount + " reusedCount=" + this.mReusedCount
+				+ " droppedCount=" + this.mDroppedCount;
+	}
+
+	/** @return size class index for the given size, or -1 if it's larger than MAX_BUFFER_SIZE */
+	private static int getClassIx(final int size) {
+		if(MAX_BUFFER_SIZE < size) {
+			return -1;
+		}
+		if(MIN_BUFFER_SIZE >= size) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - TrackProviderBufferPool.MIN_CLASS_SHIFT; // ceil(log2(size)) - MIN_CLASS_SHIFT
+	}
+}
@@ -0,0 +1,267 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provider side journal of the changed directories, used for the incremental Poweramp rescans.<br><br>
+ *
+ * Poweramp rescans the provider folder only if its {@link android.provider.DocumentsContract.Document#COLUMN_LAST_MODIFIED} has changed since the previous scan.
+ * When the provider detects changes (e.g. its sync with a remote server), it calls {@link #markChanged} for the changed directories. The journal:<br>
+ * - bumps the directory last modified and propagates it upward through all the ancestors, so Poweramp descends just into the changed subtrees
+ *   and skips the untouched ones. The provider returns {@link #getLastModified} for the folder rows<br>
+ * - records the directory as pending, so the {@link TrackProviderConsts#CALL_RESCAN} handler can {@link #takeChanged} the directories under EXTRA_PATH and refresh
+ *   only them instead of walking the whole tree<br><br>
+ *
+ * The journal is persisted to a file on each change, so the last modified values are stable across the provider process restarts.<br>
+ * THREADING: any
+ */
+public class TrackProviderChangeJournal {
+	private static final String TAG = "TrackProviderChangeJournal";
+	private static final boolean LOG = false;
+
+	private static final int FILE_VERSION = 1;
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/** Resolves the parent directory documentId */
+	public interface ParentResolver {
+		/** @return the parent documentId, or null for the root */
+		@Nullable String getParent(@NonNull String documentId);
+	}
+
+	/** Resolver for the path-like documentIds, e.g. root1/Folder2/Sub, where the parent is the part before the last '/' */
+	public static final ParentResolver PATH_PARENT_RESOLVER = new ParentResolver() {
+		@Override
+		public @Nullable String getParent(@NonNull final String documentId) {
+			final int ix = documentId.lastIndexOf('/');
+			return 0 < ix ? documentId.substring(0, ix) : null;
+		}
+	};
+
+	private static class DirEntry {
+		long lastModified;
+		/** Changed since the last {@link #takeChanged} */
+		boolean pending;
+	}
+
+	private final @NonNull File mFile;
+	private final @NonNull ParentResolver mParentResolver;
+	/** Guarded by this */
+	private final @NonNull HashMap<String, DirEntry> mDirs = new HashMap<>();
+
+	private long mMarkedCount;
+	private long mTakenCount;
+
+
+	/**
+	 * @param file the journal file, loaded if exists
+	 */
+	public TrackProviderChangeJournal(@NonNull final File file, @NonNull final ParentResolver parentResolver) {
+		this.mFile = file;
+		this.mParentResolver = parentResolver;
+		if(file.exists()) {
+			try(DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				final int version = dis.readInt();
+				if(TrackProviderChangeJournal.FILE_VERSION != version) throw new IOException("unsupported version=" + version);
+				final int count = dis.readInt();
+				for(int i = 0; i < count; i++) {
+					final String documentId = dis.readUTF();
+					final DirEntry entry = new DirEntry();
+					entry.lastModified = dis.readLong();
+					entry.pending = dis.readBoolean();
+					this.mDirs.put(documentId, entry);
+				}
+			} catch(final IOException ex) {
+				Log.e(TrackProviderChangeJournal.TAG, "file=" + file, ex);
+				this.mDirs.clear(); // Falls back to the provider default last modified values, which means a wider rescan, but nothing is missed
+			}
+		}
+		if(TrackProviderChangeJournal.LOG) Log.w(TrackProviderChangeJournal.TAG, "ctor file=" + file + " count=" + this.mDirs.size());
+	}
+
+	/**
+	 * Marks the directory content as changed at timeMs, propagating the last modified to all its ancestors
+	 * @param timeMs the change time, e.g. {@link System#currentTimeMillis()}. The last modified values never go backwards and always grow for the changed directory
+	 */
+	public synchronized void markChanged(@NonNull final String dirDocumentId, final long timeMs) {
+		this.markChangedLocked(dirDocumentId, timeMs);
+		this.saveLocked();
+	}
+
+	/**
+	 * Batch version of {@link #markChanged(String, long)}, saves the journal once
+	 */
+	public synchronized void markChanged(@NonNull final Iterable<String> dirDocumentIds, final long timeMs) {
+		for(final String dirDocumentId : dirDocumentIds) {
+			this.markChangedLocked(dirDocumentId, timeMs);
+		}
+		this.saveLocked();
+	}
+
+	/** Guarded by this */
+	private void markChangedLocked(@NonNull final String dirDocumentId, final long timeMs) {
+		final DirEntry changed = this.getOrCreateLocked(dirDocumentId);
+		changed.pending = true;
+		this.mMarkedCount++;
+		// Each change must be visible to Poweramp, even if the clock went backwards or the changes are within the same millisecond
+		final long lastModified = Math.max(timeMs, changed.lastModified + 1);
+		String documentId = dirDocumentId;
+		DirEntry entry = changed;
+		while(true) {
+			if(entry.lastModified >= lastModified) {
+				break; // This and thus all the ancestors are already at least as new
+			}
+			entry.lastModified = lastModified;
+			documentId = this.mParentResolver.getParent(documentId);
+			if(null == documentId) {
+				break;
+			}
+			entry = this.getOrCreateLocked(documentId);
+		}
+		if(TrackProviderChangeJournal.LOG) Log.w(TrackProviderChangeJournal.TAG, "markChangedLocked dirDocumentId=" + dirDocumentId + " timeMs=" + timeMs);
+	}
+
+	/** Guarded by this */
+	private @NonNull DirEntry getOrCreateLocked(@NonNull final String documentId) {
+		DirEntry entry = this.mDirs.get(documentId);
+		if(null == entry) {
+			entry = new DirEntry();
+			this.mDirs.put(documentId, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @param defaultLastModified the provider default last modified, e.g. the last full sync time
+	 * @return the directory last modified to return to Poweramp, the max of the journal value and defaultLastModified
+	 */
+	public synchronized long getLastModified(@NonNull final String dirDocumentId, final long defaultLastModified) {
+		final DirEntry entry = this.mDirs.get(dirDocumentId);
+		return null != entry ? Math.max(entry.lastModified, defaultLastModified) : defaultLastModified;
+	}
+
+	/**
+	 * Returns and clears the pending changed directories within the ancestorDocumentId subtree (including itself)
+	 * @param ancestorDocumentId the subtree root, or null for all the directories
+	 * @return the changed directories, sorted
+	 */
+	public synchronized @NonNull ArrayList<String> takeChanged(@Nullable final String ancestorDocumentId) {
+		final ArrayList<String> res = new ArrayList<>();
+		for(final Map.Entry<String, DirEntry> e : this.mDirs.entrySet()) {
+			if(e.getValue().pending && (null == ancestorDocumentId || this.isWithin(e.getKey(), ancestorDocumentId))) {
+				e.getValue().pending = false;
+				res.add(e.getKey());
+			}
+		}
+		if(!res.isEmpty()) {
+			this.mTakenCount += res.size();
+			this.saveLocked();
+		}
+		Collections.sort(res);
+		if(TrackProviderChangeJournal.LOG) Log.w(TrackProviderChangeJournal.TAG, "takeChanged ancestorDocumentId=" + ancestorDocumentId + " res=" + res);
+		return res;
+	}
+
+	/** @return true if there are pending changed directories */
+	public synchronized boolean hasChanged() {
+		for(final DirEntry entry : this.mDirs.values()) {
+			if(entry.pending) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets all the directories, e.g. after the provider full resync. The folders then return the provider default last modified
+	 */
+	public synchronized void clear() {
+		this.mDirs.clear();
+		this.saveLocked();
+	}
+
+	private boolean isWithin(@NonNull final String documentId, @NonNull final String ancestorDocumentId) {
+		String id = documentId;
+		while(null != id) {
+			if(id.equals(ancestorDocumentId)) {
+				return true;
+			}
+			id = this.mParentResolver.getParent(id);
+		}
+		return false;
+	}
+
+	/** Guarded by this. Writes to the temporary file first, so a crash never leaves the partially written journal */
+	private void saveLocked() {
+		final File tmp = new File(this.mFile.getPath() + TrackProviderChangeJournal.TMP_SUFFIX);
+		try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			dos.writeInt(TrackProviderChangeJournal.FILE_VERSION);
+			dos.writeInt(this.mDirs.size());
+			for(final Map.Entry<String, DirEntry> e : this.mDirs.entrySet()) {
+				dos.writeUTF(e.getKey());
+				dos.writeLong(e.getValue().lastModified);
+				dos.writeBoolean(e.getValue().pending);
+			}
+		} catch(final IOException ex) {
+			Log.e(TrackProviderChangeJournal.TAG, "file=" + this.mFile, ex);
+			tmp.delete();
+			return;
+		}
+		if(!tmp.renameTo(this.mFile)) {
+			Log.e(TrackProviderChangeJournal.TAG, "rename failed file=" + this.mFile);
+			tmp.delete();
+		}
+	}
+
+	public synchronized int getDirCount() {
+		return this.mDirs.size();
+	}
+
+	public synchronized long getMarkedCount() {
+		return this.mMarkedCount;
+	}
+
+	public synchronized long getTakenCount() {
+		return this.mTakenCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " file=" + this.mFile + " dirs=" + this.mDirs.size() + " marked=" + this.mMarkedCount + " taken=" + this.mTakenCount;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * java.nio {@link TrackProviderTransport} over any connected SocketChannel, e.g. the loopback TCP one, for driving {@link TrackProviderProto}
+ * without android.system.Os, e.g. on the plain JVM in CI.<br>
+ * Unix-domain channels (JDK 16+ <code>UnixDomainSocketAddress</code>, not available on Android) work the same way, if the test JDK has them.<br>
+ * The channel is always kept in the non-blocking mode and registered with the own selector, the blocking calls are emulated by waiting on the selector.<br>
+ * NOTE: java.nio doesn't expose errno, so any I/O error on the connected channel is reported as {@link TrackProviderProto.TrackProviderProtoClosed}
+ */
+public class TrackProviderChannelTransport implements TrackProviderTransport {
+	private final @NonNull SocketChannel mChannel;
+	private final @NonNull Selector mSelector;
+	private final @NonNull SelectionKey mKey;
+	private boolean mNonBlocking;
+	/** Reused {@link #writev} views, mViews[i] is a view of mViewSources[i], recreated only if the vector source changes */
+	private ByteBuffer @NonNull[] mViews = new ByteBuffer[0];
+	private Object @NonNull[] mViewSources = new Object[0];
+
+
+	/**
+	 * @param channel connected socket channel. Owned by this transport, closed by {@link #close()}
+	 */
+	public TrackProviderChannelTransport(@NonNull final SocketChannel channel) throws IOException {
+		if(!channel.isConnected()) throw new IllegalArgumentException("not connected channel=" + channel);
+		channel.configureBlocking(false);
+		final Selector selector = Selector.open();
+		if(null == selector) throw new IOException("selector");
+		this.mChannel = channel;
+		this.mSelector = selector;
+		final SelectionKey key = channel.register(selector, 0);
+		if(null == key) throw new IOException("key");
+		this.mKey = key;
+	}
+
+	@Override
+	public int write(@NonNull final ByteBuffer buf) throws IOException {
+		while(true) {
+			final int res;
+			try {
+				res = this.mChannel.write(buf);
+			} catch(final ClosedChannelException ex) {
+				throw ex; // Closed from our side
+			} catch(final IOException ex) {
+				throw new TrackProviderProto.TrackProviderProtoClosed(ex);
+			}
+			if(0 != res || this.mNonBlocking || !buf.hasRemaining()) {
+				return res;
+			}
+			this.poll(POLL_OUT, -1);
+		}
+	}
+
+	@Override
+	public int writev(final Object @NonNull[] buffers, final int @NonNull[] offsets, final int @NonNull[] byteCounts) throws IOException {
+		final int count = buffers.length;
+		if(this.mViews.length < count) {
+			this.mViews = new ByteBuffer[count];
+			this.mViewSources = new Object[count];
+		}
+		final ByteBuffer[] views = this.mViews;
+		final Object[] viewSources = this.mViewSources;
+		for(int i = 0; i < count; i++) {
+			final Object buffer = buffers[i];
+			ByteBuffer view = views[i];
+			if(null == view || viewSources[i] != buffer) {
+				// Proto passes the same header and data buffers for the most calls, so the views are rarely recreated
+				view = buffer instanceof ByteBuffer ? ((ByteBuffer)buffer).duplicate() : ByteBuffer.wrap((byte[])buffer);
+				views[i] = view;
+				viewSources[i] = buffer;
+			}
+			view.clear();
+			view.limit(offsets[i] + byteCounts[i]);
+			view.position(offsets[i]);
+		}
+		while(true) {
+			final long res;
+			try {
+				res = this.mChannel.write(views, 0, count);
+			} catch(final ClosedChannelException ex) {
+				throw ex;
+			} catch(final IOException ex) {
+				throw new TrackProviderProto.TrackProviderProtoClosed(ex);
+			}
+			if(0 != res || this.mNonBlocking || TrackProviderChannelTransport.allWritten(views, count)) {
+				return (int)res;
+			}
+			this.poll(POLL_OUT, -1);
+		}
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf, final boolean noBlock) throws IOException {
+		while(true) {
+			final int res;
+			try {
+				res = this.mChannel.read(buf);
+			} catch(final ClosedChannelException ex) {
+				throw ex;
+			} catch(final IOException ex) {
+				throw new TrackProviderProto.TrackProviderProtoClosed(ex);
+			}
+			if(0 != res || this.mNonBlocking || noBlock || !buf.hasRemaining()) {
+				return res;
+			}
+			this.poll(POLL_IN, -1);
+		}
+	}
+
+	@Override
+	public int poll(final int events, final int timeoutMs) throws IOException {
+		final SelectionKey key = this.mKey;
+		key.interestOps((0 != (events & POLL_IN) ? SelectionKey.OP_READ : 0) | (0 != (events & POLL_OUT) ? SelectionKey.OP_WRITE : 0));
+		final Selector selector = this.mSelector;
+		selector.selectedKeys().clear();
+		final int selected;
+		if(0 == timeoutMs) {
+			selected = selector.selectNow();
+		} else if(0 > timeoutMs) {
+			selected = selector.select();
+		} else {
+			selected = selector.select(timeoutMs);
+		}
+		if(0 == selected || !key.isValid()) {
+			return 0;
+		}
+		final int readyOps = key.readyOps();
+		return (0 != (readyOps & SelectionKey.OP_READ) ? POLL_IN : 0) | (0 != (readyOps & SelectionKey.OP_WRITE) ? POLL_OUT : 0);
+	}
+
+	@Override
+	public boolean setNonBlocking(final boolean nonBlocking) {
+		this.mNonBlocking = nonBlocking; // The channel itself is always non-blocking
+		return true;
+	}
+
+	@Override
+	public long transferFrom(@NonNull final FileChannel fc, final long pos, final long count) throws IOException {
+		while(true) {
+			final long res;
+			try {
+				res = fc.transferTo(pos, count, this.mChannel);
+			} catch(final ClosedChannelException ex) {
+				throw ex;
+			} catch(final IOException ex) {
+				throw new TrackProviderProto.TrackProviderProtoClosed(ex);
+			}
+			if(0 != res || 0 == count || pos >= fc.size()) {
+				return res;
+			}
+			this.poll(POLL_OUT, -1);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.mSelector.close();
+		} catch(final IOException ex) {
+			// Ignore
+		}
+		try {
+			this.mChannel.close();
+		} catch(final IOException ex) {
+			// Ignore
+		}
+	}
+
+	private static boolean allWritten(final ByteBuffer @NonNull[] views, final int count) {
+		for(int i = 0; i < count; i++) {
+			if(views[i].hasRemaining()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
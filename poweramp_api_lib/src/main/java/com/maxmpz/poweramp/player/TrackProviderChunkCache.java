@@ -0,0 +1,241 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded on-disk LRU cache of the fixed size track chunks, used by {@link TrackProviderHttpSource}, so the replays and the backward seeks don't hit the network.<br>
+ * Each chunk is a separate file named by the track key hash and the chunk index. The existing chunks are picked up on construction, ordered by their last modified time.<br>
+ * THREADING: any. Can be shared by many sources
+ */
+public class TrackProviderChunkCache {
+	private static final String TAG = "TrackProviderChunkCache";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final @NonNull File mDir;
+	private final long mMaxBytes;
+	private final int mChunkSize;
+	/** Chunk file name => size, in the access order. Guarded by this */
+	private final @NonNull LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+	/** Guarded by this */
+	private long mTotalBytes;
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictedCount;
+
+
+	/**
+	 * @param dir the cache directory, created if needed. Should be used by this cache only
+	 * @param maxBytes the maximum total size of the cached chunks
+	 * @param chunkSize the chunk size. The chunks cached with a different size are not compatible, use a different dir for a different chunk size
+	 */
+	public TrackProviderChunkCache(@NonNull final File dir, final long maxBytes, final int chunkSize) {
+		if(0 >= chunkSize || chunkSize > maxBytes) throw new IllegalArgumentException("maxBytes=" + maxBytes + " chunkSize=" + chunkSize);
+		this.mDir = dir;
+		this.mMaxBytes = maxBytes;
+		this.mChunkSize = chunkSize;
+
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			Log.e(TrackProviderChunkCache.TAG, "failed to create dir=" + dir);
+		}
+		final File[] files = dir.listFiles();
+		if(null != files) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(final File o1, final File o2) {
+					return Long.compare(o1.lastModified(), o2.lastModified());
+				}
+			});
+			for(final File file : files) {
+				if(file.getName().endsWith(TrackProviderChunkCache.TMP_SUFFIX)) {
+					file.delete(); // Left by a failed put
+					continue;
+				}
+				final long size = file.length();
+				this.mEntries.put(file.getName(), size);
+				this.mTotalBytes += size;
+			}
+		}
+		synchronized(this) {
+			this.evictLocked();
+		}
+		if(TrackProviderChunkCache.LOG) Log.w(TrackProviderChunkCache.TAG, "ctor dir=" + dir + " count=" + this.mEntries.size() + " totalBytes=" + this.mTotalBytes);
+	}
+
+	public int getChunkSize() {
+		return this.mChunkSize;
+	}
+
+	/**
+	 * Reads the cached chunk into the chunk array
+	 * @param key the track key, e.g. its url or document id
+	 * @param chunk the array of at least chunkSize bytes
+	 * @return the chunk size, which is < chunkSize for the last track chunk, or -1 if the chunk is not cached
+	 */
+	public int get(@NonNull final String key, final long chunkIx, final byte @NonNull[] chunk) {
+		final String name = getChunkName(key, chunkIx);
+		final long size;
+		synchronized(this) {
+			final Long entrySize = this.mEntries.get(name); // Also moves the entry to the LRU tail
+			if(null == entrySize) {
+				this.mMissCount++;
+				return -1;
+			}
+			size = entrySize;
+		}
+		final File file = new File(this.mDir, name);
+		try(FileInputStream fis = new FileInputStream(file)) {
+			int read = 0;
+			while(read < size) {
+				final int res = fis.read(chunk, read, (int)size - read);
+				if(0 > res) throw new IOException("short chunk read=" + read + " size=" + size);
+				read += res;
+			}
+			synchronized(this) {
+				this.mHitCount++;
+			}
+			file.setLastModified(System.currentTimeMillis()); // Keeps the LRU order across the restarts
+			return read;
+		} catch(final IOException ex) {
+			Log.e(TrackProviderChunkCache.TAG, "name=" + name, ex);
+			this.remove(name);
+			return -1;
+		}
+	}
+
+	/**
+	 * Stores the chunk, evicting the least recently used chunks if needed. Failures are logged and otherwise ignored
+	 * @param size the chunk size, which is < chunkSize only for the last track chunk
+	 */
+	public void put(@NonNull final String key, final long chunkIx, final byte @NonNull[] chunk, final int size) {
+		if(0 >= size || this.mChunkSize < size) throw new IllegalArgumentException("size=" + size);
+		final String name = getChunkName(key, chunkIx);
+		final File tmp = new File(this.mDir, name + TrackProviderChunkCache.TMP_SUFFIX);
+		// Written to the temporary file first, so the partially written chunks are never seen by get()
+		try(FileOutputStream fos = new FileOutputStream(tmp)) {
+			fos.write(chunk, 0, size);
+		} catch(final IOException ex) {
+			Log.e(TrackProviderChunkCache.TAG, "name=" + name, ex);
+			tmp.delete();
+			return;
+		}
+		synchronized(this) {
+			if(!tmp.renameTo(new File(this.mDir, name))) {
+				Log.e(TrackProviderChunkCache.TAG, "rename failed name=" + name);
+				tmp.delete();
+				return;
+			}
+			final Long prevSize = this.mEntries.put(name, (long)size);
+			if(null != prevSize) {
+				this.mTotalBytes -= prevSize;
+			}
+			this.mTotalBytes += size;
+			this.evictLocked();
+		}
+	}
+
+	/** Removes all the cached chunks */
+	public synchronized void clear() {
+		for(final String name : this.mEntries.keySet()) {
+			new File(this.mDir, name).delete();
+		}
+		this.mEntries.clear();
+		this.mTotalBytes = 0;
+	}
+
+	private synchronized void remove(@NonNull final String name) {
+		final Long size = this.mEntries.remove(name);
+		if(null != size) {
+			this.mTotalBytes -= size;
+			new File(this.mDir, name).delete();
+		}
+	}
+
+	/** Guarded by this */
+	private void evictLocked() {
+		final Iterator<Map.Entry<String, Long>> it = this.mEntries.entrySet().iterator();
+		while(this.mMaxBytes < this.mTotalBytes && it.hasNext()) {
+			final Map.Entry<String, Long> e = it.next();
+			it.remove();
+			this.mTotalBytes -= e.getValue();
+			this.mEvictedCount++;
+			new File(this.mDir, e.getKey()).delete();
+			if(TrackProviderChunkCache.LOG) Log.w(TrackProviderChunkCache.TAG, "evictLocked name=" + e.getKey());
+		}
+	}
+
+	public synchronized long getTotalBytes() {
+		return this.mTotalBytes;
+	}
+
+	public synchronized long getHitCount() {
+		return this.mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.mMissCount;
+	}
+
+	public synchronized long getEvictedCount() {
+		return this.mEvictedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " dir=" + this.mDir + " count=" + this.mEntries.size() + " totalBytes=" + this.mTotalBytes
+				+ " hits=" + this.mHitCount + " misses=" + this.mMissCount + " evicted=" + this.mEvictedCount;
+	}
+
+	/** @return the file system safe chunk name, the key SHA-1 hex + chunk index */
+	private static @NonNull String getChunkName(@NonNull final String key, final long chunkIx) {
+		final StringBuilder sb = new StringBuilder(48);
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			for(final byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+		} catch(final NoSuchAlgorithmException ex) {
+			throw new AssertionError(ex); // SHA-1 is always available
+		}
+		return sb.append('_').append(chunkIx).toString();
+	}
+}
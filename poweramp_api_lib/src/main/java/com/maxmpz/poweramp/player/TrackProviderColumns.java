@@ -0,0 +1,173 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * Projection-aware column definitions for the DocumentsProvider rows.<br>
+ * Each column is backed by a supplier which computes the value for the row item. The columns are defined once (e.g. per provider instance),
+ * then {@link #bind} resolves them against the query projection, and {@link Binding#fill} evaluates only the suppliers of the columns Poweramp actually requested.
+ * This way the lightweight listings (e.g. queryChildDocuments without metadata) don't pay for the lyrics, waves, file sizes, etc.<br><br>
+ *
+ * The row item (T) carries the per row inputs for the suppliers. It can be reused for all rows of a query to avoid allocations.
+ * The suppliers returning null (or {@link #NO_VALUE} for the integer columns) leave the cell null, same as not adding the column to the MatrixCursor row.<br>
+ * NOTE: suppliers are called on the query thread, in the order of definition
+ * @param <T> the row item type
+ */
+public class TrackProviderColumns<T> {
+	/** Integer supplier value meaning no value, the cell is left null */
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final byte KIND_STRING = 1;
+	private static final byte KIND_LONG = 2;
+	private static final byte KIND_BLOB = 3;
+
+	public interface StringColumn<T> {
+		@Nullable String get(@NonNull T item);
+	}
+
+	public interface LongColumn<T> {
+		/** @return the value or {@link #NO_VALUE} */
+		long get(@NonNull T item);
+	}
+
+	public interface BlobColumn<T> {
+		byte @Nullable[] get(@NonNull T item);
+	}
+
+	private final @NonNull ArrayList<String> mNames = new ArrayList<>();
+	private final @NonNull ArrayList<Object> mSuppliers = new ArrayList<>();
+	private final @NonNull ArrayList<Byte> mKinds = new ArrayList<>();
+
+
+	public @NonNull TrackProviderColumns<T> addString(@NonNull final String column, @NonNull final StringColumn<T> supplier) {
+		return this.add(column, supplier, TrackProviderColumns.KIND_STRING);
+	}
+
+	public @NonNull TrackProviderColumns<T> addLong(@NonNull final String column, @NonNull final LongColumn<T> supplier) {
+		return this.add(column, supplier, TrackProviderColumns.KIND_LONG);
+	}
+
+	public @NonNull TrackProviderColumns<T> addBlob(@NonNull final String column, @NonNull final BlobColumn<T> supplier) {
+		return this.add(column, supplier, TrackProviderColumns.KIND_BLOB);
+	}
+
+	private @NonNull TrackProviderColumns<T> add(@NonNull final String column, @NonNull final Object supplier, final byte kind) {
+		if(this.mNames.contains(column)) throw new IllegalArgumentException("column=" + column + " already defined");
+		this.mNames.add(column);
+		this.mSuppliers.add(supplier);
+		this.mKinds.add(kind);
+		return this;
+	}
+
+	/**
+	 * Resolves the columns against the builder projection. Should be called once per query
+	 */
+	public @NonNull Binding<T> bind(@NonNull final TrackProviderCursorBuilder builder) {
+		final int size = this.mNames.size();
+		final int[] slots = new int[size];
+		final byte[] kinds = new byte[size];
+		final Object[] suppliers = new Object[size];
+		int count = 0;
+		for(int i = 0; i < size; i++) {
+			final int slot = builder.getSlot(this.mNames.get(i));
+			if(0 <= slot) {
+				slots[count] = slot;
+				kinds[count] = this.mKinds.get(i);
+				suppliers[count] = this.mSuppliers.get(i);
+				count++;
+			}
+		}
+		return new Binding<>(slots, kinds, suppliers, count);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " columns=" + this.mNames;
+	}
+
+
+	/**
+	 * The columns present in the query projection
+	 */
+	public static class Binding<T> {
+		private final int @NonNull[] mSlots;
+		private final byte @NonNull[] mKinds;
+		private final Object @NonNull[] mSuppliers;
+		private final int mCount;
+
+		Binding(final int @NonNull[] slots, final byte @NonNull[] kinds, final Object @NonNull[] suppliers, final int count) {
+			this.mSlots = slots;
+			this.mKinds = kinds;
+			this.mSuppliers = suppliers;
+			this.mCount = count;
+		}
+
+		/** @return the number of the columns which will be computed per row */
+		public int getCount() {
+			return this.mCount;
+		}
+
+		/**
+		 * Computes the bound columns for the item into the current builder row (see {@link TrackProviderCursorBuilder#newRow()})
+		 */
+		@SuppressWarnings("unchecked")
+		public void fill(@NonNull final TrackProviderCursorBuilder builder, @NonNull final T item) {
+			for(int i = 0; i < this.mCount; i++) {
+				final int slot = this.mSlots[i];
+				switch(this.mKinds[i]) {
+					case TrackProviderColumns.KIND_STRING: {
+						final String value = ((StringColumn<T>)this.mSuppliers[i]).get(item);
+						if(null != value) {
+							builder.setString(slot, value);
+						}
+						break;
+					}
+					case TrackProviderColumns.KIND_LONG: {
+						final long value = ((LongColumn<T>)this.mSuppliers[i]).get(item);
+						if(TrackProviderColumns.NO_VALUE != value) {
+							builder.setLong(slot, value);
+						}
+						break;
+					}
+					case TrackProviderColumns.KIND_BLOB: {
+						final byte[] value = ((BlobColumn<T>)this.mSuppliers[i]).get(item);
+						if(null != value) {
+							builder.setBlob(slot, value);
+						}
+						break;
+					}
+					default:
+						break;
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " count=" + this.mCount;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.annotation.SuppressLint;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.media.MediaFormat;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * {@link android.database.MatrixCursor} replacement for the large DocumentsProvider listings.<br>
+ * The projection is resolved once into the column slots (see {@link #getSlot} and {@link TrackSlots}), and the cells are set by slot with the primitive setters,
+ * so there is no per cell column name search and no boxing for the numeric values.<br>
+ * Setting a value for the slot -1 (column not in the projection) is a no-op, thus the rows can be filled unconditionally.
+ * The cells not set are null, same as for MatrixCursor.<br><br>
+ *
+ * Usage:<br>
+ * <pre>
+ * TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(projection, count);
+ * TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+ * for(...) {
+ *     c.newRow();
+ *     c.setString(s.documentId, docId);
+ *     c.setLong(s.duration, durationMs);
+ * }
+ * return c.build();
+ * </pre>
+ * NOTE: not thread safe. The builder shouldn't be used after {@link #build()}, as the returned cursor shares its arrays
+ */
+public class TrackProviderCursorBuilder {
+	private static final int DEFAULT_ROW_CAPACITY = 16;
+
+	private final String @NonNull[] mColumns;
+	private final int mColumnCount;
+	/** {@link Cursor#FIELD_TYPE_NULL} etc. per cell, FIELD_TYPE_NULL is 0, so the new rows are null */
+	private byte @NonNull[] mTypes;
+	/** Integer cells, and raw bits of the float cells */
+	private long @NonNull[] mLongs;
+	/** String and blob cells */
+	private Object @NonNull[] mObjects;
+	private int mRowCount;
+	/** The first cell index of the current row */
+	private int mRowBase = -1;
+
+
+	/**
+	 * @param rowCapacity the expected row count, the storage grows as needed
+	 */
+	public TrackProviderCursorBuilder(final String @NonNull[] projection, final int rowCapacity) {
+		this.mColumns = projection;
+		this.mColumnCount = projection.length;
+		final int cells = Math.max(1, rowCapacity) * this.mColumnCount;
+		this.mTypes = new byte[cells];
+		this.mLongs = new long[cells];
+		this.mObjects = new Object[cells];
+	}
+
+	public TrackProviderCursorBuilder(final String @NonNull[] projection) {
+		this(projection, TrackProviderCursorBuilder.DEFAULT_ROW_CAPACITY);
+	}
+
+	/**
+	 * Should be called once per column per query, not per row
+	 * @return the slot for the column, or -1 if the column is not in the projection
+	 */
+	public int getSlot(@NonNull final String column) {
+		final String[] columns = this.mColumns;
+		for(int i = 0; i < columns.length; i++) {
+			if(column.equals(columns[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getColumnCount() {
+		return this.mColumnCount;
+	}
+
+	public int getRowCount() {
+		return this.mRowCount;
+	}
+
+	/**
+	 * Starts a new row, the following setters apply to it
+	 */
+	public @NonNull TrackProviderCursorBuilder newRow() {
+		final int base = this.mRowCount * this.mColumnCount;
+		final int end = base + this.mColumnCount;
+		if(end > this.mTypes.length) {
+			final int cells = Math.max(end, this.mTypes.length * 2);
+			this.mTypes = Arrays.copyOf(this.mTypes, cells);
+			this.mLongs = Arrays.copyOf(this.mLongs, cells);
+			this.mObjects = Arrays.copyOf(this.mObjects, cells);
+		}
+		this.mRowBase = base;
+		this.mRowCount++;
+		return this;
+	}
+
+	public void setLong(final int slot, final long value) {
+		if(0 <= slot) {
+			final int ix = this.cell(slot);
+			this.mTypes[ix] = Cursor.FIELD_TYPE_INTEGER;
+			this.mLongs[ix] = value;
+		}
+	}
+
+	public void setInt(final int slot, final int value) {
+		this.setLong(slot, value);
+	}
+
+	public void setDouble(final int slot, final double value) {
+		if(0 <= slot) {
+			final int ix = this.cell(slot);
+			this.mTypes[ix] = Cursor.FIELD_TYPE_FLOAT;
+			this.mLongs[ix] = Double.doubleToRawLongBits(value);
+		}
+	}
+
+	/** @param value null sets the cell to null */
+	public void setString(final int slot, @Nullable final String value) {
+		if(0 <= slot) {
+			final int ix = this.cell(slot);
+			this.mTypes[ix] = null != value ? (byte)Cursor.FIELD_TYPE_STRING : Cursor.FIELD_TYPE_NULL;
+			this.mObjects[ix] = value;
+		}
+	}
+
+	/** @param value null sets the cell to null */
+	public void setBlob(final int slot, final byte @Nullable[] value) {
+		if(0 <= slot) {
+			final int ix = this.cell(slot);
+			this.mTypes[ix] = null != value ? (byte)Cursor.FIELD_TYPE_BLOB : Cursor.FIELD_TYPE_NULL;
+			this.mObjects[ix] = value;
+		}
+	}
+
+	public void setNull(final int slot) {
+		if(0 <= slot) {
+			final int ix = this.cell(slot);
+			this.mTypes[ix] = Cursor.FIELD_TYPE_NULL;
+			this.mObjects[ix] = null;
+		}
+	}
+
+	private int cell(final int slot) {
+		if(0 > this.mRowBase) throw new IllegalStateException("newRow() wasn't called");
+		if(slot >= this.mColumnCount) throw new IllegalArgumentException("slot=" + slot + " columnCount=" + this.mColumnCount);
+		return this.mRowBase + slot;
+	}
+
+	public @NonNull Cursor build() {
+		return new FastCursor(this.mColumns, this.mTypes, this.mLongs, this.mObjects, this.mRowCount);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " columns=" + this.mColumnCount + " rows=" + this.mRowCount;
+	}
+
+
+	/**
+	 * The slots for the document, track and metadata columns Poweramp requests for the tracks, resolved once per query.
+	 * The slot is -1 for the columns not in the projection
+	 */
+	@SuppressLint("InlinedApi")
+	public static class TrackSlots {
+		public final int documentId;
+		public final int mimeType;
+		public final int displayName;
+		public final int lastModified;
+		public final int flags;
+		public final int size;
+
+		public final int title;
+		public final int duration;
+		public final int artist;
+		public final int album;
+		public final int year;
+		public final int albumArtist;
+		public final int composer;
+		public final int genre;
+		public final int track;
+		public final int trackAlt;
+		public final int sampleRate;
+		public final int channelCount;
+		public final int bitRate;
+		public final int bitsPerSample;
+
+		/** {@link TrackProviderConsts#COLUMN_URL} */
+		public final int url;
+		/** {@link TrackProviderConsts#COLUMN_TRACK_WAVE} */
+		public final int trackWave;
+		/** {@link TrackProviderConsts#COLUMN_TRACK_LYRICS} */
+		public final int trackLyrics;
+		/** {@link TrackProviderConsts#COLUMN_TRACK_LYRICS_SYNCED} */
+		public final int trackLyricsSynced;
+		/** {@link TrackProviderConsts#COLUMN_FLAGS} */
+		public final int providerFlags;
+
+		public TrackSlots(@NonNull final TrackProviderCursorBuilder builder) {
+			this.documentId = builder.getSlot(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+			this.mimeType = builder.getSlot(DocumentsContract.Document.COLUMN_MIME_TYPE);
+			this.displayName = builder.getSlot(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
+			this.lastModified = builder.getSlot(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+			this.flags = builder.getSlot(DocumentsContract.Document.COLUMN_FLAGS);
+			this.size = builder.getSlot(DocumentsContract.Document.COLUMN_SIZE);
+
+			this.title = builder.getSlot(MediaStore.MediaColumns.TITLE);
+			this.duration = builder.getSlot(MediaStore.MediaColumns.DURATION);
+			this.artist = builder.getSlot(MediaStore.MediaColumns.ARTIST);
+			this.album = builder.getSlot(MediaStore.MediaColumns.ALBUM);
+			this.year = builder.getSlot(MediaStore.Audio.AudioColumns.YEAR);
+			this.albumArtist = builder.getSlot(TrackProviderConsts.COLUMN_ALBUM_ARTIST);
+			this.composer = builder.getSlot(MediaStore.MediaColumns.COMPOSER);
+			this.genre = builder.getSlot(TrackProviderConsts.COLUMN_GENRE);
+			this.track = builder.getSlot(MediaStore.Audio.AudioColumns.TRACK);
+			this.trackAlt = builder.getSlot(TrackProviderConsts.COLUMN_TRACK_ALT);
+			this.sampleRate = builder.getSlot(MediaFormat.KEY_SAMPLE_RATE);
+			this.channelCount = builder.getSlot(MediaFormat.KEY_CHANNEL_COUNT);
+			this.bitRate = builder.getSlot(MediaFormat.KEY_BIT_RATE);
+			this.bitsPerSample = builder.getSlot(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE);
+
+			this.url = builder.getSlot(TrackProviderConsts.COLUMN_URL);
+			this.trackWave = builder.getSlot(TrackProviderConsts.COLUMN_TRACK_WAVE);
+			this.trackLyrics = builder.getSlot(TrackProviderConsts.COLUMN_TRACK_LYRICS);
+			this.trackLyricsSynced = builder.getSlot(TrackProviderConsts.COLUMN_TRACK_LYRICS_SYNCED);
+			this.providerFlags = builder.getSlot(TrackProviderConsts.COLUMN_FLAGS);
+		}
+
+		/** @return true if the metadata (title) is requested, so the provider can skip the metadata retrieval otherwise */
+		public boolean isMetadataRequested() {
+			return 0 <= this.title;
+		}
+	}
+
+
+	/**
+	 * Read-only cursor over the builder arrays. Typed getType() allows {@link AbstractCursor#fillWindow} to transfer the cells to Poweramp without conversions.
+	 * The conversions between the types follow {@link android.database.MatrixCursor}
+	 */
+	private static class FastCursor extends AbstractCursor {
+		private final String @NonNull[] mColumns;
+		private final int mColumnCount;
+		private final byte @NonNull[] mTypes;
+		private final long @NonNull[] mLongs;
+		private final Object @NonNull[] mObjects;
+		private final int mRowCount;
+
+		FastCursor(final String @NonNull[] columns, final byte @NonNull[] types, final long @NonNull[] longs, final Object @NonNull[] objects, final int rowCount) {
+			this.mColumns = columns;
+			this.mColumnCount = columns.length;
+			this.mTypes = types;
+			this.mLongs = longs;
+			this.mObjects = objects;
+			this.mRowCount = rowCount;
+		}
+
+		@Override
+		public int getCount() {
+			return this.mRowCount;
+		}
+
+		@Override
+		public String[] getColumnNames() {
+			return this.mColumns;
+		}
+
+		private int cell(final int column) {
+			if(0 > column || column >= this.mColumnCount) throw new CursorIndexOutOfBoundsException("Requested column: " + column + ", # of columns: " + this.mColumnCount);
+			if(0 > this.mPos) throw new CursorIndexOutOfBoundsException("Before first row.");
+			if(this.mPos >= this.mRowCount) throw new CursorIndexOutOfBoundsException("After last row.");
+			return this.mPos * this.mColumnCount + column;
+		}
+
+		@Override
+		public int getType(final int column) {
+			return this.mTypes[this.cell(column)];
+		}
+
+		@Override
+		public boolean isNull(final int column) {
+			return Cursor.FIELD_TYPE_NULL == this.mTypes[this.cell(column)];
+		}
+
+		@Override
+		public String getString(final int column) {
+			final int ix = this.cell(column);
+			switch(this.mTypes[ix]) {
+				case Cursor.FIELD_TYPE_NULL:
+					return null;
+				case Cursor.FIELD_TYPE_INTEGER:
+					return Long.toString(this.mLongs[ix]);
+				case Cursor.FIELD_TYPE_FLOAT:
+					return Double.toString(Double.longBitsToDouble(this.mLongs[ix]));
+				default:
+					return this.mObjects[ix].toString();
+			}
+		}
+
+		@Override
+		public long getLong(final int column) {
+			final int ix = this.cell(column);
+			switch(this.mTypes[ix]) {
+				case Cursor.FIELD_TYPE_NULL:
+					return 0;
+				case Cursor.FIELD_TYPE_INTEGER:
+					return this.mLongs[ix];
+				case Cursor.FIELD_TYPE_FLOAT:
+					return (long)Double.longBitsToDouble(this.mLongs[ix]);
+				default:
+					return Long.parseLong(this.mObjects[ix].toString());
+			}
+		}
+
+		@Override
+		public double getDouble(final int column) {
+			final int ix = this.cell(column);
+			switch(this.mTypes[ix]) {
+				case Cursor.FIELD_TYPE_NULL:
+					return 0;
+				case Cursor.FIELD_TYPE_INTEGER:
+					return this.mLongs[ix];
+				case Cursor.FIELD_TYPE_FLOAT:
+					return Double.longBitsToDouble(this.mLongs[ix]);
+				default:
+					return Double.parseDouble(this.mObjects[ix].toString());
+			}
+		}
+
+		@Override
+		public int getInt(final int column) {
+			return (int)this.getLong(column);
+		}
+
+		@Override
+		public short getShort(final int column) {
+			return (short)this.getLong(column);
+		}
+
+		@Override
+		public float getFloat(final int column) {
+			return (float)this.getDouble(column);
+		}
+
+		@Override
+		public byte[] getBlob(final int column) {
+			final int ix = this.cell(column);
+			switch(this.mTypes[ix]) {
+				case Cursor.FIELD_TYPE_NULL:
+					return null;
+				case Cursor.FIELD_TYPE_BLOB:
+					return (byte[])this.mObjects[ix];
+				default:
+					throw new IllegalStateException("column=" + this.mColumns[column] + " is not a blob");
+			}
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Eagerly opening {@link TrackProviderSource}: the wrapped source is opened (e.g. the remote connection established) and its first chunk is fetched on a background
+ * thread started right in openDocument, in parallel with the socket setup and the header send. By the time the protocol asks for the first data,
+ * it's usually already buffered.<br><br>
+ *
+ * The timings of the open are available via {@link #getTimings()}, including the estimated time to first data saved compared to opening the source
+ * after the header is sent.<br>
+ * NOTE: if the expected length is not given, {@link #getLength()} waits for the source to open. The expected length should be exact, or
+ * {@link TrackProviderProto#setLengthEstimated} should be used
+ */
+public class TrackProviderEagerSource implements TrackProviderSource {
+	private static final String TAG = "TrackProviderEagerSource";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_FIRST_CHUNK_SIZE = 64 * 1024;
+
+	/** Delay before the next first chunk read attempt if the source returned no data */
+	private static final long SOURCE_RETRY_DELAY_MS = 10;
+
+	/** Opens the wrapped source. Called on the eager open thread */
+	public interface Opener {
+		@NonNull TrackProviderSource open() throws IOException;
+	}
+
+	/** Eager open timings, System.nanoTime() based, 0 if not happened yet */
+	public static class Timings {
+		/** Eager open started (openDocument) */
+		public volatile long startNs;
+		/** Source opened */
+		public volatile long openedNs;
+		/** First chunk fetched */
+		public volatile long firstChunkNs;
+		/** Protocol asked for the first data, i.e. the header was sent */
+		public volatile long firstReadNs;
+		/** First data returned to the protocol */
+		public volatile long firstDataNs;
+
+		/**
+		 * @return the estimated time to first data saved by the eager open, ns. Without the eager open, the open and the first chunk fetch would start at firstReadNs,
+		 * so the first data would be returned at firstReadNs + (firstChunkNs - startNs). Or -1 if not known yet
+		 */
+		public long getSavedNs() {
+			if(0 == this.firstChunkNs || 0 == this.firstReadNs) {
+				return -1;
+			}
+			final long lazyFirstDataNs = this.firstReadNs + (this.firstChunkNs - this.startNs);
+			final long eagerFirstDataNs = Math.max(this.firstReadNs, this.firstChunkNs);
+			return lazyFirstDataNs - eagerFirstDataNs;
+		}
+
+		@Override
+		public String toString() {
+			return "openMs=" + ms(this.openedNs) + " firstChunkMs=" + ms(this.firstChunkNs) + " firstReadMs=" + ms(this.firstReadNs)
+					+ " firstDataMs=" + ms(this.firstDataNs) + " savedMs=" + (0 <= this.getSavedNs() ? this.getSavedNs() / 1000000.0 : -1);
+		}
+
+		/** @return ms since startNs, or -1 */
+		private double ms(final long ns) {
+			return 0 != ns ? (ns - this.startNs) / 1000000.0 : -1;
+		}
+	}
+
+	private final long mExpectedLength;
+	private final int mFirstChunkSize;
+	private final @NonNull Timings mTimings = new Timings();
+
+	private final @NonNull Object mLock = new Object();
+	/** Guarded by mLock */
+	private @Nullable TrackProviderSource mSource;
+	/** The first chunk, flipped. Guarded by mLock until mReady */
+	private @Nullable ByteBuffer mFirstChunk;
+	/** True once the source is opened and the first chunk fetched, or the open failed. Guarded by mLock */
+	private boolean mReady;
+	/** Guarded by mLock */
+	private @Nullable IOException mError;
+	/** Guarded by mLock */
+	private boolean mClosed;
+	/** Guarded by mLock */
+	private @Nullable TrackProviderServer mServer;
+	/** Guarded by mLock */
+	private boolean mServerWaiting;
+	/** True while the position is within the first chunk, so reads are served from it. Source position is at the first chunk end then */
+	private boolean mInFirstChunk = true;
+
+
+	/**
+	 * Starts opening the source immediately
+	 * @param opener opens the wrapped source, which is owned by this source then
+	 * @param expectedLength the track length if known (e.g. from the metadata), otherwise <= 0
+	 * @param firstChunkSize number of bytes fetched eagerly
+	 */
+	public TrackProviderEagerSource(@NonNull final Opener opener, final long expectedLength, final int firstChunkSize) {
+		if(0 >= firstChunkSize) throw new IllegalArgumentException("firstChunkSize=" + firstChunkSize);
+		this.mExpectedLength = expectedLength;
+		this.mFirstChunkSize = firstChunkSize;
+		this.mTimings.startNs = System.nanoTime();
+		final Thread thread = new Thread(() -> this.runOpen(opener), TrackProviderEagerSource.TAG);
+		thread.start();
+	}
+
+	/**
+	 * Makes {@link #read} return 0 instead of waiting while the source is being opened, and wakes up the server once it's ready.
+	 * Required when this source is served by {@link TrackProviderServer} without the read-ahead, see {@link TrackProviderServer.SessionConfig#readAhead}
+	 */
+	public void setServer(@Nullable final TrackProviderServer server) {
+		synchronized(this.mLock) {
+			this.mServer = server;
+		}
+	}
+
+	/** THREADING: eager open thread */
+	private void runOpen(@NonNull final Opener opener) {
+		TrackProviderSource source = null;
+		IOException error = null;
+		final ByteBuffer chunk = ByteBuffer.allocate(this.mFirstChunkSize);
+		try {
+			source = opener.open();
+			this.mTimings.openedNs = System.nanoTime();
+			while(chunk.hasRemaining()) {
+				synchronized(this.mLock) {
+					if(this.mClosed) {
+						break;
+					}
+				}
+				final int res = source.read(chunk);
+				if(0 > res) {
+					break;
+				} else if(0 == res) {
+					Thread.sleep(TrackProviderEagerSource.SOURCE_RETRY_DELAY_MS); // Non-blocking source has no data yet
+				}
+			}
+			chunk.flip();
+			this.mTimings.firstChunkNs = System.nanoTime();
+		} catch(final IOException ex) {
+			Log.e(TrackProviderEagerSource.TAG, "", ex);
+			error = ex;
+		} catch(final InterruptedException ex) {
+			Log.e(TrackProviderEagerSource.TAG, "", ex);
+			error = new IOException(ex);
+		}
+
+		TrackProviderServer server = null;
+		synchronized(this.mLock) {
+			if(this.mClosed) {
+				if(null != source) {
+					source.close();
+				}
+				return;
+			}
+			this.mSource = source;
+			this.mFirstChunk = chunk;
+			this.mError = error;
+			this.mReady = true;
+			this.mLock.notifyAll();
+			if(this.mServerWaiting) {
+				this.mServerWaiting = false;
+				server = this.mServer;
+			}
+		}
+		if(null != server) {
+			server.wakeup();
+		}
+		if(TrackProviderEagerSource.LOG) Log.w(TrackProviderEagerSource.TAG, "runOpen DONE chunk=" + chunk.remaining() + " " + this.mTimings);
+	}
+
+	/**
+	 * Waits for the eager open
+	 * @return false if the server is set and the open is not done yet
+	 */
+	private boolean waitReady(final boolean forRead) throws IOException {
+		synchronized(this.mLock) {
+			while(!this.mReady) {
+				if(this.mClosed) throw new IOException("closed");
+				if(forRead && null != this.mServer) {
+					this.mServerWaiting = true;
+					return false;
+				}
+				try {
+					this.mLock.wait();
+				} catch(final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException(ex);
+				}
+			}
+			if(null != this.mError) throw this.mError;
+			return true;
+		}
+	}
+
+	@Override
+	public long getLength() {
+		if(0 < this.mExpectedLength) {
+			return this.mExpectedLength;
+		}
+		try {
+			this.waitReady(false);
+		} catch(final IOException ex) {
+			Log.e(TrackProviderEagerSource.TAG, "", ex);
+			return -1;
+		}
+		return this.getSource().getLength();
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf) throws IOException {
+		final Timings timings = this.mTimings;
+		if(0 == timings.firstReadNs) {
+			timings.firstReadNs = System.nanoTime();
+		}
+		if(!this.waitReady(true)) {
+			return 0;
+		}
+		final int res;
+		final ByteBuffer chunk = this.getFirstChunk();
+		if(this.mInFirstChunk && chunk.hasRemaining()) {
+			res = Math.min(buf.remaining(), chunk.remaining());
+			final int limit = chunk.limit();
+			chunk.limit(chunk.position() + res);
+			buf.put(chunk);
+			chunk.limit(limit);
+		} else {
+			this.mInFirstChunk = false;
+			res = this.getSource().read(buf);
+		}
+		if(0 < res && 0 == timings.firstDataNs) {
+			timings.firstDataNs = System.nanoTime();
+			if(TrackProviderEagerSource.LOG) Log.w(TrackProviderEagerSource.TAG, "read first data " + timings);
+		}
+		return res;
+	}
+
+	/**
+	 * Seeks within the first chunk don't touch the source
+	 */
+	@Override
+	public long seek(final long offsetBytes, final int ms) throws IOException {
+		this.waitReady(false);
+		final ByteBuffer chunk = this.getFirstChunk();
+		final TrackProviderSource source = this.getSource();
+		final long target = 0 <= offsetBytes ? offsetBytes : source.getLength() + offsetBytes;
+		if(0 <= target && chunk.limit() > target) {
+			if(!this.mInFirstChunk) {
+				// Get the source back to the first chunk end, so the reads continue properly after the chunk
+				if(chunk.limit() != source.seek(chunk.limit(), -1)) {
+					return -1;
+				}
+				this.mInFirstChunk = true;
+			}
+			chunk.position((int)target);
+			return target;
+		}
+		this.mInFirstChunk = false;
+		return source.seek(offsetBytes, ms);
+	}
+
+	private @NonNull TrackProviderSource getSource() {
+		synchronized(this.mLock) {
+			final TrackProviderSource source = this.mSource;
+			if(null == source) throw new IllegalStateException();
+			return source;
+		}
+	}
+
+	private @NonNull ByteBuffer getFirstChunk() {
+		synchronized(this.mLock) {
+			final ByteBuffer chunk = this.mFirstChunk;
+			if(null == chunk) throw new IllegalStateException();
+			return chunk;
+		}
+	}
+
+	/** @return the eager open timings. Updated as the open progresses */
+	public @NonNull Timings getTimings() {
+		return this.mTimings;
+	}
+
+	/**
+	 * Closes the source. If it's still being opened, it's closed by the eager open thread once opened
+	 */
+	@Override
+	public void close() {
+		final TrackProviderSource source;
+		synchronized(this.mLock) {
+			if(this.mClosed) {
+				return;
+			}
+			this.mClosed = true;
+			source = this.mSource;
+			this.mLock.notifyAll();
+		}
+		if(null != source) {
+			source.close();
+		}
+		if(TrackProviderEagerSource.LOG) Log.w(TrackProviderEagerSource.TAG, "close " + this.mTimings);
+	}
+}
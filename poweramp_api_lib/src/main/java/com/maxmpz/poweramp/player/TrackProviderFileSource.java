@@ -0,0 +1,87 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * {@link TrackProviderSource} for the local file.<br>
+ * NOTE: reads are blocking file reads. {@link TrackProviderServer} reads them ahead on another thread by default. On the local storage they are short enough
+ * to be served without the read-ahead, see {@link TrackProviderServer.SessionConfig#readAhead}, but not for the slow (network, FUSE, etc.) files
+ */
+public class TrackProviderFileSource implements TrackProviderSource {
+	private static final String TAG = "TrackProviderFileSource";
+	private static final boolean LOG = false;
+
+	private final @NonNull FileInputStream mStream;
+	private final @NonNull FileChannel mChannel;
+	private final long mLength;
+
+
+	public TrackProviderFileSource(@NonNull final File file) throws IOException {
+		this.mStream = new FileInputStream(file);
+		this.mChannel = this.mStream.getChannel();
+		this.mLength = this.mChannel.size();
+	}
+
+	@Override
+	public long getLength() {
+		return this.mLength;
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf) throws IOException {
+		return this.mChannel.read(buf);
+	}
+
+	@Override
+	public long seek(final long offsetBytes, final int ms) throws IOException {
+		final long newPos = 0 <= offsetBytes ? offsetBytes : this.mLength + offsetBytes;
+		if(0 > newPos || mLength < newPos) {
+			if(TrackProviderFileSource.LOG) Log.w(TrackProviderFileSource.TAG, "seek FAIL offsetBytes=" + offsetBytes + " mLength=" + this.mLength);
+			return -1;
+		}
+		this.mChannel.position(newPos);
+		return newPos;
+	}
+
+	/** @return the file channel, e.g. for {@link TrackProviderProto#sendFile} */
+	public @NonNull FileChannel getChannel() {
+		return this.mChannel;
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.mStream.close();
+		} catch(final IOException ex) {
+			Log.e(TrackProviderFileSource.TAG, "", ex);
+		}
+	}
+}
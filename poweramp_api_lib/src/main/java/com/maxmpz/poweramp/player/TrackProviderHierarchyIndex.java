@@ -0,0 +1,240 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Immutable in-memory index of the provider documents hierarchy, built once via {@link Builder}, so the provider lookups don't hit the storage or the network
+ * again on each query.<br>
+ * Each node has the documentId, the parent, the children (in the order added), the size and the provider flags. All the lookups are O(1):<br>
+ * - documentId to the node index via a hash map<br>
+ * - children via the contiguous child ranges<br>
+ * - {@link #isWithin} (used for {@link android.provider.DocumentsProvider#isChildDocument}) via the Euler tour enter/exit numbers: the node is within the ancestor
+ *   subtree if its enter number is within the ancestor enter..exit range<br><br>
+ *
+ * Can be used by the real providers for their own remote trees, e.g. built after each sync and swapped atomically.<br>
+ * THREADING: any, once built
+ */
+public class TrackProviderHierarchyIndex {
+	/** Node flag: the node is a directory */
+	public static final int NODE_DIR = 0x0001;
+	/** Node flag: the directory has subdirectories, computed on build */
+	public static final int NODE_HAS_SUBDIRS = 0x0002;
+
+	private final String @NonNull[] mDocumentIds;
+	private final int @NonNull[] mParents;
+	/** The node children are mChildren[mChildStart[ix]..mChildStart[ix + 1]) */
+	private final int @NonNull[] mChildStart;
+	private final int @NonNull[] mChildren;
+	private final long @NonNull[] mSizes;
+	private final int @NonNull[] mNodeFlags;
+	private final int @NonNull[] mFlags;
+	/** Euler tour numbers, the subtree of ix is exactly the nodes with mEnter in mEnter[ix]..mExit[ix] */
+	private final int @NonNull[] mEnter;
+	private final int @NonNull[] mExit;
+	private final @NonNull HashMap<String, Integer> mIndexes;
+
+
+	/**
+	 * Collects the nodes. The parents should be added before their children
+	 */
+	public static class Builder {
+		private final @NonNull ArrayList<String> mDocumentIds = new ArrayList<>();
+		private int @NonNull[] mParents = new int[16];
+		private long @NonNull[] mSizes = new long[16];
+		private int @NonNull[] mNodeFlags = new int[16];
+		private int @NonNull[] mFlags = new int[16];
+		private final @NonNull HashMap<String, Integer> mIndexes = new HashMap<>();
+
+		/**
+		 * @param parentIx the parent node index as returned by the previous add() calls, or -1 for a root
+		 * @param flags provider defined flags, e.g. {@link TrackProviderConsts#FLAG_HAS_LYRICS}, just stored for {@link #getFlags}
+		 * @return the node index
+		 */
+		public int add(@NonNull final String documentId, final int parentIx, final boolean isDir, final long size, final int flags) {
+			final int ix = this.mDocumentIds.size();
+			if(parentIx >= ix) throw new IllegalArgumentException("parentIx=" + parentIx + " ix=" + ix);
+			if(null != this.mIndexes.put(documentId, ix)) throw new IllegalArgumentException("documentId=" + documentId + " already added");
+			if(ix == this.mParents.length) {
+				final int capacity = ix * 2;
+				this.mParents = Arrays.copyOf(this.mParents, capacity);
+				this.mSizes = Arrays.copyOf(this.mSizes, capacity);
+				this.mNodeFlags = Arrays.copyOf(this.mNodeFlags, capacity);
+				this.mFlags = Arrays.copyOf(this.mFlags, capacity);
+			}
+			this.mDocumentIds.add(documentId);
+			this.mParents[ix] = parentIx;
+			this.mSizes[ix] = size;
+			this.mNodeFlags[ix] = isDir ? TrackProviderHierarchyIndex.NODE_DIR : 0;
+			this.mFlags[ix] = flags;
+			return ix;
+		}
+
+		/** @return the node index of the already added documentId, or -1 */
+		public int indexOf(@NonNull final String documentId) {
+			final Integer ix = this.mIndexes.get(documentId);
+			return null != ix ? ix : -1;
+		}
+
+		public @NonNull TrackProviderHierarchyIndex build() {
+			return new TrackProviderHierarchyIndex(this);
+		}
+	}
+
+
+	private TrackProviderHierarchyIndex(@NonNull final Builder builder) {
+		final int count = builder.mDocumentIds.size();
+		this.mDocumentIds = builder.mDocumentIds.toArray(new String[count]);
+		this.mParents = Arrays.copyOf(builder.mParents, count);
+		this.mSizes = Arrays.copyOf(builder.mSizes, count);
+		this.mNodeFlags = Arrays.copyOf(builder.mNodeFlags, count);
+		this.mFlags = Arrays.copyOf(builder.mFlags, count);
+		this.mIndexes = new HashMap<>(builder.mIndexes);
+
+		// Children ranges by counting, keeps the order added
+		this.mChildStart = new int[count + 1];
+		for(int ix = 0; ix < count; ix++) {
+			final int parent = this.mParents[ix];
+			if(0 <= parent) {
+				this.mChildStart[parent + 1]++;
+				if(0 != (this.mNodeFlags[ix] & TrackProviderHierarchyIndex.NODE_DIR)) {
+					this.mNodeFlags[parent] |= TrackProviderHierarchyIndex.NODE_HAS_SUBDIRS;
+				}
+			}
+		}
+		for(int ix = 0; ix < count; ix++) {
+			this.mChildStart[ix + 1] += this.mChildStart[ix];
+		}
+		this.mChildren = new int[this.mChildStart[count]];
+		final int[] fill = Arrays.copyOf(this.mChildStart, count);
+		for(int ix = 0; ix < count; ix++) {
+			final int parent = this.mParents[ix];
+			if(0 <= parent) {
+				this.mChildren[fill[parent]++] = ix;
+			}
+		}
+
+		// Euler tour, iterative to handle any depth. The stack holds the node and its next child position
+		this.mEnter = new int[count];
+		this.mExit = new int[count];
+		final int[] stackNodes = new int[count];
+		final int[] stackChildPos = new int[count];
+		int counter = 0;
+		for(int root = 0; root < count; root++) {
+			if(0 <= this.mParents[root]) {
+				continue;
+			}
+			int depth = 0;
+			stackNodes[0] = root;
+			stackChildPos[0] = this.mChildStart[root];
+			this.mEnter[root] = counter++;
+			while(0 <= depth) {
+				final int node = stackNodes[depth];
+				if(stackChildPos[depth] < this.mChildStart[node + 1]) {
+					final int child = this.mChildren[stackChildPos[depth]++];
+					this.mEnter[child] = counter++;
+					depth++;
+					stackNodes[depth] = child;
+					stackChildPos[depth] = this.mChildStart[child];
+				} else {
+					this.mExit[node] = counter - 1;
+					depth--;
+				}
+			}
+		}
+	}
+
+	public int getCount() {
+		return this.mDocumentIds.length;
+	}
+
+	/** @return the node index, or -1 if not indexed */
+	public int indexOf(@Nullable final String documentId) {
+		if(null == documentId) {
+			return -1;
+		}
+		final Integer ix = this.mIndexes.get(documentId);
+		return null != ix ? ix : -1;
+	}
+
+	public @NonNull String getDocumentId(final int ix) {
+		return this.mDocumentIds[ix];
+	}
+
+	/** @return the parent node index, or -1 for a root */
+	public int getParent(final int ix) {
+		return this.mParents[ix];
+	}
+
+	public int getChildCount(final int ix) {
+		return this.mChildStart[ix + 1] - this.mChildStart[ix];
+	}
+
+	/** @param i the child position, 0..getChildCount(ix) - 1 */
+	public int getChild(final int ix, final int i) {
+		return this.mChildren[this.mChildStart[ix] + i];
+	}
+
+	public boolean isDir(final int ix) {
+		return 0 != (this.mNodeFlags[ix] & TrackProviderHierarchyIndex.NODE_DIR);
+	}
+
+	public boolean hasSubDirs(final int ix) {
+		return 0 != (this.mNodeFlags[ix] & TrackProviderHierarchyIndex.NODE_HAS_SUBDIRS);
+	}
+
+	public long getSize(final int ix) {
+		return this.mSizes[ix];
+	}
+
+	/** @return the provider defined flags passed to {@link Builder#add} */
+	public int getFlags(final int ix) {
+		return this.mFlags[ix];
+	}
+
+	/**
+	 * @return true if ix is ancestorIx or is within its subtree
+	 */
+	public boolean isWithin(final int ancestorIx, final int ix) {
+		final int enter = this.mEnter[ix];
+		return this.mEnter[ancestorIx] <= enter && enter <= this.mExit[ancestorIx];
+	}
+
+	/**
+	 * @return true if both documents are indexed and documentId is ancestorDocumentId or is within its subtree
+	 */
+	public boolean isWithin(@Nullable final String ancestorDocumentId, @Nullable final String documentId) {
+		final int ancestorIx = this.indexOf(ancestorDocumentId);
+		final int ix = this.indexOf(documentId);
+		return 0 <= ancestorIx && 0 <= ix && this.isWithin(ancestorIx, ix);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " count=" + this.mDocumentIds.length;
+	}
+}
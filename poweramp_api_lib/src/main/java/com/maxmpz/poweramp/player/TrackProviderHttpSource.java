@@ -0,0 +1,255 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * {@link TrackProviderSource} for the remote track, fetched in the fixed size chunks via HTTP Range requests.<br>
+ * The fetched chunks are kept in the {@link TrackProviderChunkCache}, so the replays and the seeks landing in the already fetched chunks don't hit the network.
+ * Missing chunks are fetched on demand, when read.<br>
+ * NOTE: reads block on the network for the missing chunks. Wrap this source into {@link TrackProviderReadAhead} when the network latency shouldn't stall the sending.
+ * {@link TrackProviderServer} does this by default
+ */
+public class TrackProviderHttpSource implements TrackProviderSource {
+	private static final String TAG = "TrackProviderHttpSource";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+
+	private final @NonNull URL mUrl;
+	private final @NonNull String mCacheKey;
+	private final @Nullable Map<String, String> mHeaders;
+	private final @NonNull TrackProviderChunkCache mCache;
+	private final int mChunkSize;
+	private final long mLength;
+	/** Current chunk data */
+	private final byte @NonNull[] mChunk;
+	/** Index of the chunk in mChunk, or -1 */
+	private long mChunkIx = -1;
+	private int mChunkLen;
+	private long mPos;
+	/** If set, the missing chunks are fetched via this fetcher, see {@link #setParallelFetch} */
+	private @Nullable TrackProviderRangeFetcher mFetcher;
+
+	private long mNetworkBytes;
+	private int mFetchCount;
+
+
+	/**
+	 * @param url the track url. The server should support Range requests
+	 * @param cacheKey the key for the cached chunks, e.g. the document id, as the url may change (e.g. expiring signed urls) for the same track
+	 * @param headers optional extra request headers, e.g. authorization
+	 * @param length the track length if known, otherwise <= 0, and the length is taken from the first chunk response Content-Range (the first chunk is fetched here then)
+	 * @param cache the chunk cache, the chunk size is taken from it
+	 */
+	public TrackProviderHttpSource(@NonNull final String url, @NonNull final String cacheKey, @Nullable final Map<String, String> headers,
+			final long length, @NonNull final TrackProviderChunkCache cache) throws IOException {
+		this.mUrl = new URL(url);
+		this.mCacheKey = cacheKey;
+		this.mHeaders = headers;
+		this.mCache = cache;
+		this.mChunkSize = cache.getChunkSize();
+		this.mChunk = new byte[this.mChunkSize];
+		if(0 < length) {
+			this.mLength = length;
+		} else {
+			this.mLength = this.fetchChunk(0);
+			this.mChunkIx = 0;
+			this.mCache.put(this.mCacheKey, 0, this.mChunk, this.mChunkLen);
+		}
+		if(0 >= this.mLength) throw new IOException("bad length=" + this.mLength + " url=" + url);
+	}
+
+	/**
+	 * Enables fetching the missing chunks over several parallel connections, see {@link TrackProviderRangeFetcher}.
+	 * Mostly useful for the large lossless files, where a single connection takes too long to fill Poweramp initial buffer.
+	 * Call before the first read
+	 * @param maxConnections the maximum number of the parallel connections, 1 disables the parallel fetch
+	 * @param windowChunks number of the chunks fetched ahead of the current position
+	 */
+	public void setParallelFetch(final int maxConnections, final int windowChunks) {
+		if(null != this.mFetcher) {
+			this.mFetcher.close();
+			this.mFetcher = null;
+		}
+		if(1 < maxConnections) {
+			this.mFetcher = new TrackProviderRangeFetcher(this.mUrl, this.mHeaders, this.mLength, this.mChunkSize, maxConnections, windowChunks);
+		}
+	}
+
+	@Override
+	public long getLength() {
+		return this.mLength;
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf) throws IOException {
+		if(this.mPos >= this.mLength) {
+			return -1;
+		}
+		final long chunkIx = this.mPos / this.mChunkSize;
+		if(chunkIx != this.mChunkIx) {
+			this.loadChunk(chunkIx);
+		}
+		final int chunkOffset = (int)(this.mPos - chunkIx * this.mChunkSize);
+		final int size = Math.min(buf.remaining(), this.mChunkLen - chunkOffset);
+		if(0 >= size) {
+			return 0 < buf.remaining() ? -1 : 0; // Server returned less data than the declared length
+		}
+		buf.put(this.mChunk, chunkOffset, size);
+		this.mPos += size;
+		return size;
+	}
+
+	/**
+	 * Just moves the position, the target chunk is loaded (from the cache or the network) on the following read
+	 */
+	@Override
+	public long seek(final long offsetBytes, final int ms) {
+		final long newPos = 0 <= offsetBytes ? offsetBytes : this.mLength + offsetBytes;
+		if(0 > newPos || this.mLength < newPos) {
+			if(TrackProviderHttpSource.LOG) Log.w(TrackProviderHttpSource.TAG, "seek FAIL offsetBytes=" + offsetBytes + " mLength=" + this.mLength);
+			return -1;
+		}
+		this.mPos = newPos;
+		return newPos;
+	}
+
+	private void loadChunk(final long chunkIx) throws IOException {
+		this.mChunkIx = -1;
+		final int cachedLen = this.mCache.get(this.mCacheKey, chunkIx, this.mChunk);
+		if(0 < cachedLen) {
+			this.mChunkLen = cachedLen;
+			this.mChunkIx = chunkIx;
+			if(TrackProviderHttpSource.LOG) Log.w(TrackProviderHttpSource.TAG, "loadChunk HIT chunkIx=" + chunkIx);
+			return;
+		}
+		final TrackProviderRangeFetcher fetcher = this.mFetcher;
+		if(null != fetcher) {
+			this.mChunkLen = fetcher.take(chunkIx, this.mChunk);
+		} else {
+			this.fetchChunk(chunkIx);
+		}
+		this.mChunkIx = chunkIx;
+		// Only the complete chunks are cached. The last chunk may be shorter
+		if(this.mChunkSize == this.mChunkLen || chunkIx * this.mChunkSize + this.mChunkLen == this.mLength) {
+			this.mCache.put(this.mCacheKey, chunkIx, this.mChunk, this.mChunkLen);
+		}
+	}
+
+	/**
+	 * Fetches the chunk into mChunk/mChunkLen
+	 * @return the total track length from Content-Range, or -1 if not known
+	 */
+	private long fetchChunk(final long chunkIx) throws IOException {
+		final long start = chunkIx * this.mChunkSize;
+		long end = start + this.mChunkSize - 1;
+		if(0 < this.mLength) {
+			end = Math.min(end, this.mLength - 1);
+		}
+		if(TrackProviderHttpSource.LOG) Log.w(TrackProviderHttpSource.TAG, "fetchChunk chunkIx=" + chunkIx + " range=" + start + "-" + end);
+
+		final HttpURLConnection conn = (HttpURLConnection)this.mUrl.openConnection();
+		try {
+			conn.setConnectTimeout(TrackProviderHttpSource.DEFAULT_CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(TrackProviderHttpSource.DEFAULT_READ_TIMEOUT_MS);
+			conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+			conn.setRequestProperty("Accept-Encoding", "identity"); // Ranges are in the raw bytes
+			final Map<String, String> headers = this.mHeaders;
+			if(null != headers) {
+				for(final Map.Entry<String, String> e : headers.entrySet()) {
+					conn.setRequestProperty(e.getKey(), e.getValue());
+				}
+			}
+
+			final int code = conn.getResponseCode();
+			if(HttpURLConnection.HTTP_PARTIAL != code) {
+				// 200 means the server ignored the Range, we can't use it as we'd download the whole file for each chunk
+				throw new IOException("bad response code=" + code + " for range=" + start + "-" + end + " url=" + this.mUrl);
+			}
+
+			final int expected = (int)(end - start + 1);
+			int len = 0;
+			try(InputStream is = conn.getInputStream()) {
+				while(len < expected) {
+					final int res = is.read(this.mChunk, len, expected - len);
+					if(0 > res) {
+						break;
+					}
+					len += res;
+				}
+			}
+			this.mChunkLen = len;
+			this.mNetworkBytes += len;
+			this.mFetchCount++;
+
+			return parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/** @return total from the "bytes start-end/total" Content-Range, or -1 */
+	private static long parseContentRangeTotal(@Nullable final String contentRange) {
+		if(null != contentRange) {
+			final int slash = contentRange.lastIndexOf('/');
+			if(0 <= slash) {
+				try {
+					return Long.parseLong(contentRange.substring(slash + 1).trim());
+				} catch(final NumberFormatException ex) {
+					// Total may be "*"
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** @return total bytes fetched from the network by this source, including the parallel fetch */
+	public long getNetworkBytes() {
+		final TrackProviderRangeFetcher fetcher = this.mFetcher;
+		return this.mNetworkBytes + (null != fetcher ? fetcher.getNetworkBytes() : 0);
+	}
+
+	/** @return number of the chunk requests made by this source */
+	public int getFetchCount() {
+		return this.mFetchCount;
+	}
+
+	@Override
+	public void close() {
+		if(null != this.mFetcher) {
+			this.mFetcher.close();
+		}
+		if(TrackProviderHttpSource.LOG) Log.w(TrackProviderHttpSource.TAG, "close fetches=" + this.mFetchCount + " networkBytes=" + this.mNetworkBytes);
+	}
+}
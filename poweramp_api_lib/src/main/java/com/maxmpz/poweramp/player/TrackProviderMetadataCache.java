@@ -0,0 +1,308 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persistent provider side track metadata cache, keyed by the document id and its {@link android.provider.DocumentsContract.Document#COLUMN_LAST_MODIFIED}.<br>
+ * Poweramp calls queryDocument/queryChildDocuments on each rescan, and a real provider would re-parse the tags or hit the network each time. With this cache
+ * the unchanged documents (same document id and last modified) are served without the recomputation.<br><br>
+ *
+ * The metadata is stored as {@link ContentValues} (String, integer, floating point, byte[] and null values), serialized into a single SQLite blob per document.<br>
+ * Call {@link #onRescan} from the provider {@link TrackProviderConsts#CALL_RESCAN} handler, so the user initiated full rescans and tag erasing also refresh the provider data.<br>
+ * THREADING: any
+ */
+public class TrackProviderMetadataCache {
+	private static final String TAG = "TrackProviderMetadataCache";
+	private static final boolean LOG = false;
+
+	/** Bump when the blob format changes, the table is recreated on upgrade */
+	private static final int DB_VERSION = 1;
+
+	private static final String TABLE = "metadata";
+	private static final String COLUMN_DOC_ID = "doc_id";
+	private static final String COLUMN_LAST_MODIFIED = "last_modified";
+	private static final String COLUMN_DATA = "data";
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_LONG = 1;
+	private static final byte TYPE_DOUBLE = 2;
+	private static final byte TYPE_STRING = 3;
+	private static final byte TYPE_BLOB = 4;
+
+	private final @NonNull SQLiteOpenHelper mHelper;
+
+	private long mHitCount;
+	private long mMissCount;
+	/** Misses due to the changed last modified */
+	private long mStaleCount;
+	private long mPutCount;
+	private long mInvalidatedCount;
+
+
+	/**
+	 * @param name the database file name in the app databases dir
+	 */
+	public TrackProviderMetadataCache(@NonNull final Context context, @NonNull final String name) {
+		this.mHelper = new SQLiteOpenHelper(context, name, null, TrackProviderMetadataCache.DB_VERSION) {
+			@Override
+			public void onCreate(final SQLiteDatabase db) {
+				db.execSQL("CREATE TABLE " + TrackProviderMetadataCache.TABLE + " ("
+						+ TrackProviderMetadataCache.COLUMN_DOC_ID + " TEXT PRIMARY KEY NOT NULL, "
+						+ TrackProviderMetadataCache.COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+						+ TrackProviderMetadataCache.COLUMN_DATA + " BLOB NOT NULL)");
+			}
+
+			@Override
+			public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+				// This is a cache, just drop it
+				db.execSQL("DROP TABLE IF EXISTS " + TrackProviderMetadataCache.TABLE);
+				this.onCreate(db);
+			}
+
+			@Override
+			public void onDowngrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+				this.onUpgrade(db, oldVersion, newVersion);
+			}
+		};
+		this.mHelper.setWriteAheadLoggingEnabled(true); // Allows the concurrent queries while writing
+	}
+
+	/**
+	 * @param lastModified the current document last modified, as returned to Poweramp
+	 * @return the cached metadata, or null if not cached or cached for a different lastModified
+	 */
+	public @Nullable ContentValues get(@NonNull final String documentId, final long lastModified) {
+		try {
+			final SQLiteDatabase db = this.mHelper.getReadableDatabase();
+			try(Cursor c = db.query(TrackProviderMetadataCache.TABLE,
+					new String[] { TrackProviderMetadataCache.COLUMN_LAST_MODIFIED, TrackProviderMetadataCache.COLUMN_DATA },
+					TrackProviderMetadataCache.COLUMN_DOC_ID + "=?", new String[] { documentId }, null, null, null)
+			) {
+				if(c.moveToFirst()) {
+					if(lastModified == c.getLong(0)) {
+						final ContentValues values = TrackProviderMetadataCache.fromBlob(c.getBlob(1));
+						synchronized(this) {
+							this.mHitCount++;
+						}
+						return values;
+					}
+					synchronized(this) {
+						this.mStaleCount++;
+					}
+				}
+			}
+		} catch(final SQLiteException | IOException ex) {
+			Log.e(TrackProviderMetadataCache.TAG, "documentId=" + documentId, ex);
+		}
+		synchronized(this) {
+			this.mMissCount++;
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the metadata, replacing the previous entry for the document. Failures are logged and otherwise ignored
+	 */
+	public void put(@NonNull final String documentId, final long lastModified, @NonNull final ContentValues values) {
+		try {
+			final ContentValues row = new ContentValues(3);
+			row.put(TrackProviderMetadataCache.COLUMN_DOC_ID, documentId);
+			row.put(TrackProviderMetadataCache.COLUMN_LAST_MODIFIED, lastModified);
+			row.put(TrackProviderMetadataCache.COLUMN_DATA, TrackProviderMetadataCache.toBlob(values));
+			this.mHelper.getWritableDatabase().insertWithOnConflict(TrackProviderMetadataCache.TABLE, null, row, SQLiteDatabase.CONFLICT_REPLACE);
+			synchronized(this) {
+				this.mPutCount++;
+			}
+		} catch(final SQLiteException | IOException ex) {
+			Log.e(TrackProviderMetadataCache.TAG, "documentId=" + documentId, ex);
+		}
+	}
+
+	/**
+	 * Removes the entries for the document ids starting with the prefix, e.g. for a targeted subfolder rescan
+	 * @return the number of entries removed
+	 */
+	public int invalidatePrefix(@NonNull final String documentIdPrefix) {
+		try {
+			final int count = this.mHelper.getWritableDatabase().delete(TrackProviderMetadataCache.TABLE,
+					"substr(" + TrackProviderMetadataCache.COLUMN_DOC_ID + ", 1, ?)=?",
+					new String[] { Integer.toString(documentIdPrefix.length()), documentIdPrefix });
+			synchronized(this) {
+				this.mInvalidatedCount += count;
+			}
+			if(TrackProviderMetadataCache.LOG) Log.w(TrackProviderMetadataCache.TAG, "invalidatePrefix documentIdPrefix=" + documentIdPrefix + " count=" + count);
+			return count;
+		} catch(final SQLiteException ex) {
+			Log.e(TrackProviderMetadataCache.TAG, "documentIdPrefix=" + documentIdPrefix, ex);
+			return 0;
+		}
+	}
+
+	/** Removes all the entries */
+	public void clear() {
+		try {
+			final int count = this.mHelper.getWritableDatabase().delete(TrackProviderMetadataCache.TABLE, "1", null);
+			synchronized(this) {
+				this.mInvalidatedCount += count;
+			}
+			if(TrackProviderMetadataCache.LOG) Log.w(TrackProviderMetadataCache.TAG, "clear count=" + count);
+		} catch(final SQLiteException ex) {
+			Log.e(TrackProviderMetadataCache.TAG, "", ex);
+		}
+	}
+
+	/**
+	 * Clears the cache if the rescan request has {@link PowerampAPI.Scanner#EXTRA_ERASE_TAGS} or {@link PowerampAPI.Scanner#EXTRA_FULL_RESCAN} set,
+	 * as Poweramp is going to re-request the metadata of all the tracks anyway, and the user expects the fresh data
+	 * @param extras the {@link TrackProviderConsts#CALL_RESCAN} extras
+	 * @return true if cleared
+	 */
+	public boolean onRescan(@Nullable final Bundle extras) {
+		if(null != extras && (extras.getBoolean(PowerampAPI.Scanner.EXTRA_ERASE_TAGS) || extras.getBoolean(PowerampAPI.Scanner.EXTRA_FULL_RESCAN))) {
+			this.clear();
+			return true;
+		}
+		return false;
+	}
+
+	public void close() {
+		this.mHelper.close();
+	}
+
+	public synchronized long getHitCount() {
+		return this.mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.mMissCount;
+	}
+
+	/** @return the misses due to the changed document last modified, also counted in {@link #getMissCount()} */
+	public synchronized long getStaleCount() {
+		return this.mStaleCount;
+	}
+
+	public synchronized long getPutCount() {
+		return this.mPutCount;
+	}
+
+	public synchronized long getInvalidatedCount() {
+		return this.mInvalidatedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " hits=" + this.mHitCount + " misses=" + this.mMissCount + " stale=" + this.mStaleCount
+				+ " puts=" + this.mPutCount + " invalidated=" + this.mInvalidatedCount;
+	}
+
+	private static byte @NonNull[] toBlob(@NonNull final ContentValues values) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		final DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeShort(values.size());
+		for(final String key : values.keySet()) {
+			dos.writeUTF(key);
+			final Object value = values.get(key);
+			if(null == value) {
+				dos.writeByte(TrackProviderMetadataCache.TYPE_NULL);
+			} else if(value instanceof String) {
+				// Not writeUTF() as it's limited to 64K, which is not enough for e.g. lyrics
+				final byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+				dos.writeByte(TrackProviderMetadataCache.TYPE_STRING);
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+			} else if(value instanceof Double || value instanceof Float) {
+				dos.writeByte(TrackProviderMetadataCache.TYPE_DOUBLE);
+				dos.writeDouble(((Number)value).doubleValue());
+			} else if(value instanceof Number) {
+				dos.writeByte(TrackProviderMetadataCache.TYPE_LONG);
+				dos.writeLong(((Number)value).longValue());
+			} else if(value instanceof Boolean) {
+				dos.writeByte(TrackProviderMetadataCache.TYPE_LONG);
+				dos.writeLong((Boolean)value ? 1 : 0);
+			} else if(value instanceof byte[]) {
+				final byte[] bytes = (byte[])value;
+				dos.writeByte(TrackProviderMetadataCache.TYPE_BLOB);
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+			} else {
+				throw new IOException("unsupported key=" + key + " value=" + value);
+			}
+		}
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	private static @NonNull ContentValues fromBlob(final byte @NonNull[] blob) throws IOException {
+		final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(blob));
+		final int count = dis.readUnsignedShort();
+		final ContentValues values = new ContentValues(count);
+		for(int i = 0; i < count; i++) {
+			final String key = dis.readUTF();
+			final byte type = dis.readByte();
+			switch(type) {
+				case TrackProviderMetadataCache.TYPE_NULL:
+					values.putNull(key);
+					break;
+				case TrackProviderMetadataCache.TYPE_LONG:
+					values.put(key, dis.readLong());
+					break;
+				case TrackProviderMetadataCache.TYPE_DOUBLE:
+					values.put(key, dis.readDouble());
+					break;
+				case TrackProviderMetadataCache.TYPE_STRING: {
+					final byte[] bytes = new byte[dis.readInt()];
+					dis.readFully(bytes);
+					values.put(key, new String(bytes, StandardCharsets.UTF_8));
+					break;
+				}
+				case TrackProviderMetadataCache.TYPE_BLOB: {
+					final byte[] bytes = new byte[dis.readInt()];
+					dis.readFully(bytes);
+					values.put(key, bytes);
+					break;
+				}
+				default:
+					throw new IOException("bad type=" + type + " key=" + key);
+			}
+		}
+		return values;
+	}
+}
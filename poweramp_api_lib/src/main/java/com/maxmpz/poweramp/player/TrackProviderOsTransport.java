@@ -0,0 +1,201 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Android {@link TrackProviderTransport} over the socket created by ParcelFileDescriptor.createSocketPair, using android.system.Os syscalls directly.<br>
+ * NOTE: the non-blocking mode requires Android 11+ (Os.fcntlInt)
+ */
+public class TrackProviderOsTransport implements TrackProviderTransport {
+	private static final String TAG = "TrackProviderOsTransport";
+
+	private final @NonNull FileDescriptor mSocket;
+	private final StructPollfd @NonNull[] mPollFds;
+	private boolean mNonBlocking;
+	/** Channel for the socket used as the {@link FileChannel#transferTo} target. Lazily created, not owning the socket */
+	private @Nullable FileChannel mSocketChannel;
+
+
+	/**
+	 * Creates the proto for the socket pfd, sending {@link TrackProviderProto#MAX_DATA_SIZE} packets
+	 * @param pfd the socket pfd created by ParcelFileDescriptor.createSocketPair. The socket is closed by {@link TrackProviderProto#close()}
+	 * @param fileLength see {@link TrackProviderProto#TrackProviderProto(TrackProviderTransport, long, int)}
+	 */
+	public static @NonNull TrackProviderProto createProto(@NonNull final ParcelFileDescriptor pfd, final long fileLength) {
+		return new TrackProviderProto(new TrackProviderOsTransport(pfd), fileLength);
+	}
+
+	/**
+	 * Creates the proto for the socket pfd
+	 * @param pfd the socket pfd created by ParcelFileDescriptor.createSocketPair. The socket is closed by {@link TrackProviderProto#close()}
+	 * @param fileLength see {@link TrackProviderProto#TrackProviderProto(TrackProviderTransport, long, int)}
+	 * @param maxDataSize see {@link TrackProviderProto#TrackProviderProto(TrackProviderTransport, long, int)}
+	 */
+	public static @NonNull TrackProviderProto createProto(@NonNull final ParcelFileDescriptor pfd, final long fileLength, final int maxDataSize) {
+		return new TrackProviderProto(new TrackProviderOsTransport(pfd), fileLength, maxDataSize);
+	}
+
+	/**
+	 * @param pfd the socket pfd created by ParcelFileDescriptor.createSocketPair. The socket is closed by {@link #close()}
+	 */
+	public TrackProviderOsTransport(@NonNull final ParcelFileDescriptor pfd) {
+		final FileDescriptor socket = pfd.getFileDescriptor();
+		try {
+			if(null == socket || !OsConstants.S_ISSOCK(Os.fstat(socket).st_mode)) throw new IllegalArgumentException("bad pfd=" + pfd);
+		} catch(final ErrnoException ex) {
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		}
+		this.mSocket = socket;
+		this.mPollFds = new StructPollfd[] {
+			new StructPollfd()
+		};
+		this.mPollFds[0].fd = socket;
+	}
+
+	@Override
+	public int write(@NonNull final ByteBuffer buf) throws IOException {
+		try {
+			final int res = Os.sendto(this.mSocket, buf, 0, null, 0); // sendto updates buffer position
+			if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+			return res;
+		} catch(final ErrnoException ex) {
+			return this.handleErrno(ex);
+		}
+	}
+
+	@Override
+	public int writev(final Object @NonNull[] buffers, final int @NonNull[] offsets, final int @NonNull[] byteCounts) throws IOException {
+		try {
+			return Os.writev(this.mSocket, buffers, offsets, byteCounts);
+		} catch(final ErrnoException ex) {
+			return this.handleErrno(ex);
+		}
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf, final boolean noBlock) throws IOException {
+		try {
+			final int res = Os.recvfrom(this.mSocket, buf, noBlock ? OsConstants.MSG_DONTWAIT : 0, null);
+			if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+			return 0 == res && buf.hasRemaining() ? -1 : res; // 0 means the peer closed the socket
+		} catch(final ErrnoException ex) {
+			if(ex.errno == OsConstants.EAGAIN) {
+				return 0; // No data, also if the receive timed out in the blocking mode
+			}
+			return this.handleErrno(ex);
+		}
+	}
+
+	@Override
+	public int poll(final int events, final int timeoutMs) throws IOException {
+		final StructPollfd fd = this.mPollFds[0];
+		fd.events = (short)((0 != (events & POLL_IN) ? OsConstants.POLLIN : 0) | (0 != (events & POLL_OUT) ? OsConstants.POLLOUT : 0));
+		fd.revents = 0;
+		try {
+			if(0 == Os.poll(this.mPollFds, timeoutMs)) {
+				return 0;
+			}
+		} catch(final ErrnoException ex) {
+			throw ex.rethrowAsIOException();
+		}
+		final int revents = fd.revents;
+		int res = 0;
+		// Hang up and errors are reported as readable, so the following read() gets EOF or the error
+		if(0 != (revents & (OsConstants.POLLIN | OsConstants.POLLHUP | OsConstants.POLLERR))) {
+			res |= POLL_IN;
+		}
+		if(0 != (revents & OsConstants.POLLOUT)) {
+			res |= POLL_OUT;
+		}
+		return res;
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	public boolean setNonBlocking(final boolean nonBlocking) {
+		if(this.mNonBlocking == nonBlocking) {
+			return true;
+		}
+		if(30 > Build.VERSION.SDK_INT) {
+			return false; // No public fcntl, always blocking
+		}
+		try {
+			final int flags = Os.fcntlInt(this.mSocket, OsConstants.F_GETFL, 0);
+			Os.fcntlInt(this.mSocket, OsConstants.F_SETFL, nonBlocking ? flags | OsConstants.O_NONBLOCK : flags & ~OsConstants.O_NONBLOCK);
+			this.mNonBlocking = nonBlocking;
+			return true;
+		} catch(final ErrnoException ex) {
+			Log.e(TrackProviderOsTransport.TAG, "nonBlocking=" + nonBlocking, ex);
+			return false;
+		}
+	}
+
+	@Override
+	public long transferFrom(@NonNull final FileChannel fc, final long pos, final long count) throws IOException {
+		FileChannel socketChannel = this.mSocketChannel;
+		if(null == socketChannel) {
+			// NOTE: FileOutputStream created for the FileDescriptor doesn't own it, and we never close it, so the socket is closed only by close()
+			socketChannel = this.mSocketChannel = new FileOutputStream(this.mSocket).getChannel();
+		}
+		return fc.transferTo(pos, count, socketChannel);
+	}
+
+	@Override
+	public void close() {
+		try {
+			Os.shutdown(this.mSocket, 0);
+		} catch(final ErrnoException ex) {
+			Log.e(TrackProviderOsTransport.TAG, "", ex);
+		}
+		try {
+			Os.close(this.mSocket);
+		} catch(final ErrnoException ex) {
+			Log.e(TrackProviderOsTransport.TAG, "", ex);
+		}
+	}
+
+	/** @return 0 for EAGAIN in the non-blocking mode, otherwise throws */
+	private int handleErrno(@NonNull final ErrnoException ex) throws IOException {
+		if(ex.errno == OsConstants.EAGAIN && this.mNonBlocking) {
+			return 0;
+		}
+		if(ex.errno == OsConstants.ECONNRESET || ex.errno == OsConstants.EPIPE) throw new TrackProviderProto.TrackProviderProtoClosed(ex);
+		throw ex.rethrowAsIOException();
+	}
+}
@@ -0,0 +1,217 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the prewarmed (already buffering) track sources, used for the gapless playback of the remote or otherwise slow sources.<br>
+ * Once the provider knows the next track to be played (e.g. from its own queue, or when Poweramp is near the end of the current track),
+ * it calls {@link #prewarm} with the next track source, which immediately starts filling a {@link TrackProviderReadAhead} ring from the track start.
+ * The following openDocument for the same document id calls {@link #adopt} and serves the session from the already buffered data, so the first
+ * data packets are sent from memory.<br><br>
+ *
+ * The prewarms not adopted within the ttl, or exceeding the total byte budget (oldest first), are evicted and their sources closed.<br>
+ * THREADING: any
+ */
+public class TrackProviderPrewarm {
+	private static final String TAG = "TrackProviderPrewarm";
+	private static final boolean LOG = false;
+
+	public static final long DEFAULT_MAX_TOTAL_BYTES = 4 * 1024 * 1024;
+	public static final long DEFAULT_TTL_MS = 60000;
+	/** Minimum per prewarm budget, so the adopted read-ahead still has a usable ring */
+	public static final int MIN_BUDGET_BYTES = 64 * 1024;
+
+	private static class Entry {
+		final @NonNull TrackProviderReadAhead readAhead;
+		final int budgetBytes;
+		final long createdMs;
+
+		Entry(@NonNull final TrackProviderReadAhead readAhead, final int budgetBytes, final long createdMs) {
+			this.readAhead = readAhead;
+			this.budgetBytes = budgetBytes;
+			this.createdMs = createdMs;
+		}
+	}
+
+	private final long mMaxTotalBytes;
+	private final long mTtlMs;
+	/** Insertion ordered, so the oldest prewarm is evicted first. Guarded by this */
+	private final @NonNull LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+	/** Sum of the entries budgets. Guarded by this */
+	private long mTotalBytes;
+
+	private long mAdoptedCount;
+	private long mMissCount;
+	private long mEvictedCount;
+
+
+	public TrackProviderPrewarm() {
+		this(TrackProviderPrewarm.DEFAULT_MAX_TOTAL_BYTES, TrackProviderPrewarm.DEFAULT_TTL_MS);
+	}
+
+	/**
+	 * @param maxTotalBytes the maximum sum of the prewarm budgets kept at once
+	 * @param ttlMs the prewarms not adopted within this time are evicted
+	 */
+	public TrackProviderPrewarm(final long maxTotalBytes, final long ttlMs) {
+		if(TrackProviderPrewarm.MIN_BUDGET_BYTES > maxTotalBytes || 0 >= ttlMs) throw new IllegalArgumentException("maxTotalBytes=" + maxTotalBytes + " ttlMs=" + ttlMs);
+		this.mMaxTotalBytes = maxTotalBytes;
+		this.mTtlMs = ttlMs;
+	}
+
+	/**
+	 * Starts buffering the given source from its current position (expected to be the track start) for the later {@link #adopt}.<br>
+	 * Replaces (and closes) the previous prewarm for the same document id, if any
+	 * @param documentId the document id the following openDocument will be called with
+	 * @param source the track source. Owned by this registry now, closed on eviction
+	 * @param budgetBytes the ring size of the read-ahead, 3/4 of which is buffered ahead. Clamped to MIN_BUDGET_BYTES..maxTotalBytes
+	 */
+	public void prewarm(@NonNull final String documentId, @NonNull final TrackProviderSource source, final int budgetBytes) {
+		final int budget = (int)Math.min(Math.max(budgetBytes, TrackProviderPrewarm.MIN_BUDGET_BYTES), Math.min(this.mMaxTotalBytes, Integer.MAX_VALUE));
+		// Same proportions as the TrackProviderReadAhead defaults: buffer up to 3/4 of the budget ahead, the rest keeps the already consumed data once adopted
+		final TrackProviderReadAhead readAhead;
+		try {
+			readAhead = new TrackProviderReadAhead(source, budget, budget / 4, budget * 3 / 4);
+		} catch(final Throwable th) {
+			source.close();
+			throw th;
+		}
+		final Entry entry = new Entry(readAhead, budget, SystemClock.elapsedRealtime());
+
+		synchronized(this) {
+			this.removeLocked(documentId, true);
+			this.mEntries.put(documentId, entry);
+			this.mTotalBytes += budget;
+			this.evictLocked(entry.createdMs);
+		}
+		if(TrackProviderPrewarm.LOG) Log.w(TrackProviderPrewarm.TAG, "prewarm documentId=" + documentId + " budget=" + budget);
+	}
+
+	/**
+	 * Takes the prewarmed read-ahead for the document id. The returned read-ahead is positioned at the track start and is owned by the caller now.<br>
+	 * NOTE: {@link TrackProviderServer} uses the passed read-ahead as is, and sets itself as its server
+	 * @return the prewarmed read-ahead, or null if there is no (not yet evicted) prewarm for the document id
+	 */
+	public @Nullable TrackProviderReadAhead adopt(@NonNull final String documentId) {
+		synchronized(this) {
+			this.evictLocked(SystemClock.elapsedRealtime());
+			final Entry entry = this.removeLocked(documentId, false);
+			if(null == entry) {
+				this.mMissCount++;
+				if(TrackProviderPrewarm.LOG) Log.w(TrackProviderPrewarm.TAG, "adopt MISS documentId=" + documentId);
+				return null;
+			}
+			this.mAdoptedCount++;
+			if(TrackProviderPrewarm.LOG) Log.w(TrackProviderPrewarm.TAG, "adopt documentId=" + documentId + " buffered=" + entry.readAhead.getBufferedBytes());
+			return entry.readAhead;
+		}
+	}
+
+	/** Evicts the prewarms which exceeded the ttl. Called automatically by {@link #prewarm} and {@link #adopt} */
+	public void trim() {
+		synchronized(this) {
+			this.evictLocked(SystemClock.elapsedRealtime());
+		}
+	}
+
+	/** Evicts all the prewarms, e.g. when the provider is shut down or the queue changed */
+	public void clear() {
+		synchronized(this) {
+			for(final Entry entry : this.mEntries.values()) {
+				entry.readAhead.close();
+				this.mEvictedCount++;
+			}
+			this.mEntries.clear();
+			this.mTotalBytes = 0;
+		}
+	}
+
+	/** Guarded by this */
+	private @Nullable Entry removeLocked(@NonNull final String documentId, final boolean close) {
+		final Entry entry = this.mEntries.remove(documentId);
+		if(null != entry) {
+			this.mTotalBytes -= entry.budgetBytes;
+			if(close) {
+				entry.readAhead.close();
+				this.mEvictedCount++;
+			}
+		}
+		return entry;
+	}
+
+	/** Evicts expired entries and the oldest entries over the total budget. Guarded by this */
+	private void evictLocked(final long nowMs) {
+		final Iterator<Map.Entry<String, Entry>> it = this.mEntries.entrySet().iterator();
+		while(it.hasNext()) {
+			final Map.Entry<String, Entry> e = it.next();
+			final Entry entry = e.getValue();
+			if(this.mMaxTotalBytes < this.mTotalBytes || this.mTtlMs <= nowMs - entry.createdMs) {
+				if(TrackProviderPrewarm.LOG) Log.w(TrackProviderPrewarm.TAG, "evictLocked documentId=" + e.getKey());
+				it.remove();
+				this.mTotalBytes -= entry.budgetBytes;
+				entry.readAhead.close();
+				this.mEvictedCount++;
+			} else {
+				break; // Entries are ordered by creation time, and we're within the budget now
+			}
+		}
+	}
+
+	public synchronized int getCount() {
+		return this.mEntries.size();
+	}
+
+	/** @return sum of the budgets of the currently kept prewarms */
+	public synchronized long getTotalBytes() {
+		return this.mTotalBytes;
+	}
+
+	/** @return number of the successful {@link #adopt} calls */
+	public synchronized long getAdoptedCount() {
+		return this.mAdoptedCount;
+	}
+
+	/** @return number of {@link #adopt} calls with no prewarm available */
+	public synchronized long getMissCount() {
+		return this.mMissCount;
+	}
+
+	/** @return number of the prewarms closed without being adopted */
+	public synchronized long getEvictedCount() {
+		return this.mEvictedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " count=" + this.mEntries.size() + " totalBytes=" + this.mTotalBytes + " adopted=" + this.mAdoptedCount
+				+ " misses=" + this.mMissCount + " evicted=" + this.mEvictedCount;
+	}
+}
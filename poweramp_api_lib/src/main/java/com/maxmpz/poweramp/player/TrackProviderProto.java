@@ -20,28 +20,24 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.maxmpz.poweramp.player;
 
-import android.annotation.SuppressLint;
-import android.os.Build;
-import android.os.ParcelFileDescriptor;
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.OsConstants;
-import android.system.StructPollfd;
 import android.util.Log;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
-import java.io.FileDescriptor;
-import java.net.SocketException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 /**
  * Simple "seekable" socket protocol:
  * - unix domain socket is used instead of a pipe for the duplex communication
  * - seek command exposed from {@link #sendData} and can be processed as needed
  * - {@link #sendData} is blocking almost in the same way as standard ParcelFileDescriptor pipe write is
+ * - socket syscalls are done via {@link TrackProviderTransport}, {@link TrackProviderOsTransport} for the ParcelFileDescriptor socket,
+ *   see {@link TrackProviderOsTransport#createProto}
+ * - the proto itself references no android classes other than android.util.Log, and the Log calls are compiled out unless LOG is set,
+ *   so with {@link TrackProviderChannelTransport} it loads and runs on the plain JVM
  *
  * NOTE: it's not possible to use timeouts on this side of the socket as Poweramp may open and hold the socket while in paused state for indefinite time
  */
@@ -57,40 +53,86 @@ public class TrackProviderProto implements AutoCloseable {
 	/** Maximum number of data bytes we're sending in the packet (excluding header overhead) */
 	public static final int MAX_DATA_SIZE = 4 * 1024;
 
-	/** Packet header is TAG(4) + PACKET_TYPE(2) + DATA_SIZE(2) + RESERVED(4) => 12 */
-	private static final int MAX_PACKET_HEADER_SIZE = 12;
+	/**
+	 * Maximum number of data bytes per packet which can be negotiated with Poweramp, see {@link #TrackProviderProto(TrackProviderTransport, long, int)}.<br>
+	 * NOTE: packet DATA_SIZE is an unsigned 16 bit field, so the packet data can't exceed 65535 bytes
+	 */
+	public static final int MAX_NEGOTIATED_DATA_SIZE = 60 * 1024;
 
-	/** Header(12) + fileLength(8) + size(4) + */
-	private static final int INITIAL_PACKET_SIZE = TrackProviderProto.MAX_PACKET_HEADER_SIZE + 8 + 4;
+	/** Packet header is TAG(4) + PACKET_TYPE(2) + DATA_SIZE(2) + RESERVED(4) => 12 */
+	static final int MAX_PACKET_HEADER_SIZE = 12;
 
 	/** Index of the first data byte in the packet */
-	private static final int PACKET_DATA_IX = TrackProviderProto.MAX_PACKET_HEADER_SIZE;
+	static final int PACKET_DATA_IX = TrackProviderProto.MAX_PACKET_HEADER_SIZE;
 
 	/** Index of the data size (short) */
 	private static final int PACKET_DATA_SIZE_IX = 6;
 
-	private static final int PACKET_TAG = 0xF1F20001;
+	/** Index of the reserved field (int). For PACKET_TYPE_HEADER it contains provider PROTO_CAP_* flags */
+	static final int PACKET_RESERVED_IX = 8;
 
-	private static final short PACKET_TYPE_HEADER   = 1;
-	private static final short PACKET_TYPE_DATA     = 2;
-	private static final short PACKET_TYPE_SEEK     = 3;
-	private static final short PACKET_TYPE_SEEK_RES = 4;
+	static final int PACKET_TAG = 0xF1F20001;
+
+	static final short PACKET_TYPE_HEADER   = 1;
+	static final short PACKET_TYPE_DATA     = 2;
+	static final short PACKET_TYPE_SEEK     = 3;
+	static final short PACKET_TYPE_SEEK_RES = 4;
+	/** Sent by Poweramp in response to the header with non-zero PROTO_CAP_* flags: accepted maxDataSize(4) + accepted PROTO_CAP_* flags(4) */
+	static final short PACKET_TYPE_CAPS     = 5;
+	/** Sent by the provider once Poweramp accepted PROTO_CAP_LENGTH_UPDATES: fileLength(8) + LENGTH_FLAG_*(4) */
+	static final short PACKET_TYPE_LENGTH   = 6;
+
+	/** Provider can send data packets larger than {@link #MAX_DATA_SIZE}, up to the size accepted by Poweramp via PACKET_TYPE_CAPS */
+	static final int PROTO_CAP_LARGE_PACKETS = 1;
+	/** The header fileLength is an estimate, and the provider sends PACKET_TYPE_LENGTH packets as the actual length becomes known */
+	static final int PROTO_CAP_LENGTH_UPDATES = 2;
+
+	/** PACKET_TYPE_LENGTH flag: the length is final and won't change anymore */
+	static final int LENGTH_FLAG_FINAL = 1;
 
 	private static final int STATE_INITIAL = 0;
 	private static final int STATE_CLOSED  = 1;
 	private static final int STATE_DATA    = 2;
 
-	private static final int LONG_BYTES    = 8;
-	private static final int INTEGER_BYTES = 4;
+	static final int LONG_BYTES    = 8;
+	static final int INTEGER_BYTES = 4;
+
+	/**
+	 * Maximum number of data packets written with a single writev() call. Each packet takes 2 vectors: header and data.<br>
+	 * NOTE: seek requests are checked after each writev(), so larger values increase the non-seekable "window"
+	 */
+	private static final int MAX_PACKETS_PER_WRITE = 8;
 
+	/** Maximum number of data bytes written with a single writev() call, limits non-seekable "window" for the large packets. At least one packet is always written */
+	private static final int MAX_DATA_BYTES_PER_WRITE = 32 * 1024;
 
-	private final @NonNull FileDescriptor mSocket;
+
+	private final @NonNull TrackProviderTransport mTransport;
 	/** Buffer for header + some extra space for few small packet types */
 	private final @NonNull ByteBuffer mHeaderBuffer;
-	private final long mFileLength;
+	/** Packet encoding and PROTO_CAP_* negotiation state, shared with {@link TrackProviderServer} */
+	private final @NonNull TrackProviderProtoCodec mCodec;
 	private int mState = TrackProviderProto.STATE_INITIAL;
-	private final StructPollfd @NonNull[] mStructPollFds;
 	private final @NonNull SeekRequest mTempSeekRequest = new SeekRequest();
+	/** Headers for up to MAX_PACKETS_PER_WRITE data packets sent via single writev() */
+	private final @NonNull ByteBuffer mDataHeadersBuffer;
+	/** writev() vectors. Unused vectors are kept with 0 byte count, as writev() always uses whole arrays */
+	private final Object @NonNull[] mIovBuffers = new Object[TrackProviderProto.MAX_PACKETS_PER_WRITE * 2];
+	private final int @NonNull[] mIovOffsets = new int[TrackProviderProto.MAX_PACKETS_PER_WRITE * 2];
+	private final int @NonNull[] mIovByteCounts = new int[TrackProviderProto.MAX_PACKETS_PER_WRITE * 2];
+	private @NonNull SeekCheckPolicy mSeekCheckPolicy = SeekCheckPolicy.DEFAULT;
+	/** Data bytes sent since the last seek request check */
+	private long mBytesSinceSeekCheck;
+	/** System.nanoTime() of the last seek request check which found no seek request */
+	private long mLastSeekCheckNs;
+	/** Set for the edge triggered policy when the socket became readable while we were waiting for it to accept the data */
+	private boolean mSeekPending;
+	/** True if the transport is currently in the non-blocking mode, used by the edge triggered policy only */
+	private boolean mNonBlocking;
+	private long mLastSeekDetectionLatencyUs = -1;
+	private long mMaxSeekDetectionLatencyUs = -1;
+	private @Nullable TrackProviderProtoMetrics mMetrics;
+	private @Nullable TrackProviderProtoTrace mTrace;
 
 
 	/** Raised if we failed with the connection/action and can't continue anymore */
@@ -113,6 +155,59 @@ public class TrackProviderProto implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Defines how often {@link #sendData2} and {@link #sendFile} check the socket for the incoming seek request. Each check is an extra poll() syscall,
+	 * so checking less often increases the throughput, but also increases the seek latency. See {@link #setSeekCheckPolicy}
+	 */
+	public static class SeekCheckPolicy {
+		static final int MODE_EVERY_BYTES   = 0;
+		static final int MODE_EVERY_MICROS  = 1;
+		static final int MODE_EDGE          = 2;
+
+		/** Check after each write (up to {@link #MAX_PACKETS_PER_WRITE} packets). This is the default */
+		public static final @NonNull SeekCheckPolicy DEFAULT = new SeekCheckPolicy(MODE_EVERY_BYTES, 0, 0);
+
+		final int mode;
+		final long interval;
+		final int fallbackBytes;
+
+		private SeekCheckPolicy(final int mode, final long interval, final int fallbackBytes) {
+			this.mode = mode;
+			this.interval = interval;
+			this.fallbackBytes = fallbackBytes;
+		}
+
+		/** Check once at least the given number of data bytes is sent since the last check. 0 means check after each write */
+		public static @NonNull SeekCheckPolicy everyBytes(final int bytes) {
+			if(0 > bytes) throw new IllegalArgumentException("bad bytes=" + bytes);
+			return new SeekCheckPolicy(MODE_EVERY_BYTES, bytes, 0);
+		}
+
+		/** Check once at least the given number of microseconds passed since the last check */
+		public static @NonNull SeekCheckPolicy everyMicros(final long us) {
+			if(0 > us) throw new IllegalArgumentException("bad us=" + us);
+			return new SeekCheckPolicy(MODE_EVERY_MICROS, us * 1000, 0);
+		}
+
+		/**
+		 * Don't poll while the socket accepts the data. When the socket is full, wait for it to become either writable or readable, and check the seek
+		 * request only if it's readable. This removes the polls from the hot path, but the seek is detected only when the socket is full
+		 * or after fallbackBytes, so fallbackBytes bounds the seek latency if Poweramp keeps consuming the data.<br>
+		 * NOTE: API 30+ (Android 11+) only for the ParcelFileDescriptor sockets, as {@link TrackProviderOsTransport} switches the socket to the non-blocking mode
+		 * with Os.fcntlInt, which isn't available to apps before API 30. Below API 30 and for {@link #sendFile} it works as {@link #everyBytes}(fallbackBytes).<br>
+		 * The policies can be measured on the device with the TrackProviderSeekPolicyBenchmark instrumented test
+		 */
+		public static @NonNull SeekCheckPolicy edgeTriggered(final int fallbackBytes) {
+			if(0 >= fallbackBytes) throw new IllegalArgumentException("bad fallbackBytes=" + fallbackBytes);
+			return new SeekCheckPolicy(MODE_EDGE, 0, fallbackBytes);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " mode=" + this.mode + " interval=" + this.interval + " fallbackBytes=" + this.fallbackBytes;
+		}
+	}
+
 	/**
 	 * Simple data structure with seek offsetBytes and seek milliseconds.<br>
 	 * NOTE: there is only on instance of SeekRequest per TrackProviderProto instance, don't share or use from other threads
@@ -134,31 +229,30 @@ public class TrackProviderProto implements AutoCloseable {
 
 
 	/**
-	 * @param pfd the socket pfd created by ParcelFileDescriptor.createSocketPair
-	 * @param fileLength the actual total length of the track being played
+	 * @param transport the connected socket transport. Owned by this proto
+	 * @param fileLength the actual total length of the track being played, or its estimate, see {@link #setLengthEstimated}
 	 */
-	@SuppressLint("NewApi")
-	public TrackProviderProto(@NonNull final ParcelFileDescriptor pfd, final long fileLength) {
-		if(0 >= fileLength) throw new IllegalArgumentException("bad fileLength=" + fileLength);
-		final FileDescriptor socket = pfd.getFileDescriptor();
-		try {
-			if(null == socket || !OsConstants.S_ISSOCK(Os.fstat(socket).st_mode)) throw new IllegalArgumentException("bad pfd=" + pfd);
-		} catch(final ErrnoException ex) {
-			throw new TrackProviderProtoException(ex);
-		}
-        this.mSocket = socket;
-        this.mFileLength = fileLength;
+	public TrackProviderProto(@NonNull final TrackProviderTransport transport, final long fileLength) {
+		this(transport, fileLength, TrackProviderProto.MAX_DATA_SIZE);
+	}
 
-		final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(TrackProviderProto.INITIAL_PACKET_SIZE);
-		if(null == headerBuffer) throw new TrackProviderProtoException("headerBuffer");
-        this.mHeaderBuffer = headerBuffer;
-        this.mHeaderBuffer.order(ByteOrder.nativeOrder());
+	/**
+	 * NOTE: for the ParcelFileDescriptor socket, see {@link TrackProviderOsTransport#createProto}
+	 * @param transport the connected socket transport, e.g. {@link TrackProviderOsTransport} for the ParcelFileDescriptor socket or
+	 *                  {@link TrackProviderChannelTransport} for the JVM tests. Owned by this proto
+	 * @param fileLength the actual total length of the track being played, or its estimate, see {@link #setLengthEstimated}
+	 * @param maxDataSize the maximum data packet size the provider wants to use, {@link #MAX_DATA_SIZE}..{@link #MAX_NEGOTIATED_DATA_SIZE}.
+	 *                    If > MAX_DATA_SIZE, the larger packets are offered to Poweramp in the header, but are used only after Poweramp accepts them,
+	 *                    otherwise MAX_DATA_SIZE packets are sent. See {@link #getMaxDataSize()}
+	 */
+	public TrackProviderProto(@NonNull final TrackProviderTransport transport, final long fileLength, final int maxDataSize) {
+		this.mCodec = new TrackProviderProtoCodec(fileLength, maxDataSize); // Validates the arguments
+        this.mTransport = transport;
 
-        this.mStructPollFds = new StructPollfd[] {
-			new StructPollfd()
-		};
-        this.mStructPollFds[0].fd = this.mSocket;
-        this.mStructPollFds[0].events = (short)OsConstants.POLLIN;
+		// NOTE: pooled buffers are returned in close(), so the proto can't be used after close()
+		final TrackProviderBufferPool pool = TrackProviderBufferPool.getDefault();
+        this.mHeaderBuffer = pool.acquire(TrackProviderProtoCodec.MAX_CONTROL_PACKET_SIZE);
+		this.mDataHeadersBuffer = pool.acquire(TrackProviderProto.MAX_PACKET_HEADER_SIZE * TrackProviderProto.MAX_PACKETS_PER_WRITE);
 	}
 
 	@Override
@@ -166,52 +260,185 @@ public class TrackProviderProto implements AutoCloseable {
 		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "close");
 		if(TrackProviderProto.DEBUG_CHECKS && STATE_CLOSED == mState) throw new AssertionError();
 		if(STATE_CLOSED != mState) {
-			try {
-				Os.shutdown(this.mSocket, 0);
-			} catch(final ErrnoException ex) {
-				Log.e(TrackProviderProto.TAG, "", ex);
-			}
-			try {
-				Os.close(this.mSocket);
-			} catch(final ErrnoException ex) {
-				Log.e(TrackProviderProto.TAG, "", ex);
-			}
+			this.mTransport.close();
             this.mState = TrackProviderProto.STATE_CLOSED;
+
+			final TrackProviderBufferPool pool = TrackProviderBufferPool.getDefault();
+			pool.release(this.mHeaderBuffer);
+			pool.release(this.mDataHeadersBuffer);
 			if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "close OK");
 		}
 	}
 
+	/**
+	 * @return the current maximum data bytes per packet. This is {@link #MAX_DATA_SIZE} until Poweramp accepts larger packets requested via
+	 * {@link #TrackProviderProto(TrackProviderTransport, long, int)}. Poweramp accepts them (if supported) in response to the header,
+	 * so the value may change during the first {@link #sendData2} calls
+	 */
+	public int getMaxDataSize() {
+		return this.mCodec.getMaxDataSize();
+	}
+
+	/**
+	 * Marks the fileLength passed to the constructor as an estimate, e.g. for the transcoded or progressively downloaded tracks, so the streaming can start
+	 * before the actual length is known. The actual length is then sent via {@link #sendLength}.<br>
+	 * Should be called before {@link #sendHeader()}
+	 */
+	public void setLengthEstimated(final boolean estimated) {
+		if(STATE_INITIAL != mState) throw new IllegalStateException("header already sent");
+		this.mCodec.setLengthEstimated(estimated);
+	}
+
+	/** @return the current track length, as sent to Poweramp */
+	public long getFileLength() {
+		return this.mCodec.getFileLength();
+	}
+
+	/**
+	 * @return true if Poweramp accepted the length updates. False until Poweramp answers the header (during the first {@link #sendData2} calls),
+	 * and always false for the older Poweramp builds
+	 */
+	public boolean isLengthUpdateSupported() {
+		return this.mCodec.isLengthUpdateSupported();
+	}
+
+	/**
+	 * Sends the updated track length. Requires {@link #setLengthEstimated} before the header.<br>
+	 * If Poweramp hasn't answered the header yet, the update is queued and sent with the following {@link #sendData2}/{@link #sendFile}/{@link #sendEOFAndWaitForSeekOrClose2}
+	 * once Poweramp accepts the length updates. If Poweramp answers without accepting them, the queued update is dropped. Older Poweramp builds don't answer
+	 * the header at all, so for these the update just stays queued, see {@link #isLengthUpdatePending()}.<br>
+	 * NOTE: Poweramp ignores all packets between the seek request and the seek result, so don't call this while handling the seek request, call it after {@link #sendSeekResult}
+	 * @param fileLength the new length, > 0
+	 * @param isFinal true if the length is the actual one and won't change anymore
+	 * @return true if the update was sent, or queued until Poweramp answers the header. False if it can't be sent: the length wasn't marked as estimated,
+	 * the header wasn't sent, or Poweramp already answered the header without accepting the length updates. In these cases the header length stays in effect
+	 */
+	public boolean sendLength(final long fileLength, final boolean isFinal) {
+		if(0 >= fileLength) throw new IllegalArgumentException("bad fileLength=" + fileLength);
+		if(STATE_DATA != mState || !this.mCodec.queueLength(fileLength, isFinal)) {
+			if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendLength not supported fileLength=" + fileLength);
+			return false;
+		}
+		this.maybeSendPendingLength();
+		return true;
+	}
+
+	/**
+	 * @return true if the update passed to {@link #sendLength} is queued, waiting for Poweramp to answer the header.
+	 * Stays true for the older Poweramp builds, which never answer it
+	 */
+	public boolean isLengthUpdatePending() {
+		return this.mCodec.isLengthUpdatePending();
+	}
+
+	/** Sends the pending length update, if any, once Poweramp accepted the length updates */
+	private void maybeSendPendingLength() {
+		if(!this.mCodec.hasLengthToSend()) {
+			return;
+		}
+		this.ensureBlocking();
+		try {
+			final ByteBuffer buf = this.mHeaderBuffer;
+			final long fileLength = this.mCodec.putLengthPacket(buf);
+			while(buf.hasRemaining()) {
+				this.write(buf);
+			}
+			final TrackProviderProtoTrace trace = this.mTrace;
+			if(null != trace) trace.onLength(System.nanoTime(), fileLength);
+			if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "maybeSendPendingLength OK fileLength=" + fileLength);
+		} catch(final IOException ex) {
+			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
+			throw new TrackProviderProtoException(ex);
+		}
+	}
+
+	/**
+	 * Sets the policy for the seek request checks during {@link #sendData2} and {@link #sendFile}. Can be changed at any time. Default is {@link SeekCheckPolicy#DEFAULT}
+	 */
+	public void setSeekCheckPolicy(@NonNull final SeekCheckPolicy policy) {
+		this.mSeekCheckPolicy = policy;
+		this.mBytesSinceSeekCheck = 0;
+		this.mLastSeekCheckNs = System.nanoTime();
+		if(SeekCheckPolicy.MODE_EDGE != policy.mode) {
+			this.setNonBlocking(false);
+		}
+	}
+
+	/**
+	 * @return the upper bound of the last seek request detection latency in microseconds, or -1 if no seek was requested yet.<br>
+	 * This is the time between the last check which found no seek request and the check which found it, so the actual latency is lower
+	 */
+	public long getLastSeekDetectionLatencyUs() {
+		return this.mLastSeekDetectionLatencyUs;
+	}
+
+	/** @return the maximum of {@link #getLastSeekDetectionLatencyUs()} for this session, or -1 if no seek was requested yet */
+	public long getMaxSeekDetectionLatencyUs() {
+		return this.mMaxSeekDetectionLatencyUs;
+	}
+
+	/**
+	 * Sets the metrics object updated by this proto, or null to disable the metrics. Should be set before {@link #sendHeader()} to get
+	 * the time to first byte
+	 */
+	public void setMetrics(@Nullable final TrackProviderProtoMetrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	public @Nullable TrackProviderProtoMetrics getMetrics() {
+		return this.mMetrics;
+	}
+
+	/**
+	 * Sets the trace recording the packet events of this proto, or null to disable the tracing. Should be set before {@link #sendHeader()}
+	 */
+	public void setTrace(@Nullable final TrackProviderProtoTrace trace) {
+		this.mTrace = trace;
+	}
+
+	public @Nullable TrackProviderProtoTrace getTrace() {
+		return this.mTrace;
+	}
+
 	/** Prepares packet header buffer */
 	private @NonNull ByteBuffer preparePacketHeader(final short packetType, final int dataSize) {
 		final ByteBuffer buf = this.mHeaderBuffer;
 		buf.clear();
-		buf.putInt(TrackProviderProto.PACKET_TAG);
-		buf.putShort(packetType);
-		if(TrackProviderProto.DEBUG_CHECKS && 0 > dataSize || MAX_DATA_SIZE < dataSize) throw new AssertionError(dataSize);
-		buf.putShort((short)dataSize);
-		buf.putInt(0);
+		TrackProviderProto.putPacketHeader(buf, 0, packetType, dataSize, 0);
+		buf.position(TrackProviderProto.MAX_PACKET_HEADER_SIZE);
 		return buf;
 	}
 
+	/** Writes packet header at the given absolute index, buffer position is not changed */
+	static void putPacketHeader(@NonNull final ByteBuffer buf, final int ix, final short packetType, final int dataSize, final int reserved) {
+		if(TrackProviderProto.DEBUG_CHECKS && (0 > dataSize || MAX_NEGOTIATED_DATA_SIZE < dataSize)) throw new AssertionError(dataSize);
+		buf.putInt(ix, TrackProviderProto.PACKET_TAG);
+		buf.putShort(ix + 4, packetType);
+		buf.putShort(ix + TrackProviderProto.PACKET_DATA_SIZE_IX, (short)dataSize); // Unsigned
+		buf.putInt(ix + TrackProviderProto.PACKET_RESERVED_IX, reserved);
+	}
+
 	/** Send the header required to be sent after the socket is connected */
 	public void sendHeader() {
 		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendHeader");
 		if(STATE_INITIAL == mState) {
 			try {
-				final ByteBuffer buf = this.preparePacketHeader(TrackProviderProto.PACKET_TYPE_HEADER, TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES);
-				buf.putLong(this.mFileLength);
-				buf.putInt(TrackProviderProto.MAX_DATA_SIZE);
-				buf.flip();
+				final ByteBuffer buf = this.mHeaderBuffer;
+				this.mCodec.putHeaderPacket(buf);
 
 				while(buf.hasRemaining()) {
-					final int res = Os.sendto(this.mSocket, buf, 0, null, 0); // sendto updates buffer position
-					if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+					this.write(buf);
 				}
 
                 this.mState = TrackProviderProto.STATE_DATA;
+				this.mLastSeekCheckNs = System.nanoTime();
+				final TrackProviderProtoMetrics metrics = this.mMetrics;
+				if(null != metrics) metrics.onHeaderSent(this.mLastSeekCheckNs);
+				final TrackProviderProtoTrace trace = this.mTrace;
+				if(null != trace) trace.onHeaderSent(this.mLastSeekCheckNs, this.mCodec.getFileLength());
 				if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendHeader OK");
 
-			} catch(final ErrnoException | SocketException ex) {
+			} catch(final IOException ex) {
 				if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
 				throw new TrackProviderProtoException(ex);
 			}
@@ -251,57 +478,378 @@ public class TrackProviderProto implements AutoCloseable {
 	public @Nullable SeekRequest sendData2(@NonNull final ByteBuffer data) {
 		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendData2 data.remaining=" + data.remaining());
 		if(STATE_DATA == mState) {
+			this.maybeSendPendingLength();
+			if(!data.isDirect() && !data.hasArray()) {
+				return this.sendDataPacketsSequentially(data); // E.g. read-only heap buffer which can't be passed to writev()
+			}
+			final boolean edge = SeekCheckPolicy.MODE_EDGE == this.mSeekCheckPolicy.mode && this.setNonBlocking(true);
 			@SuppressWarnings("unused")
 			int packetsSent = 0;
-			int originalDataLimit = data.limit(); // Keep original limit as we'll modify it to send up to MAX_DATA_SIZE bytes per packet
 			while(data.hasRemaining()) {
+				final int startPos = data.position();
 				try {
-					int size = data.remaining();
-					if(MAX_DATA_SIZE < size) { // Sending up to MAX_DATA_SIZE
-						size = TrackProviderProto.MAX_DATA_SIZE;
-					}
-					data.limit(data.position() + size);
+					final int packets = this.writeDataPackets(data, edge);
+					packetsSent += packets;
+					final TrackProviderProtoMetrics metrics = this.mMetrics;
+					if(null != metrics) metrics.onDataSent(packets, data.position() - startPos);
+					final TrackProviderProtoTrace trace = this.mTrace;
+					if(null != trace) trace.onDataSent(data.position() - startPos);
+
+				} catch(final IOException ex) {
+					if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
+					throw new TrackProviderProtoException(ex);
+				}
+
+				final SeekRequest seekRequest = this.maybeCheckSeekRequest(data.position() - startPos, edge);
+				if(null != seekRequest) {
+					return seekRequest; // Got valid seek request, return it
+				}
+			}
+			if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendData2 OK packetsSent=" + packetsSent);
+
+		} else if(TrackProviderProto.DEBUG_CHECKS) throw new AssertionError(this.mState);
+
+		return null;
+	}
+
+	/**
+	 * Writes up to {@link #MAX_PACKETS_PER_WRITE} data packets (header + data each) with a single writev() call.
+	 * More calls happen only if the socket accepts the data partially.<br>
+	 * Advances data position by the number of the data bytes sent
+	 * @param data direct or array backed buffer
+	 * @param edge true if the socket is in the non-blocking mode for the edge triggered seek check policy
+	 * @return number of packets sent
+	 */
+	private int writeDataPackets(@NonNull final ByteBuffer data, final boolean edge) throws IOException {
+		final ByteBuffer headers = this.mDataHeadersBuffer;
+		final Object[] iovBuffers = this.mIovBuffers;
+		final int[] iovOffsets = this.mIovOffsets;
+		final int[] iovByteCounts = this.mIovByteCounts;
+
+		// writev() vectors for the direct buffers are absolute offsets from the buffer address, for the arrays - offsets within the array
+		final boolean isDirect = data.isDirect();
+		final Object dataObject = isDirect ? data : data.array();
+		final int dataOffsetBase = isDirect ? 0 : data.arrayOffset();
+
+		final int maxDataSize = this.mCodec.getMaxDataSize();
+		final int startPos = data.position();
+		int pos = startPos;
+		final int limit = data.limit();
+		int packets = 0;
+		int iovIx = 0;
+		while(pos < limit && MAX_PACKETS_PER_WRITE > packets && MAX_DATA_BYTES_PER_WRITE > pos - startPos) {
+			final int size = Math.min(limit - pos, maxDataSize); // Sending up to maxDataSize per packet
+			final int headerIx = packets * TrackProviderProto.MAX_PACKET_HEADER_SIZE;
+			TrackProviderProto.putPacketHeader(headers, headerIx, TrackProviderProto.PACKET_TYPE_DATA, size, 0);
+
+			iovBuffers[iovIx] = headers;
+			iovOffsets[iovIx] = headerIx;
+			iovByteCounts[iovIx] = TrackProviderProto.MAX_PACKET_HEADER_SIZE;
+			iovIx++;
+
+			iovBuffers[iovIx] = dataObject;
+			iovOffsets[iovIx] = dataOffsetBase + pos;
+			iovByteCounts[iovIx] = size;
+			iovIx++;
+
+			pos += size;
+			packets++;
+		}
+		// Rest of vectors are empty
+		for(; iovIx < iovBuffers.length; iovIx++) {
+			iovBuffers[iovIx] = headers;
+			iovOffsets[iovIx] = 0;
+			iovByteCounts[iovIx] = 0;
+		}
+
+		this.writevFully(packets * TrackProviderProto.MAX_PACKET_HEADER_SIZE + pos - startPos, edge);
+
+		data.position(pos);
+		return packets;
+	}
+
+	/**
+	 * Writes all the prepared writev() vectors, retrying on partial writes
+	 * @param totalBytes total bytes in all vectors
+	 * @param edge true if the transport is in the non-blocking mode. When the socket is full, we wait for it to be writable or readable, and
+	 *             mark the seek request as pending if it's readable. The vectors are still written fully, as Poweramp expects the whole packets
+	 */
+	private void writevFully(int totalBytes, final boolean edge) throws IOException {
+		final int[] iovOffsets = this.mIovOffsets;
+		final int[] iovByteCounts = this.mIovByteCounts;
+		while(0 < totalBytes) {
+			int res = this.writev();
+			if(0 == res && edge) {
+				this.waitWritableOrReadable(); // Socket is full
+				continue;
+			}
+			totalBytes -= res;
+			if(0 < totalBytes) {
+				// Partial write, skip the written vectors and adjust the partially written one
+				for(int i = 0; 0 < res; i++) {
+					final int written = Math.min(res, iovByteCounts[i]);
+					iovOffsets[i] += written;
+					iovByteCounts[i] -= written;
+					res -= written;
+				}
+			}
+		}
+	}
+
+	/** writev() of the prepared vectors with the metrics and trace accounting */
+	private int writev() throws IOException {
+		if(null == this.mMetrics && null == this.mTrace) {
+			return this.mTransport.writev(this.mIovBuffers, this.mIovOffsets, this.mIovByteCounts);
+		}
+		final long startNs = System.nanoTime();
+		try {
+			return this.mTransport.writev(this.mIovBuffers, this.mIovOffsets, this.mIovByteCounts);
+		} finally {
+			this.onSend(System.nanoTime() - startNs);
+		}
+	}
+
+	/** Write with the metrics and trace accounting. Updates buffer position */
+	private int write(@NonNull final ByteBuffer buf) throws IOException {
+		final boolean timed = null != this.mMetrics || null != this.mTrace;
+		final long startNs = timed ? System.nanoTime() : 0;
+		try {
+			return this.mTransport.write(buf);
+		} finally {
+			if(timed) this.onSend(System.nanoTime() - startNs);
+		}
+	}
+
+	private void onSend(final long blockedNs) {
+		final TrackProviderProtoMetrics metrics = this.mMetrics;
+		if(null != metrics) metrics.onSend(blockedNs);
+		final TrackProviderProtoTrace trace = this.mTrace;
+		if(null != trace) trace.onSend(blockedNs);
+	}
+
+	private void onSyscall() {
+		final TrackProviderProtoMetrics metrics = this.mMetrics;
+		if(null != metrics) metrics.onSyscall();
+	}
+
+	/**
+	 * Blocks until the socket is writable. Also marks the seek request as pending if the socket became readable, after which we wait
+	 * just for the socket to be writable, as the pending request is read only after the current packets are fully written
+	 */
+	private void waitWritableOrReadable() throws IOException {
+		this.onSyscall();
+		final int events = this.mTransport.poll(this.mSeekPending
+				? TrackProviderTransport.POLL_OUT : TrackProviderTransport.POLL_OUT | TrackProviderTransport.POLL_IN, -1);
+		if(0 != (events & TrackProviderTransport.POLL_IN)) {
+			this.mSeekPending = true;
+		} else if(!this.mSeekPending) {
+			this.mLastSeekCheckNs = System.nanoTime(); // Not readable at this point, so we know no seek request was pending
+		}
+	}
+
+	/**
+	 * Switches the transport non-blocking mode if needed. E.g. {@link TrackProviderOsTransport} non-blocking mode requires Android 11+
+	 * @return true if the transport is in the requested mode
+	 */
+	private boolean setNonBlocking(final boolean nonBlocking) {
+		if(this.mNonBlocking == nonBlocking) {
+			return true;
+		}
+		this.onSyscall();
+		if(!this.mTransport.setNonBlocking(nonBlocking)) {
+			return false; // Can't be non-blocking here, and we're always blocking in this case
+		}
+		this.mNonBlocking = nonBlocking;
+		return true;
+	}
+
+	/**
+	 * Ensures the socket is in the blocking mode. Everything but the edge triggered {@link #sendData2} expects the blocking socket.
+	 * NOTE: this is a no-op unless the edge triggered policy switched the socket to the non-blocking mode
+	 */
+	private void ensureBlocking() {
+		if(this.mNonBlocking && !this.setNonBlocking(false)) {
+			throw new TrackProviderProtoException("failed to switch to blocking mode");
+		}
+	}
+
+	/**
+	 * Checks for the seek request if due according to the current {@link SeekCheckPolicy}
+	 * @param bytesSent data bytes sent since the previous call
+	 * @param edge true if the edge triggered policy is in effect for this send
+	 * @return request for the new seek position, or null if none requested or not checked
+	 */
+	private @Nullable SeekRequest maybeCheckSeekRequest(final int bytesSent, final boolean edge) {
+		final SeekCheckPolicy policy = this.mSeekCheckPolicy;
+		final long bytesSinceSeekCheck = this.mBytesSinceSeekCheck += bytesSent;
+		final boolean due;
+		switch(policy.mode) {
+			case SeekCheckPolicy.MODE_EVERY_MICROS:
+				due = System.nanoTime() - this.mLastSeekCheckNs >= policy.interval;
+				break;
+			case SeekCheckPolicy.MODE_EDGE:
+				due = edge && this.mSeekPending || policy.fallbackBytes <= bytesSinceSeekCheck;
+				break;
+			default:
+				due = policy.interval <= bytesSinceSeekCheck;
+				break;
+		}
+		if(!due) {
+			return null;
+		}
+		this.mBytesSinceSeekCheck = 0;
+
+		final SeekRequest seekRequest;
+		if(this.mSeekPending) {
+			this.mSeekPending = false;
+			seekRequest = this.readSeekRequest(true); // Socket is known to be readable
+		} else {
+			seekRequest = this.pollSeekRequest();
+		}
+
+		final long now = System.nanoTime();
+		if(null != seekRequest) {
+			final long latencyUs = (now - this.mLastSeekCheckNs) / 1000;
+			this.mLastSeekDetectionLatencyUs = latencyUs;
+			if(latencyUs > this.mMaxSeekDetectionLatencyUs) {
+				this.mMaxSeekDetectionLatencyUs = latencyUs;
+			}
+		}
+		this.mLastSeekCheckNs = now;
+		return seekRequest;
+	}
+
+	/**
+	 * Sends packets with separate sendto() calls for the header and the data. Used for the buffers which can't be passed to writev()
+	 * @return request for the new seek position, or null if none requested
+	 */
+	private @Nullable SeekRequest sendDataPacketsSequentially(@NonNull final ByteBuffer data) {
+		this.ensureBlocking();
+		@SuppressWarnings("unused")
+		int packetsSent = 0;
+		int originalDataLimit = data.limit(); // Keep original limit as we'll modify it to send up to maxDataSize bytes per packet
+		final int maxDataSize = this.mCodec.getMaxDataSize();
+		while(data.hasRemaining()) {
+			int size = data.remaining();
+			if(maxDataSize < size) { // Sending up to maxDataSize
+				size = maxDataSize;
+			}
+			try {
+				data.limit(data.position() + size);
+
+				final ByteBuffer buf = this.preparePacketHeader(TrackProviderProto.PACKET_TYPE_DATA, size);
+				buf.flip();
+				while(buf.hasRemaining()) {
+					this.write(buf);
+				}
+				while(data.hasRemaining()) {
+					this.write(data); // data.position changed by # of bytes actually sent
+				}
+				packetsSent++;
+				final TrackProviderProtoMetrics metrics = this.mMetrics;
+				if(null != metrics) metrics.onDataSent(1, size);
+				final TrackProviderProtoTrace trace = this.mTrace;
+				if(null != trace) trace.onDataSent(size);
+
+				buf.clear();
+
+			} catch(final IOException ex) {
+				if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
+				throw new TrackProviderProtoException(ex);
+			} finally {
+				data.limit(originalDataLimit); //  Restore limit
+			}
+
+			final SeekRequest seekRequest = this.maybeCheckSeekRequest(size, false);
+			if(null != seekRequest) {
+				return seekRequest; // Got valid seek request, return it
+			}
+		}
+		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendDataPacketsSequentially OK packetsSent=" + packetsSent);
+		return null;
+	}
+
+	/**
+	 * Checks for the incoming seek request without blocking
+	 * @return request for the new seek position, or null if none requested
+	 */
+	private @Nullable SeekRequest pollSeekRequest() {
+		try {
+			this.onSyscall();
+			final int events = this.mTransport.poll(TrackProviderTransport.POLL_IN, 0); // Check for possible incoming packet header
+
+			if(0 != events) {
+				return this.readSeekRequest(true); // This shouldn't block as we checked we have some incoming data
+			}
+
+		} catch(final IOException ex) {
+			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Send the file data to Poweramp without copying it to the user space: each packet header is sent from this side, and the packet data is copied
+	 * by the kernel directly from the file to the socket via {@link FileChannel#transferTo} (sendfile).<br>
+	 * Blocks the same way as {@link #sendData2} does, and the same way returns the seek request, if Poweramp requested one between the packets.<br><br>
+	 *
+	 * NOTE: the file position of the channel is not used or changed, so the caller should track pos itself, e.g. set it to the new position on seek.
+	 * Data past the end of the file is not sent
+	 *
+	 * @param fc the file channel to send the data from, e.g. FileInputStream.getChannel()
+	 * @param pos the file position to send the data from
+	 * @param count number of bytes to send
+	 * @return request for the new seek position, or null if none requested and all the data is sent
+	 */
+	public @Nullable SeekRequest sendFile(@NonNull final FileChannel fc, long pos, long count) {
+		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendFile pos=" + pos + " count=" + count);
+		if(STATE_DATA == mState) {
+			this.maybeSendPendingLength();
+			try {
+				this.ensureBlocking();
+				// Packet header declares data size prior the data is transferred, so we should never send less data than declared
+				count = Math.min(count, fc.size() - pos);
+
+				int bytesSinceWrite = 0;
+				while(0 < count) {
+					final int size = (int)Math.min(count, this.mCodec.getMaxDataSize());
 
 					final ByteBuffer buf = this.preparePacketHeader(TrackProviderProto.PACKET_TYPE_DATA, size);
 					buf.flip();
 					while(buf.hasRemaining()) {
-						final int res = Os.sendto(this.mSocket, buf, 0, null, 0);
-						if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
-					}
-					while(data.hasRemaining()) {
-						final int res = Os.sendto(this.mSocket, data, 0, null, 0); // data.position changed by # of bytes actually sent
-						if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(data, res);
+						this.write(buf);
 					}
-					packetsSent++;
 
-					buf.clear();
-
-				} catch(final ErrnoException ex) {
-					if(ex.errno == OsConstants.ECONNRESET || ex.errno == OsConstants.EPIPE) throw new TrackProviderProtoClosed(ex);
-					if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
-					throw new TrackProviderProtoException(ex);
-				} catch(final SocketException ex) {
-					if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
-					throw new TrackProviderProtoException(ex);
-				} finally {
-					data.limit(originalDataLimit); //  Restore limit
-				}
-
-				try {
-					final int fdsReady = Os.poll(this.mStructPollFds, 0); // Check for possible incoming packet header
+					final TrackProviderProtoMetrics metrics = this.mMetrics;
+					final TrackProviderProtoTrace trace = this.mTrace;
+					final boolean timed = null != metrics || null != trace;
+					final long end = pos + size;
+					while(pos < end) {
+						final long startNs = timed ? System.nanoTime() : 0;
+						final long res = this.mTransport.transferFrom(fc, pos, end - pos);
+						if(timed) this.onSend(System.nanoTime() - startNs);
+						if(0 >= res) throw new TrackProviderProtoException("sendFile transferTo failed pos=" + pos + " end=" + end);
+						pos += res;
+					}
+					if(null != metrics) metrics.onDataSent(1, size);
+					if(null != trace) trace.onDataSent(size);
+					count -= size;
+					bytesSinceWrite += size;
 
-					if(1 == fdsReady) {
-						final SeekRequest seekPosEncoded = this.readSeekRequest(true); // This shouldn't block as we checked we have some incoming data
-						if(null != seekPosEncoded) {
-							return seekPosEncoded; // Got valid seek request, return it
+					// Treat each MAX_DATA_BYTES_PER_WRITE as a single write for the seek check policy, same as sendData2 does
+					if(MAX_DATA_BYTES_PER_WRITE <= bytesSinceWrite || 0 == count) {
+						final SeekRequest seekRequest = this.maybeCheckSeekRequest(bytesSinceWrite, false);
+						bytesSinceWrite = 0;
+						if(null != seekRequest) {
+							return seekRequest; // Got valid seek request, return it
 						}
 					}
-
-				} catch(final ErrnoException ex) {
-					if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
 				}
+
+			} catch(final IOException ex) {
+				if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
+				throw new TrackProviderProtoException(ex);
 			}
-			if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendDataPackets OK packetsSent=" + packetsSent);
 
 		} else if(TrackProviderProto.DEBUG_CHECKS) throw new AssertionError(this.mState);
 
@@ -331,15 +879,20 @@ public class TrackProviderProto implements AutoCloseable {
 	public @Nullable SeekRequest sendEOFAndWaitForSeekOrClose2() {
 		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "waitForSeekOrClose");
 
+		this.maybeSendPendingLength();
+		this.ensureBlocking();
 		try {
 			// Send EOF (empty data buffer)
 			final ByteBuffer buf = this.preparePacketHeader(TrackProviderProto.PACKET_TYPE_DATA, 0);
 			buf.flip();
 			while(buf.hasRemaining()) {
-				final int res = Os.sendto(this.mSocket, buf, 0, null, 0);
-				if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+				this.write(buf);
 			}
-		} catch(final ErrnoException | SocketException ex) {
+			final TrackProviderProtoMetrics metrics = this.mMetrics;
+			if(null != metrics) metrics.onDataSent(1, 0);
+			final TrackProviderProtoTrace trace = this.mTrace;
+			if(null != trace) trace.onDataSent(0);
+		} catch(final IOException ex) {
 			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
 			throw new TrackProviderProtoException(ex);
 		}
@@ -362,8 +915,8 @@ public class TrackProviderProto implements AutoCloseable {
 			buf.clear();
 			buf.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE); // Read just header
 
-			int res = Os.recvfrom(this.mSocket, buf, 0, null);
-			if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+			this.onSyscall();
+			int res = this.mTransport.read(buf, false);
 
 			if(MAX_PACKET_HEADER_SIZE == res) {
 				final int type = TrackProviderProto.getPacketType(buf);
@@ -372,37 +925,42 @@ public class TrackProviderProto implements AutoCloseable {
 					if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest got PACKET_TYPE_SEEK dataSize=>" + dataSize);
 					buf.limit(buf.limit() + dataSize);
 
-					res = Os.recvfrom(this.mSocket, buf, noBlock ? OsConstants.O_NONBLOCK : 0, null); // Read seek position
-					if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+					this.onSyscall();
+					res = this.mTransport.read(buf, noBlock); // Read seek position, it's sent along with the header
 
 					if(LONG_BYTES <= res) {
 						final SeekRequest seekRequest = this.mTempSeekRequest;
-						seekRequest.offsetBytes = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
-						if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest got offsetBytes=>" + seekRequest.offsetBytes);
-						if(LONG_BYTES + TrackProviderProto.INTEGER_BYTES <= res) {
-							seekRequest.ms = buf.getInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES);
-							if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest got ms=>" + seekRequest.ms);
-						} else {
-							seekRequest.ms = Integer.MIN_VALUE;
-						}
+						TrackProviderProtoCodec.getSeekRequest(buf, res, seekRequest);
+						if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest got offsetBytes=>" + seekRequest.offsetBytes + " ms=>" + seekRequest.ms);
+						final TrackProviderProtoMetrics metrics = this.mMetrics;
+						if(null != metrics) metrics.onSeekRequest(System.nanoTime());
+						final TrackProviderProtoTrace trace = this.mTrace;
+						if(null != trace) trace.onSeekRequest(System.nanoTime(), seekRequest.offsetBytes, seekRequest.ms);
 						return seekRequest;
 
-					} else Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom data res=" + res);
-				} else
-					Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom type=" + type + " dataSize=" + dataSize);
-			} else if(0 == res) {
-				// EOF
-				if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest EOF");
-				return null;
-			} else Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom res=" + res);
-		} catch(final ErrnoException ex) {
-			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
-			if(ex.errno == OsConstants.ECONNRESET || ex.errno == OsConstants.EPIPE) throw new TrackProviderProtoClosed(ex);
-			if(ex.errno == OsConstants.EAGAIN) { // Timed out
+					} else if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom data res=" + res);
+
+				} else if(PACKET_TYPE_CAPS == type && 2 * INTEGER_BYTES <= dataSize) {
+					if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest got PACKET_TYPE_CAPS dataSize=>" + dataSize);
+					buf.limit(buf.limit() + dataSize);
+
+					this.onSyscall();
+					res = this.mTransport.read(buf, noBlock); // Caps data follows the header immediately
+
+					if(2 * INTEGER_BYTES <= res) {
+						this.mCodec.applyCapsPacket(buf);
+						// Not a seek request. If we're allowed to block, continue waiting for the seek request
+						return noBlock ? null : this.readSeekRequest(false);
+
+					} else if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom caps res=" + res);
+
+				} else if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom type=" + type + " dataSize=" + dataSize);
+			} else if(0 >= res) {
+				// EOF, or no data (timed out or non-blocking)
+				if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "readSeekRequest EOF res=" + res);
 				return null;
-			}
-			throw new TrackProviderProtoException(ex);
-		} catch(final SocketException ex) {
+			} else if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "readSeekRequest FAIL recvfrom res=" + res);
+		} catch(final IOException ex) {
 			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
 			throw new TrackProviderProtoException(ex);
 		}
@@ -416,15 +974,21 @@ public class TrackProviderProto implements AutoCloseable {
 
 	public void sendSeekResult(final long newPos) {
 		if(TrackProviderProto.LOG) Log.w(TrackProviderProto.TAG, "sendSeekResult newPos=" + newPos);
-		final ByteBuffer buf = this.preparePacketHeader(TrackProviderProto.PACKET_TYPE_SEEK_RES, TrackProviderProto.LONG_BYTES);
-		buf.putLong(newPos);
-		buf.flip();
+		this.ensureBlocking();
+		this.mSeekPending = false;
+		this.mBytesSinceSeekCheck = 0;
+		this.mLastSeekCheckNs = System.nanoTime(); // Poweramp doesn't send the next seek request until it gets this result
+		final ByteBuffer buf = this.mHeaderBuffer;
+		TrackProviderProtoCodec.putSeekResultPacket(buf, newPos);
 		try {
 			while(buf.hasRemaining()) {
-				final int res = Os.sendto(this.mSocket, buf, 0, null, 0);
-				if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(buf, res);
+				this.write(buf);
 			}
-		} catch(final ErrnoException | SocketException ex) {
+			final TrackProviderProtoMetrics metrics = this.mMetrics;
+			if(null != metrics) metrics.onSeekResult(System.nanoTime());
+			final TrackProviderProtoTrace trace = this.mTrace;
+			if(null != trace) trace.onSeekResult(System.nanoTime(), newPos);
+		} catch(final IOException ex) {
 			if(TrackProviderProto.LOG) Log.e(TrackProviderProto.TAG, "", ex);
 			throw new TrackProviderProtoException(ex);
 		}
@@ -448,12 +1012,12 @@ public class TrackProviderProto implements AutoCloseable {
 	/**
 	 * @return packet data size
 	 */
-	private static int getPacketDataSize(@NonNull final ByteBuffer buf) {
-		return buf.getShort(TrackProviderProto.PACKET_DATA_SIZE_IX);
+	static int getPacketDataSize(@NonNull final ByteBuffer buf) {
+		return buf.getShort(TrackProviderProto.PACKET_DATA_SIZE_IX) & 0xFFFF; // Unsigned
 	}
 
 	/** Required for Android 5.0.0 which doesn't update buffers */
-	private static void maybeUpdateBufferPosition(final ByteBuffer buffer, final int bytesReadOrWritten) {
+	static void maybeUpdateBufferPosition(final ByteBuffer buffer, final int bytesReadOrWritten) {
 		if(0 < bytesReadOrWritten) {
 			buffer.position(bytesReadOrWritten + buffer.position());
 		}
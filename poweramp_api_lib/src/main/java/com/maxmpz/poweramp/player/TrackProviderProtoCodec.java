@@ -0,0 +1,211 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packet encoding and the PROTO_CAP_* negotiation state of a single seekable socket session, shared by {@link TrackProviderProto} and {@link TrackProviderServer},
+ * so both send the same header, the caps are applied the same way, and the length updates follow the same rules.<br>
+ * Only composes and parses the packets, the socket I/O is done by the caller.<br>
+ * NOTE: not thread-safe, used from the session thread only
+ */
+final class TrackProviderProtoCodec {
+	private static final String TAG = "TrackProviderProtoCodec";
+	private static final boolean LOG = false;
+
+	/** Size of the largest control packet: header, length or seek result. Also fits the incoming seek and caps packets */
+	static final int MAX_CONTROL_PACKET_SIZE = TrackProviderProto.MAX_PACKET_HEADER_SIZE + TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES;
+
+	/** Data packet size requested by the provider */
+	private final int mRequestedMaxDataSize;
+	/** Current track length, as known to Poweramp */
+	private long mFileLength;
+	/** If true, the header fileLength is an estimate, see {@link #setLengthEstimated} */
+	private boolean mLengthEstimated;
+	/** PROTO_CAP_* flags accepted by Poweramp via PACKET_TYPE_CAPS */
+	private int mAcceptedCaps;
+	/** True once Poweramp answered the header with PACKET_TYPE_CAPS */
+	private boolean mCapsReceived;
+	/** Length update waiting for PACKET_TYPE_CAPS, see {@link #queueLength} */
+	private long mPendingLength = -1;
+	private boolean mPendingLengthFinal;
+	/** Current data packet size. MAX_DATA_SIZE until Poweramp accepts larger packets via PACKET_TYPE_CAPS */
+	private int mMaxDataSize = TrackProviderProto.MAX_DATA_SIZE;
+
+
+	/**
+	 * @param fileLength the track length sent in the header, > 0
+	 * @param maxDataSize the maximum data packet size the provider wants to use, {@link TrackProviderProto#MAX_DATA_SIZE}..{@link TrackProviderProto#MAX_NEGOTIATED_DATA_SIZE}
+	 */
+	TrackProviderProtoCodec(final long fileLength, final int maxDataSize) {
+		if(0 >= fileLength) throw new IllegalArgumentException("bad fileLength=" + fileLength);
+		if(TrackProviderProto.MAX_DATA_SIZE > maxDataSize || TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE < maxDataSize) throw new IllegalArgumentException("bad maxDataSize=" + maxDataSize);
+		this.mFileLength = fileLength;
+		this.mRequestedMaxDataSize = maxDataSize;
+	}
+
+	/** @return the data packet size requested by the provider, the upper bound of {@link #getMaxDataSize()} */
+	int getRequestedMaxDataSize() {
+		return this.mRequestedMaxDataSize;
+	}
+
+	/** @return the current maximum data bytes per packet, see {@link TrackProviderProto#getMaxDataSize()} */
+	int getMaxDataSize() {
+		return this.mMaxDataSize;
+	}
+
+	/** Should be called before the header packet is composed */
+	void setLengthEstimated(final boolean estimated) {
+		this.mLengthEstimated = estimated;
+	}
+
+	boolean isLengthEstimated() {
+		return this.mLengthEstimated;
+	}
+
+	/** @return the current track length, as sent to Poweramp */
+	long getFileLength() {
+		return this.mFileLength;
+	}
+
+	/** @return true if Poweramp accepted the length updates */
+	boolean isLengthUpdateSupported() {
+		return 0 != (this.mAcceptedCaps & TrackProviderProto.PROTO_CAP_LENGTH_UPDATES);
+	}
+
+	/** @return PROTO_CAP_* flags offered to Poweramp in the header */
+	int getProtoCaps() {
+		int caps = 0;
+		if(TrackProviderProto.MAX_DATA_SIZE < this.mRequestedMaxDataSize) {
+			caps |= TrackProviderProto.PROTO_CAP_LARGE_PACKETS;
+		}
+		if(this.mLengthEstimated) {
+			caps |= TrackProviderProto.PROTO_CAP_LENGTH_UPDATES;
+		}
+		return caps;
+	}
+
+	/** Applies PACKET_TYPE_CAPS data received from Poweramp */
+	void applyProtoCaps(final int acceptedMaxDataSize, final int acceptedCaps) {
+		if(TrackProviderProtoCodec.LOG) Log.w(TrackProviderProtoCodec.TAG, "applyProtoCaps acceptedMaxDataSize=" + acceptedMaxDataSize + " acceptedCaps=" + acceptedCaps);
+		this.mCapsReceived = true;
+		this.mAcceptedCaps = acceptedCaps & this.getProtoCaps();
+		if(0 == (this.mAcceptedCaps & TrackProviderProto.PROTO_CAP_LENGTH_UPDATES)) {
+			this.mPendingLength = -1; // Can't be sent
+		}
+		if(0 != (acceptedCaps & TrackProviderProto.PROTO_CAP_LARGE_PACKETS) && TrackProviderProto.MAX_DATA_SIZE < acceptedMaxDataSize) {
+			this.mMaxDataSize = Math.min(acceptedMaxDataSize, this.mRequestedMaxDataSize);
+		}
+	}
+
+	/**
+	 * Applies the PACKET_TYPE_CAPS packet
+	 * @param buf the packet, header at 0, followed by at least 2 ints of data
+	 */
+	void applyCapsPacket(@NonNull final ByteBuffer buf) {
+		this.applyProtoCaps(buf.getInt(TrackProviderProto.PACKET_DATA_IX), buf.getInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.INTEGER_BYTES));
+	}
+
+	/**
+	 * Queues the length update, see {@link TrackProviderProto#sendLength} for the rules
+	 * @return false if the update can't be sent: the length wasn't marked as estimated, or Poweramp answered the header without accepting the length updates
+	 */
+	boolean queueLength(final long fileLength, final boolean isFinal) {
+		if(0 >= fileLength) throw new IllegalArgumentException("bad fileLength=" + fileLength);
+		if(!this.mLengthEstimated || (this.mCapsReceived && !this.isLengthUpdateSupported())) {
+			return false;
+		}
+		this.mPendingLength = fileLength;
+		this.mPendingLengthFinal = isFinal;
+		return true;
+	}
+
+	/** @return true if the queued length update waits for Poweramp to answer the header */
+	boolean isLengthUpdatePending() {
+		return 0 <= this.mPendingLength;
+	}
+
+	/** @return true if the queued length update can be sent now, see {@link #putLengthPacket} */
+	boolean hasLengthToSend() {
+		return 0 <= this.mPendingLength && this.isLengthUpdateSupported();
+	}
+
+	/**
+	 * Composes the header packet at the buffer start. The buffer is ready to be sent: position is 0, limit is the packet end.<br>
+	 * NOTE: older Poweramp builds ignore the reserved field, so PROTO_CAP_* flags are just left unanswered, and MAX_DATA_SIZE packets are sent
+	 * @param buf the buffer with at least {@link #MAX_CONTROL_PACKET_SIZE} capacity
+	 */
+	void putHeaderPacket(@NonNull final ByteBuffer buf) {
+		buf.clear();
+		TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_HEADER, TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES, this.getProtoCaps());
+		buf.putLong(TrackProviderProto.PACKET_DATA_IX, this.mFileLength);
+		buf.putInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES, TrackProviderProto.MAX_DATA_SIZE);
+		buf.limit(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES);
+	}
+
+	/**
+	 * Composes the PACKET_TYPE_LENGTH packet for the queued update at the buffer start, and makes it the current track length. Requires {@link #hasLengthToSend()}.
+	 * The buffer is ready to be sent: position is 0, limit is the packet end
+	 * @param buf the buffer with at least {@link #MAX_CONTROL_PACKET_SIZE} capacity
+	 * @return the length sent
+	 */
+	long putLengthPacket(@NonNull final ByteBuffer buf) {
+		final long fileLength = this.mPendingLength;
+		this.mPendingLength = -1;
+		this.mFileLength = fileLength;
+		buf.clear();
+		TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_LENGTH, TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES, 0);
+		buf.putLong(TrackProviderProto.PACKET_DATA_IX, fileLength);
+		buf.putInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES, this.mPendingLengthFinal ? TrackProviderProto.LENGTH_FLAG_FINAL : 0);
+		buf.limit(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES);
+		if(TrackProviderProtoCodec.LOG) Log.w(TrackProviderProtoCodec.TAG, "putLengthPacket fileLength=" + fileLength + " final=" + this.mPendingLengthFinal);
+		return fileLength;
+	}
+
+	/**
+	 * Composes the PACKET_TYPE_SEEK_RES packet at the buffer start. The buffer is ready to be sent: position is 0, limit is the packet end
+	 * @param newPos if >= 0 - indicates a new byte position within the track, or <0 if the seek failed
+	 */
+	static void putSeekResultPacket(@NonNull final ByteBuffer buf, final long newPos) {
+		buf.clear();
+		TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_SEEK_RES, TrackProviderProto.LONG_BYTES, 0);
+		buf.putLong(TrackProviderProto.PACKET_DATA_IX, newPos);
+		buf.limit(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES);
+	}
+
+	/**
+	 * Parses the PACKET_TYPE_SEEK packet
+	 * @param buf the packet, header at 0
+	 * @param dataSize number of the packet data bytes received, >= LONG_BYTES
+	 */
+	static void getSeekRequest(@NonNull final ByteBuffer buf, final int dataSize, final TrackProviderProto.@NonNull SeekRequest seekRequest) {
+		seekRequest.offsetBytes = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+		seekRequest.ms = TrackProviderProto.LONG_BYTES + TrackProviderProto.INTEGER_BYTES <= dataSize
+				? buf.getInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES)
+				: Integer.MIN_VALUE;
+	}
+}
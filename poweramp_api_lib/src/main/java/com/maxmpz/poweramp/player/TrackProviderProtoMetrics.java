@@ -0,0 +1,163 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Per-session counters for {@link TrackProviderProto}, see {@link TrackProviderProto#setMetrics}.<br>
+ * Updated by the proto thread without any allocations, so it can be kept on in production.<br>
+ * NOTE: values are not synchronized, so the reads from other threads may be slightly stale
+ */
+public class TrackProviderProtoMetrics {
+	/**
+	 * Number of buckets in the seek latency histogram. Bucket 0 counts latencies < 2us, bucket i counts latencies in [2^i..2^(i+1)) us,
+	 * the last bucket also counts all the larger latencies. {@link #toString()} labels each bucket by its lower bound (0, 2, 4, ...)
+	 */
+	public static final int SEEK_LATENCY_BUCKETS = 24;
+
+	private long mBytesSent;
+	private long mPacketsSent;
+	private long mSyscalls;
+	private long mSendBlockedNs;
+	private long mSeekCount;
+	private final long @NonNull[] mSeekLatencyHistogram = new long[TrackProviderProtoMetrics.SEEK_LATENCY_BUCKETS];
+	private long mTimeToFirstByteNs = -1;
+	/** System.nanoTime() of the header sent, or 0 */
+	private long mHeaderSentNs;
+	/** System.nanoTime() of the last seek request received, or 0 if no seek is in progress */
+	private long mSeekRequestNs;
+
+
+	/** @return data bytes sent, excluding packet headers */
+	public long getBytesSent() {
+		return this.mBytesSent;
+	}
+
+	/** @return data packets sent, including EOF packets */
+	public long getPacketsSent() {
+		return this.mPacketsSent;
+	}
+
+	/**
+	 * @return calls issued via {@link TrackProviderTransport}: writev, sendto, sendfile (transferTo), recvfrom, poll, non-blocking mode switches.<br>
+	 * NOTE: these are transport calls, not the actual syscalls. A transport may issue several syscalls per call (e.g. transferTo loops,
+	 * partial writes retried by the channel) or none, so use strace/perfetto for the exact syscall counts
+	 */
+	public long getSyscalls() {
+		return this.mSyscalls;
+	}
+
+	/**
+	 * @return cumulative time spent in the socket writes in nanoseconds. High values relative to the session time mean Poweramp backpressure
+	 * (e.g. paused or buffer is full), while low values mean time is spent elsewhere, e.g. in the source reading
+	 */
+	public long getSendBlockedNs() {
+		return this.mSendBlockedNs;
+	}
+
+	/** @return number of the seek requests received */
+	public long getSeekCount() {
+		return this.mSeekCount;
+	}
+
+	/**
+	 * @return number of the seeks in the given seek request to {@link TrackProviderProto#sendSeekResult} latency histogram bucket,
+	 * see {@link #SEEK_LATENCY_BUCKETS}
+	 */
+	public long getSeekLatencyCount(final int bucket) {
+		return this.mSeekLatencyHistogram[bucket];
+	}
+
+	/** @return time from the header sent to the first data packet sent in nanoseconds, or -1 if no data sent yet */
+	public long getTimeToFirstByteNs() {
+		return this.mTimeToFirstByteNs;
+	}
+
+	public void reset() {
+		this.mBytesSent = 0;
+		this.mPacketsSent = 0;
+		this.mSyscalls = 0;
+		this.mSendBlockedNs = 0;
+		this.mSeekCount = 0;
+		for(int i = 0; i < TrackProviderProtoMetrics.SEEK_LATENCY_BUCKETS; i++) {
+			this.mSeekLatencyHistogram[i] = 0;
+		}
+		this.mTimeToFirstByteNs = -1;
+		this.mHeaderSentNs = 0;
+		this.mSeekRequestNs = 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(super.toString());
+		sb.append(" bytesSent=").append(this.mBytesSent)
+			.append(" packetsSent=").append(this.mPacketsSent)
+			.append(" syscalls=").append(this.mSyscalls)
+			.append(" sendBlockedMs=").append(this.mSendBlockedNs / 1000000)
+			.append(" seekCount=").append(this.mSeekCount)
+			.append(" ttfbUs=").append(0 <= this.mTimeToFirstByteNs ? this.mTimeToFirstByteNs / 1000 : -1)
+			.append(" seekLatencyUs=[");
+		for(int i = 0; i < TrackProviderProtoMetrics.SEEK_LATENCY_BUCKETS; i++) {
+			if(0 != this.mSeekLatencyHistogram[i]) {
+				sb.append(' ').append(0 == i ? 0 : 1L << i).append(':').append(this.mSeekLatencyHistogram[i]);
+			}
+		}
+		return sb.append(" ]").toString();
+	}
+
+
+	void onSyscall() {
+		this.mSyscalls++;
+	}
+
+	/** Called after the socket write, including the failed ones */
+	void onSend(final long blockedNs) {
+		this.mSyscalls++;
+		this.mSendBlockedNs += blockedNs;
+	}
+
+	void onHeaderSent(final long nowNs) {
+		this.mHeaderSentNs = nowNs;
+	}
+
+	void onDataSent(final int packets, final long bytes) {
+		this.mPacketsSent += packets;
+		this.mBytesSent += bytes;
+		if(0 > this.mTimeToFirstByteNs && 0 != this.mHeaderSentNs && 0 < bytes) {
+			this.mTimeToFirstByteNs = System.nanoTime() - this.mHeaderSentNs;
+		}
+	}
+
+	void onSeekRequest(final long nowNs) {
+		this.mSeekCount++;
+		this.mSeekRequestNs = nowNs;
+	}
+
+	void onSeekResult(final long nowNs) {
+		if(0 != this.mSeekRequestNs) {
+			final long latencyUs = (nowNs - this.mSeekRequestNs) / 1000;
+			final int bucket = 1 >= latencyUs ? 0 : Math.min(63 - Long.numberOfLeadingZeros(latencyUs), TrackProviderProtoMetrics.SEEK_LATENCY_BUCKETS - 1);
+			this.mSeekLatencyHistogram[bucket]++;
+			this.mSeekRequestNs = 0;
+		}
+	}
+}
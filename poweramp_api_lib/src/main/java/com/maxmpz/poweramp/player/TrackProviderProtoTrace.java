@@ -0,0 +1,166 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Optional binary trace of the {@link TrackProviderProto} packet events, see {@link TrackProviderProto#setTrace}.<br>
+ * The events are written into a fixed size ring of the timestamped records without any allocations, so the trace can be kept on for the sessions users report
+ * the stutter for. The ring is dumped to a file via {@link #dump}, and the dump is analyzed offline by {@link TrackProviderTraceAnalyzer}.<br><br>
+ *
+ * Dump format (big endian): MAGIC(4) + VERSION(4) + record count(4) + dropped records count(8) + records, oldest first.
+ * Each record is timestampNs(8) + TYPE(1) + a(4) + b(8) => 21 bytes, see EVENT_* for a and b meaning.<br>
+ * NOTE: values are not synchronized, dump from the proto thread or after the session is done
+ */
+public class TrackProviderProtoTrace {
+	static final int MAGIC = 0x50415452; // PATR
+	static final int VERSION = 1;
+	static final int RECORD_SIZE = 8 + 1 + 4 + 8;
+
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	/** Header sent. a: 0, b: file length */
+	public static final byte EVENT_HEADER_SENT = 1;
+	/** Data packets sent by a single write (one or more packets). a: data bytes, 0 for EOF, b: ns blocked in the socket writes since the previous data event */
+	public static final byte EVENT_DATA = 2;
+	/** Seek request received. a: ms or Integer.MIN_VALUE, b: offset bytes */
+	public static final byte EVENT_SEEK = 3;
+	/** Seek result sent. a: 0, b: new position */
+	public static final byte EVENT_SEEK_RESULT = 4;
+	/** Length update sent. a: 0, b: new length */
+	public static final byte EVENT_LENGTH = 5;
+
+	private final int mCapacity;
+	private final long @NonNull[] mTimestamps;
+	private final byte @NonNull[] mTypes;
+	private final int @NonNull[] mA;
+	private final long @NonNull[] mB;
+	/** Total records written, the ring index is mWritten % mCapacity */
+	private long mWritten;
+	/** Blocked ns accumulated since the last EVENT_DATA */
+	private long mBlockedNs;
+
+
+	public TrackProviderProtoTrace() {
+		this(TrackProviderProtoTrace.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the maximum number of the records kept, the oldest records are overwritten
+	 */
+	public TrackProviderProtoTrace(final int capacity) {
+		if(0 >= capacity) throw new IllegalArgumentException("capacity=" + capacity);
+		this.mCapacity = capacity;
+		this.mTimestamps = new long[capacity];
+		this.mTypes = new byte[capacity];
+		this.mA = new int[capacity];
+		this.mB = new long[capacity];
+	}
+
+	/** @return number of the records currently kept */
+	public int getCount() {
+		return (int)Math.min(this.mWritten, this.mCapacity);
+	}
+
+	/** @return number of the records overwritten as the ring was full */
+	public long getDroppedCount() {
+		return Math.max(0, this.mWritten - this.mCapacity);
+	}
+
+	public void reset() {
+		this.mWritten = 0;
+		this.mBlockedNs = 0;
+	}
+
+	/**
+	 * Writes the records, oldest first, in the format described above
+	 */
+	public void dump(@NonNull final OutputStream os) throws IOException {
+		final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		final int count = this.getCount();
+		dos.writeInt(TrackProviderProtoTrace.MAGIC);
+		dos.writeInt(TrackProviderProtoTrace.VERSION);
+		dos.writeInt(count);
+		dos.writeLong(this.getDroppedCount());
+		for(long i = this.mWritten - count; i < this.mWritten; i++) {
+			final int ix = (int)(i % this.mCapacity);
+			dos.writeLong(this.mTimestamps[ix]);
+			dos.writeByte(this.mTypes[ix]);
+			dos.writeInt(this.mA[ix]);
+			dos.writeLong(this.mB[ix]);
+		}
+		dos.flush();
+	}
+
+	public void dump(@NonNull final File file) throws IOException {
+		try(FileOutputStream fos = new FileOutputStream(file)) {
+			this.dump(fos);
+		}
+	}
+
+	private void add(final long nowNs, final byte type, final int a, final long b) {
+		final int ix = (int)(this.mWritten % this.mCapacity);
+		this.mTimestamps[ix] = nowNs;
+		this.mTypes[ix] = type;
+		this.mA[ix] = a;
+		this.mB[ix] = b;
+		this.mWritten++;
+	}
+
+	/** Called after the socket write, including the failed ones */
+	void onSend(final long blockedNs) {
+		this.mBlockedNs += blockedNs;
+	}
+
+	void onHeaderSent(final long nowNs, final long fileLength) {
+		this.add(nowNs, TrackProviderProtoTrace.EVENT_HEADER_SENT, 0, fileLength);
+	}
+
+	void onDataSent(final long bytes) {
+		this.add(System.nanoTime(), TrackProviderProtoTrace.EVENT_DATA, (int)bytes, this.mBlockedNs);
+		this.mBlockedNs = 0;
+	}
+
+	void onSeekRequest(final long nowNs, final long offsetBytes, final int ms) {
+		this.add(nowNs, TrackProviderProtoTrace.EVENT_SEEK, ms, offsetBytes);
+	}
+
+	void onSeekResult(final long nowNs, final long newPos) {
+		this.add(nowNs, TrackProviderProtoTrace.EVENT_SEEK_RESULT, 0, newPos);
+	}
+
+	void onLength(final long nowNs, final long fileLength) {
+		this.add(nowNs, TrackProviderProtoTrace.EVENT_LENGTH, 0, fileLength);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " count=" + this.getCount() + " dropped=" + this.getDroppedCount();
+	}
+}
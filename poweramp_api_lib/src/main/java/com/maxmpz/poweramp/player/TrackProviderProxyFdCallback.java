@@ -0,0 +1,369 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.ProxyFileDescriptorCallback;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link ProxyFileDescriptorCallback} serving the proxy file descriptor (StorageManager.openProxyFileDescriptor) from a {@link TrackProviderSource} via a block cache.<br>
+ * The kernel FUSE layer asks for 4-128KB per onRead, which for the slow sources (network, decrypting streams) means a source round-trip per each such read.
+ * Instead, this callback:<br>
+ * - reads the source in the larger blocks and keeps the recently used blocks in memory<br>
+ * - coalesces the reads of the adjacent missing blocks into a single source seek and a sequential read<br>
+ * - detects the sequential access and prefetches the following blocks on a background thread, so the sequential onRead calls are answered from memory<br><br>
+ *
+ * NOTE: the source is owned by this callback and closed in {@link #onRelease()}. The source is accessed from one thread at a time, but not always the same thread
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class TrackProviderProxyFdCallback extends ProxyFileDescriptorCallback {
+	private static final String TAG = "TrackProviderProxyFdCallback";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+	public static final int DEFAULT_MAX_BLOCKS = 16;
+	public static final int DEFAULT_PREFETCH_BLOCKS = 4;
+
+	/** Number of the consecutive sequential reads after which the prefetch starts */
+	private static final int SEQUENTIAL_READS_THRESHOLD = 2;
+
+	private static class Block {
+		final byte @NonNull[] data;
+		int len;
+
+		Block(final int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	private final @NonNull TrackProviderSource mSource;
+	private final long mLength;
+	private final int mBlockSize;
+	private final int mMaxBlocks;
+	private final int mPrefetchBlocks;
+	private final @NonNull Thread mPrefetchThread;
+
+	private final @NonNull Object mLock = new Object();
+	/** Block index => block, in the access order. Guarded by mLock */
+	private final @NonNull LinkedHashMap<Long, Block> mBlocks;
+	/** Blocks being read from the source now. Guarded by mLock */
+	private final @NonNull HashSet<Long> mPending = new HashSet<>();
+	/** Guards the source, which is used by both onRead and the prefetch threads */
+	private final @NonNull Object mSourceLock = new Object();
+	/** Source position, to skip the seeks for the sequential source reads. Guarded by mSourceLock */
+	private long mSourcePos;
+
+	/** End offset of the previous onRead. onRead thread only */
+	private long mLastReadEnd = -1;
+	/** Number of the consecutive sequential onRead calls. onRead thread only */
+	private int mSequentialReads;
+	/** The first block to prefetch, or -1. Guarded by mLock */
+	private long mPrefetchFrom = -1;
+	/** Guarded by mLock */
+	private boolean mReleased;
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mSourceReadCount;
+
+
+	public TrackProviderProxyFdCallback(@NonNull final TrackProviderSource source) {
+		this(source, TrackProviderProxyFdCallback.DEFAULT_BLOCK_SIZE, TrackProviderProxyFdCallback.DEFAULT_MAX_BLOCKS, TrackProviderProxyFdCallback.DEFAULT_PREFETCH_BLOCKS);
+	}
+
+	/**
+	 * @param source the source, positioned at 0. Owned by this callback
+	 * @param blockSize the block size, the source is read in such blocks
+	 * @param maxBlocks the maximum number of the blocks kept in memory
+	 * @param prefetchBlocks number of the blocks prefetched ahead of the sequential reads, < maxBlocks. 0 disables the prefetch
+	 */
+	public TrackProviderProxyFdCallback(@NonNull final TrackProviderSource source, final int blockSize, final int maxBlocks, final int prefetchBlocks) {
+		if(0 >= blockSize || 0 >= maxBlocks || 0 > prefetchBlocks || prefetchBlocks >= maxBlocks) {
+			throw new IllegalArgumentException("blockSize=" + blockSize + " maxBlocks=" + maxBlocks + " prefetchBlocks=" + prefetchBlocks);
+		}
+		this.mSource = source;
+		this.mLength = source.getLength();
+		this.mBlockSize = blockSize;
+		this.mMaxBlocks = maxBlocks;
+		this.mPrefetchBlocks = prefetchBlocks;
+		this.mBlocks = new LinkedHashMap<>(maxBlocks * 2, 0.75f, true);
+		this.mPrefetchThread = new Thread(this::runPrefetch, TrackProviderProxyFdCallback.TAG);
+		if(0 < prefetchBlocks) {
+			this.mPrefetchThread.start();
+		}
+	}
+
+	@Override
+	public long onGetSize() {
+		return this.mLength;
+	}
+
+	@Override
+	public int onRead(final long offset, final int size, final byte[] data) throws ErrnoException {
+		if(0 > offset || 0 > size) throw new ErrnoException("onRead", OsConstants.EINVAL);
+		final long end = Math.min(offset + size, this.mLength);
+		if(offset >= end) {
+			return 0;
+		}
+
+		try {
+			final long firstBlock = offset / this.mBlockSize;
+			final long lastBlock = (end - 1) / this.mBlockSize;
+			int copied = 0;
+			for(long blockIx = firstBlock; blockIx <= lastBlock; blockIx++) {
+				final Block block = this.getBlock(blockIx, lastBlock);
+				final long blockStart = blockIx * this.mBlockSize;
+				final int from = (int)Math.max(0, offset - blockStart);
+				final int to = (int)Math.min(block.len, end - blockStart);
+				if(from >= to) {
+					break; // Source returned less data than its length
+				}
+				System.arraycopy(block.data, from, data, copied, to - from);
+				copied += to - from;
+			}
+
+			this.onReadDone(offset, offset + copied);
+			return copied;
+
+		} catch(final IOException ex) {
+			Log.e(TrackProviderProxyFdCallback.TAG, "offset=" + offset + " size=" + size, ex);
+			throw new ErrnoException("onRead", OsConstants.EIO);
+		}
+	}
+
+	/** Tracks the sequential access and requests the prefetch ahead of it. onRead thread */
+	private void onReadDone(final long offset, final long end) {
+		if(offset == this.mLastReadEnd) {
+			this.mSequentialReads++;
+		} else {
+			this.mSequentialReads = 0;
+		}
+		this.mLastReadEnd = end;
+		if(0 < this.mPrefetchBlocks && TrackProviderProxyFdCallback.SEQUENTIAL_READS_THRESHOLD <= this.mSequentialReads) {
+			final long nextBlock = (end + this.mBlockSize - 1) / this.mBlockSize;
+			synchronized(this.mLock) {
+				if(this.mPrefetchFrom != nextBlock) {
+					this.mPrefetchFrom = nextBlock;
+					this.mLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the cached block, waiting for it if it's being read by the prefetch, or reading it (coalesced with the following missing blocks up to lastBlock) from the source
+	 */
+	private @NonNull Block getBlock(final long blockIx, final long lastBlock) throws IOException {
+		int count = 1;
+		synchronized(this.mLock) {
+			while(true) {
+				final Block block = this.mBlocks.get(blockIx);
+				if(null != block) {
+					this.mHitCount++;
+					return block;
+				}
+				if(!this.mPending.contains(blockIx)) {
+					break;
+				}
+				this.waitLocked();
+			}
+			this.mMissCount++;
+			// Coalesce with the following missing blocks of this onRead
+			this.mPending.add(blockIx);
+			while(blockIx + count <= lastBlock && !this.mBlocks.containsKey(blockIx + count) && !this.mPending.contains(blockIx + count)) {
+				this.mPending.add(blockIx + count);
+				count++;
+			}
+		}
+		this.readBlocks(blockIx, count);
+		synchronized(this.mLock) {
+			final Block block = this.mBlocks.get(blockIx);
+			if(null == block) throw new IOException("block evicted blockIx=" + blockIx); // Only if maxBlocks < blocks per onRead
+			return block;
+		}
+	}
+
+	/**
+	 * Reads count blocks with a single source seek (if needed) and puts them into the cache. The blocks should be marked as pending by the caller
+	 */
+	private void readBlocks(final long firstBlock, final int count) throws IOException {
+		if(TrackProviderProxyFdCallback.LOG) Log.w(TrackProviderProxyFdCallback.TAG, "readBlocks firstBlock=" + firstBlock + " count=" + count);
+		int ix = 0;
+		try {
+			synchronized(this.mSourceLock) {
+				synchronized(this.mLock) {
+					if(this.mReleased) throw new IOException("released");
+				}
+				final long start = firstBlock * this.mBlockSize;
+				if(this.mSourcePos != start) {
+					final long newPos = this.mSource.seek(start, -1);
+					if(start != newPos) throw new IOException("seek failed start=" + start + " newPos=" + newPos);
+					this.mSourcePos = start;
+				}
+				for(; ix < count; ix++) {
+					final Block block = new Block(this.mBlockSize);
+					final ByteBuffer buf = ByteBuffer.wrap(block.data);
+					while(buf.hasRemaining()) {
+						final int res = this.mSource.read(buf);
+						this.mSourceReadCount++;
+						if(0 > res) {
+							break;
+						} else if(0 == res) {
+							Thread.sleep(1); // Non-blocking source has no data yet
+						}
+					}
+					block.len = buf.position();
+					this.mSourcePos += block.len;
+					synchronized(this.mLock) {
+						this.mPending.remove(firstBlock + ix);
+						this.putBlockLocked(firstBlock + ix, block);
+						this.mLock.notifyAll();
+					}
+					if(this.mBlockSize != block.len) {
+						ix++;
+						break; // EOF
+					}
+				}
+			}
+		} catch(final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		} finally {
+			synchronized(this.mLock) {
+				for(; ix < count; ix++) {
+					this.mPending.remove(firstBlock + ix);
+				}
+				this.mLock.notifyAll();
+			}
+		}
+	}
+
+	/** Puts the block into the cache, evicting the least recently used blocks. The evicted arrays are not reused, as onRead may still copy from them. Guarded by mLock */
+	private void putBlockLocked(final long blockIx, @NonNull final Block block) {
+		this.mBlocks.put(blockIx, block);
+		final Iterator<Block> it = this.mBlocks.values().iterator();
+		while(this.mMaxBlocks < this.mBlocks.size() && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/** THREADING: prefetch thread */
+	private void runPrefetch() {
+		try {
+			while(true) {
+				final long firstBlock;
+				int count = 0;
+				synchronized(this.mLock) {
+					while(!this.mReleased && 0 > this.mPrefetchFrom) {
+						this.mLock.wait();
+					}
+					if(this.mReleased) {
+						break;
+					}
+					long blockIx = this.mPrefetchFrom;
+					this.mPrefetchFrom = -1;
+					final long blocksTotal = (this.mLength + this.mBlockSize - 1) / this.mBlockSize;
+					final long prefetchEnd = Math.min(blockIx + this.mPrefetchBlocks, blocksTotal);
+					// Skip the already available blocks, then prefetch the following missing run
+					while(blockIx < prefetchEnd && (this.mBlocks.containsKey(blockIx) || this.mPending.contains(blockIx))) {
+						blockIx++;
+					}
+					firstBlock = blockIx;
+					while(blockIx < prefetchEnd && !this.mBlocks.containsKey(blockIx) && !this.mPending.contains(blockIx)) {
+						this.mPending.add(blockIx++);
+						count++;
+					}
+				}
+				if(0 < count) {
+					try {
+						this.readBlocks(firstBlock, count);
+					} catch(final IOException ex) {
+						Log.e(TrackProviderProxyFdCallback.TAG, "firstBlock=" + firstBlock, ex); // onRead will retry and report the error
+					}
+				}
+			}
+		} catch(final InterruptedException ex) {
+			Log.e(TrackProviderProxyFdCallback.TAG, "", ex);
+		}
+		if(TrackProviderProxyFdCallback.LOG) Log.w(TrackProviderProxyFdCallback.TAG, "runPrefetch DONE");
+	}
+
+	/** Guarded by mLock */
+	private void waitLocked() throws IOException {
+		try {
+			this.mLock.wait();
+		} catch(final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * Stops the prefetch and closes the source
+	 */
+	@Override
+	public void onRelease() {
+		if(TrackProviderProxyFdCallback.LOG) Log.w(TrackProviderProxyFdCallback.TAG, "onRelease " + this);
+		synchronized(this.mLock) {
+			this.mReleased = true;
+			this.mBlocks.clear();
+			this.mLock.notifyAll();
+		}
+		synchronized(this.mSourceLock) { // Waits for the current prefetch read, if any
+			this.mSource.close();
+		}
+	}
+
+	/** @return number of the blocks answered from memory */
+	public long getHitCount() {
+		synchronized(this.mLock) {
+			return this.mHitCount;
+		}
+	}
+
+	/** @return number of the blocks read from the source for onRead, i.e. not prefetched in time */
+	public long getMissCount() {
+		synchronized(this.mLock) {
+			return this.mMissCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized(this.mLock) {
+			return super.toString() + " length=" + this.mLength + " blocks=" + this.mBlocks.size() + " hits=" + this.mHitCount
+					+ " misses=" + this.mMissCount + " sourceReads=" + this.mSourceReadCount;
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Fetches the remote track chunks over several parallel HTTP Range connections, used by {@link TrackProviderHttpSource} for the fast track start and post-seek refill.<br>
+ * The fetcher keeps a window of chunks ahead of the consumer position. The window is split into ranges, and the ranges are fetched by up to maxConnections workers.
+ * The chunks are published as soon as each of them is complete and are taken by the consumer strictly in order via {@link #take}.<br><br>
+ *
+ * Adaptation:<br>
+ * - the number of the parallel connections starts at 2 and is increased while the aggregate throughput grows, and reverted once it drops<br>
+ * - the range size (in chunks) follows the measured per connection throughput, so each request takes about RANGE_TARGET_MS, which keeps the per request overhead low
+ *   on the fast networks, while the first chunks still arrive quickly on the slow ones<br><br>
+ *
+ * A take() of a chunk outside of the current window (seek) drops the window and restarts fetching from that chunk. In-flight requests of the dropped window are aborted.<br>
+ * THREADING: take() from a single consumer thread, workers are own threads
+ */
+public class TrackProviderRangeFetcher implements AutoCloseable {
+	private static final String TAG = "TrackProviderRangeFetcher";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	public static final int DEFAULT_WINDOW_CHUNKS = 8;
+
+	private static final int INITIAL_CONNECTIONS = 2;
+	private static final int MAX_RANGE_CHUNKS = 8;
+	private static final long RANGE_TARGET_MS = 500;
+	/** Busy time over which the aggregate throughput is measured before the connections count is adapted */
+	private static final long THROUGHPUT_SAMPLE_MS = 1000;
+	/** Relative throughput change (percent) considered significant */
+	private static final int THROUGHPUT_CHANGE_PERCENT = 10;
+
+	private static class Chunk {
+		final byte @NonNull[] data;
+		int len;
+
+		Chunk(final int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	private final @NonNull URL mUrl;
+	private final @Nullable Map<String, String> mHeaders;
+	private final long mLength;
+	private final int mChunkSize;
+	private final long mChunkCount;
+	private final int mMaxConnections;
+	private final int mWindowChunks;
+	private final @NonNull Thread @NonNull[] mWorkers;
+
+	private final @NonNull Object mLock = new Object();
+	/** Incremented on each window reset, the results of the previous generations are dropped. Guarded by mLock */
+	private int mGeneration;
+	/** Complete chunks not yet taken. Guarded by mLock */
+	private final @NonNull HashMap<Long, Chunk> mReady = new HashMap<>();
+	/** Chunks of the current generation being fetched. Guarded by mLock */
+	private final @NonNull HashSet<Long> mInFlight = new HashSet<>();
+	/** Next chunk to dispatch to a worker. Guarded by mLock */
+	private long mNextChunk;
+	/** Chunks up to (excluding) this one may be dispatched. Guarded by mLock */
+	private long mWindowEnd;
+	/** Guarded by mLock */
+	private int mActive;
+	/** Current adaptive number of the parallel connections. Guarded by mLock */
+	private int mConnections = TrackProviderRangeFetcher.INITIAL_CONNECTIONS;
+	/** Current adaptive range size in chunks. Guarded by mLock */
+	private int mRangeChunks = 1;
+	/** Guarded by mLock */
+	private @Nullable IOException mError;
+	/** Guarded by mLock */
+	private boolean mClosed;
+
+	/** Throughput sampling, guarded by mLock */
+	private long mBusyStartNs;
+	private long mSampleBusyNs;
+	private long mSampleBytes;
+	private long mPrevThroughput;
+	private int mLastConnectionsChange;
+
+	private long mNetworkBytes;
+	private int mRequestCount;
+
+
+	/**
+	 * @param url the track url. The server should support Range requests
+	 * @param headers optional extra request headers
+	 * @param length the track length, > 0
+	 * @param chunkSize the chunk size, same as the chunk size of the cache the chunks are put to
+	 * @param maxConnections the maximum parallel connections
+	 * @param windowChunks number of the chunks fetched ahead of the consumer
+	 */
+	public TrackProviderRangeFetcher(@NonNull final URL url, @Nullable final Map<String, String> headers, final long length, final int chunkSize,
+			final int maxConnections, final int windowChunks) {
+		if(0 >= length || 0 >= chunkSize || 0 >= maxConnections || 0 >= windowChunks) {
+			throw new IllegalArgumentException("length=" + length + " chunkSize=" + chunkSize + " maxConnections=" + maxConnections + " windowChunks=" + windowChunks);
+		}
+		this.mUrl = url;
+		this.mHeaders = headers;
+		this.mLength = length;
+		this.mChunkSize = chunkSize;
+		this.mChunkCount = (length + chunkSize - 1) / chunkSize;
+		this.mMaxConnections = maxConnections;
+		this.mWindowChunks = windowChunks;
+		this.mConnections = Math.min(TrackProviderRangeFetcher.INITIAL_CONNECTIONS, maxConnections);
+		this.mWorkers = new Thread[maxConnections];
+		for(int i = 0; i < maxConnections; i++) {
+			final Thread worker = new Thread(this::runWorker, TrackProviderRangeFetcher.TAG + "#" + i);
+			this.mWorkers[i] = worker;
+			worker.start();
+		}
+	}
+
+	/**
+	 * Waits for the chunk and copies it into data. Starts a new window at chunkIx, if the chunk is not within the current one
+	 * @param data the array of at least chunkSize bytes
+	 * @return the chunk length
+	 */
+	public int take(final long chunkIx, final byte @NonNull[] data) throws IOException {
+		if(0 > chunkIx || this.mChunkCount <= chunkIx) throw new IOException("bad chunkIx=" + chunkIx);
+		synchronized(this.mLock) {
+			if(!this.mReady.containsKey(chunkIx) && !this.mInFlight.contains(chunkIx) && chunkIx != this.mNextChunk) {
+				this.resetLocked(chunkIx);
+			}
+			this.mWindowEnd = Math.min(chunkIx + this.mWindowChunks, this.mChunkCount);
+			this.mLock.notifyAll();
+
+			Chunk chunk;
+			while(null == (chunk = this.mReady.remove(chunkIx))) {
+				if(this.mClosed) throw new IOException("closed");
+				final IOException error = this.mError;
+				if(null != error) {
+					this.mError = null;
+					this.resetLocked(chunkIx); // Retry from this chunk on the next take
+					throw error;
+				}
+				try {
+					this.mLock.wait();
+				} catch(final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException(ex);
+				}
+			}
+			// Drop the chunks the consumer skipped, so the memory is bounded by the window
+			final Iterator<Long> it = this.mReady.keySet().iterator();
+			while(it.hasNext()) {
+				if(chunkIx > it.next()) {
+					it.remove();
+				}
+			}
+			this.mWindowEnd = Math.min(chunkIx + 1 + this.mWindowChunks, this.mChunkCount);
+			this.mLock.notifyAll();
+
+			System.arraycopy(chunk.data, 0, data, 0, chunk.len);
+			return chunk.len;
+		}
+	}
+
+	/** Drops the current window and starts the new one at chunkIx. Guarded by mLock */
+	private void resetLocked(final long chunkIx) {
+		if(TrackProviderRangeFetcher.LOG) Log.w(TrackProviderRangeFetcher.TAG, "resetLocked chunkIx=" + chunkIx + " nextChunk=" + this.mNextChunk);
+		this.mGeneration++;
+		this.mReady.clear();
+		this.mInFlight.clear();
+		this.mNextChunk = chunkIx;
+		this.mRangeChunks = 1; // Get the first chunk ASAP
+	}
+
+	/** THREADING: worker thread */
+	private void runWorker() {
+		while(true) {
+			final int generation;
+			final long firstChunk;
+			final int count;
+			synchronized(this.mLock) {
+				while(!this.mClosed && (this.mNextChunk >= this.mWindowEnd || this.mActive >= this.mConnections)) {
+					try {
+						this.mLock.wait();
+					} catch(final InterruptedException ex) {
+						Log.e(TrackProviderRangeFetcher.TAG, "", ex);
+						return;
+					}
+				}
+				if(this.mClosed) {
+					return;
+				}
+				generation = this.mGeneration;
+				firstChunk = this.mNextChunk;
+				count = (int)Math.min(this.mRangeChunks, this.mWindowEnd - firstChunk);
+				this.mNextChunk += count;
+				for(int i = 0; i < count; i++) {
+					this.mInFlight.add(firstChunk + i);
+				}
+				if(0 == this.mActive++) {
+					this.mBusyStartNs = System.nanoTime();
+				}
+			}
+
+			final long startNs = System.nanoTime();
+			long bytes = 0;
+			IOException error = null;
+			try {
+				bytes = this.fetchRange(generation, firstChunk, count);
+			} catch(final IOException ex) {
+				error = ex;
+			}
+			final long elapsedNs = System.nanoTime() - startNs;
+
+			synchronized(this.mLock) {
+				final long nowNs = System.nanoTime();
+				if(0 == --this.mActive) {
+					this.mSampleBusyNs += nowNs - this.mBusyStartNs;
+				}
+				this.mSampleBytes += bytes;
+				this.mNetworkBytes += bytes;
+				this.mRequestCount++;
+				if(generation == this.mGeneration) {
+					for(int i = 0; i < count; i++) {
+						this.mInFlight.remove(firstChunk + i);
+					}
+					if(null != error) {
+						Log.e(TrackProviderRangeFetcher.TAG, "firstChunk=" + firstChunk + " count=" + count, error);
+						this.mError = error;
+					}
+				}
+				if(null == error) {
+					this.adaptLocked(bytes, elapsedNs, nowNs);
+				}
+				this.mLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Fetches count chunks with a single Range request, publishing each chunk once complete
+	 * @return number of bytes received
+	 */
+	private long fetchRange(final int generation, final long firstChunk, final int count) throws IOException {
+		final long start = firstChunk * this.mChunkSize;
+		final long end = Math.min(start + (long)count * this.mChunkSize, this.mLength) - 1;
+		if(TrackProviderRangeFetcher.LOG) Log.w(TrackProviderRangeFetcher.TAG, "fetchRange range=" + start + "-" + end + " thread=" + Thread.currentThread().getName());
+
+		final HttpURLConnection conn = (HttpURLConnection)this.mUrl.openConnection();
+		long received = 0;
+		try {
+			conn.setConnectTimeout(TrackProviderHttpSource.DEFAULT_CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(TrackProviderHttpSource.DEFAULT_READ_TIMEOUT_MS);
+			conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+			conn.setRequestProperty("Accept-Encoding", "identity");
+			final Map<String, String> headers = this.mHeaders;
+			if(null != headers) {
+				for(final Map.Entry<String, String> e : headers.entrySet()) {
+					conn.setRequestProperty(e.getKey(), e.getValue());
+				}
+			}
+			final int code = conn.getResponseCode();
+			if(HttpURLConnection.HTTP_PARTIAL != code) throw new IOException("bad response code=" + code + " for range=" + start + "-" + end);
+
+			try(InputStream is = conn.getInputStream()) {
+				for(int i = 0; i < count; i++) {
+					final long chunkIx = firstChunk + i;
+					final int expected = (int)Math.min(this.mChunkSize, this.mLength - chunkIx * this.mChunkSize);
+					final Chunk chunk = new Chunk(this.mChunkSize);
+					while(chunk.len < expected) {
+						final int res = is.read(chunk.data, chunk.len, expected - chunk.len);
+						if(0 > res) throw new IOException("short response chunkIx=" + chunkIx + " len=" + chunk.len);
+						chunk.len += res;
+						received += res;
+					}
+					synchronized(this.mLock) {
+						if(this.mClosed || generation != this.mGeneration) {
+							return received; // Window dropped (seek), abort the request
+						}
+						this.mInFlight.remove(chunkIx);
+						this.mReady.put(chunkIx, chunk);
+						this.mLock.notifyAll();
+					}
+				}
+			}
+			return received;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	/** Adapts the range size and the connections count to the measured throughput. Guarded by mLock */
+	private void adaptLocked(final long bytes, final long elapsedNs, final long nowNs) {
+		if(0 < bytes && 0 < elapsedNs) {
+			final long perConnection = bytes * 1000000000L / elapsedNs; // Bytes per second
+			final long rangeChunks = perConnection * TrackProviderRangeFetcher.RANGE_TARGET_MS / 1000 / this.mChunkSize;
+			this.mRangeChunks = (int)Math.max(1, Math.min(rangeChunks, TrackProviderRangeFetcher.MAX_RANGE_CHUNKS));
+		}
+
+		long busyNs = this.mSampleBusyNs;
+		if(0 < this.mActive) {
+			busyNs += nowNs - this.mBusyStartNs;
+		}
+		if(TrackProviderRangeFetcher.THROUGHPUT_SAMPLE_MS * 1000000L > busyNs) {
+			return;
+		}
+		final long throughput = this.mSampleBytes * 1000000000L / busyNs;
+		final long prev = this.mPrevThroughput;
+		if(0 == prev || throughput * 100 > prev * (100 + TrackProviderRangeFetcher.THROUGHPUT_CHANGE_PERCENT)) {
+			// First sample or more connections helped, try one more
+			if(this.mConnections < this.mMaxConnections && 0 <= this.mLastConnectionsChange) {
+				this.mConnections++;
+				this.mLastConnectionsChange = 1;
+			} else {
+				this.mLastConnectionsChange = 0;
+			}
+		} else if(throughput * 100 < prev * (100 - TrackProviderRangeFetcher.THROUGHPUT_CHANGE_PERCENT) && 0 < this.mLastConnectionsChange && 1 < this.mConnections) {
+			// The last added connection made it worse (e.g. server throttling per client), revert
+			this.mConnections--;
+			this.mLastConnectionsChange = -1;
+		} else {
+			this.mLastConnectionsChange = 0;
+		}
+		if(TrackProviderRangeFetcher.LOG) Log.w(TrackProviderRangeFetcher.TAG, "adaptLocked throughput=" + throughput + " prev=" + prev + " connections=>" + this.mConnections + " rangeChunks=" + this.mRangeChunks);
+		this.mPrevThroughput = throughput;
+		this.mSampleBytes = 0;
+		this.mSampleBusyNs = 0;
+		if(0 < this.mActive) {
+			this.mBusyStartNs = nowNs;
+		}
+	}
+
+	/** @return current adaptive number of the parallel connections */
+	public int getConnections() {
+		synchronized(this.mLock) {
+			return this.mConnections;
+		}
+	}
+
+	/** @return current adaptive range size in chunks */
+	public int getRangeChunks() {
+		synchronized(this.mLock) {
+			return this.mRangeChunks;
+		}
+	}
+
+	/** @return total bytes received by the workers, including the dropped ones */
+	public long getNetworkBytes() {
+		synchronized(this.mLock) {
+			return this.mNetworkBytes;
+		}
+	}
+
+	public int getRequestCount() {
+		synchronized(this.mLock) {
+			return this.mRequestCount;
+		}
+	}
+
+	/**
+	 * Stops the workers. The in-flight requests are finished by the workers, but their results are dropped
+	 */
+	@Override
+	public void close() {
+		synchronized(this.mLock) {
+			this.mClosed = true;
+			this.mReady.clear();
+			this.mLock.notifyAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized(this.mLock) {
+			return super.toString() + " connections=" + this.mConnections + " rangeChunks=" + this.mRangeChunks + " requests=" + this.mRequestCount
+					+ " networkBytes=" + this.mNetworkBytes;
+		}
+	}
+}
@@ -0,0 +1,507 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-ahead ring buffer between the (possibly slow) track source and the protocol sending the data to Poweramp.<br>
+ * The wrapped source is read by the producer thread into the ring, while the consumer (e.g. {@link TrackProviderProto#sendData2} loop or {@link TrackProviderServer})
+ * reads the already buffered data, so the source latency (disk, network, decryption) doesn't add to the send latency.<br><br>
+ *
+ * The ring also keeps some already consumed data, and the seeks landing anywhere within the buffered window are answered from the ring without touching the source.
+ * Other seeks are passed to the source on the producer thread, without holding the lock, so the consumer never waits for the source unless it waits for the seek itself.<br><br>
+ *
+ * The producer fills the ring until the buffered (not yet consumed) data reaches the high watermark, then waits until the consumer drains it down to the low watermark.<br>
+ * NOTE: the wrapped source is accessed from the producer thread only and is closed by it on {@link #close()}
+ */
+public class TrackProviderReadAhead implements TrackProviderSource {
+	private static final String TAG = "TrackProviderReadAhead";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_RING_SIZE = 256 * 1024;
+	public static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+	public static final int DEFAULT_HIGH_WATERMARK = 192 * 1024;
+
+	/** Maximum bytes requested from the source per read */
+	private static final int MAX_SOURCE_READ_SIZE = 64 * 1024;
+
+	/** Returned by {@link #startSeek} and {@link #pollSeekResult} while the source seek is in progress */
+	static final long SEEK_PENDING = Long.MIN_VALUE;
+
+	/** Delay before the next read attempt if the source returned no data */
+	private static final long SOURCE_RETRY_DELAY_MS = 10;
+
+	private final @NonNull TrackProviderSource mSource;
+	private final long mLength;
+	private final int mRingSize;
+	private final int mLowWatermark;
+	private final int mHighWatermark;
+	private final @NonNull ByteBuffer mRing;
+	/** Ring view used by the consumer */
+	private final @NonNull ByteBuffer mConsumerView;
+	/** Ring view used by the producer */
+	private final @NonNull ByteBuffer mProducerView;
+	private final @NonNull Thread mThread;
+
+	private final @NonNull Object mLock = new Object();
+	/** Track position of the oldest byte kept in the ring. Guarded by mLock */
+	private long mWindowStart;
+	/** Track position of the next byte to be consumed. Guarded by mLock */
+	private long mReadPos;
+	/** Track position of the next byte to be produced. Guarded by mLock */
+	private long mWritePos;
+	/** True while the producer fills the ring up to the high watermark. Guarded by mLock */
+	private boolean mFilling = true;
+	/** Guarded by mLock */
+	private boolean mEOF;
+	/** Guarded by mLock */
+	private boolean mClosed;
+	/** True once the producer thread is done and doesn't touch the ring anymore */
+	private boolean mProducerDone;
+	/** True while the consumer copies from the ring out of the lock */
+	private boolean mConsumerCopying;
+	/** True once the ring is returned to the pool */
+	private boolean mRingReleased;
+	/** Source read failure, rethrown to the consumer. Guarded by mLock */
+	private @Nullable IOException mError;
+	/** Guarded by mLock */
+	private boolean mSeekRequested;
+	/** True while the producer seeks the source out of the lock. Guarded by mLock */
+	private boolean mSeekInProgress;
+	private long mSeekOffsetBytes;
+	private int mSeekMs;
+	/** Guarded by mLock */
+	private boolean mSeekDone;
+	private long mSeekResult;
+	/** If set, read() doesn't wait for the data, see {@link #setServer}. Guarded by mLock */
+	private @Nullable TrackProviderServer mServer;
+	/** True if read() returned 0 and the server should be woken up once data is available. Guarded by mLock */
+	private boolean mServerWaiting;
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mUnderrunCount;
+	private long mSourceBytesRead;
+
+
+	/**
+	 * Creates the read-ahead with the default ring size and watermarks
+	 */
+	public TrackProviderReadAhead(@NonNull final TrackProviderSource source) {
+		this(source, TrackProviderReadAhead.DEFAULT_RING_SIZE, TrackProviderReadAhead.DEFAULT_LOW_WATERMARK, TrackProviderReadAhead.DEFAULT_HIGH_WATERMARK);
+	}
+
+	/**
+	 * Creates the read-ahead and immediately starts filling it from the current source position
+	 * @param source the source to read ahead. Owned by this read-ahead
+	 * @param ringSize the ring size in bytes, which is the maximum buffered + kept already consumed data
+	 * @param lowWatermark the producer resumes reading once the not yet consumed data drops to this size
+	 * @param highWatermark the producer pauses reading once the not yet consumed data reaches this size, <= ringSize
+	 */
+	public TrackProviderReadAhead(@NonNull final TrackProviderSource source, final int ringSize, final int lowWatermark, final int highWatermark) {
+		if(0 >= ringSize || 0 > lowWatermark || lowWatermark >= highWatermark || ringSize < highWatermark) {
+			throw new IllegalArgumentException("ringSize=" + ringSize + " lowWatermark=" + lowWatermark + " highWatermark=" + highWatermark);
+		}
+		this.mSource = source;
+		this.mLength = source.getLength();
+		this.mRingSize = ringSize;
+		this.mLowWatermark = lowWatermark;
+		this.mHighWatermark = highWatermark;
+
+		// Returned to the pool once both the producer and the consumer are done with it, see releaseRingLocked()
+		final ByteBuffer ring = TrackProviderBufferPool.getDefault().acquire(ringSize);
+		this.mRing = ring;
+		this.mConsumerView = ring.duplicate();
+		this.mProducerView = ring.duplicate();
+
+		this.mThread = new Thread(this::runProducer, TrackProviderReadAhead.TAG);
+		this.mThread.start();
+	}
+
+	@Override
+	public long getLength() {
+		return this.mLength;
+	}
+
+	/**
+	 * Makes {@link #read} return 0 instead of waiting when the ring is empty, and wakes up the server once more data is available.
+	 * Used by {@link TrackProviderServer}, which calls this for the served read-aheads.<br>
+	 * NOTE: {@link #seek} missing the ring still waits for the source, the server uses the non-blocking {@link #startSeek} instead
+	 */
+	public void setServer(@Nullable final TrackProviderServer server) {
+		synchronized(this.mLock) {
+			this.mServer = server;
+		}
+	}
+
+	/**
+	 * Reads the buffered data, blocking until the producer provides some, if the ring is empty
+	 */
+	@Override
+	public int read(@NonNull final ByteBuffer buf) throws IOException {
+		final long readPos;
+		final int size;
+		synchronized(this.mLock) {
+			while(this.mReadPos == this.mWritePos) {
+				if(null != this.mError) throw this.mError;
+				if(this.mEOF) {
+					return -1;
+				}
+				if(this.mClosed) throw new IOException("closed");
+				this.mUnderrunCount++;
+				this.mFilling = true;
+				this.mLock.notifyAll();
+				if(null != this.mServer) {
+					this.mServerWaiting = true;
+					return 0;
+				}
+				this.waitLocked();
+			}
+			if(this.mClosed) throw new IOException("closed");
+			this.mConsumerCopying = true;
+			readPos = this.mReadPos;
+			final int ringIx = (int)(readPos % this.mRingSize);
+			size = (int)Math.min(Math.min(buf.remaining(), this.mWritePos - readPos), this.mRingSize - ringIx);
+		}
+
+		// The producer never overwrites readPos..mWritePos, so we can copy this out of the lock
+		final ByteBuffer view = this.mConsumerView;
+		final int ringIx = (int)(readPos % this.mRingSize);
+		view.limit(ringIx + size);
+		view.position(ringIx);
+		buf.put(view);
+
+		synchronized(this.mLock) {
+			this.mConsumerCopying = false;
+			this.releaseRingLocked();
+			if(this.mReadPos == readPos) { // Otherwise, the consumer seeked (from another thread), just drop the data
+				this.mReadPos = readPos + size;
+				if(!this.mFilling && this.mLowWatermark >= this.mWritePos - this.mReadPos) {
+					this.mFilling = true;
+					this.mLock.notifyAll();
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Seeks within the buffered window if possible (hit), otherwise waits for the source seek on the producer thread (miss)
+	 */
+	@Override
+	public long seek(final long offsetBytes, final int ms) throws IOException {
+		synchronized(this.mLock) {
+			final long res = this.startSeekLocked(offsetBytes, ms);
+			if(SEEK_PENDING != res) {
+				return res;
+			}
+			while(!this.mSeekDone) {
+				if(this.mClosed) throw new IOException("closed");
+				this.waitLocked();
+			}
+			return this.mSeekResult;
+		}
+	}
+
+	/**
+	 * Seeks within the buffered window if possible (hit), otherwise starts the source seek on the producer thread (miss) and returns without waiting for it.
+	 * The server set via {@link #setServer} is woken up once the seek is done, see {@link #pollSeekResult}
+	 * @return new position for the hit, or {@link #SEEK_PENDING} for the miss
+	 */
+	long startSeek(final long offsetBytes, final int ms) throws IOException {
+		synchronized(this.mLock) {
+			final long res = this.startSeekLocked(offsetBytes, ms);
+			if(SEEK_PENDING == res) {
+				this.mServerWaiting = true;
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * @return the result of the seek started by {@link #startSeek}, or {@link #SEEK_PENDING} if the source seek is still in progress
+	 */
+	long pollSeekResult() throws IOException {
+		synchronized(this.mLock) {
+			if(this.mSeekDone) {
+				return this.mSeekResult;
+			}
+			if(this.mClosed) throw new IOException("closed");
+			this.mServerWaiting = true;
+			return TrackProviderReadAhead.SEEK_PENDING;
+		}
+	}
+
+	/** Guarded by mLock */
+	private long startSeekLocked(final long offsetBytes, final int ms) throws IOException {
+		if(this.mClosed) throw new IOException("closed");
+		final long target = 0 <= offsetBytes ? offsetBytes : this.mLength + offsetBytes;
+
+		// While the source seeks, the window is about to be reset, so it can't answer the seeks
+		if(!this.mSeekRequested && !this.mSeekInProgress && this.mWindowStart <= target && this.mWritePos >= target) {
+			this.mHitCount++;
+			this.mReadPos = target;
+			if(!this.mFilling && this.mLowWatermark >= this.mWritePos - this.mReadPos) {
+				this.mFilling = true;
+				this.mLock.notifyAll();
+			}
+			if(TrackProviderReadAhead.LOG) Log.w(TrackProviderReadAhead.TAG, "seek HIT target=" + target);
+			return target;
+		}
+
+		this.mMissCount++;
+		if(TrackProviderReadAhead.LOG) Log.w(TrackProviderReadAhead.TAG, "seek MISS target=" + target + " window=" + this.mWindowStart + ".." + this.mWritePos);
+		this.mSeekOffsetBytes = offsetBytes;
+		this.mSeekMs = ms;
+		this.mSeekRequested = true;
+		this.mSeekDone = false;
+		this.mLock.notifyAll();
+		return TrackProviderReadAhead.SEEK_PENDING;
+	}
+
+	/** THREADING: producer thread */
+	private void runProducer() {
+		if(TrackProviderReadAhead.LOG) Log.w(TrackProviderReadAhead.TAG, "runProducer");
+		final ByteBuffer view = this.mProducerView;
+		try {
+			while(true) {
+				long writePos = 0;
+				int size = 0;
+				boolean seek = false;
+				long seekOffsetBytes = 0;
+				int seekMs = 0;
+				synchronized(this.mLock) {
+					while(!this.mClosed && !this.mSeekRequested && (this.mEOF || null != this.mError || !this.mFilling)) {
+						this.waitLocked();
+					}
+					if(this.mClosed) {
+						break;
+					}
+
+					if(this.mSeekRequested) {
+						this.mSeekRequested = false;
+						this.mSeekInProgress = true;
+						seek = true;
+						seekOffsetBytes = this.mSeekOffsetBytes;
+						seekMs = this.mSeekMs;
+					} else {
+						final long buffered = this.mWritePos - this.mReadPos;
+						if(this.mHighWatermark <= buffered) {
+							this.mFilling = false;
+							continue;
+						}
+						writePos = this.mWritePos;
+						final int ringIx = (int)(writePos % this.mRingSize);
+						size = (int)Math.min(Math.min(this.mRingSize - buffered, this.mRingSize - ringIx), TrackProviderReadAhead.MAX_SOURCE_READ_SIZE);
+						// The region we're going to overwrite is not a part of the window anymore
+						this.mWindowStart = Math.max(this.mWindowStart, writePos + size - this.mRingSize);
+					}
+				}
+
+				if(seek) {
+					this.performSeek(seekOffsetBytes, seekMs);
+					continue;
+				}
+
+				final int ringIx = (int)(writePos % this.mRingSize);
+				view.limit(ringIx + size);
+				view.position(ringIx);
+				int res;
+				try {
+					res = this.mSource.read(view);
+				} catch(final IOException ex) {
+					Log.e(TrackProviderReadAhead.TAG, "", ex);
+					TrackProviderServer server;
+					synchronized(this.mLock) {
+						this.mError = ex;
+						this.mLock.notifyAll();
+						server = this.mServerWaiting ? this.mServer : null;
+						this.mServerWaiting = false;
+					}
+					if(null != server) {
+						server.wakeup(); // Let the server get the error
+					}
+					continue;
+				}
+
+				TrackProviderServer server = null;
+				synchronized(this.mLock) {
+					if(0 < res) {
+						this.mWritePos = writePos + res;
+						this.mSourceBytesRead += res;
+						this.mLock.notifyAll();
+					} else if(0 > res) {
+						this.mEOF = true;
+						this.mLock.notifyAll();
+					} else {
+						this.mLock.wait(TrackProviderReadAhead.SOURCE_RETRY_DELAY_MS); // Non-blocking source has no data yet
+					}
+					if(0 != res && this.mServerWaiting) {
+						this.mServerWaiting = false;
+						server = this.mServer;
+					}
+				}
+				if(null != server) {
+					server.wakeup();
+				}
+			}
+		} catch(final InterruptedException ex) {
+			Log.e(TrackProviderReadAhead.TAG, "", ex);
+		} finally {
+			synchronized(this.mLock) {
+				this.mClosed = true;
+				this.mProducerDone = true;
+				this.releaseRingLocked();
+				this.mLock.notifyAll();
+			}
+			this.mSource.close();
+			if(TrackProviderReadAhead.LOG) Log.w(TrackProviderReadAhead.TAG, "runProducer DONE");
+		}
+	}
+
+	/**
+	 * Seeks the source and resets the window to the new position. The source seek is done out of the lock, so the consumer polling for the result
+	 * (e.g. {@link TrackProviderServer} thread) is never blocked by the source
+	 * THREADING: producer thread
+	 */
+	private void performSeek(final long offsetBytes, final int ms) {
+		long newPos;
+		try {
+			newPos = this.mSource.seek(offsetBytes, ms);
+		} catch(final IOException ex) {
+			Log.e(TrackProviderReadAhead.TAG, "offsetBytes=" + offsetBytes, ex);
+			newPos = -1;
+		}
+		TrackProviderServer server = null;
+		synchronized(this.mLock) {
+			this.mSeekInProgress = false;
+			if(0 <= newPos) {
+				this.mWindowStart = this.mReadPos = this.mWritePos = newPos;
+				this.mEOF = false;
+				this.mError = null;
+				this.mFilling = true;
+			}
+			if(!this.mSeekRequested) { // Otherwise, a newer seek was requested meanwhile, and its result is the one waited for
+				this.mSeekResult = newPos;
+				this.mSeekDone = true;
+				if(this.mServerWaiting) {
+					this.mServerWaiting = false;
+					server = this.mServer;
+				}
+			}
+			this.mLock.notifyAll();
+		}
+		if(null != server) {
+			server.wakeup();
+		}
+	}
+
+	/** Returns the ring to the pool once closed and neither the producer nor the consumer uses it. Guarded by mLock */
+	private void releaseRingLocked() {
+		if(this.mProducerDone && !this.mConsumerCopying && !this.mRingReleased) {
+			this.mRingReleased = true;
+			TrackProviderBufferPool.getDefault().release(this.mRing);
+		}
+	}
+
+	/** Guarded by mLock */
+	private void waitLocked() {
+		try {
+			this.mLock.wait();
+		} catch(final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		}
+	}
+
+	/**
+	 * Stops the producer. The source is closed by the producer thread, once its current read (if any) returns
+	 */
+	@Override
+	public void close() {
+		synchronized(this.mLock) {
+			this.mClosed = true;
+			this.mLock.notifyAll();
+		}
+	}
+
+	public int getRingSize() {
+		return this.mRingSize;
+	}
+
+	public int getLowWatermark() {
+		return this.mLowWatermark;
+	}
+
+	public int getHighWatermark() {
+		return this.mHighWatermark;
+	}
+
+	/** @return number of bytes buffered and not yet consumed */
+	public long getBufferedBytes() {
+		synchronized(this.mLock) {
+			return this.mWritePos - this.mReadPos;
+		}
+	}
+
+	/** @return number of seeks answered from the ring */
+	public long getHitCount() {
+		synchronized(this.mLock) {
+			return this.mHitCount;
+		}
+	}
+
+	/** @return number of seeks passed to the source */
+	public long getMissCount() {
+		synchronized(this.mLock) {
+			return this.mMissCount;
+		}
+	}
+
+	/** @return number of reads which had to wait for the source as the ring was empty */
+	public long getUnderrunCount() {
+		synchronized(this.mLock) {
+			return this.mUnderrunCount;
+		}
+	}
+
+	/** @return total bytes read from the source */
+	public long getSourceBytesRead() {
+		synchronized(this.mLock) {
+			return this.mSourceBytesRead;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized(this.mLock) {
+			return super.toString() + " window=" + this.mWindowStart + ".." + this.mWritePos + " readPos=" + this.mReadPos
+					+ " hits=" + this.mHitCount + " misses=" + this.mMissCount + " underruns=" + this.mUnderrunCount;
+		}
+	}
+}
@@ -0,0 +1,526 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Milliseconds to byte offset index for the track, used to resolve {@link TrackProviderProto.SeekRequest#ms} based seeks into accurate byte offsets for
+ * VBR tracks in O(log n).<br>
+ * The index is built from the container data:
+ * - MP3 Xing/Info TOC or VBRI TOC
+ * - FLAC SEEKTABLE
+ * - MP3 frames scanning, if no TOC is available<br>
+ * Use {@link Cache} to build the index lazily, once per document, e.g. on the first milliseconds based seek rather than before the first data sent
+ */
+public class TrackProviderSeekIndex {
+	private static final String TAG = "TrackProviderSeekIndex";
+	private static final boolean LOG = false;
+
+	/** Interval between the index entries for MP3 frames scanning */
+	private static final long SCAN_ENTRY_INTERVAL_MS = 500;
+
+	/** Maximum bytes scanned for the next frame sync after the bad frame */
+	private static final int MAX_RESYNC_BYTES = 64 * 1024;
+
+	private static final int READ_WINDOW_SIZE = 64 * 1024;
+
+	private static final int[] MPEG1_SAMPLE_RATES = { 44100, 48000, 32000 };
+	private static final int[][] MPEG1_BITRATES = { // kbps, by layer index: L1, L2, L3
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+	};
+	private static final int[][] MPEG2_BITRATES = { // kbps, by layer index: L1, L2, L3
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+	};
+
+	/** Entry milliseconds, ascending */
+	private final long @NonNull[] mMs;
+	/** Entry byte offsets, ascending */
+	private final long @NonNull[] mBytes;
+	private final int mCount;
+
+
+	private TrackProviderSeekIndex(final long @NonNull[] ms, final long @NonNull[] bytes, final int count) {
+		this.mMs = ms;
+		this.mBytes = bytes;
+		this.mCount = count;
+	}
+
+	/**
+	 * @return the byte offset for the given milliseconds, interpolated between the nearest index entries
+	 */
+	public long getBytePos(final long ms) {
+		final long[] msArr = this.mMs;
+		final long[] bytes = this.mBytes;
+		int ix = Arrays.binarySearch(msArr, 0, this.mCount, ms);
+		if(0 <= ix) {
+			return bytes[ix];
+		}
+		ix = -ix - 2; // Entry before the insertion point
+		if(0 > ix) {
+			return bytes[0];
+		}
+		if(this.mCount - 1 <= ix) {
+			return bytes[this.mCount - 1];
+		}
+		final long msDelta = msArr[ix + 1] - msArr[ix];
+		if(0 >= msDelta) {
+			return bytes[ix];
+		}
+		return bytes[ix] + (bytes[ix + 1] - bytes[ix]) * (ms - msArr[ix]) / msDelta;
+	}
+
+	/** @return duration of the indexed track in milliseconds */
+	public long getDurationMs() {
+		return this.mMs[this.mCount - 1];
+	}
+
+	/** @return number of the index entries */
+	public int getCount() {
+		return this.mCount;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " count=" + this.mCount + " durationMs=" + this.getDurationMs();
+	}
+
+
+	/**
+	 * Builds the index for the given MP3 or FLAC file. Doesn't change the channel position
+	 * @return the index, or null if the format is not supported or the file is broken
+	 */
+	public static @Nullable TrackProviderSeekIndex build(@NonNull final FileChannel fc) throws IOException {
+		final Reader reader = new Reader(fc);
+		if(4 > reader.available(0, 10)) {
+			return null;
+		}
+		if('f' == reader.getByte(0) && 'L' == reader.getByte(1) && 'a' == reader.getByte(2) && 'C' == reader.getByte(3)) {
+			return TrackProviderSeekIndex.buildFlac(reader);
+		}
+		return TrackProviderSeekIndex.buildMp3(reader);
+	}
+
+	/**
+	 * Builds the index from FLAC SEEKTABLE.<br>
+	 * NOTE: without SEEKTABLE (or with the placeholder points only) the index would be just the start/end entries, which is no better than the
+	 * caller's own linear approximation, so null is returned then
+	 */
+	private static @Nullable TrackProviderSeekIndex buildFlac(@NonNull final Reader reader) throws IOException {
+		long pos = 4;
+		int sampleRate = 0;
+		long totalSamples = 0;
+		long seekTablePos = -1;
+		int seekTableLength = 0;
+		boolean last = false;
+		while(!last) {
+			if(4 > reader.available(pos, 4)) {
+				return null;
+			}
+			final int blockType = reader.getByte(pos) & 0x7F;
+			last = 0 != (reader.getByte(pos) & 0x80);
+			final int blockLength = reader.getInt24(pos + 1);
+			pos += 4;
+			if(0 == blockType) { // STREAMINFO
+				if(18 > reader.available(pos, 18)) {
+					return null;
+				}
+				sampleRate = (reader.getByte(pos + 10) & 0xFF) << 12 | (reader.getByte(pos + 11) & 0xFF) << 4 | (reader.getByte(pos + 12) & 0xFF) >> 4;
+				totalSamples = (long)(reader.getByte(pos + 13) & 0x0F) << 32 | reader.getInt(pos + 14) & 0xFFFFFFFFL;
+			} else if(3 == blockType) { // SEEKTABLE
+				seekTablePos = pos;
+				seekTableLength = blockLength;
+			}
+			pos += blockLength;
+		}
+		final long firstFramePos = pos;
+		final long fileLength = reader.getLength();
+		if(0 >= sampleRate || 0 >= totalSamples || firstFramePos >= fileLength) {
+			return null;
+		}
+		final long durationMs = totalSamples * 1000 / sampleRate;
+
+		final Builder builder = new Builder();
+		builder.add(0, firstFramePos);
+		if(0 <= seekTablePos) {
+			final int points = seekTableLength / 18;
+			for(int i = 0; i < points; i++) {
+				final long pointPos = seekTablePos + i * 18L;
+				if(16 > reader.available(pointPos, 16)) {
+					break;
+				}
+				final long sample = reader.getLong(pointPos);
+				if(-1L == sample) { // Placeholder point
+					continue;
+				}
+				builder.add(sample * 1000 / sampleRate, firstFramePos + reader.getLong(pointPos + 8));
+			}
+		}
+		if(1 >= builder.mCount) {
+			if(TrackProviderSeekIndex.LOG) Log.w(TrackProviderSeekIndex.TAG, "buildFlac no SEEKTABLE points");
+			return null;
+		}
+		builder.add(durationMs, fileLength);
+		if(TrackProviderSeekIndex.LOG) Log.w(TrackProviderSeekIndex.TAG, "buildFlac count=" + builder.mCount + " durationMs=" + durationMs);
+		return builder.build();
+	}
+
+	/** Builds the index from MP3 Xing/Info or VBRI TOC, falls back to frames scanning */
+	private static @Nullable TrackProviderSeekIndex buildMp3(@NonNull final Reader reader) throws IOException {
+		long audioStart = 0;
+		if(10 <= reader.available(0, 10) && 'I' == reader.getByte(0) && 'D' == reader.getByte(1) && '3' == reader.getByte(2)) {
+			final int size = (reader.getByte(6) & 0x7F) << 21 | (reader.getByte(7) & 0x7F) << 14 | (reader.getByte(8) & 0x7F) << 7 | (reader.getByte(9) & 0x7F);
+			final boolean hasFooter = 0 != (reader.getByte(5) & 0x10);
+			audioStart = 10 + size + (hasFooter ? 10 : 0);
+		}
+
+		final Frame frame = new Frame();
+		final long firstFramePos = TrackProviderSeekIndex.findFrame(reader, audioStart, frame);
+		if(0 > firstFramePos) {
+			return null;
+		}
+
+		TrackProviderSeekIndex index = TrackProviderSeekIndex.buildXing(reader, firstFramePos, frame);
+		if(null == index) {
+			index = TrackProviderSeekIndex.buildVbri(reader, firstFramePos, frame);
+		}
+		if(null == index) {
+			index = TrackProviderSeekIndex.buildByScanning(reader, firstFramePos, frame);
+		}
+		return index;
+	}
+
+	private static @Nullable TrackProviderSeekIndex buildXing(@NonNull final Reader reader, final long framePos, @NonNull final Frame frame) throws IOException {
+		final int sideInfoSize = frame.mpeg1 ? (frame.mono ? 17 : 32) : (frame.mono ? 9 : 17);
+		long pos = framePos + 4 + sideInfoSize;
+		if(8 > reader.available(pos, 8)) {
+			return null;
+		}
+		final int tag = reader.getInt(pos);
+		if(0x58696E67 != tag && 0x496E666F != tag) { // Xing, Info
+			return null;
+		}
+		final int flags = reader.getInt(pos + 4);
+		pos += 8;
+		long frames = 0;
+		if(0 != (flags & 1)) {
+			frames = reader.getInt(pos) & 0xFFFFFFFFL;
+			pos += 4;
+		}
+		long streamBytes = 0;
+		if(0 != (flags & 2)) {
+			streamBytes = reader.getInt(pos) & 0xFFFFFFFFL;
+			pos += 4;
+		}
+		if(0 >= frames || 0 == (flags & 4) || 100 > reader.available(pos, 100)) {
+			return null;
+		}
+		final long fileLength = reader.getLength();
+		if(0 >= streamBytes || framePos + streamBytes > fileLength) {
+			streamBytes = fileLength - framePos;
+		}
+		final long durationMs = frames * frame.samplesPerFrame * 1000 / frame.sampleRate;
+
+		final Builder builder = new Builder();
+		for(int i = 0; 100 > i; i++) {
+			final int toc = reader.getByte(pos + i) & 0xFF;
+			builder.add(durationMs * i / 100, framePos + streamBytes * toc / 256);
+		}
+		builder.add(durationMs, framePos + streamBytes);
+		if(TrackProviderSeekIndex.LOG) Log.w(TrackProviderSeekIndex.TAG, "buildXing durationMs=" + durationMs);
+		return builder.build();
+	}
+
+	private static @Nullable TrackProviderSeekIndex buildVbri(@NonNull final Reader reader, final long framePos, @NonNull final Frame frame) throws IOException {
+		long pos = framePos + 4 + 32;
+		if(26 > reader.available(pos, 26) || 0x56425249 != reader.getInt(pos)) { // VBRI
+			return null;
+		}
+		final long frames = reader.getInt(pos + 14) & 0xFFFFFFFFL;
+		final int entries = reader.getShort(pos + 18) & 0xFFFF;
+		final int scale = reader.getShort(pos + 20) & 0xFFFF;
+		final int entrySize = reader.getShort(pos + 22) & 0xFFFF;
+		final int framesPerEntry = reader.getShort(pos + 24) & 0xFFFF;
+		pos += 26;
+		if(0 >= frames || 0 >= entries || 1 > entrySize || 4 < entrySize || 0 >= framesPerEntry) {
+			return null;
+		}
+		final long durationMs = frames * frame.samplesPerFrame * 1000 / frame.sampleRate;
+		final long fileLength = reader.getLength();
+
+		final Builder builder = new Builder();
+		long bytePos = framePos;
+		builder.add(0, bytePos);
+		for(int i = 0; i < entries; i++) {
+			if(entrySize > reader.available(pos, entrySize)) {
+				return null;
+			}
+			long delta = 0;
+			for(int j = 0; j < entrySize; j++) {
+				delta = delta << 8 | (reader.getByte(pos + j) & 0xFF);
+			}
+			pos += entrySize;
+			bytePos += delta * scale;
+			final long ms = Math.min(durationMs, (long)(i + 1) * framesPerEntry * frame.samplesPerFrame * 1000 / frame.sampleRate);
+			builder.add(ms, Math.min(bytePos, fileLength));
+		}
+		builder.add(durationMs, fileLength);
+		if(TrackProviderSeekIndex.LOG) Log.w(TrackProviderSeekIndex.TAG, "buildVbri durationMs=" + durationMs + " entries=" + entries);
+		return builder.build();
+	}
+
+	private static @Nullable TrackProviderSeekIndex buildByScanning(@NonNull final Reader reader, long pos, @NonNull final Frame frame) throws IOException {
+		final Builder builder = new Builder();
+		long samples = 0;
+		long nextEntryMs = 0;
+		final int sampleRate = frame.sampleRate;
+		while(0 <= pos) {
+			final long ms = samples * 1000 / sampleRate;
+			if(nextEntryMs <= ms) {
+				builder.add(ms, pos);
+				nextEntryMs = ms + TrackProviderSeekIndex.SCAN_ENTRY_INTERVAL_MS;
+			}
+			samples += frame.samplesPerFrame;
+			pos = TrackProviderSeekIndex.findFrame(reader, pos + frame.length, frame);
+		}
+		if(0 == builder.mCount) {
+			return null;
+		}
+		builder.add(samples * 1000 / sampleRate, reader.getLength());
+		if(TrackProviderSeekIndex.LOG) Log.w(TrackProviderSeekIndex.TAG, "buildByScanning count=" + builder.mCount + " durationMs=" + samples * 1000 / sampleRate);
+		return builder.build();
+	}
+
+	/**
+	 * Finds the next valid MPEG audio frame at or after pos and parses it into frame
+	 * @return the frame position, or -1 if none found
+	 */
+	private static long findFrame(@NonNull final Reader reader, long pos, @NonNull final Frame frame) throws IOException {
+		final long end = pos + TrackProviderSeekIndex.MAX_RESYNC_BYTES;
+		for(; pos < end; pos++) {
+			if(4 > reader.available(pos, 4)) {
+				return -1;
+			}
+			if(frame.parse(reader.getInt(pos))) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+
+	/** Parsed MPEG audio frame header */
+	private static class Frame {
+		boolean mpeg1;
+		boolean mono;
+		int sampleRate;
+		int samplesPerFrame;
+		int length;
+
+		/** @return true if the header is valid */
+		boolean parse(final int header) {
+			if(0xFFE00000 != (header & 0xFFE00000)) {
+				return false;
+			}
+			final int version = header >> 19 & 3; // 0 - MPEG2.5, 2 - MPEG2, 3 - MPEG1
+			final int layer = header >> 17 & 3; // 1 - L3, 2 - L2, 3 - L1
+			final int bitrateIx = header >> 12 & 0xF;
+			final int sampleRateIx = header >> 10 & 3;
+			if(1 == version || 0 == layer || 0 == bitrateIx || 15 == bitrateIx || 3 == sampleRateIx) {
+				return false;
+			}
+			final boolean mpeg1 = 3 == version;
+			final int layerIx = 3 - layer; // 0 - L1, 1 - L2, 2 - L3
+			final int bitrate = (mpeg1 ? TrackProviderSeekIndex.MPEG1_BITRATES : TrackProviderSeekIndex.MPEG2_BITRATES)[layerIx][bitrateIx] * 1000;
+			int sampleRate = TrackProviderSeekIndex.MPEG1_SAMPLE_RATES[sampleRateIx];
+			if(2 == version) {
+				sampleRate /= 2;
+			} else if(0 == version) {
+				sampleRate /= 4;
+			}
+			final int padding = header >> 9 & 1;
+
+			this.mpeg1 = mpeg1;
+			this.mono = 3 == (header >> 6 & 3);
+			this.sampleRate = sampleRate;
+			if(0 == layerIx) {
+				this.samplesPerFrame = 384;
+				this.length = (12 * bitrate / sampleRate + padding) * 4;
+			} else {
+				this.samplesPerFrame = 2 == layerIx && !mpeg1 ? 576 : 1152;
+				this.length = this.samplesPerFrame / 8 * bitrate / sampleRate + padding;
+			}
+			return 0 < this.length;
+		}
+	}
+
+	/** Grows the entries arrays, keeps them ascending by skipping non-monotonic entries */
+	private static class Builder {
+		long[] mMs = new long[128];
+		long[] mBytes = new long[128];
+		int mCount;
+
+		void add(final long ms, final long bytes) {
+			if(0 < this.mCount && (this.mMs[this.mCount - 1] >= ms || this.mBytes[this.mCount - 1] > bytes)) {
+				return;
+			}
+			if(this.mCount == this.mMs.length) {
+				this.mMs = Arrays.copyOf(this.mMs, this.mCount * 2);
+				this.mBytes = Arrays.copyOf(this.mBytes, this.mCount * 2);
+			}
+			this.mMs[this.mCount] = ms;
+			this.mBytes[this.mCount] = bytes;
+			this.mCount++;
+		}
+
+		@Nullable TrackProviderSeekIndex build() {
+			if(2 > this.mCount) {
+				return null;
+			}
+			return new TrackProviderSeekIndex(this.mMs, this.mBytes, this.mCount);
+		}
+	}
+
+	/** Big-endian positional reader over the file channel with a read window, so frames scanning doesn't cause a read per frame */
+	private static class Reader {
+		private final @NonNull FileChannel mChannel;
+		private final long mLength;
+		private final @NonNull ByteBuffer mWindow;
+		private long mWindowPos;
+
+		Reader(@NonNull final FileChannel channel) throws IOException {
+			this.mChannel = channel;
+			this.mLength = channel.size();
+			this.mWindow = ByteBuffer.allocate(TrackProviderSeekIndex.READ_WINDOW_SIZE);
+			this.mWindow.order(ByteOrder.BIG_ENDIAN);
+			this.mWindow.limit(0);
+		}
+
+		long getLength() {
+			return this.mLength;
+		}
+
+		/**
+		 * Ensures pos..pos+size is in the window
+		 * @return number of bytes available at pos, up to size
+		 */
+		int available(final long pos, final int size) throws IOException {
+			if(pos < this.mWindowPos || pos + size > this.mWindowPos + this.mWindow.limit()) {
+				final ByteBuffer window = this.mWindow;
+				window.clear();
+				int res;
+				long readPos = pos;
+				while(window.hasRemaining() && 0 < (res = this.mChannel.read(window, readPos))) {
+					readPos += res;
+				}
+				window.flip();
+				this.mWindowPos = pos;
+			}
+			return (int)Math.max(0, Math.min(size, this.mWindowPos + this.mWindow.limit() - pos));
+		}
+
+		byte getByte(final long pos) {
+			return this.mWindow.get((int)(pos - this.mWindowPos));
+		}
+
+		short getShort(final long pos) {
+			return this.mWindow.getShort((int)(pos - this.mWindowPos));
+		}
+
+		int getInt24(final long pos) {
+			return (this.getByte(pos) & 0xFF) << 16 | (this.getByte(pos + 1) & 0xFF) << 8 | (this.getByte(pos + 2) & 0xFF);
+		}
+
+		int getInt(final long pos) {
+			return this.mWindow.getInt((int)(pos - this.mWindowPos));
+		}
+
+		long getLong(final long pos) {
+			return this.mWindow.getLong((int)(pos - this.mWindowPos));
+		}
+	}
+
+
+	/**
+	 * Small LRU cache of the indexes per document id. Thread-safe
+	 */
+	public static class Cache {
+		/** Marks documents for which index can't be built, so we don't retry */
+		private static final TrackProviderSeekIndex NONE = new TrackProviderSeekIndex(new long[0], new long[0], 0);
+
+		private final @NonNull LinkedHashMap<String, TrackProviderSeekIndex> mIndexes;
+
+		public Cache(final int maxEntries) {
+			this.mIndexes = new LinkedHashMap<String, TrackProviderSeekIndex>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, TrackProviderSeekIndex> eldest) {
+					return maxEntries < this.size();
+				}
+			};
+		}
+
+		/**
+		 * Returns the cached index, or builds it for the given file
+		 * @return the index, or null if it can't be built for the file
+		 */
+		public @Nullable TrackProviderSeekIndex getOrBuild(@NonNull final String documentId, @NonNull final FileChannel fc) {
+			TrackProviderSeekIndex index;
+			synchronized(this.mIndexes) {
+				index = this.mIndexes.get(documentId);
+			}
+			if(null == index) {
+				try {
+					index = TrackProviderSeekIndex.build(fc); // Building out of the lock, so other documents are not blocked
+				} catch(final IOException ex) {
+					Log.e(TrackProviderSeekIndex.TAG, "documentId=" + documentId, ex);
+				}
+				if(null == index) {
+					index = Cache.NONE;
+				}
+				synchronized(this.mIndexes) {
+					this.mIndexes.put(documentId, index);
+				}
+			}
+			return Cache.NONE == index ? null : index;
+		}
+
+		public void remove(@NonNull final String documentId) {
+			synchronized(this.mIndexes) {
+				this.mIndexes.remove(documentId);
+			}
+		}
+	}
+}
@@ -0,0 +1,405 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link TrackProviderSource} keeping small pre-read windows at the likely seek targets, so the seeks to these targets are answered from memory:
+ * the seek result and the first data after it don't wait for the (possibly remote) source.<br>
+ * The likely targets are predicted by the shared {@link Predictor}: the track start (repeat song), the Poweramp bookmark offsets, the past seek targets for this document
+ * and the last seek position.<br><br>
+ *
+ * The window at the track start and the window after each missed seek are captured from the data read anyway. Other windows are pre-read on a background thread via
+ * a separate source instance, if the window opener is given.<br>
+ * After a seek hit, the data is served from the window while the wrapped source seek is deferred until the window is consumed, so the source latency is hidden
+ * behind Poweramp buffering.<br>
+ * NOTE: the wrapped source is accessed from the calling thread only, same as any {@link TrackProviderSource}
+ */
+public class TrackProviderSeekPrefetcher implements TrackProviderSource {
+	private static final String TAG = "TrackProviderSeekPrefetcher";
+	private static final boolean LOG = false;
+
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_WINDOWS = 8;
+
+	/** Delay before the next window read attempt if the window source returned no data */
+	private static final long SOURCE_RETRY_DELAY_MS = 10;
+
+	/**
+	 * Learns the seek targets per document. Shared by all the sessions of the provider.<br>
+	 * THREADING: any
+	 */
+	public static class Predictor {
+		/** Past seek targets are quantized to this, so the close seeks are counted as the same target */
+		private static final int TARGET_QUANTUM = 4 * 1024;
+		/** Number of the most frequent past targets predicted */
+		private static final int MAX_PAST_TARGETS = 4;
+
+		private static class DocState {
+			/** Quantized target => seek count */
+			final @NonNull LinkedHashMap<Long, Integer> targets = new LinkedHashMap<>();
+			long lastTarget = -1;
+			long @NonNull[] bookmarksMs = new long[0];
+		}
+
+		private final int mMaxDocuments;
+		/** Guarded by this */
+		private final @NonNull LinkedHashMap<String, DocState> mDocs;
+
+		public Predictor(final int maxDocuments) {
+			this.mMaxDocuments = maxDocuments;
+			this.mDocs = new LinkedHashMap<String, DocState>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, DocState> eldest) {
+					return Predictor.this.mMaxDocuments < this.size();
+				}
+			};
+		}
+
+		private @NonNull DocState getDocLocked(@NonNull final String documentId) {
+			DocState doc = this.mDocs.get(documentId);
+			if(null == doc) {
+				doc = new DocState();
+				this.mDocs.put(documentId, doc);
+			}
+			return doc;
+		}
+
+		/** Records the seek target, as resolved to the byte position */
+		public synchronized void onSeek(@NonNull final String documentId, final long targetBytes) {
+			final DocState doc = this.getDocLocked(documentId);
+			final long quantized = targetBytes / Predictor.TARGET_QUANTUM * Predictor.TARGET_QUANTUM;
+			final Integer count = doc.targets.get(quantized);
+			doc.targets.put(quantized, null == count ? 1 : count + 1);
+			doc.lastTarget = targetBytes;
+		}
+
+		/** Sets the bookmark offsets for the document, e.g. from {@link #queryPowerampBookmarksMs} */
+		public synchronized void setBookmarksMs(@NonNull final String documentId, final long @NonNull[] bookmarksMs) {
+			this.getDocLocked(documentId).bookmarksMs = bookmarksMs.clone();
+		}
+
+		/**
+		 * @param seekIndex used to resolve the bookmarks ms to the byte offsets. If null, the bookmarks are not predicted
+		 * @return the likely seek targets in the byte offsets, most likely first, without duplicates
+		 */
+		public synchronized long @NonNull[] getTargets(@NonNull final String documentId, @Nullable final TrackProviderSeekIndex seekIndex) {
+			final ArrayList<Long> res = new ArrayList<>();
+			res.add(0L); // Repeat song and seeks to the start are always likely
+			final DocState doc = this.mDocs.get(documentId);
+			if(null != doc) {
+				if(0 <= doc.lastTarget) {
+					addUnique(res, doc.lastTarget);
+				}
+				if(null != seekIndex) {
+					for(final long ms : doc.bookmarksMs) {
+						final long pos = seekIndex.getBytePos(ms);
+						if(0 <= pos) {
+							addUnique(res, pos);
+						}
+					}
+				}
+				// Most frequent past targets
+				final ArrayList<Map.Entry<Long, Integer>> targets = new ArrayList<>(doc.targets.entrySet());
+				Collections.sort(targets, (o1, o2) -> o2.getValue() - o1.getValue());
+				for(int i = 0; i < targets.size() && i < Predictor.MAX_PAST_TARGETS; i++) {
+					addUnique(res, targets.get(i).getKey());
+				}
+			}
+			final long[] arr = new long[res.size()];
+			for(int i = 0; i < arr.length; i++) {
+				arr[i] = res.get(i);
+			}
+			return arr;
+		}
+
+		private static void addUnique(@NonNull final ArrayList<Long> list, final long value) {
+			if(!list.contains(value)) {
+				list.add(value);
+			}
+		}
+
+		/**
+		 * Queries Poweramp bookmarks for the track. Requires Poweramp data access, see PowerampAPI.ROOT_URI
+		 * @param folderFileId Poweramp folder file id of the track, see {@link TableDefs.Bookmarks#FOLDER_FILE_ID}
+		 * @return the bookmark offsets, ms, or an empty array if none or on error
+		 */
+		public static long @NonNull[] queryPowerampBookmarksMs(@NonNull final Context context, final long folderFileId) {
+			try(Cursor c = context.getContentResolver().query(PowerampAPI.ROOT_URI.buildUpon().appendEncodedPath("bookmarks").build(),
+					new String[] { TableDefs.Bookmarks.OFFSET_MS }, TableDefs.Bookmarks.FOLDER_FILE_ID + "=?", new String[] { Long.toString(folderFileId) }, null)
+			) {
+				if(null == c) {
+					return new long[0];
+				}
+				final long[] res = new long[c.getCount()];
+				int count = 0;
+				while(c.moveToNext()) {
+					res[count++] = c.getLong(0);
+				}
+				return Arrays.copyOf(res, count);
+			} catch(final Throwable th) {
+				Log.e(TrackProviderSeekPrefetcher.TAG, "folderFileId=" + folderFileId, th);
+				return new long[0];
+			}
+		}
+	}
+
+	private static class Window {
+		final long start;
+		final byte @NonNull[] data;
+		int len;
+
+		Window(final long start, final int size) {
+			this.start = start;
+			this.data = new byte[size];
+		}
+
+		boolean contains(final long pos) {
+			return this.start <= pos && this.start + this.len > pos;
+		}
+	}
+
+	private final @NonNull String mDocumentId;
+	private final @NonNull TrackProviderSource mSource;
+	private final @NonNull Predictor mPredictor;
+	private final int mWindowSize;
+	private final int mMaxWindows;
+	private final long mLength;
+
+	/** Guarded by itself */
+	private final @NonNull ArrayList<Window> mWindows = new ArrayList<>();
+	/** Window the data is currently served from, or null */
+	private @Nullable Window mWindow;
+	/** Window being captured from the source reads, or null */
+	private @Nullable Window mCapture;
+	private long mPos;
+	/** True if the wrapped source is not at mPos (after a window hit) */
+	private boolean mSourceSeekPending;
+	private volatile boolean mClosed;
+
+	private long mHitCount;
+	private long mMissCount;
+
+
+	/**
+	 * @param documentId the document id used for the prediction
+	 * @param source the wrapped source, positioned at 0. Owned by this source
+	 * @param windowOpener if not null, opens a separate source instance used to pre-read the predicted windows on a background thread
+	 * @param seekIndex optional seek index, used to resolve the bookmark offsets
+	 * @param predictor the shared predictor
+	 */
+	public TrackProviderSeekPrefetcher(@NonNull final String documentId, @NonNull final TrackProviderSource source,
+			@Nullable final TrackProviderEagerSource.Opener windowOpener, @Nullable final TrackProviderSeekIndex seekIndex, @NonNull final Predictor predictor
+	) {
+		this.mDocumentId = documentId;
+		this.mSource = source;
+		this.mPredictor = predictor;
+		this.mWindowSize = TrackProviderSeekPrefetcher.DEFAULT_WINDOW_SIZE;
+		this.mMaxWindows = TrackProviderSeekPrefetcher.DEFAULT_MAX_WINDOWS;
+		this.mLength = source.getLength();
+		this.mCapture = new Window(0, this.mWindowSize); // Track start window is captured from the initial reads
+
+		if(null != windowOpener) {
+			final long[] targets = predictor.getTargets(documentId, seekIndex);
+			if(1 < targets.length) { // Track start is always captured
+				new Thread(() -> this.runPreRead(windowOpener, targets), TrackProviderSeekPrefetcher.TAG).start();
+			}
+		}
+	}
+
+	@Override
+	public long getLength() {
+		return this.mLength;
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer buf) throws IOException {
+		final Window window = this.mWindow;
+		if(null != window && window.contains(this.mPos)) {
+			final int offset = (int)(this.mPos - window.start);
+			final int size = Math.min(buf.remaining(), window.len - offset);
+			buf.put(window.data, offset, size);
+			this.mPos += size;
+			return size;
+		}
+		this.mWindow = null;
+
+		if(this.mSourceSeekPending) {
+			// Deferred source seek after the window hit
+			if(this.mPos != this.mSource.seek(this.mPos, -1)) throw new IOException("deferred seek failed pos=" + this.mPos);
+			this.mSourceSeekPending = false;
+		}
+
+		final int startPos = buf.position();
+		final int res = this.mSource.read(buf);
+		if(0 < res) {
+			this.capture(buf, startPos, res);
+			this.mPos += res;
+		}
+		return res;
+	}
+
+	/** Copies the just read data into the capture window, if any */
+	private void capture(@NonNull final ByteBuffer buf, final int startPos, final int size) {
+		final Window capture = this.mCapture;
+		if(null == capture) {
+			return;
+		}
+		if(capture.start + capture.len != this.mPos) { // Not contiguous
+			this.mCapture = null;
+			return;
+		}
+		final int copy = Math.min(size, capture.data.length - capture.len);
+		final ByteBuffer dup = buf.duplicate();
+		dup.position(startPos);
+		dup.get(capture.data, capture.len, copy);
+		capture.len += copy;
+		if(capture.data.length == capture.len || this.mLength == capture.start + capture.len) {
+			this.addWindow(capture);
+			this.mCapture = null;
+		}
+	}
+
+	/**
+	 * Answers the seek from a window if possible (the source seek is deferred), otherwise seeks the source and captures the window at the new position
+	 */
+	@Override
+	public long seek(final long offsetBytes, final int ms) throws IOException {
+		final long target = 0 <= offsetBytes ? offsetBytes : this.mLength + offsetBytes;
+		if(0 <= target && this.mLength >= target) {
+			this.mPredictor.onSeek(this.mDocumentId, target);
+		}
+		this.mCapture = null;
+
+		final Window window = this.findWindow(target);
+		if(null != window) {
+			this.mHitCount++;
+			if(TrackProviderSeekPrefetcher.LOG) Log.w(TrackProviderSeekPrefetcher.TAG, "seek HIT target=" + target + " window=" + window.start);
+			this.mWindow = window;
+			this.mPos = target;
+			this.mSourceSeekPending = true;
+			return target;
+		}
+
+		this.mMissCount++;
+		this.mWindow = null;
+		final long newPos = this.mSource.seek(offsetBytes, ms);
+		if(0 <= newPos) {
+			this.mPos = newPos;
+			this.mSourceSeekPending = false;
+			if(this.mLength > newPos) {
+				this.mCapture = new Window(newPos, this.mWindowSize); // So the next seek to the same position hits
+			}
+		}
+		if(TrackProviderSeekPrefetcher.LOG) Log.w(TrackProviderSeekPrefetcher.TAG, "seek MISS target=" + target + " newPos=" + newPos);
+		return newPos;
+	}
+
+	private @Nullable Window findWindow(final long pos) {
+		synchronized(this.mWindows) {
+			for(final Window window : this.mWindows) {
+				if(window.contains(pos)) {
+					return window;
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Adds the complete window, replacing the oldest one over mMaxWindows. The track start window is never replaced */
+	private void addWindow(@NonNull final Window window) {
+		synchronized(this.mWindows) {
+			if(this.mMaxWindows <= this.mWindows.size()) {
+				for(int i = 0; i < this.mWindows.size(); i++) {
+					if(0 != this.mWindows.get(i).start) {
+						this.mWindows.remove(i);
+						break;
+					}
+				}
+			}
+			this.mWindows.add(window);
+		}
+	}
+
+	/** Pre-reads the windows at the predicted targets via a separate source. THREADING: pre-read thread */
+	private void runPreRead(@NonNull final TrackProviderEagerSource.Opener opener, final long @NonNull[] targets) {
+		if(TrackProviderSeekPrefetcher.LOG) Log.w(TrackProviderSeekPrefetcher.TAG, "runPreRead targets=" + Arrays.toString(targets));
+		try(TrackProviderSource source = opener.open()) {
+			for(int i = 0; i < targets.length && i < this.mMaxWindows; i++) {
+				final long target = targets[i];
+				if(0 == target || this.mClosed || null != this.findWindow(target)) {
+					continue; // Track start is captured from the initial reads
+				}
+				final long start = source.seek(target, -1);
+				if(target != start) {
+					continue;
+				}
+				final Window window = new Window(start, this.mWindowSize);
+				final ByteBuffer buf = ByteBuffer.wrap(window.data);
+				while(buf.hasRemaining() && !this.mClosed) {
+					final int res = source.read(buf);
+					if(0 > res) {
+						break;
+					} else if(0 == res) {
+						Thread.sleep(TrackProviderSeekPrefetcher.SOURCE_RETRY_DELAY_MS);
+					}
+				}
+				window.len = buf.position();
+				if(0 < window.len) {
+					this.addWindow(window);
+				}
+			}
+		} catch(final IOException | InterruptedException ex) {
+			Log.e(TrackProviderSeekPrefetcher.TAG, "", ex);
+		}
+	}
+
+	/** @return number of the seeks answered from the windows */
+	public long getHitCount() {
+		return this.mHitCount;
+	}
+
+	/** @return number of the seeks passed to the source */
+	public long getMissCount() {
+		return this.mMissCount;
+	}
+
+	@Override
+	public void close() {
+		this.mClosed = true;
+		this.mSource.close();
+		if(TrackProviderSeekPrefetcher.LOG) Log.w(TrackProviderSeekPrefetcher.TAG, "close hits=" + this.mHitCount + " misses=" + this.mMissCount);
+	}
+}
@@ -0,0 +1,733 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves any number of seekable socket sessions (the same protocol as {@link TrackProviderProto}) from a single thread.<br>
+ * Each session is driven by its own state machine from the single {@link Os#poll} loop over all the session sockets, with non-blocking sends and receives,
+ * so the number of threads stays fixed no matter how many sessions Poweramp holds open (paused tracks, gapless preloads, crossfades, rescans, etc.)<br><br>
+ *
+ * The packets are composed by the same code {@link TrackProviderProto} uses, so the sessions support the same PROTO_CAP_* negotiation: the larger packets
+ * and the length updates, see {@link SessionConfig} and {@link #sendLength}. The sessions can be measured with the same {@link TrackProviderProtoMetrics}
+ * and {@link TrackProviderProtoTrace}.<br>
+ * {@link TrackProviderProto.SeekCheckPolicy} doesn't apply here, as the poll loop sees the seek request as soon as it arrives, and the queued data packet is dropped.<br><br>
+ *
+ * NOTE: by default, each source is wrapped into {@link TrackProviderReadAhead}, so the source reads and seeks happen on the read-ahead thread and never block
+ * the server thread, where any delay delays all other sessions. The read-ahead seeks missing its buffer don't block the server either, the session just waits
+ * for the seek result. The source passed as {@link TrackProviderReadAhead} is used as is.<br>
+ * {@link SessionConfig#readAhead} can be disabled for the sources which never block, so no extra thread is used per session. Such sources
+ * should return 0 from {@link TrackProviderSource#read} if they can't provide data immediately, and call {@link #wakeup()} once data is available.<br>
+ * A source throwing an unchecked exception closes only its own session
+ */
+public class TrackProviderServer implements AutoCloseable {
+	private static final String TAG = "TrackProviderServer";
+	private static final boolean LOG = false;
+
+	/** Maximum packets sent per session per poll loop iteration, so a fast session doesn't starve the others */
+	private static final int MAX_PACKETS_PER_TURN = 8;
+
+	/** Maximum data size of the packets we accept from Poweramp (seek and caps packets) */
+	private static final int MAX_INCOMING_DATA_SIZE = 16;
+
+	/** Header packet is queued, waiting to be sent */
+	private static final int SESSION_STATE_HEADER      = 0;
+	/** Sending data packets */
+	private static final int SESSION_STATE_DATA        = 1;
+	/** Source returned no data, waiting for {@link #wakeup()} */
+	private static final int SESSION_STATE_WAIT_SOURCE = 2;
+	/** EOF packet is sent, waiting for the seek request or close */
+	private static final int SESSION_STATE_EOF         = 3;
+	/** Read-ahead seeks the source, waiting for {@link #wakeup()} to send the seek result */
+	private static final int SESSION_STATE_WAIT_SEEK   = 4;
+
+	private static final @NonNull SessionConfig DEFAULT_SESSION_CONFIG = new SessionConfig();
+
+	private static final byte @NonNull[] WAKEUP_BYTES = new byte[1];
+
+	private final @NonNull Object mLock = new Object();
+	/** Sessions opened, but not yet picked up by the server thread. Guarded by mLock */
+	private final @NonNull ArrayList<Session> mNewSessions = new ArrayList<>();
+	/** Guarded by mLock */
+	private @Nullable Thread mThread;
+	/** Guarded by mLock */
+	private boolean mClosed;
+	/** All the sessions not yet closed, including mNewSessions, by the source passed to {@link #open}. Guarded by mLock */
+	private final @NonNull IdentityHashMap<TrackProviderSource, Session> mOpenSessions = new IdentityHashMap<>();
+	/** True if some sessions got the length update via {@link #sendLength}. Guarded by mLock */
+	private boolean mLengthRequested;
+	/** Guarded by mLock */
+	private boolean mWakeupPipeClosed;
+
+	private final @NonNull ParcelFileDescriptor mWakeupReadPfd;
+	private final @NonNull ParcelFileDescriptor mWakeupWritePfd;
+	private final @NonNull AtomicBoolean mWakeupPending = new AtomicBoolean();
+	private final byte @NonNull[] mWakeupReadBuffer = new byte[64];
+
+	/** Sessions served by the server thread. THREADING: server thread */
+	private final @NonNull ArrayList<Session> mSessions = new ArrayList<>();
+	/** Poll fds: wakeup pipe at 0, then sessions. THREADING: server thread */
+	private StructPollfd @NonNull[] mPollFds = new StructPollfd[0];
+
+
+	/**
+	 * Per-session options for {@link #open(ParcelFileDescriptor, TrackProviderSource, SessionConfig)}. The config is read by open() only,
+	 * so the same instance can be reused for many sessions, except the metrics and trace, which are per session
+	 */
+	public static class SessionConfig {
+		/**
+		 * The maximum data packet size offered to Poweramp, {@link TrackProviderProto#MAX_DATA_SIZE}..{@link TrackProviderProto#MAX_NEGOTIATED_DATA_SIZE},
+		 * see {@link TrackProviderProto#TrackProviderProto(TrackProviderTransport, long, int)}. Each session holds a buffer of this size
+		 */
+		public int maxDataSize = TrackProviderProto.MAX_DATA_SIZE;
+		/** If true, the source length is an estimate and the actual length is sent via {@link #sendLength}, see {@link TrackProviderProto#setLengthEstimated} */
+		public boolean lengthEstimated;
+		/** If true, the source is wrapped into {@link TrackProviderReadAhead}. Disable only for the sources which never block */
+		public boolean readAhead = true;
+		/** Optional metrics updated by the session, see {@link TrackProviderProto#setMetrics} */
+		public @Nullable TrackProviderProtoMetrics metrics;
+		/** Optional trace recording the session packet events, see {@link TrackProviderProto#setTrace} */
+		public @Nullable TrackProviderProtoTrace trace;
+	}
+
+	/** Per-session state. THREADING: server thread, except construction */
+	private static class Session {
+		final @NonNull ParcelFileDescriptor pfd;
+		final @NonNull FileDescriptor socket;
+		/** The source passed to {@link #open}, identifies the session for {@link #sendLength} */
+		final @NonNull TrackProviderSource key;
+		/** The source the data is read from: the key or the read-ahead wrapping it */
+		final @NonNull TrackProviderSource source;
+		/** If set, the seeks are started via {@link TrackProviderReadAhead#startSeek} and don't block the server thread */
+		final @Nullable TrackProviderReadAhead readAhead;
+		final @NonNull TrackProviderProtoCodec codec;
+		final boolean lengthEstimated;
+		final @Nullable TrackProviderProtoMetrics metrics;
+		final @Nullable TrackProviderProtoTrace trace;
+		/** Outgoing packet, header + data. position..limit is the part not yet sent */
+		final @NonNull ByteBuffer out;
+		/** Incoming packet being received */
+		final @NonNull ByteBuffer in;
+		int state = TrackProviderServer.SESSION_STATE_HEADER;
+		/** PACKET_TYPE_* of the outgoing packet */
+		short outType = TrackProviderProto.PACKET_TYPE_HEADER;
+		/** True if out contains data packet which wasn't sent at all yet, so it can be dropped on seek */
+		boolean outIsUnsentData;
+		/** Data size of the incoming packet, or -1 if the header is not yet received */
+		int inDataSize = -1;
+		boolean seekPending;
+		final TrackProviderProto.@NonNull SeekRequest seekRequest = new TrackProviderProto.SeekRequest();
+		/** Length passed to {@link #sendLength}, not yet queued in the codec, or -1. Guarded by the server mLock */
+		long requestedLength = -1;
+		boolean requestedLengthFinal;
+
+		Session(@NonNull final ParcelFileDescriptor pfd, @NonNull final FileDescriptor socket, @NonNull final TrackProviderSource key, @NonNull final TrackProviderSource source,
+				@Nullable final TrackProviderReadAhead readAhead, @NonNull final SessionConfig config) {
+			this.pfd = pfd;
+			this.socket = socket;
+			this.key = key;
+			this.source = source;
+			this.readAhead = readAhead;
+			this.codec = new TrackProviderProtoCodec(key.getLength(), config.maxDataSize);
+			this.codec.setLengthEstimated(config.lengthEstimated);
+			this.lengthEstimated = config.lengthEstimated;
+			this.metrics = config.metrics;
+			this.trace = config.trace;
+
+			// Returned to the pool in closeSession()
+			final TrackProviderBufferPool pool = TrackProviderBufferPool.getDefault();
+			this.out = pool.acquire(TrackProviderProto.MAX_PACKET_HEADER_SIZE + config.maxDataSize);
+			this.in = pool.acquire(TrackProviderProto.MAX_PACKET_HEADER_SIZE + TrackProviderServer.MAX_INCOMING_DATA_SIZE);
+
+			this.codec.putHeaderPacket(this.out); // Queue the header packet
+		}
+
+		/** @return true if the queued length update can be sent now. Poweramp ignores all packets between the seek request and the seek result */
+		boolean canSendLength() {
+			return !this.seekPending && SESSION_STATE_HEADER != this.state && SESSION_STATE_WAIT_SEEK != this.state && this.codec.hasLengthToSend();
+		}
+
+		boolean wantsWrite() {
+			return this.out.hasRemaining() || this.seekPending || TrackProviderServer.SESSION_STATE_DATA == this.state || this.canSendLength();
+		}
+	}
+
+
+	public TrackProviderServer() {
+		try {
+			final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+			this.mWakeupReadPfd = pipe[0];
+			this.mWakeupWritePfd = pipe[1];
+		} catch(final IOException ex) {
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		}
+	}
+
+	/**
+	 * Starts serving the session with the default {@link SessionConfig}
+	 * @see #open(ParcelFileDescriptor, TrackProviderSource, SessionConfig)
+	 */
+	public void open(@NonNull final ParcelFileDescriptor pfd, @NonNull final TrackProviderSource source) {
+		this.open(pfd, source, TrackProviderServer.DEFAULT_SESSION_CONFIG);
+	}
+
+	/**
+	 * Starts serving the session. The header is sent by the server, then the source data is sent until Poweramp closes the socket.
+	 * The server owns pfd and source after this call, and closes them once the session is done
+	 * @param pfd the socket pfd created by ParcelFileDescriptor.createSocketPair
+	 * @param source the track data source. Its {@link TrackProviderSource#getLength()} is sent as the file length
+	 * @param config the session options
+	 * @throws IllegalStateException if the server is closed. The caller still owns pfd and source in this case
+	 */
+	@SuppressLint("NewApi")
+	public void open(@NonNull final ParcelFileDescriptor pfd, @NonNull final TrackProviderSource source, @NonNull final SessionConfig config) {
+		if(0 >= source.getLength()) throw new IllegalArgumentException("bad length=" + source.getLength());
+		final FileDescriptor socket = pfd.getFileDescriptor();
+		try {
+			if(null == socket || !OsConstants.S_ISSOCK(Os.fstat(socket).st_mode)) throw new IllegalArgumentException("bad pfd=" + pfd);
+		} catch(final ErrnoException ex) {
+			throw new TrackProviderProto.TrackProviderProtoException(ex);
+		}
+		synchronized(this.mLock) {
+			if(this.mClosed) throw new IllegalStateException("closed");
+		}
+
+		final TrackProviderReadAhead readAhead;
+		if(source instanceof TrackProviderReadAhead) {
+			readAhead = (TrackProviderReadAhead)source;
+		} else if(config.readAhead) {
+			readAhead = new TrackProviderReadAhead(source); // Owns the source now
+		} else {
+			readAhead = null;
+		}
+		if(null != readAhead) {
+			readAhead.setServer(this);
+		}
+		final Session session = new Session(pfd, socket, source, null != readAhead ? readAhead : source, readAhead, config);
+
+		final boolean closed;
+		synchronized(this.mLock) {
+			closed = this.mClosed;
+			if(!closed) {
+				this.mOpenSessions.put(source, session);
+				this.mNewSessions.add(session);
+				if(null == this.mThread) {
+					final Thread thread = new Thread(this::runLoop, TrackProviderServer.TAG);
+					this.mThread = thread;
+					thread.start();
+				}
+			}
+		}
+		if(closed) { // Closed meanwhile. The session already owns the source, so just close it, and Poweramp gets the closed socket
+			this.closeSession(session);
+			return;
+		}
+		this.wakeup();
+	}
+
+	/**
+	 * Sends the updated track length for the session opened with {@link SessionConfig#lengthEstimated}. Can be called from any thread.<br>
+	 * The update is sent by the server thread following the same rules as {@link TrackProviderProto#sendLength}: it's queued until Poweramp answers the header,
+	 * and is dropped if Poweramp doesn't accept the length updates. It's never sent between the seek request and the seek result
+	 * @param source the source passed to {@link #open}
+	 * @param fileLength the new length, > 0
+	 * @param isFinal true if the length is the actual one and won't change anymore
+	 * @return true if the update was queued for the session. False if the session isn't served anymore, or its length wasn't marked as estimated
+	 */
+	public boolean sendLength(@NonNull final TrackProviderSource source, final long fileLength, final boolean isFinal) {
+		if(0 >= fileLength) throw new IllegalArgumentException("bad fileLength=" + fileLength);
+		synchronized(this.mLock) {
+			final Session session = this.mOpenSessions.get(source);
+			if(null == session || !session.lengthEstimated) {
+				if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "sendLength not supported fileLength=" + fileLength);
+				return false;
+			}
+			session.requestedLength = fileLength;
+			session.requestedLengthFinal = isFinal;
+			this.mLengthRequested = true;
+		}
+		this.wakeup();
+		return true;
+	}
+
+	/**
+	 * @return number of sessions currently served
+	 */
+	public int getSessionCount() {
+		synchronized(this.mLock) {
+			return this.mOpenSessions.size();
+		}
+	}
+
+	/**
+	 * Wakes up the server thread, e.g. to continue sessions which sources returned 0 from {@link TrackProviderSource#read}. Can be called from any thread
+	 */
+	public void wakeup() {
+		if(this.mWakeupPending.compareAndSet(false, true)) {
+			synchronized(this.mLock) {
+				if(this.mWakeupPipeClosed) {
+					return;
+				}
+				try {
+					Os.write(this.mWakeupWritePfd.getFileDescriptor(), TrackProviderServer.WAKEUP_BYTES, 0, TrackProviderServer.WAKEUP_BYTES.length);
+				} catch(final ErrnoException | InterruptedIOException ex) {
+					Log.e(TrackProviderServer.TAG, "", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all the sessions and stops the server thread
+	 */
+	@Override
+	public void close() {
+		synchronized(this.mLock) {
+			if(this.mClosed) {
+				return;
+			}
+			this.mClosed = true;
+			if(null == this.mThread) { // Never started
+				this.closeWakeupPipe();
+				return;
+			}
+		}
+		this.wakeup();
+	}
+
+	/** Guarded by mLock */
+	private void closeWakeupPipe() {
+		if(!this.mWakeupPipeClosed) {
+			this.mWakeupPipeClosed = true;
+			TrackProviderServer.closeSilently(this.mWakeupReadPfd);
+			TrackProviderServer.closeSilently(this.mWakeupWritePfd);
+		}
+	}
+
+	/** THREADING: server thread */
+	private void runLoop() {
+		if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "runLoop");
+		final ArrayList<Session> sessions = this.mSessions;
+		try {
+			while(true) {
+				synchronized(this.mLock) {
+					if(this.mClosed) {
+						break;
+					}
+					if(!this.mNewSessions.isEmpty()) {
+						for(final Session session : this.mNewSessions) {
+							sessions.add(session);
+						}
+						this.mNewSessions.clear();
+					}
+				}
+
+				final StructPollfd[] pollFds = this.preparePollFds();
+				try {
+					Os.poll(pollFds, -1);
+				} catch(final ErrnoException ex) {
+					if(ex.errno == OsConstants.EINTR) {
+						continue;
+					}
+					throw new TrackProviderProto.TrackProviderProtoException(ex);
+				}
+
+				if(0 != pollFds[0].revents) {
+					this.drainWakeup();
+				}
+
+				for(int i = sessions.size() - 1; 0 <= i; i--) {
+					final Session session = sessions.get(i);
+					final short revents = pollFds[i + 1].revents;
+					boolean ok = true;
+					try {
+						if(0 != (revents & (OsConstants.POLLIN | OsConstants.POLLHUP | OsConstants.POLLERR | OsConstants.POLLNVAL))) {
+							ok = this.readIncoming(session);
+						}
+						if(ok && (session.seekPending || 0 != (revents & OsConstants.POLLOUT))) {
+							ok = this.writeOutgoing(session);
+						}
+					} catch(final RuntimeException ex) { // E.g. from the source. Close just this session, the others continue
+						Log.e(TrackProviderServer.TAG, "", ex);
+						ok = false;
+					}
+					if(!ok) {
+						sessions.remove(i);
+						this.closeSession(session);
+					}
+				}
+			}
+		} catch(final Throwable th) {
+			Log.e(TrackProviderServer.TAG, "", th);
+		} finally {
+			final ArrayList<Session> pending;
+			synchronized(this.mLock) {
+				this.mClosed = true;
+				pending = new ArrayList<>(this.mNewSessions);
+				this.mNewSessions.clear();
+			}
+			for(final Session session : sessions) {
+				this.closeSession(session);
+			}
+			sessions.clear();
+			for(final Session session : pending) {
+				this.closeSession(session);
+			}
+			synchronized(this.mLock) {
+				this.closeWakeupPipe();
+			}
+			if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "runLoop DONE");
+		}
+	}
+
+	/**
+	 * Updates poll fds events for the current sessions. The array is reallocated only if the number of sessions changed.
+	 * THREADING: server thread
+	 */
+	private StructPollfd @NonNull[] preparePollFds() {
+		final ArrayList<Session> sessions = this.mSessions;
+		StructPollfd[] pollFds = this.mPollFds;
+		if(pollFds.length != sessions.size() + 1) {
+			pollFds = new StructPollfd[sessions.size() + 1];
+			for(int i = 0; i < pollFds.length; i++) {
+				pollFds[i] = new StructPollfd();
+			}
+			pollFds[0].fd = this.mWakeupReadPfd.getFileDescriptor();
+			pollFds[0].events = (short)OsConstants.POLLIN;
+			this.mPollFds = pollFds;
+		}
+		pollFds[0].revents = 0;
+		for(int i = 0, size = sessions.size(); i < size; i++) {
+			final Session session = sessions.get(i);
+			final StructPollfd pollFd = pollFds[i + 1];
+			pollFd.fd = session.socket;
+			pollFd.events = (short)(session.wantsWrite() ? OsConstants.POLLIN | OsConstants.POLLOUT : OsConstants.POLLIN);
+			pollFd.revents = 0;
+		}
+		return pollFds;
+	}
+
+	/** THREADING: server thread */
+	private void drainWakeup() {
+		this.mWakeupPending.set(false); // Reset before reading, so wakeup() racing with us writes another byte
+		try {
+			Os.read(this.mWakeupReadPfd.getFileDescriptor(), this.mWakeupReadBuffer, 0, this.mWakeupReadBuffer.length);
+		} catch(final ErrnoException | InterruptedIOException ex) {
+			Log.e(TrackProviderServer.TAG, "", ex);
+		}
+		// Sources waiting for data or seeks may be ready now
+		for(final Session session : this.mSessions) {
+			if(SESSION_STATE_WAIT_SOURCE == session.state) {
+				session.state = TrackProviderServer.SESSION_STATE_DATA;
+			} else if(SESSION_STATE_WAIT_SEEK == session.state) {
+				this.pollSeekResult(session);
+			}
+		}
+		synchronized(this.mLock) {
+			if(this.mLengthRequested) {
+				this.mLengthRequested = false;
+				for(final Session session : this.mOpenSessions.values()) { // Also the new sessions, not yet in mSessions
+					if(0 <= session.requestedLength) {
+						if(!session.codec.queueLength(session.requestedLength, session.requestedLengthFinal) && TrackProviderServer.LOG) {
+							Log.w(TrackProviderServer.TAG, "drainWakeup length update not accepted fileLength=" + session.requestedLength);
+						}
+						session.requestedLength = -1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receives incoming packets without blocking
+	 * THREADING: server thread
+	 * @return false if the session should be closed
+	 */
+	private boolean readIncoming(@NonNull final Session session) {
+		final ByteBuffer in = session.in;
+		try {
+			while(true) {
+				in.limit(0 > session.inDataSize ? TrackProviderProto.MAX_PACKET_HEADER_SIZE : TrackProviderProto.MAX_PACKET_HEADER_SIZE + session.inDataSize);
+
+				final TrackProviderProtoMetrics metrics = session.metrics;
+				if(null != metrics) metrics.onSyscall();
+				final int res = Os.recvfrom(session.socket, in, OsConstants.MSG_DONTWAIT, null);
+				if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(in, res);
+				if(0 >= res) {
+					if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "readIncoming EOF");
+					return false; // Poweramp closed the socket
+				}
+
+				if(0 > session.inDataSize) {
+					if(TrackProviderProto.MAX_PACKET_HEADER_SIZE > in.position()) {
+						continue; // Partial header
+					}
+					final int dataSize = TrackProviderProto.getPacketDataSize(in);
+					if(TrackProviderProto.PACKET_TAG != in.getInt(0) || MAX_INCOMING_DATA_SIZE < dataSize) {
+						Log.e(TrackProviderServer.TAG, "readIncoming FAIL bad packet dataSize=" + dataSize);
+						return false;
+					}
+					session.inDataSize = dataSize;
+				}
+
+				if(TrackProviderProto.MAX_PACKET_HEADER_SIZE + session.inDataSize == in.position()) {
+					this.handleIncomingPacket(session);
+					in.clear();
+					session.inDataSize = -1;
+				}
+			}
+		} catch(final ErrnoException ex) {
+			if(ex.errno == OsConstants.EAGAIN) {
+				return true; // Nothing more to read for now
+			}
+			if(TrackProviderServer.LOG || (ex.errno != OsConstants.ECONNRESET && ex.errno != OsConstants.EPIPE)) Log.e(TrackProviderServer.TAG, "", ex);
+			return false;
+		} catch(final SocketException ex) {
+			Log.e(TrackProviderServer.TAG, "", ex);
+			return false;
+		}
+	}
+
+	/** THREADING: server thread */
+	private void handleIncomingPacket(@NonNull final Session session) {
+		final ByteBuffer in = session.in;
+		final int type = in.getShort(4);
+		if(TrackProviderProto.PACKET_TYPE_SEEK == type && TrackProviderProto.LONG_BYTES <= session.inDataSize) {
+			final TrackProviderProto.SeekRequest seekRequest = session.seekRequest;
+			TrackProviderProtoCodec.getSeekRequest(in, session.inDataSize, seekRequest);
+			session.seekPending = true;
+			if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "handleIncomingPacket seek offsetBytes=" + seekRequest.offsetBytes + " ms=" + seekRequest.ms);
+			final TrackProviderProtoMetrics metrics = session.metrics;
+			if(null != metrics) metrics.onSeekRequest(System.nanoTime());
+			final TrackProviderProtoTrace trace = session.trace;
+			if(null != trace) trace.onSeekRequest(System.nanoTime(), seekRequest.offsetBytes, seekRequest.ms);
+
+			if(session.outIsUnsentData) { // Drop the data packet queued for the old position
+				session.out.clear().limit(0);
+				session.outIsUnsentData = false;
+			}
+		} else if(TrackProviderProto.PACKET_TYPE_CAPS == type && 2 * TrackProviderProto.INTEGER_BYTES <= session.inDataSize) {
+			session.codec.applyCapsPacket(in);
+			if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "handleIncomingPacket caps maxDataSize=" + session.codec.getMaxDataSize());
+		} else if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "handleIncomingPacket IGNORE type=" + type);
+	}
+
+	/**
+	 * Sends the queued packet and prepares the next ones, until the socket would block or the per-turn packet limit is reached
+	 * THREADING: server thread
+	 * @return false if the session should be closed
+	 */
+	private boolean writeOutgoing(@NonNull final Session session) {
+		final ByteBuffer out = session.out;
+		int packets = 0;
+		try {
+			while(true) {
+				if(out.hasRemaining()) {
+					final TrackProviderProtoMetrics metrics = session.metrics;
+					if(null != metrics) metrics.onSend(0); // Never blocks
+					final int res = Os.sendto(session.socket, out, OsConstants.MSG_DONTWAIT, null, 0);
+					if(21 == Build.VERSION.SDK_INT) TrackProviderProto.maybeUpdateBufferPosition(out, res);
+					session.outIsUnsentData = false;
+					if(out.hasRemaining()) {
+						continue;
+					}
+					this.onPacketSent(session);
+				}
+
+				// The whole packet is sent here, so we can respond to the seek request
+				if(session.seekPending) {
+					this.startSeek(session);
+					continue;
+				}
+
+				if(session.canSendLength()) {
+					session.codec.putLengthPacket(out);
+					session.outType = TrackProviderProto.PACKET_TYPE_LENGTH;
+					continue;
+				}
+
+				if(SESSION_STATE_DATA != session.state || MAX_PACKETS_PER_TURN <= packets) {
+					return true;
+				}
+				packets++;
+
+				out.clear();
+				out.limit(TrackProviderProto.PACKET_DATA_IX + session.codec.getMaxDataSize()); // Until Poweramp accepts the larger packets, it's smaller than the capacity
+				out.position(TrackProviderProto.PACKET_DATA_IX);
+				session.outType = TrackProviderProto.PACKET_TYPE_DATA;
+				final int res = session.source.read(out);
+				if(0 < res) {
+					TrackProviderProto.putPacketHeader(out, 0, TrackProviderProto.PACKET_TYPE_DATA, res, 0);
+					out.limit(TrackProviderProto.PACKET_DATA_IX + res);
+					out.position(0);
+					session.outIsUnsentData = true;
+
+				} else if(0 == res) {
+					out.clear().limit(0);
+					session.state = TrackProviderServer.SESSION_STATE_WAIT_SOURCE;
+					return true;
+
+				} else {
+					// EOF. Send empty data packet and keep the session until Poweramp closes it, as it still may seek, see TrackProviderProto.sendEOFAndWaitForSeekOrClose
+					TrackProviderProto.putPacketHeader(out, 0, TrackProviderProto.PACKET_TYPE_DATA, 0, 0);
+					out.limit(TrackProviderProto.PACKET_DATA_IX);
+					out.position(0);
+					session.state = TrackProviderServer.SESSION_STATE_EOF;
+				}
+			}
+		} catch(final ErrnoException ex) {
+			if(ex.errno == OsConstants.EAGAIN) {
+				return true; // Socket is full, wait for POLLOUT
+			}
+			if(TrackProviderServer.LOG || (ex.errno != OsConstants.ECONNRESET && ex.errno != OsConstants.EPIPE)) Log.e(TrackProviderServer.TAG, "", ex);
+			return false;
+		} catch(final IOException ex) { // Includes SocketException
+			Log.e(TrackProviderServer.TAG, "", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Records the packet fully sent in the session metrics and trace
+	 * THREADING: server thread
+	 */
+	private void onPacketSent(@NonNull final Session session) {
+		final ByteBuffer out = session.out;
+		final TrackProviderProtoMetrics metrics = session.metrics;
+		final TrackProviderProtoTrace trace = session.trace;
+		switch(session.outType) {
+			case TrackProviderProto.PACKET_TYPE_HEADER:
+				session.state = TrackProviderServer.SESSION_STATE_DATA;
+				if(null != metrics) metrics.onHeaderSent(System.nanoTime());
+				if(null != trace) trace.onHeaderSent(System.nanoTime(), session.codec.getFileLength());
+				break;
+			case TrackProviderProto.PACKET_TYPE_DATA:
+				final int dataSize = TrackProviderProto.getPacketDataSize(out);
+				if(null != metrics) metrics.onDataSent(1, dataSize);
+				if(null != trace) trace.onDataSent(dataSize);
+				break;
+			case TrackProviderProto.PACKET_TYPE_SEEK_RES:
+				if(null != metrics) metrics.onSeekResult(System.nanoTime());
+				if(null != trace) trace.onSeekResult(System.nanoTime(), out.getLong(TrackProviderProto.PACKET_DATA_IX));
+				break;
+			case TrackProviderProto.PACKET_TYPE_LENGTH:
+				if(null != trace) trace.onLength(System.nanoTime(), out.getLong(TrackProviderProto.PACKET_DATA_IX));
+				break;
+		}
+	}
+
+	/**
+	 * Seeks the source and queues the seek result. For the read-ahead missing its buffer, the source seek is started on the read-ahead thread, and the session
+	 * waits for the result, see {@link #pollSeekResult}
+	 * THREADING: server thread
+	 */
+	private void startSeek(@NonNull final Session session) {
+		session.seekPending = false;
+		final TrackProviderProto.SeekRequest seekRequest = session.seekRequest;
+		final TrackProviderReadAhead readAhead = session.readAhead;
+		long newPos;
+		try {
+			newPos = null != readAhead ? readAhead.startSeek(seekRequest.offsetBytes, seekRequest.ms) : session.source.seek(seekRequest.offsetBytes, seekRequest.ms);
+		} catch(final IOException ex) {
+			Log.e(TrackProviderServer.TAG, "seekOffsetBytes=" + seekRequest.offsetBytes, ex);
+			newPos = -1;
+		}
+		if(TrackProviderReadAhead.SEEK_PENDING == newPos) {
+			if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "startSeek pending");
+			session.out.clear().limit(0);
+			session.outIsUnsentData = false;
+			session.state = TrackProviderServer.SESSION_STATE_WAIT_SEEK;
+			return;
+		}
+		this.queueSeekResult(session, newPos);
+	}
+
+	/** THREADING: server thread */
+	private void pollSeekResult(@NonNull final Session session) {
+		final TrackProviderReadAhead readAhead = session.readAhead;
+		if(null == readAhead) throw new AssertionError();
+		long newPos;
+		try {
+			newPos = readAhead.pollSeekResult();
+		} catch(final IOException ex) {
+			Log.e(TrackProviderServer.TAG, "", ex);
+			newPos = -1;
+		}
+		if(TrackProviderReadAhead.SEEK_PENDING != newPos) {
+			this.queueSeekResult(session, newPos);
+		}
+	}
+
+	/** THREADING: server thread */
+	private void queueSeekResult(@NonNull final Session session, final long newPos) {
+		if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "queueSeekResult newPos=" + newPos);
+		TrackProviderProtoCodec.putSeekResultPacket(session.out, newPos);
+		session.outType = TrackProviderProto.PACKET_TYPE_SEEK_RES;
+		session.outIsUnsentData = false;
+		session.state = TrackProviderServer.SESSION_STATE_DATA; // Continue sending data from the new position, also after EOF
+	}
+
+	/** THREADING: server thread, or the open() caller if the server is closed meanwhile */
+	private void closeSession(@NonNull final Session session) {
+		if(TrackProviderServer.LOG) Log.w(TrackProviderServer.TAG, "closeSession");
+		try {
+			Os.shutdown(session.socket, 0);
+		} catch(final ErrnoException ex) {
+			if(TrackProviderServer.LOG) Log.e(TrackProviderServer.TAG, "", ex);
+		}
+		TrackProviderServer.closeSilently(session.pfd);
+		session.source.close();
+		final TrackProviderBufferPool pool = TrackProviderBufferPool.getDefault();
+		pool.release(session.out);
+		pool.release(session.in);
+		synchronized(this.mLock) {
+			this.mOpenSessions.remove(session.key);
+		}
+	}
+
+	private static void closeSilently(@NonNull final ParcelFileDescriptor pfd) {
+		try {
+			pfd.close();
+		} catch(final IOException ex) {
+			Log.e(TrackProviderServer.TAG, "", ex);
+		}
+	}
+}
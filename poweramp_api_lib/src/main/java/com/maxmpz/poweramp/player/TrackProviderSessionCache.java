@@ -0,0 +1,290 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short-lived cache of the track sources of the closed sessions, so when Poweramp closes and reopens the same document within seconds
+ * (pause/resume, output change, track info), the new session reuses the previous source handle (e.g. remote connection), its {@link TrackProviderReadAhead}
+ * buffer and the seek index instead of starting cold.<br><br>
+ *
+ * Usage: wrap the session source with {@link #wrap}. When the session ends and the wrapper is closed, the source is parked here instead of being closed.
+ * The following open for the same document calls {@link #take} first, which seeks the parked source to the requested offset (usually 0, as the new session starts
+ * from the track start) and returns it.<br>
+ * The parked sources not taken within the ttl, or exceeding maxEntries (oldest first), are closed.<br>
+ * THREADING: any
+ */
+public class TrackProviderSessionCache {
+	private static final String TAG = "TrackProviderSessionCache";
+	private static final boolean LOG = false;
+
+	public static final long DEFAULT_TTL_MS = 10000;
+	public static final int DEFAULT_MAX_ENTRIES = 4;
+
+	/** The parked session state */
+	public static class Entry {
+		public final @NonNull TrackProviderSource source;
+		public final @Nullable TrackProviderSeekIndex seekIndex;
+		/** Source position at the moment the session was closed */
+		public final long parkedPos;
+		final long parkedMs;
+
+		Entry(@NonNull final TrackProviderSource source, @Nullable final TrackProviderSeekIndex seekIndex, final long parkedPos, final long parkedMs) {
+			this.source = source;
+			this.seekIndex = seekIndex;
+			this.parkedPos = parkedPos;
+			this.parkedMs = parkedMs;
+		}
+	}
+
+	/** Source parking the wrapped source on close(), see {@link #wrap} */
+	private class ParkingSource implements TrackProviderSource {
+		private final @NonNull String mDocumentId;
+		private final @NonNull TrackProviderSource mSource;
+		private final @Nullable TrackProviderSeekIndex mSeekIndex;
+		private long mPos;
+		private boolean mFailed;
+		private boolean mClosed;
+
+		ParkingSource(@NonNull final String documentId, @NonNull final TrackProviderSource source, @Nullable final TrackProviderSeekIndex seekIndex, final long pos) {
+			this.mDocumentId = documentId;
+			this.mSource = source;
+			this.mSeekIndex = seekIndex;
+			this.mPos = pos;
+		}
+
+		@Override
+		public long getLength() {
+			return this.mSource.getLength();
+		}
+
+		@Override
+		public int read(@NonNull final ByteBuffer buf) throws IOException {
+			try {
+				final int res = this.mSource.read(buf);
+				if(0 < res) {
+					this.mPos += res;
+				}
+				return res;
+			} catch(final IOException ex) {
+				this.mFailed = true; // Don't park the broken source
+				throw ex;
+			}
+		}
+
+		@Override
+		public long seek(final long offsetBytes, final int ms) throws IOException {
+			try {
+				final long newPos = this.mSource.seek(offsetBytes, ms);
+				if(0 <= newPos) {
+					this.mPos = newPos;
+				}
+				return newPos;
+			} catch(final IOException ex) {
+				this.mFailed = true;
+				throw ex;
+			}
+		}
+
+		@Override
+		public void close() {
+			if(this.mClosed) {
+				return;
+			}
+			this.mClosed = true;
+			if(this.mFailed) {
+				this.mSource.close();
+			} else {
+				TrackProviderSessionCache.this.park(this.mDocumentId, this.mSource, this.mSeekIndex, this.mPos);
+			}
+		}
+	}
+
+	private final long mTtlMs;
+	private final int mMaxEntries;
+	/** Insertion ordered, so the oldest entry is evicted first. Guarded by this */
+	private final @NonNull LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+	/** Closes the expired entries, running while there are any entries. Guarded by this */
+	private @Nullable Thread mEvictThread;
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mExpiredCount;
+
+
+	public TrackProviderSessionCache() {
+		this(TrackProviderSessionCache.DEFAULT_TTL_MS, TrackProviderSessionCache.DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param ttlMs the parked sources not taken within this time are closed
+	 * @param maxEntries the maximum number of the parked sources
+	 */
+	public TrackProviderSessionCache(final long ttlMs, final int maxEntries) {
+		if(0 >= ttlMs || 0 >= maxEntries) throw new IllegalArgumentException("ttlMs=" + ttlMs + " maxEntries=" + maxEntries);
+		this.mTtlMs = ttlMs;
+		this.mMaxEntries = maxEntries;
+	}
+
+	/**
+	 * Wraps the session source, so it's parked in this cache on close() instead of being closed. The sources which failed reads or seeks are closed
+	 * @param documentId the document id the source is parked for
+	 * @param source the session source. If this is a source just taken from this cache, pass its Entry.seekIndex along
+	 * @param seekIndex optional seek index, kept along with the source
+	 * @param pos the current source position, usually 0
+	 */
+	public @NonNull TrackProviderSource wrap(@NonNull final String documentId, @NonNull final TrackProviderSource source, @Nullable final TrackProviderSeekIndex seekIndex, final long pos) {
+		return new ParkingSource(documentId, source, seekIndex, pos);
+	}
+
+	/**
+	 * Takes the parked source for the document, seeked to the offset. The source is owned by the caller now
+	 * @param offsetBytes the position the new session starts at, usually 0
+	 * @return the entry, or null if there is no parked source for this document, or the parked source failed to seek
+	 */
+	public @Nullable Entry take(@NonNull final String documentId, final long offsetBytes) {
+		final Entry entry;
+		synchronized(this) {
+			this.evictLocked(SystemClock.elapsedRealtime());
+			entry = this.mEntries.remove(documentId);
+			if(null == entry) {
+				this.mMissCount++;
+				if(TrackProviderSessionCache.LOG) Log.w(TrackProviderSessionCache.TAG, "take MISS documentId=" + documentId);
+				return null;
+			}
+		}
+		try {
+			final long newPos = entry.parkedPos == offsetBytes ? offsetBytes : entry.source.seek(offsetBytes, -1);
+			if(offsetBytes != newPos) throw new IOException("seek failed newPos=" + newPos);
+		} catch(final IOException ex) {
+			Log.e(TrackProviderSessionCache.TAG, "documentId=" + documentId + " offsetBytes=" + offsetBytes, ex);
+			entry.source.close();
+			synchronized(this) {
+				this.mMissCount++;
+			}
+			return null;
+		}
+		synchronized(this) {
+			this.mHitCount++;
+		}
+		if(TrackProviderSessionCache.LOG) Log.w(TrackProviderSessionCache.TAG, "take HIT documentId=" + documentId + " parkedPos=" + entry.parkedPos + " offsetBytes=" + offsetBytes);
+		return entry;
+	}
+
+	/** Parks the source, replacing (and closing) the previously parked source for the document, if any */
+	void park(@NonNull final String documentId, @NonNull final TrackProviderSource source, @Nullable final TrackProviderSeekIndex seekIndex, final long pos) {
+		if(TrackProviderSessionCache.LOG) Log.w(TrackProviderSessionCache.TAG, "park documentId=" + documentId + " pos=" + pos);
+		synchronized(this) {
+			final Entry prev = this.mEntries.remove(documentId);
+			if(null != prev) {
+				prev.source.close();
+			}
+			this.mEntries.put(documentId, new Entry(source, seekIndex, pos, SystemClock.elapsedRealtime()));
+			this.evictLocked(SystemClock.elapsedRealtime());
+			if(null == this.mEvictThread) {
+				final Thread thread = new Thread(this::runEvict, TrackProviderSessionCache.TAG);
+				thread.setDaemon(true);
+				this.mEvictThread = thread;
+				thread.start();
+			} else {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/** Closes all the parked sources */
+	public synchronized void clear() {
+		for(final Entry entry : this.mEntries.values()) {
+			entry.source.close();
+		}
+		this.mEntries.clear();
+		this.notifyAll();
+	}
+
+	/** Closes the expired entries and the oldest entries over maxEntries. Guarded by this */
+	private void evictLocked(final long nowMs) {
+		final Iterator<Map.Entry<String, Entry>> it = this.mEntries.entrySet().iterator();
+		while(it.hasNext()) {
+			final Map.Entry<String, Entry> e = it.next();
+			final Entry entry = e.getValue();
+			if(this.mMaxEntries < this.mEntries.size() || this.mTtlMs <= nowMs - entry.parkedMs) {
+				if(TrackProviderSessionCache.LOG) Log.w(TrackProviderSessionCache.TAG, "evictLocked documentId=" + e.getKey());
+				it.remove();
+				entry.source.close();
+				this.mExpiredCount++;
+			} else {
+				break; // Entries are ordered by the park time
+			}
+		}
+	}
+
+	/** Closes the entries as they expire, so the parked remote connections are not held beyond the ttl. THREADING: evict thread */
+	private void runEvict() {
+		synchronized(this) {
+			try {
+				while(!this.mEntries.isEmpty()) {
+					final long nowMs = SystemClock.elapsedRealtime();
+					this.evictLocked(nowMs);
+					if(this.mEntries.isEmpty()) {
+						break;
+					}
+					final Entry oldest = this.mEntries.values().iterator().next();
+					this.wait(Math.max(1, oldest.parkedMs + this.mTtlMs - nowMs));
+				}
+			} catch(final InterruptedException ex) {
+				Log.e(TrackProviderSessionCache.TAG, "", ex);
+			} finally {
+				this.mEvictThread = null;
+			}
+		}
+	}
+
+	/** @return number of the successful {@link #take} calls */
+	public synchronized long getHitCount() {
+		return this.mHitCount;
+	}
+
+	/** @return number of the {@link #take} calls with no usable parked source */
+	public synchronized long getMissCount() {
+		return this.mMissCount;
+	}
+
+	/** @return number of the parked sources closed without being taken */
+	public synchronized long getExpiredCount() {
+		return this.mExpiredCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + " count=" + this.mEntries.size() + " hits=" + this.mHitCount + " misses=" + this.mMissCount + " expired=" + this.mExpiredCount;
+	}
+}
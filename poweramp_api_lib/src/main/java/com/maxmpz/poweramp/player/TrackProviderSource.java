@@ -0,0 +1,57 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Source of the track data sent to Poweramp via seekable sockets, e.g. by {@link TrackProviderServer}.<br>
+ * The source has its own position, which is advanced by {@link #read} and changed by {@link #seek}.<br>
+ * NOTE: the source is accessed from a single thread at a time, implementations don't need to be thread-safe
+ */
+public interface TrackProviderSource extends AutoCloseable {
+	/**
+	 * @return total length of the track in bytes, > 0
+	 */
+	long getLength();
+
+	/**
+	 * Reads the data at the current position into buf, from the buf position up to its limit, and advances the position by the number of bytes read
+	 * @return number of bytes read, 0 if no data is available right now (non-blocking sources), or -1 on EOF<br>
+	 * NOTE: {@link TrackProviderServer} calls this on its read-ahead thread by default. Without the read-ahead, it's called on the single poll thread,
+	 * so the implementations used there must not block, see {@link TrackProviderServer}
+	 */
+	int read(@NonNull ByteBuffer buf) throws IOException;
+
+	/**
+	 * @param offsetBytes >= 0 for seek from start of the track, < 0 for seek from the end of the track
+	 * @param ms if >= 0, the seek request hint in milliseconds, see {@link TrackProviderProto.SeekRequest#ms}
+	 * @return new position within the track, or < 0 if the seek failed
+	 */
+	long seek(long offsetBytes, int ms) throws IOException;
+
+	/** Releases the source. Never throws */
+	@Override
+	void close();
+}
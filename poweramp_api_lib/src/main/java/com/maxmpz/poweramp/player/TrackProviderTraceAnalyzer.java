@@ -0,0 +1,243 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Offline analyzer for the {@link TrackProviderProtoTrace} dumps. Plain Java, no Android dependencies, so it can be run on a desktop JVM:<br>
+ * {@code java com.maxmpz.poweramp.player.TrackProviderTraceAnalyzer trace.bin [bucketMs] [stallMs]}<br><br>
+ *
+ * Reports:<br>
+ * - consumption rate graph: data bytes sent per bucket, which is the rate Poweramp consumed the data at (the socket buffer is small)<br>
+ * - stalls: gaps between the data events longer than stallMs (excluding seeks and after EOF). A stall is attributed to Poweramp if most of the gap was spent
+ *   blocked in the socket writes (Poweramp not reading, e.g. paused or its buffer full), otherwise to the source/provider (data not ready to be sent)<br>
+ * - seek latency summary: seek request to seek result, and seek request to the first data after the seek result
+ */
+public class TrackProviderTraceAnalyzer {
+	public static final int DEFAULT_BUCKET_MS = 250;
+	public static final int DEFAULT_STALL_MS = 200;
+
+	/** A stall is attributed to Poweramp if at least this percent of the gap was spent blocked in the socket writes */
+	private static final int BLOCKED_STALL_PERCENT = 80;
+	private static final int GRAPH_WIDTH = 50;
+
+	/** Parsed dump */
+	public static class Trace {
+		public int count;
+		public long droppedCount;
+		public long @NonNull[] timestamps = new long[0];
+		public byte @NonNull[] types = new byte[0];
+		public int @NonNull[] a = new int[0];
+		public long @NonNull[] b = new long[0];
+	}
+
+
+	public static @NonNull Trace read(@NonNull final InputStream is) throws IOException {
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		if(TrackProviderProtoTrace.MAGIC != dis.readInt()) throw new IOException("bad magic");
+		final int version = dis.readInt();
+		if(TrackProviderProtoTrace.VERSION != version) throw new IOException("unsupported version=" + version);
+		final Trace trace = new Trace();
+		trace.count = dis.readInt();
+		trace.droppedCount = dis.readLong();
+		if(0 > trace.count) throw new IOException("bad count=" + trace.count);
+		trace.timestamps = new long[trace.count];
+		trace.types = new byte[trace.count];
+		trace.a = new int[trace.count];
+		trace.b = new long[trace.count];
+		for(int i = 0; i < trace.count; i++) {
+			trace.timestamps[i] = dis.readLong();
+			trace.types[i] = dis.readByte();
+			trace.a[i] = dis.readInt();
+			trace.b[i] = dis.readLong();
+		}
+		return trace;
+	}
+
+	/**
+	 * @return the human readable report
+	 */
+	public static @NonNull String analyze(@NonNull final Trace trace, final int bucketMs, final int stallMs) {
+		final StringBuilder sb = new StringBuilder();
+		if(0 == trace.count) {
+			return "empty trace\n";
+		}
+		final long startNs = trace.timestamps[0];
+		final long durationNs = trace.timestamps[trace.count - 1] - startNs;
+		long totalBytes = 0;
+		long totalBlockedNs = 0;
+		int dataEvents = 0;
+		for(int i = 0; i < trace.count; i++) {
+			if(TrackProviderProtoTrace.EVENT_DATA == trace.types[i]) {
+				totalBytes += trace.a[i];
+				totalBlockedNs += trace.b[i];
+				dataEvents++;
+			}
+		}
+		sb.append(String.format(Locale.US, "events=%d dropped=%d duration=%.3fs dataEvents=%d bytes=%d avgRate=%.1fKB/s blocked=%.1f%%\n",
+				trace.count, trace.droppedCount, durationNs / 1e9, dataEvents, totalBytes,
+				0 < durationNs ? totalBytes / 1024.0 / (durationNs / 1e9) : 0, 0 < durationNs ? 100.0 * totalBlockedNs / durationNs : 0));
+
+		appendRateGraph(sb, trace, startNs, durationNs, bucketMs);
+		appendStalls(sb, trace, stallMs);
+		appendSeeks(sb, trace);
+		return sb.toString();
+	}
+
+	private static void appendRateGraph(@NonNull final StringBuilder sb, @NonNull final Trace trace, final long startNs, final long durationNs, final int bucketMs) {
+		final long bucketNs = bucketMs * 1000000L;
+		final int buckets = (int)(durationNs / bucketNs) + 1;
+		final long[] bytes = new long[buckets];
+		for(int i = 0; i < trace.count; i++) {
+			if(TrackProviderProtoTrace.EVENT_DATA == trace.types[i]) {
+				bytes[(int)((trace.timestamps[i] - startNs) / bucketNs)] += trace.a[i];
+			}
+		}
+		long max = 1;
+		for(final long v : bytes) {
+			max = Math.max(max, v);
+		}
+		sb.append("\nconsumption rate, KB/s per ").append(bucketMs).append("ms:\n");
+		for(int i = 0; i < buckets; i++) {
+			final double rate = bytes[i] / 1024.0 * 1000 / bucketMs;
+			final char[] bar = new char[(int)(bytes[i] * TrackProviderTraceAnalyzer.GRAPH_WIDTH / max)];
+			Arrays.fill(bar, '#');
+			sb.append(String.format(Locale.US, "%9.3fs %9.1f |", i * bucketMs / 1000.0, rate)).append(bar).append('\n');
+		}
+	}
+
+	private static void appendStalls(@NonNull final StringBuilder sb, @NonNull final Trace trace, final int stallMs) {
+		sb.append("\nstalls > ").append(stallMs).append("ms:\n");
+		final long stallNs = stallMs * 1000000L;
+		final long startNs = trace.timestamps[0];
+		long prevDataNs = -1;
+		boolean seeking = false;
+		boolean eof = false;
+		int stalls = 0;
+		int powerampStalls = 0;
+		for(int i = 0; i < trace.count; i++) {
+			final long t = trace.timestamps[i];
+			switch(trace.types[i]) {
+				case TrackProviderProtoTrace.EVENT_HEADER_SENT:
+				case TrackProviderProtoTrace.EVENT_SEEK_RESULT:
+					seeking = false;
+					eof = false;
+					prevDataNs = t; // The gap to the first data is the provider latency
+					break;
+				case TrackProviderProtoTrace.EVENT_SEEK:
+					seeking = true;
+					break;
+				case TrackProviderProtoTrace.EVENT_DATA:
+					if(0 <= prevDataNs && !seeking && !eof && stallNs <= t - prevDataNs) {
+						final long gapNs = t - prevDataNs;
+						final boolean poweramp = gapNs * TrackProviderTraceAnalyzer.BLOCKED_STALL_PERCENT <= trace.b[i] * 100;
+						stalls++;
+						if(poweramp) {
+							powerampStalls++;
+						}
+						sb.append(String.format(Locale.US, "%9.3fs gap=%.1fms blocked=%.1fms => %s\n", (prevDataNs - startNs) / 1e9, gapNs / 1e6, trace.b[i] / 1e6,
+								poweramp ? "poweramp (not reading, paused or buffer full)" : "source/provider (data not ready)"));
+					}
+					if(0 == trace.a[i]) {
+						eof = true;
+					}
+					prevDataNs = t;
+					break;
+				default:
+					break;
+			}
+		}
+		sb.append("stalls=").append(stalls).append(" poweramp=").append(powerampStalls).append(" source=").append(stalls - powerampStalls).append('\n');
+	}
+
+	private static void appendSeeks(@NonNull final StringBuilder sb, @NonNull final Trace trace) {
+		final long[] resultLatencies = new long[trace.count];
+		final long[] firstDataLatencies = new long[trace.count];
+		int results = 0;
+		int firstData = 0;
+		long seekNs = -1;
+		boolean waitingFirstData = false;
+		for(int i = 0; i < trace.count; i++) {
+			final long t = trace.timestamps[i];
+			switch(trace.types[i]) {
+				case TrackProviderProtoTrace.EVENT_SEEK:
+					seekNs = t;
+					waitingFirstData = false;
+					break;
+				case TrackProviderProtoTrace.EVENT_SEEK_RESULT:
+					if(0 <= seekNs) {
+						resultLatencies[results++] = t - seekNs;
+						waitingFirstData = true;
+					}
+					break;
+				case TrackProviderProtoTrace.EVENT_DATA:
+					if(waitingFirstData && 0 < trace.a[i]) {
+						firstDataLatencies[firstData++] = t - seekNs;
+						waitingFirstData = false;
+						seekNs = -1;
+					}
+					break;
+				default:
+					break;
+			}
+		}
+		sb.append("\nseeks=").append(results).append('\n');
+		appendPercentiles(sb, "seek->result", resultLatencies, results);
+		appendPercentiles(sb, "seek->first data", firstDataLatencies, firstData);
+	}
+
+	private static void appendPercentiles(@NonNull final StringBuilder sb, @NonNull final String name, final long @NonNull[] values, final int count) {
+		if(0 == count) {
+			return;
+		}
+		Arrays.sort(values, 0, count);
+		sb.append(String.format(Locale.US, "%s ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f\n", name,
+				percentile(values, count, 50) / 1e6, percentile(values, count, 90) / 1e6, percentile(values, count, 99) / 1e6, values[count - 1] / 1e6));
+	}
+
+	/** Nearest-rank percentile of the first count sorted values */
+	private static long percentile(final long @NonNull[] sorted, final int count, final int percent) {
+		final int rank = (int)Math.ceil(percent / 100.0 * count);
+		return sorted[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+	public static void main(final String[] args) throws IOException {
+		if(1 > args.length) {
+			System.err.println("usage: TrackProviderTraceAnalyzer trace.bin [bucketMs] [stallMs]");
+			System.exit(1);
+			return;
+		}
+		final int bucketMs = 1 < args.length ? Integer.parseInt(args[1]) : TrackProviderTraceAnalyzer.DEFAULT_BUCKET_MS;
+		final int stallMs = 2 < args.length ? Integer.parseInt(args[2]) : TrackProviderTraceAnalyzer.DEFAULT_STALL_MS;
+		try(FileInputStream fis = new FileInputStream(args[0])) {
+			System.out.print(analyze(read(fis), bucketMs, stallMs));
+		}
+	}
+}
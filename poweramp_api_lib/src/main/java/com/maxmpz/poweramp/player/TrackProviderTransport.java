@@ -0,0 +1,90 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Socket syscalls layer used by {@link TrackProviderProto}, so the protocol framing, seek and EOF logic doesn't depend on the particular socket API.<br>
+ * See {@link TrackProviderOsTransport} for the Android (android.system.Os) implementation, and {@link TrackProviderChannelTransport} for the
+ * java.nio SocketChannel implementation, which doesn't need android.system and can be used e.g. from the JVM local unit tests.<br>
+ * All the methods (but close) are called from the single proto thread.<br>
+ * Blocking methods throw {@link TrackProviderProto.TrackProviderProtoClosed} once the peer closed the connection
+ */
+public interface TrackProviderTransport extends AutoCloseable {
+	/** {@link #poll} event: the socket has incoming data, or the peer closed the connection */
+	int POLL_IN  = 1;
+	/** {@link #poll} event: the socket can accept more outgoing data */
+	int POLL_OUT = 2;
+
+	/**
+	 * Writes buf position..limit and advances buf position by the number of bytes written.
+	 * Blocks until at least some bytes are written, unless in the non-blocking mode
+	 * @return number of bytes written, 0 if the socket is full in the non-blocking mode
+	 */
+	int write(@NonNull ByteBuffer buf) throws IOException;
+
+	/**
+	 * Gather write, same as writev(). Blocks until at least some bytes are written, unless in the non-blocking mode
+	 * @param buffers direct ByteBuffers or byte[] arrays. For the direct buffers, offsets are absolute indexes in the buffer, positions are ignored and not changed
+	 * @param offsets offsets for each buffer
+	 * @param byteCounts bytes to write for each buffer, can be 0
+	 * @return total number of bytes written, 0 if the socket is full in the non-blocking mode
+	 */
+	int writev(Object @NonNull[] buffers, int @NonNull[] offsets, int @NonNull[] byteCounts) throws IOException;
+
+	/**
+	 * Reads into buf position..limit and advances buf position by the number of bytes read.
+	 * Blocks until at least some bytes are read, unless in the non-blocking mode or noBlock is set
+	 * @param noBlock if true, this call doesn't block even in the blocking mode, same as recvfrom() with MSG_DONTWAIT. Supported on all API levels,
+	 *                unlike {@link #setNonBlocking}
+	 * @return number of bytes read, 0 if there is no data without blocking, -1 if the peer closed the connection
+	 */
+	int read(@NonNull ByteBuffer buf, boolean noBlock) throws IOException;
+
+	/**
+	 * Waits for the given events
+	 * @param events {@link #POLL_IN} and/or {@link #POLL_OUT}
+	 * @param timeoutMs 0 to return immediately, -1 to wait indefinitely
+	 * @return ready events, 0 on timeout
+	 */
+	int poll(int events, int timeoutMs) throws IOException;
+
+	/**
+	 * Switches the non-blocking mode for {@link #write}, {@link #writev}, {@link #read}. Transports start in the blocking mode
+	 * @return true if the transport is in the requested mode, false if the mode is not supported
+	 */
+	boolean setNonBlocking(boolean nonBlocking);
+
+	/**
+	 * Sends the file data directly to the socket, e.g. via sendfile(). Always blocks until some bytes are sent
+	 * @return number of bytes sent
+	 */
+	long transferFrom(@NonNull FileChannel fc, long pos, long count) throws IOException;
+
+	/** Shuts down and closes the socket. Never throws */
+	@Override
+	void close();
+}
@@ -0,0 +1,62 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package com.maxmpz.poweramp.player;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks that {@link TrackProviderBufferPool} buffers never expose more than the requested size, while still being reused from the power of two classes
+ */
+public class TrackProviderBufferPoolTest {
+	private static final int TEST_SIZE = TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE;
+	private static final int TEST_CLASS_SIZE = 64 * 1024;
+
+
+	@Test
+	public void testCapacityIsRequestedSize() {
+		final TrackProviderBufferPool pool = new TrackProviderBufferPool(TrackProviderBufferPool.DEFAULT_MAX_POOLED_BYTES);
+		final ByteBuffer buf = pool.acquire(TrackProviderBufferPoolTest.TEST_SIZE);
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_SIZE, buf.capacity());
+		Assert.assertTrue(buf.isDirect());
+		Assert.assertEquals(ByteOrder.nativeOrder(), buf.order());
+		buf.position(100);
+		buf.clear();
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_SIZE, buf.limit());
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_CLASS_SIZE, pool.getInUseBytes());
+
+		// The slice parent is pooled and reused for any size of its class
+		pool.release(buf);
+		Assert.assertEquals(0, pool.getInUseCount());
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_CLASS_SIZE, pool.getPooledBytes());
+		final ByteBuffer reused = pool.acquire(TrackProviderBufferPoolTest.TEST_CLASS_SIZE);
+		Assert.assertEquals(1, pool.getReusedCount());
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_CLASS_SIZE, reused.capacity());
+		Assert.assertEquals(ByteOrder.nativeOrder(), reused.order());
+		pool.release(reused);
+		Assert.assertEquals(TrackProviderBufferPoolTest.TEST_CLASS_SIZE, pool.getPooledBytes());
+		Assert.assertEquals(1, pool.getAllocatedCount());
+	}
+}
@@ -0,0 +1,169 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the time to first data with and without {@link TrackProviderEagerSource} for the {@link TrackProviderHttpSource} on {@link TrackProviderHttpStandIn}.<br>
+ * The openDocument work done before the protocol asks for the first data (socket pair, worker thread, header send, Poweramp reading the header) is simulated
+ * by setupMs. Without the eager open, the source is opened after it. With the eager open, the source is opened in parallel with it.
+ * The chunk cache is cleared before each open, so the first chunk always comes from the stand-in.<br>
+ * Runs as the local unit test, the stand-in listens on the loopback interface. The first iteration is warmup and not counted
+ */
+public class TrackProviderEagerSourceBenchmark {
+	private static final String TAG = "TrackProviderEagerSourceBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int WARMUP_ITERATIONS = 1;
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final String CACHE_KEY = TrackProviderEagerSourceBenchmark.TAG;
+
+	private static final int TEST_TRACK_LENGTH = 4 * 1024 * 1024;
+	private static final int TEST_LATENCY_MS = 80;
+	private static final int TEST_SETUP_MS = 40;
+	private static final int TEST_ITERATIONS = 5;
+
+	@Rule
+	public final TemporaryFolder mTempFolder = new TemporaryFolder();
+
+	public static class Report {
+		public int latencyMs;
+		public int setupMs;
+		public int iterations;
+		/** Average open start to first data time */
+		public long lazyFirstDataNs;
+		public long eagerFirstDataNs;
+		/** Average of {@link TrackProviderEagerSource.Timings#getSavedNs()}, the estimate the eager source reports on its own */
+		public long eagerEstimatedSavedNs;
+		/** Bytes not matching the stand-in track, should be 0 */
+		public long mismatches;
+
+		@Override
+		public String toString() {
+			return "latencyMs=" + this.latencyMs + " setupMs=" + this.setupMs + " iterations=" + this.iterations
+					+ " lazy firstDataMs=" + this.lazyFirstDataNs / 1000000.0 + " eager firstDataMs=" + this.eagerFirstDataNs / 1000000.0
+					+ " savedMs=" + (this.lazyFirstDataNs - this.eagerFirstDataNs) / 1000000.0 + " estimatedSavedMs=" + this.eagerEstimatedSavedNs / 1000000.0
+					+ " mismatches=" + this.mismatches;
+		}
+	}
+
+
+	/**
+	 * With the stand-in latency above the setup time, the eager open should overlap the setup and get the first data earlier.
+	 * The latency dominates the timings here, so these are compared, but not checked against any absolute values
+	 */
+	@Test
+	public void testEagerOpen() throws IOException, InterruptedException {
+		final Report report = TrackProviderEagerSourceBenchmark.run(this.mTempFolder.newFolder(), TrackProviderEagerSourceBenchmark.TEST_TRACK_LENGTH,
+				TrackProviderEagerSourceBenchmark.TEST_LATENCY_MS, TrackProviderEagerSourceBenchmark.TEST_SETUP_MS, TrackProviderEagerSourceBenchmark.TEST_ITERATIONS);
+		Assert.assertEquals(report.toString(), 0, report.mismatches);
+		Assert.assertTrue(report.toString(), report.eagerFirstDataNs < report.lazyFirstDataNs);
+		Assert.assertTrue(report.toString(), 0 < report.eagerEstimatedSavedNs);
+	}
+
+	/**
+	 * @param cacheDir the cache dir used just for this benchmark, cleared before each open
+	 * @param trackLength the stand-in track length
+	 * @param latencyMs the stand-in response delay, simulating the remote server round trip
+	 * @param setupMs the simulated openDocument work before the first read
+	 */
+	public static @NonNull Report run(@NonNull final File cacheDir, final int trackLength, final int latencyMs, final int setupMs, final int iterations)
+			throws IOException, InterruptedException {
+		final Report report = new Report();
+		report.latencyMs = latencyMs;
+		report.setupMs = setupMs;
+		report.iterations = iterations;
+
+		final TrackProviderChunkCache cache = new TrackProviderChunkCache(cacheDir, Math.max(2L * trackLength, TrackProviderChunkCache.DEFAULT_CHUNK_SIZE),
+				TrackProviderChunkCache.DEFAULT_CHUNK_SIZE);
+		final ByteBuffer buf = ByteBuffer.allocate(TrackProviderEagerSourceBenchmark.READ_BUFFER_SIZE);
+
+		try(final TrackProviderHttpStandIn standIn = new TrackProviderHttpStandIn(trackLength, 0, latencyMs)) {
+			final String url = standIn.getUrl();
+			for(int it = -TrackProviderEagerSourceBenchmark.WARMUP_ITERATIONS; it < iterations; it++) {
+				// Lazy: the source is opened once the header is sent
+				cache.clear();
+				long start = System.nanoTime();
+				Thread.sleep(setupMs);
+				try(final TrackProviderHttpSource source = new TrackProviderHttpSource(url, TrackProviderEagerSourceBenchmark.CACHE_KEY, null, trackLength, cache)) {
+					report.mismatches += TrackProviderEagerSourceBenchmark.readFirst(source, buf);
+				}
+				final long lazyNs = System.nanoTime() - start;
+
+				// Eager: the source is opened in parallel with the setup
+				cache.clear();
+				start = System.nanoTime();
+				final long eagerNs;
+				final long estimatedSavedNs;
+				try(final TrackProviderEagerSource source = new TrackProviderEagerSource(
+						() -> new TrackProviderHttpSource(url, TrackProviderEagerSourceBenchmark.CACHE_KEY, null, trackLength, cache),
+						trackLength, TrackProviderEagerSource.DEFAULT_FIRST_CHUNK_SIZE)
+				) {
+					Thread.sleep(setupMs);
+					report.mismatches += TrackProviderEagerSourceBenchmark.readFirst(source, buf);
+					eagerNs = System.nanoTime() - start;
+					estimatedSavedNs = source.getTimings().getSavedNs();
+				}
+
+				if(0 <= it) {
+					report.lazyFirstDataNs += lazyNs;
+					report.eagerFirstDataNs += eagerNs;
+					report.eagerEstimatedSavedNs += estimatedSavedNs;
+				}
+			}
+		}
+
+		if(0 < iterations) {
+			report.lazyFirstDataNs /= iterations;
+			report.eagerFirstDataNs /= iterations;
+			report.eagerEstimatedSavedNs /= iterations;
+		}
+		if(TrackProviderEagerSourceBenchmark.LOG) Log.w(TrackProviderEagerSourceBenchmark.TAG, "run " + report);
+		return report;
+	}
+
+	/**
+	 * Reads the first data from the source start, waiting if the source has no data yet
+	 * @return number of the mismatching bytes
+	 */
+	private static int readFirst(@NonNull final TrackProviderSource source, @NonNull final ByteBuffer buf) throws IOException, InterruptedException {
+		buf.clear();
+		int res;
+		while(0 == (res = source.read(buf))) {
+			Thread.sleep(1);
+		}
+		if(0 > res) {
+			throw new IOException("unexpected EOF");
+		}
+		return TrackProviderHttpSourceBenchmark.verify(buf, res, 0);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures {@link TrackProviderHttpSource} with the {@link TrackProviderChunkCache} against {@link TrackProviderHttpStandIn}:
+ * the first (cold) play, the replay of the same track, and the backward seeks. The replay and the backward seeks should be served from the cache,
+ * so their network bytes should be 0. All the data read is verified against the stand-in track.<br>
+ * Runs as the local unit test, the stand-in listens on the loopback interface. The cache dir is cleared first
+ */
+public class TrackProviderHttpSourceBenchmark {
+	private static final String TAG = "TrackProviderHttpSourceBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int BACKWARD_SEEKS = 8;
+	private static final String CACHE_KEY = TrackProviderHttpSourceBenchmark.TAG;
+
+	private static final int TEST_TRACK_LENGTH = 4 * 1024 * 1024;
+	private static final int TEST_LATENCY_MS = 20;
+
+	@Rule
+	public final TemporaryFolder mTempFolder = new TemporaryFolder();
+
+	public static class Report {
+		public int trackLength;
+		public int latencyMs;
+		public long coldNs;
+		public long coldNetworkBytes;
+		public long replayNs;
+		public long replayNetworkBytes;
+		/** Average seek + first buffer read time */
+		public long backwardSeekNs;
+		public long backwardSeekNetworkBytes;
+		/** Bytes not matching the stand-in track, should be 0 */
+		public long mismatches;
+
+		@Override
+		public String toString() {
+			return "trackLength=" + this.trackLength + " latencyMs=" + this.latencyMs
+					+ " cold ms=" + this.coldNs / 1000000 + " networkBytes=" + this.coldNetworkBytes
+					+ " replay ms=" + this.replayNs / 1000000 + " networkBytes=" + this.replayNetworkBytes
+					+ " backwardSeek us=" + this.backwardSeekNs / 1000 + " networkBytes=" + this.backwardSeekNetworkBytes
+					+ " mismatches=" + this.mismatches;
+		}
+	}
+
+
+	/** The replay and the backward seeks should be served from the cache without any network bytes. The timings are just logged */
+	@Test
+	public void testCache() throws IOException {
+		final Report report = TrackProviderHttpSourceBenchmark.run(this.mTempFolder.newFolder(), TrackProviderHttpSourceBenchmark.TEST_TRACK_LENGTH,
+				TrackProviderHttpSourceBenchmark.TEST_LATENCY_MS);
+		Assert.assertEquals(report.toString(), 0, report.mismatches);
+		Assert.assertTrue(report.toString(), TrackProviderHttpSourceBenchmark.TEST_TRACK_LENGTH <= report.coldNetworkBytes);
+		Assert.assertEquals(report.toString(), 0, report.replayNetworkBytes);
+		Assert.assertEquals(report.toString(), 0, report.backwardSeekNetworkBytes);
+	}
+
+	/**
+	 * @param cacheDir the cache dir used just for this benchmark, cleared first
+	 * @param trackLength the stand-in track length
+	 * @param latencyMs the stand-in response delay, simulating the network round trip
+	 */
+	public static @NonNull Report run(@NonNull final File cacheDir, final int trackLength, final int latencyMs) throws IOException {
+		final Report report = new Report();
+		report.trackLength = trackLength;
+		report.latencyMs = latencyMs;
+
+		final TrackProviderChunkCache cache = new TrackProviderChunkCache(cacheDir, Math.max(2L * trackLength, TrackProviderChunkCache.DEFAULT_CHUNK_SIZE),
+				TrackProviderChunkCache.DEFAULT_CHUNK_SIZE);
+		cache.clear();
+		final ByteBuffer buf = ByteBuffer.allocate(TrackProviderHttpSourceBenchmark.READ_BUFFER_SIZE);
+
+		try(final TrackProviderHttpStandIn standIn = new TrackProviderHttpStandIn(trackLength, 0, latencyMs)) {
+			// Cold play, everything is fetched
+			TrackProviderHttpSource source = new TrackProviderHttpSource(standIn.getUrl(), TrackProviderHttpSourceBenchmark.CACHE_KEY, null, trackLength, cache);
+			long start = System.nanoTime();
+			report.mismatches += TrackProviderHttpSourceBenchmark.readToEnd(source, buf, 0);
+			report.coldNs = System.nanoTime() - start;
+			report.coldNetworkBytes = source.getNetworkBytes();
+			source.close();
+
+			// Replay, everything is in the cache
+			source = new TrackProviderHttpSource(standIn.getUrl(), TrackProviderHttpSourceBenchmark.CACHE_KEY, null, trackLength, cache);
+			start = System.nanoTime();
+			report.mismatches += TrackProviderHttpSourceBenchmark.readToEnd(source, buf, 0);
+			report.replayNs = System.nanoTime() - start;
+			report.replayNetworkBytes = source.getNetworkBytes();
+
+			// Backward seeks from the end, on the same source
+			start = System.nanoTime();
+			for(int i = 1; i <= TrackProviderHttpSourceBenchmark.BACKWARD_SEEKS; i++) {
+				final long pos = trackLength - (long)trackLength * i / (TrackProviderHttpSourceBenchmark.BACKWARD_SEEKS + 1);
+				source.seek(pos, -1);
+				buf.clear();
+				final int res = source.read(buf);
+				report.mismatches += TrackProviderHttpSourceBenchmark.verify(buf, res, pos);
+			}
+			report.backwardSeekNs = (System.nanoTime() - start) / TrackProviderHttpSourceBenchmark.BACKWARD_SEEKS;
+			report.backwardSeekNetworkBytes = source.getNetworkBytes() - report.replayNetworkBytes;
+			source.close();
+		}
+
+		if(TrackProviderHttpSourceBenchmark.LOG) Log.w(TrackProviderHttpSourceBenchmark.TAG, "run " + report + " cache=" + cache);
+		return report;
+	}
+
+	/**
+	 * Reads the source from pos to the end
+	 * @return number of the mismatching bytes
+	 */
+	static long readToEnd(@NonNull final TrackProviderSource source, @NonNull final ByteBuffer buf, long pos) throws IOException {
+		long mismatches = 0;
+		while(true) {
+			buf.clear();
+			final int res = source.read(buf);
+			if(0 > res) {
+				return mismatches;
+			}
+			mismatches += TrackProviderHttpSourceBenchmark.verify(buf, res, pos);
+			pos += res;
+		}
+	}
+
+	/** @return number of the first len bytes in buf not matching the stand-in track at pos */
+	static int verify(@NonNull final ByteBuffer buf, final int len, final long pos) {
+		int mismatches = 0;
+		for(int i = 0; i < len; i++) {
+			if(TrackProviderHttpStandIn.byteAt(pos + i) != buf.get(i)) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+}
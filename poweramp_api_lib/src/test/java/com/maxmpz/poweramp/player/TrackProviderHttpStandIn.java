@@ -0,0 +1,265 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal local HTTP server standing in for the remote track server, for testing and measuring the remote sources
+ * ({@link TrackProviderHttpSource}, {@link TrackProviderRangeFetcher}, {@link TrackProviderEagerSource}) without the network.<br>
+ * Serves a synthetic track of the given length with Range requests support. Each response can be delayed (simulating the request round trip) and
+ * throttled per connection (simulating the per-connection limited remote servers).<br>
+ * Listens on the loopback interface only, see {@link #getUrl()}. Each request is served on its own thread, and the connection is closed after the response.<br>
+ * The track byte at pos is {@link #byteAt}(pos), so the received data can be verified
+ */
+public class TrackProviderHttpStandIn implements AutoCloseable {
+	private static final String TAG = "TrackProviderHttpStandIn";
+	private static final boolean LOG = false;
+
+	private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+	private final @NonNull ServerSocket mServerSocket;
+	private final long mLength;
+	private final int mBytesPerSecond;
+	private final int mLatencyMs;
+	private volatile boolean mClosed;
+
+	private final @NonNull AtomicInteger mRequestCount = new AtomicInteger();
+	private final @NonNull AtomicLong mBytesServed = new AtomicLong();
+	private final @NonNull AtomicInteger mActiveRequests = new AtomicInteger();
+	private final @NonNull AtomicInteger mMaxActiveRequests = new AtomicInteger();
+
+
+	/**
+	 * Starts the server
+	 * @param length the synthetic track length
+	 * @param bytesPerSecond per connection throughput limit, <= 0 for unlimited
+	 * @param latencyMs delay before each response, 0 for none
+	 */
+	public TrackProviderHttpStandIn(final long length, final int bytesPerSecond, final int latencyMs) throws IOException {
+		if(0 >= length) throw new IllegalArgumentException("bad length=" + length);
+		this.mLength = length;
+		this.mBytesPerSecond = bytesPerSecond;
+		this.mLatencyMs = latencyMs;
+		this.mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TrackProviderHttpStandIn.this.acceptLoop();
+			}
+		}, TrackProviderHttpStandIn.TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** @return the track url */
+	public @NonNull String getUrl() {
+		return "http://127.0.0.1:" + this.mServerSocket.getLocalPort() + "/track";
+	}
+
+	/** @return the synthetic track byte at the given position */
+	public static byte byteAt(final long pos) {
+		return (byte)(pos ^ pos >>> 8 ^ pos >>> 16);
+	}
+
+	/** @return number of the requests received */
+	public int getRequestCount() {
+		return this.mRequestCount.get();
+	}
+
+	/** @return number of the track bytes sent, excluding the headers */
+	public long getBytesServed() {
+		return this.mBytesServed.get();
+	}
+
+	/** @return the maximum number of the requests served concurrently */
+	public int getMaxActiveRequests() {
+		return this.mMaxActiveRequests.get();
+	}
+
+	public void resetCounters() {
+		this.mRequestCount.set(0);
+		this.mBytesServed.set(0);
+		this.mMaxActiveRequests.set(this.mActiveRequests.get());
+	}
+
+	@Override
+	public void close() {
+		this.mClosed = true;
+		try {
+			this.mServerSocket.close();
+		} catch(final IOException ex) {
+			Log.e(TrackProviderHttpStandIn.TAG, "", ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " url=" + this.getUrl() + " requests=" + this.mRequestCount.get() + " bytesServed=" + this.mBytesServed.get()
+				+ " maxActiveRequests=" + this.mMaxActiveRequests.get();
+	}
+
+	private void acceptLoop() {
+		while(!this.mClosed) {
+			final Socket socket;
+			try {
+				socket = this.mServerSocket.accept();
+			} catch(final IOException ex) {
+				if(!this.mClosed) Log.e(TrackProviderHttpStandIn.TAG, "", ex);
+				return;
+			}
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					TrackProviderHttpStandIn.this.serve(socket);
+				}
+			}, TrackProviderHttpStandIn.TAG + "#request");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(@NonNull final Socket socket) {
+		final int active = this.mActiveRequests.incrementAndGet();
+		int max;
+		while(active > (max = this.mMaxActiveRequests.get()) && !this.mMaxActiveRequests.compareAndSet(max, active)) {
+			// Retry
+		}
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			final String requestLine = reader.readLine();
+			if(null == requestLine) {
+				return;
+			}
+			String range = null;
+			String line;
+			while(null != (line = reader.readLine()) && !line.isEmpty()) {
+				if(line.regionMatches(true, 0, "Range:", 0, 6)) {
+					range = line.substring(6).trim();
+				}
+			}
+			this.mRequestCount.incrementAndGet();
+			if(TrackProviderHttpStandIn.LOG) Log.w(TrackProviderHttpStandIn.TAG, "serve " + requestLine + " range=" + range);
+
+			if(0 < this.mLatencyMs) {
+				Thread.sleep(this.mLatencyMs);
+			}
+
+			final OutputStream os = socket.getOutputStream();
+			long start = 0;
+			long end = this.mLength - 1;
+			final boolean partial = null != range;
+			if(partial) {
+				final long[] parsed = TrackProviderHttpStandIn.parseRange(range);
+				if(null == parsed || parsed[0] >= this.mLength) {
+					os.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + this.mLength + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+							.getBytes(StandardCharsets.ISO_8859_1));
+					os.flush();
+					return;
+				}
+				start = parsed[0];
+				end = 0 <= parsed[1] ? Math.min(parsed[1], this.mLength - 1) : this.mLength - 1;
+			}
+			final long size = end - start + 1;
+			final StringBuilder headers = new StringBuilder();
+			headers.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+					.append("Content-Type: application/octet-stream\r\n")
+					.append("Accept-Ranges: bytes\r\n")
+					.append("Content-Length: ").append(size).append("\r\n");
+			if(partial) {
+				headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(this.mLength).append("\r\n");
+			}
+			headers.append("Connection: close\r\n\r\n");
+			os.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+			final byte[] buf = new byte[TrackProviderHttpStandIn.WRITE_BUFFER_SIZE];
+			final long startNs = System.nanoTime();
+			long sent = 0;
+			while(sent < size && !this.mClosed) {
+				final int len = (int)Math.min(buf.length, size - sent);
+				for(int i = 0; i < len; i++) {
+					buf[i] = TrackProviderHttpStandIn.byteAt(start + sent + i);
+				}
+				os.write(buf, 0, len);
+				sent += len;
+				this.mBytesServed.addAndGet(len);
+				if(0 < this.mBytesPerSecond) {
+					final long sleepMs = sent * 1000 / this.mBytesPerSecond - (System.nanoTime() - startNs) / 1000000;
+					if(0 < sleepMs) {
+						Thread.sleep(sleepMs);
+					}
+				}
+			}
+			os.flush();
+
+		} catch(final InterruptedException | InterruptedIOException ex) {
+			Thread.currentThread().interrupt();
+		} catch(final IOException ex) {
+			// Client disconnected, e.g. the cancelled range fetch
+			if(TrackProviderHttpStandIn.LOG) Log.e(TrackProviderHttpStandIn.TAG, "", ex);
+		} finally {
+			this.mActiveRequests.decrementAndGet();
+			try {
+				socket.close();
+			} catch(final IOException ex) {
+				// Ignore
+			}
+		}
+	}
+
+	/** @return {start, end} for "bytes=start-end" or {start, -1} for "bytes=start-", or null for the unsupported ranges */
+	private static long @Nullable[] parseRange(@NonNull final String range) {
+		if(!range.startsWith("bytes=") || 0 <= range.indexOf(',')) {
+			return null;
+		}
+		final int dash = range.indexOf('-', 6);
+		if(6 >= dash) {
+			return null; // No start, e.g. suffix "bytes=-500"
+		}
+		try {
+			final long start = Long.parseLong(range.substring(6, dash).trim());
+			final String endStr = range.substring(dash + 1).trim();
+			final long end = endStr.isEmpty() ? -1 : Long.parseLong(endStr);
+			if(0 > start || 0 <= end && end < start) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch(final NumberFormatException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Runs {@link TrackProviderProto} over {@link TrackProviderChannelTransport} on the plain JVM: the provider thread serves a synthetic track over the loopback
+ * TCP connection, and the test plays the Poweramp side of the wire format, accepting the larger packets, verifying the data and seeking
+ */
+public class TrackProviderProtoChannelTest {
+	private static final int TRACK_LENGTH = 1024 * 1024 + 123;
+	private static final int BUFFER_SIZE = 32 * 1024;
+	private static final long SEEK_AFTER_BYTES = 256 * 1024;
+	private static final long SEEK_POS = TrackProviderProtoChannelTest.TRACK_LENGTH / 2 + 7;
+
+	/** Client side results */
+	private static class Result {
+		long fileLength;
+		int maxPacketDataSize;
+		long seekResult = -1;
+		long bytesAfterSeek;
+		int mismatches;
+		boolean eof;
+	}
+
+
+	@Test
+	public void testLargePacketsAndSeek() throws IOException, InterruptedException {
+		try(final ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+			final SocketChannel accepted = server.accept();
+			if(null == accepted) throw new IOException("accept");
+
+			final Throwable[] providerError = new Throwable[1];
+			final Thread provider = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						TrackProviderProtoChannelTest.serve(new TrackProviderChannelTransport(accepted));
+					} catch(final Throwable th) {
+						providerError[0] = th;
+					}
+				}
+			}, "provider");
+			provider.start();
+
+			final Result result;
+			try {
+				result = TrackProviderProtoChannelTest.play(client);
+			} finally {
+				client.close();
+			}
+			provider.join();
+
+			Assert.assertNull(String.valueOf(providerError[0]), providerError[0]);
+			Assert.assertEquals(TrackProviderProtoChannelTest.TRACK_LENGTH, result.fileLength);
+			Assert.assertTrue("maxPacketDataSize=" + result.maxPacketDataSize, TrackProviderProto.MAX_DATA_SIZE < result.maxPacketDataSize);
+			Assert.assertEquals(TrackProviderProtoChannelTest.SEEK_POS, result.seekResult);
+			Assert.assertEquals(TrackProviderProtoChannelTest.TRACK_LENGTH - TrackProviderProtoChannelTest.SEEK_POS, result.bytesAfterSeek);
+			Assert.assertEquals(0, result.mismatches);
+			Assert.assertTrue(result.eof);
+		}
+	}
+
+	/** Synthetic track byte at pos */
+	private static byte byteAt(final long pos) {
+		return (byte)(pos * 31 + (pos >>> 8));
+	}
+
+	/** Provider side: serves the synthetic track until the client closes the connection */
+	private static void serve(@NonNull final TrackProviderTransport transport) {
+		final ByteBuffer data = ByteBuffer.allocateDirect(TrackProviderProtoChannelTest.BUFFER_SIZE);
+		try(final TrackProviderProto proto = new TrackProviderProto(transport, TrackProviderProtoChannelTest.TRACK_LENGTH, TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE)) {
+			proto.sendHeader();
+			long pos = 0;
+			while(true) {
+				while(pos < TrackProviderProtoChannelTest.TRACK_LENGTH) {
+					data.clear();
+					data.limit((int)Math.min(data.capacity(), TrackProviderProtoChannelTest.TRACK_LENGTH - pos));
+					for(int i = 0; i < data.limit(); i++) {
+						data.put(i, TrackProviderProtoChannelTest.byteAt(pos + i));
+					}
+					final TrackProviderProto.SeekRequest seekRequest = proto.sendData2(data);
+					if(null != seekRequest) {
+						pos = seekRequest.offsetBytes;
+						proto.sendSeekResult(pos);
+					} else {
+						pos += data.limit();
+					}
+				}
+				final TrackProviderProto.SeekRequest seekRequest = proto.sendEOFAndWaitForSeekOrClose2();
+				if(null == seekRequest || TrackProviderProto.INVALID_SEEK_POS == seekRequest.offsetBytes) {
+					break;
+				}
+				pos = seekRequest.offsetBytes;
+				proto.sendSeekResult(pos);
+			}
+		} catch(final TrackProviderProto.TrackProviderProtoClosed ex) {
+			// The client closed the connection while we were sending
+		}
+	}
+
+	/** Poweramp side: accepts the larger packets, reads SEEK_AFTER_BYTES, seeks to SEEK_POS and reads to EOF */
+	private static @NonNull Result play(@NonNull final SocketChannel channel) throws IOException {
+		final Result result = new Result();
+		final ByteBuffer buf = ByteBuffer.allocate(TrackProviderProto.MAX_PACKET_HEADER_SIZE + 0xFFFF).order(ByteOrder.nativeOrder());
+
+		if(TrackProviderProto.PACKET_TYPE_HEADER != TrackProviderProtoChannelTest.readPacket(channel, buf)) throw new IOException("no header");
+		result.fileLength = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+		final int caps = buf.getInt(TrackProviderProto.PACKET_RESERVED_IX);
+		Assert.assertTrue("caps=" + caps, 0 != (caps & TrackProviderProto.PROTO_CAP_LARGE_PACKETS));
+
+		buf.clear();
+		TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_CAPS, 2 * TrackProviderProto.INTEGER_BYTES, 0);
+		buf.putInt(TrackProviderProto.PACKET_DATA_IX, TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE);
+		buf.putInt(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.INTEGER_BYTES, TrackProviderProto.PROTO_CAP_LARGE_PACKETS);
+		buf.limit(TrackProviderProto.PACKET_DATA_IX + 2 * TrackProviderProto.INTEGER_BYTES);
+		TrackProviderProtoChannelTest.writeFully(channel, buf);
+
+		long pos = 0;
+		boolean seekSent = false;
+		while(true) {
+			if(!seekSent && TrackProviderProtoChannelTest.SEEK_AFTER_BYTES <= pos) {
+				seekSent = true;
+				buf.clear();
+				TrackProviderProto.putPacketHeader(buf, 0, TrackProviderProto.PACKET_TYPE_SEEK, TrackProviderProto.LONG_BYTES, 0);
+				buf.putLong(TrackProviderProto.PACKET_DATA_IX, TrackProviderProtoChannelTest.SEEK_POS);
+				buf.limit(TrackProviderProto.PACKET_DATA_IX + TrackProviderProto.LONG_BYTES);
+				TrackProviderProtoChannelTest.writeFully(channel, buf);
+				// Data sent before the seek result is ignored, same as Poweramp does
+				while(TrackProviderProto.PACKET_TYPE_SEEK_RES != TrackProviderProtoChannelTest.readPacket(channel, buf)) {
+					// Skip
+				}
+				result.seekResult = buf.getLong(TrackProviderProto.PACKET_DATA_IX);
+				pos = result.seekResult;
+				continue;
+			}
+			if(TrackProviderProto.PACKET_TYPE_DATA != TrackProviderProtoChannelTest.readPacket(channel, buf)) throw new IOException("unexpected packet");
+			final int dataSize = TrackProviderProto.getPacketDataSize(buf);
+			if(0 == dataSize) {
+				result.eof = true;
+				return result;
+			}
+			result.maxPacketDataSize = Math.max(result.maxPacketDataSize, dataSize);
+			for(int i = 0; i < dataSize; i++) {
+				if(TrackProviderProtoChannelTest.byteAt(pos + i) != buf.get(TrackProviderProto.PACKET_DATA_IX + i)) {
+					result.mismatches++;
+				}
+			}
+			pos += dataSize;
+			if(seekSent) {
+				result.bytesAfterSeek += dataSize;
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole packet into buf
+	 * @return the packet type
+	 */
+	private static int readPacket(@NonNull final SocketChannel channel, @NonNull final ByteBuffer buf) throws IOException {
+		buf.clear();
+		buf.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE);
+		TrackProviderProtoChannelTest.readFully(channel, buf);
+		if(TrackProviderProto.PACKET_TAG != buf.getInt(0)) throw new IOException("bad packet tag=" + Integer.toHexString(buf.getInt(0)));
+		buf.limit(TrackProviderProto.MAX_PACKET_HEADER_SIZE + TrackProviderProto.getPacketDataSize(buf));
+		TrackProviderProtoChannelTest.readFully(channel, buf);
+		return buf.getShort(4);
+	}
+
+	private static void readFully(@NonNull final SocketChannel channel, @NonNull final ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(0 > channel.read(buf)) throw new EOFException("provider closed the connection");
+		}
+	}
+
+	private static void writeFully(@NonNull final SocketChannel channel, @NonNull final ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.maxmpz.poweramp.player;
+
+import android.util.Log;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the single connection {@link TrackProviderHttpSource} against the parallel {@link TrackProviderRangeFetcher} fetch on the throttled
+ * {@link TrackProviderHttpStandIn}: the time to read the initial buffer at the track start and again after a seek to the middle of the track,
+ * which is what Poweramp waits for before the playback starts. The chunk cache is cleared before each mode, so all the data comes from the stand-in.<br>
+ * Runs as the local unit test, the stand-in listens on the loopback interface
+ */
+public class TrackProviderRangeFetcherBenchmark {
+	private static final String TAG = "TrackProviderRangeFetcherBenchmark";
+	private static final boolean LOG = true;
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final String CACHE_KEY = TrackProviderRangeFetcherBenchmark.TAG;
+
+	private static final int TEST_TRACK_LENGTH = 8 * 1024 * 1024;
+	private static final int TEST_INITIAL_BYTES = 1024 * 1024;
+	private static final int TEST_BYTES_PER_SECOND = 1024 * 1024;
+	private static final int TEST_LATENCY_MS = 50;
+
+	@Rule
+	public final TemporaryFolder mTempFolder = new TemporaryFolder();
+
+	public static class Report {
+		public int trackLength;
+		public int initialBytes;
+		public int bytesPerSecond;
+		public int latencyMs;
+		public long singleStartNs;
+		public long singleSeekNs;
+		public long parallelStartNs;
+		public long parallelSeekNs;
+		/**
+		 * Maximum concurrent requests seen by the stand-in in the parallel mode. Can exceed the fetcher connections, as the requests aborted by the seek
+		 * are counted until the stand-in notices the disconnect
+		 */
+		public int parallelMaxRequests;
+		/** Bytes not matching the stand-in track, should be 0 */
+		public long mismatches;
+
+		@Override
+		public String toString() {
+			return "trackLength=" + this.trackLength + " initialBytes=" + this.initialBytes + " bytesPerSecond=" + this.bytesPerSecond + " latencyMs=" + this.latencyMs
+					+ " single startMs=" + this.singleStartNs / 1000000 + " seekMs=" + this.singleSeekNs / 1000000
+					+ " parallel startMs=" + this.parallelStartNs / 1000000 + " seekMs=" + this.parallelSeekNs / 1000000 + " maxRequests=" + this.parallelMaxRequests
+					+ " mismatches=" + this.mismatches;
+		}
+	}
+
+
+	/**
+	 * The parallel fetch should use several connections and, as the stand-in throttles each connection, read the initial buffers faster.
+	 * The throttling dominates the timings here, so these are compared, but not checked against any absolute values
+	 */
+	@Test
+	public void testParallelFetch() throws IOException {
+		final Report report = TrackProviderRangeFetcherBenchmark.run(this.mTempFolder.newFolder(), TrackProviderRangeFetcherBenchmark.TEST_TRACK_LENGTH,
+				TrackProviderRangeFetcherBenchmark.TEST_INITIAL_BYTES, TrackProviderRangeFetcherBenchmark.TEST_BYTES_PER_SECOND, TrackProviderRangeFetcherBenchmark.TEST_LATENCY_MS);
+		Assert.assertEquals(report.toString(), 0, report.mismatches);
+		Assert.assertTrue(report.toString(), 1 < report.parallelMaxRequests);
+		Assert.assertTrue(report.toString(), report.parallelStartNs < report.singleStartNs);
+		Assert.assertTrue(report.toString(), report.parallelSeekNs < report.singleSeekNs);
+	}
+
+	/**
+	 * @param cacheDir the cache dir used just for this benchmark, cleared before each mode
+	 * @param trackLength the stand-in track length
+	 * @param initialBytes bytes read at the start and after the seek, e.g. the Poweramp initial buffer size
+	 * @param bytesPerSecond the stand-in per connection throughput
+	 * @param latencyMs the stand-in response delay
+	 */
+	public static @NonNull Report run(@NonNull final File cacheDir, final int trackLength, final int initialBytes, final int bytesPerSecond, final int latencyMs) throws IOException {
+		if(0 >= initialBytes || trackLength / 2 < initialBytes) throw new IllegalArgumentException("bad initialBytes=" + initialBytes + " trackLength=" + trackLength);
+		final Report report = new Report();
+		report.trackLength = trackLength;
+		report.initialBytes = initialBytes;
+		report.bytesPerSecond = bytesPerSecond;
+		report.latencyMs = latencyMs;
+
+		final TrackProviderChunkCache cache = new TrackProviderChunkCache(cacheDir, Math.max(2L * trackLength, TrackProviderChunkCache.DEFAULT_CHUNK_SIZE),
+				TrackProviderChunkCache.DEFAULT_CHUNK_SIZE);
+		final ByteBuffer buf = ByteBuffer.allocate(TrackProviderRangeFetcherBenchmark.READ_BUFFER_SIZE);
+
+		try(final TrackProviderHttpStandIn standIn = new TrackProviderHttpStandIn(trackLength, bytesPerSecond, latencyMs)) {
+			for(int mode = 0; mode < 2; mode++) {
+				final boolean parallel = 1 == mode;
+				cache.clear();
+				standIn.resetCounters();
+				final TrackProviderHttpSource source = new TrackProviderHttpSource(standIn.getUrl(), TrackProviderRangeFetcherBenchmark.CACHE_KEY, null, trackLength, cache);
+				try {
+					if(parallel) {
+						source.setParallelFetch(TrackProviderRangeFetcher.DEFAULT_MAX_CONNECTIONS, TrackProviderRangeFetcher.DEFAULT_WINDOW_CHUNKS);
+					}
+					long start = System.nanoTime();
+					report.mismatches += TrackProviderRangeFetcherBenchmark.read(source, buf, 0, initialBytes);
+					final long startNs = System.nanoTime() - start;
+
+					final long seekPos = trackLength / 2;
+					start = System.nanoTime();
+					source.seek(seekPos, -1);
+					report.mismatches += TrackProviderRangeFetcherBenchmark.read(source, buf, seekPos, initialBytes);
+					final long seekNs = System.nanoTime() - start;
+
+					if(parallel) {
+						report.parallelStartNs = startNs;
+						report.parallelSeekNs = seekNs;
+						report.parallelMaxRequests = standIn.getMaxActiveRequests();
+					} else {
+						report.singleStartNs = startNs;
+						report.singleSeekNs = seekNs;
+					}
+				} finally {
+					source.close();
+				}
+			}
+		}
+
+		if(TrackProviderRangeFetcherBenchmark.LOG) Log.w(TrackProviderRangeFetcherBenchmark.TAG, "run " + report);
+		return report;
+	}
+
+	/**
+	 * Reads count bytes from the source at pos
+	 * @return number of the mismatching bytes
+	 */
+	private static long read(@NonNull final TrackProviderSource source, @NonNull final ByteBuffer buf, long pos, final int count) throws IOException {
+		long mismatches = 0;
+		final long end = pos + count;
+		while(pos < end) {
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), end - pos));
+			final int res = source.read(buf);
+			if(0 > res) {
+				throw new IOException("unexpected EOF pos=" + pos);
+			}
+			mismatches += TrackProviderHttpSourceBenchmark.verify(buf, res, pos);
+			pos += res;
+		}
+		return mismatches;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+Copyright (C) 2011-2020 Maksim Petrov
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted for widgets, plugins, applications and other software
+which communicate with Poweramp application on Android platform.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+``AS IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE FOUNDATION OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package com.maxmpz.poweramp.player;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks {@link TrackProviderReadAhead#startSeek}, used by {@link TrackProviderServer}: the seek missing the ring returns without waiting for the slow source seek,
+ * and the read-ahead isn't locked while the source seeks, so the server thread polling it is never blocked
+ */
+public class TrackProviderReadAheadTest {
+	private static final long TEST_TRACK_LENGTH = 1024 * 1024;
+	private static final int TEST_RING_SIZE = 64 * 1024;
+	private static final long TEST_SEEK_DELAY_MS = 300;
+	private static final long TEST_SEEK_POS = TrackProviderReadAheadTest.TEST_TRACK_LENGTH - 10000;
+
+	/** Track with the byte at each position equal to the low position byte, and the slow seeks */
+	private static class SlowSeekSource implements TrackProviderSource {
+		private long mPos;
+
+		@Override
+		public long getLength() {
+			return TrackProviderReadAheadTest.TEST_TRACK_LENGTH;
+		}
+
+		@Override
+		public int read(@NonNull final ByteBuffer buf) {
+			final int size = (int)Math.min(buf.remaining(), TrackProviderReadAheadTest.TEST_TRACK_LENGTH - this.mPos);
+			if(0 >= size) {
+				return -1;
+			}
+			for(int i = 0; i < size; i++) {
+				buf.put((byte)(this.mPos++));
+			}
+			return size;
+		}
+
+		@Override
+		public long seek(final long offsetBytes, final int ms) throws IOException {
+			try {
+				Thread.sleep(TrackProviderReadAheadTest.TEST_SEEK_DELAY_MS);
+			} catch(final InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			this.mPos = offsetBytes;
+			return offsetBytes;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+
+	@Test
+	public void testStartSeek() throws IOException, InterruptedException {
+		try(final TrackProviderReadAhead readAhead = new TrackProviderReadAhead(new SlowSeekSource(), TrackProviderReadAheadTest.TEST_RING_SIZE,
+				TrackProviderReadAheadTest.TEST_RING_SIZE / 4, TrackProviderReadAheadTest.TEST_RING_SIZE / 2)) {
+			final ByteBuffer buf = ByteBuffer.allocate(4096);
+			Assert.assertTrue(0 < readAhead.read(buf));
+
+			// Miss. Neither the seek start, nor the polls wait for the source seek
+			long startNs = System.nanoTime();
+			Assert.assertEquals(TrackProviderReadAhead.SEEK_PENDING, readAhead.startSeek(TrackProviderReadAheadTest.TEST_SEEK_POS, -1));
+			Assert.assertEquals(TrackProviderReadAhead.SEEK_PENDING, readAhead.pollSeekResult());
+			readAhead.getBufferedBytes(); // Takes the lock
+			final long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+			Assert.assertTrue("elapsedMs=" + elapsedMs, TrackProviderReadAheadTest.TEST_SEEK_DELAY_MS / 2 > elapsedMs);
+
+			long newPos;
+			final long deadlineNs = startNs + 10 * TrackProviderReadAheadTest.TEST_SEEK_DELAY_MS * 1000000;
+			while(TrackProviderReadAhead.SEEK_PENDING == (newPos = readAhead.pollSeekResult())) {
+				Assert.assertTrue("seek timed out", deadlineNs > System.nanoTime());
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(TrackProviderReadAheadTest.TEST_SEEK_POS, newPos);
+			Assert.assertEquals(1, readAhead.getMissCount());
+
+			// The data continues from the new position
+			buf.clear();
+			final int res = readAhead.read(buf);
+			Assert.assertTrue(0 < res);
+			for(int i = 0; i < res; i++) {
+				Assert.assertEquals((byte)(TrackProviderReadAheadTest.TEST_SEEK_POS + i), buf.get(i));
+			}
+
+			// Hit, answered right away
+			startNs = System.nanoTime();
+			Assert.assertEquals(TrackProviderReadAheadTest.TEST_SEEK_POS, readAhead.startSeek(TrackProviderReadAheadTest.TEST_SEEK_POS, -1));
+			Assert.assertEquals(1, readAhead.getHitCount());
+			Assert.assertTrue(TrackProviderReadAheadTest.TEST_SEEK_DELAY_MS * 1000000 / 2 > System.nanoTime() - startNs);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.maxmpz.powerampproviderexample;
 
 import android.annotation.SuppressLint;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -17,7 +18,6 @@ import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
-import android.os.ProxyFileDescriptorCallback;
 import android.os.storage.StorageManager;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsProvider;
@@ -37,9 +37,27 @@ import com.maxmpz.poweramp.player.PowerampAPI;
 import com.maxmpz.poweramp.player.PowerampAPI.Lyrics;
 import com.maxmpz.poweramp.player.PowerampAPI.Track;
 import com.maxmpz.poweramp.player.PowerampAPIHelper;
+import com.maxmpz.poweramp.player.TrackProviderBufferPool;
+import com.maxmpz.poweramp.player.TrackProviderChangeJournal;
+import com.maxmpz.poweramp.player.TrackProviderColumns;
 import com.maxmpz.poweramp.player.TrackProviderConsts;
+import com.maxmpz.poweramp.player.TrackProviderCursorBuilder;
+import com.maxmpz.poweramp.player.TrackProviderEagerSource;
+import com.maxmpz.poweramp.player.TrackProviderFileSource;
 import com.maxmpz.poweramp.player.TrackProviderHelper;
+import com.maxmpz.poweramp.player.TrackProviderHierarchyIndex;
+import com.maxmpz.poweramp.player.TrackProviderMetadataCache;
+import com.maxmpz.poweramp.player.TrackProviderOsTransport;
+import com.maxmpz.poweramp.player.TrackProviderPrewarm;
 import com.maxmpz.poweramp.player.TrackProviderProto;
+import com.maxmpz.poweramp.player.TrackProviderProtoMetrics;
+import com.maxmpz.poweramp.player.TrackProviderProxyFdCallback;
+import com.maxmpz.poweramp.player.TrackProviderReadAhead;
+import com.maxmpz.poweramp.player.TrackProviderSeekIndex;
+import com.maxmpz.poweramp.player.TrackProviderSeekPrefetcher;
+import com.maxmpz.poweramp.player.TrackProviderServer;
+import com.maxmpz.poweramp.player.TrackProviderSessionCache;
+import com.maxmpz.poweramp.player.TrackProviderSource;
 
 import java.io.Closeable;
 import java.io.File;
@@ -51,8 +69,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Objects;
@@ -117,6 +135,15 @@ public class ExampleProvider extends DocumentsProvider {
 	private static final boolean DEBUG_STOP_PROTOCOL_AFTER_HEADER = false;
 
 
+	/** Ring size of the next track prewarm, see {@link #prewarmNextTrack} */
+	private static final int PREWARM_BUDGET_BYTES = 256 * 1024;
+
+
+	/** Our roots, see {@link #queryRoots} */
+	private static final String[] ROOT_DOCUMENT_IDS = { "root1", "root2", "root3" };
+	/** The real asset files, see {@link #docIdToFileName}. Their sizes are read once, see {@link #getAssetFileSize} */
+	private static final String[] ASSET_FILES = { "bensound-dubstep.mp3", "bensound-summer.mp3", "bensound-dubstep.flac", "streams-playlist.m3u8" };
+
 	/** Default columns returned for roots */
 	private static final String[] DEFAULT_ROOT_PROJECTION = {
 			DocumentsContract.Root.COLUMN_ROOT_ID,
@@ -174,6 +201,44 @@ public class ExampleProvider extends DocumentsProvider {
 
 	private long mApkInstallTime;
 
+	/** Serves seekable socket sessions from a single thread, see {@link #openViaServer}. Lazily created */
+	private TrackProviderServer mTrackProviderServer;
+
+	/**
+	 * Milliseconds to byte offset indexes per documentId, used for milliseconds based seek requests, see {@link #handleSeekRequest2},
+	 * and for the bookmark seek targets, see {@link #openViaServer}
+	 */
+	private final TrackProviderSeekIndex.Cache mSeekIndexCache = new TrackProviderSeekIndex.Cache(16);
+
+	/**
+	 * Next tracks already buffering for the gapless playback, prewarmed by {@link #prewarmNextTrack} and adopted by {@link #openViaServer}.
+	 * Real provider calls {@link TrackProviderPrewarm#prewarm} for its next queue item, which is especially important for the remote sources
+	 */
+	private final TrackProviderPrewarm mPrewarm = new TrackProviderPrewarm();
+
+	/** Sources of the recently closed {@link #openViaServer} sessions, reused when Poweramp reopens the same track within seconds */
+	private final TrackProviderSessionCache mSessionCache = new TrackProviderSessionCache();
+
+	/** Learns the seek targets per document for {@link TrackProviderSeekPrefetcher} */
+	private final TrackProviderSeekPrefetcher.Predictor mSeekPredictor = new TrackProviderSeekPrefetcher.Predictor(64);
+
+	/** Track tags per documentId and last modified, so the rescans don't recompute them. Created in {@link #onCreate} */
+	private TrackProviderMetadataCache mMetadataCache;
+
+	/**
+	 * Directories changed since the last scan. Real provider calls {@link TrackProviderChangeJournal#markChanged} when it detects changes, e.g. during its sync
+	 * with the remote server. Created in {@link #onCreate}
+	 */
+	private TrackProviderChangeJournal mChangeJournal;
+
+	/** Assets folders, see {@link #getAssetIndex}. Guarded by this */
+	private TrackProviderHierarchyIndex mAssetIndex;
+	/** Sizes of {@link #ASSET_FILES}, see {@link #getAssetFileSize}. Guarded by this */
+	private long[] mAssetFileSizes;
+
+	/** Track columns computed only if requested, see {@link #createTrackColumns} */
+	private final TrackProviderColumns<TrackRow> mTrackColumns = this.createTrackColumns();
+
 
 	@Override
 	public boolean onCreate() {
@@ -190,6 +255,9 @@ public class ExampleProvider extends DocumentsProvider {
             this.mApkInstallTime = System.currentTimeMillis();
 		}
 
+		this.mMetadataCache = new TrackProviderMetadataCache(this.getContext(), "metadata.db");
+		this.mChangeJournal = new TrackProviderChangeJournal(new File(this.getContext().getFilesDir(), "change-journal"), TrackProviderChangeJournal.PATH_PARENT_RESOLVER);
+
 		if(ExampleProvider.USE_MP3_COPY) {
 			// Extract our mp3s to storage as Poweramp won't properly play asset apk fd (fd points to apk itself, so Poweramp tries to play the apk file itself,
 			// basically playing first found mp3 from it)
@@ -264,74 +332,81 @@ public class ExampleProvider extends DocumentsProvider {
 
 			// If this is root, just return static root data
 			if(!documentId.contains("/") && documentId.startsWith("root")) {
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveDocumentProjection(projection));
-				final MatrixCursor.RowBuilder row = c.newRow();
-				final AssetManager assets = this.getContext().getResources().getAssets();
-                this.fillFolderRow(documentId, row, this.hasSubDirs(assets, documentId) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveDocumentProjection(projection), 1);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+				c.newRow();
+                this.fillFolderRow(documentId, c, s, this.hasSubDirs(documentId) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
 				// NOTE: we return display name derived from documentId here VS returning the same label as used for Root.COLUMN_TITLE
 				// Real app should use same labels in both places (roots and queryDocument) for same root
-				row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, this.capitalize(documentId));
-				return c;
+				c.setString(s.displayName, this.capitalize(documentId));
+				return c.build();
 
 			} else if(documentId.startsWith("root3") && documentId.endsWith(ExampleProvider.DOCID_STATIC_URL_SUFFIX)) {
 				// Url mp3 with a duration. We must provide duration here to avoid endless/non-seekable stream
 
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveTrackProjection(projection));
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveTrackProjection(projection), 1);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
 				final int trackNum = ExampleProvider.extractTrackNum(documentId);
 				if(documentId.contains("dubstep")) {
-                    this.fillURLRow(documentId, c.newRow(), ExampleProvider.DUBSTEP_HTTP_URL, ExampleProvider.DUBSTEP_SIZE, "Dubstep", 1 == trackNum ? 0 : ExampleProvider.DUBSTEP_DURATION_MS, true, true, true); // Send wave
+                    c.newRow();
+                    this.fillURLRow(documentId, c, s, ExampleProvider.DUBSTEP_HTTP_URL, ExampleProvider.DUBSTEP_SIZE, "Dubstep", 1 == trackNum ? 0 : ExampleProvider.DUBSTEP_DURATION_MS, true, true, true); // Send wave
 				} else {
 					final boolean emptyWave = 4 > trackNum; // 1..4 summer tracks with empty wave, for the others - allow Poweramp to scan them
-                    this.fillURLRow(documentId, c.newRow(), ExampleProvider.SUMMER_HTTP_URL, ExampleProvider.SUMMER_SIZE, "Summer", 1 == trackNum ? 0 : ExampleProvider.SUMMER_DURATION_MS, true, false, emptyWave);
+                    c.newRow();
+                    this.fillURLRow(documentId, c, s, ExampleProvider.SUMMER_HTTP_URL, ExampleProvider.SUMMER_SIZE, "Summer", 1 == trackNum ? 0 : ExampleProvider.SUMMER_DURATION_MS, true, false, emptyWave);
 				}
-				return c;
+				return c.build();
 
 			} else if(documentId.startsWith("root3") && documentId.endsWith(ExampleProvider.DOCID_DYNAMIC_URL_SUFFIX)) {
 				// Dynamic url to mp3 with a duration. We must provide duration here to avoid endless/non-seekable stream
 				// NOTE: we use TrackProviderConsts.DYNAMIC_URL as URL here to indicate dynamic url track
 
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveTrackProjection(projection));
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveTrackProjection(projection), 1);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
 				final int trackNum = ExampleProvider.extractTrackNum(documentId);
 				if(documentId.contains("dubstep")) {
-                    this.fillURLRow(documentId, c.newRow(), TrackProviderConsts.DYNAMIC_URL, ExampleProvider.DUBSTEP_SIZE, "Dubstep", ExampleProvider.DUBSTEP_DURATION_MS, true, true, true); // Send wave
+                    c.newRow();
+                    this.fillURLRow(documentId, c, s, TrackProviderConsts.DYNAMIC_URL, ExampleProvider.DUBSTEP_SIZE, "Dubstep", ExampleProvider.DUBSTEP_DURATION_MS, true, true, true); // Send wave
 				} else {
 					final boolean emptyWave = 4 > trackNum; // 1..4 summer tracks with empty wave, for the others - allow Poweramp to scan them
-                    this.fillURLRow(documentId, c.newRow(), TrackProviderConsts.DYNAMIC_URL, ExampleProvider.SUMMER_SIZE, "Summer", ExampleProvider.SUMMER_DURATION_MS, true, false, emptyWave);
+                    c.newRow();
+                    this.fillURLRow(documentId, c, s, TrackProviderConsts.DYNAMIC_URL, ExampleProvider.SUMMER_SIZE, "Summer", ExampleProvider.SUMMER_DURATION_MS, true, false, emptyWave);
 				}
-				return c;
+				return c.build();
 
 			} else if(documentId.endsWith(".mp3") || documentId.endsWith(".flac")) { // Seems like a track
 				// We are adding metadata for root2 and check if it's actually requested as a small optimization (which can be big if track metadata retrieval requires additional processing)
 				final boolean addMetadata = documentId.startsWith("root2/") && null != projection && this.arrayContains(projection, MediaStore.MediaColumns.TITLE);
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveTrackProjection(projection));
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveTrackProjection(projection), 1);
 
-				final boolean addLyrics = null != projection
-					                    && (this.arrayContains(projection, TrackProviderConsts.COLUMN_TRACK_LYRICS)
-											|| this.arrayContains(projection, TrackProviderConsts.COLUMN_TRACK_LYRICS_SYNCED));
-				final boolean sendWave = documentId.contains("dubstep") && null != projection
-					                   && this.arrayContains(projection, TrackProviderConsts.COLUMN_TRACK_WAVE);
+				// Lyrics and wave are computed only if requested in the projection, see createTrackColumns()
+				final boolean sendWave = documentId.contains("dubstep");
+				c.newRow();
                 this.fillTrackRow(
 					documentId,
-					c.newRow(),
+					c, this.mTrackColumns.bind(c), new TrackRow(),
 					addMetadata,
 					sendWave, // Adding wave as well to root2 tracks
-					addLyrics,
+					true,
                         ExampleProvider.extractTrackNum(documentId),
 					0,
 					TrackProviderConsts.FLAG_HAS_LYRICS // Set lyrics flag for all of these tracks
 				);
-				return c;
+				return c.build();
 
 			} else if(documentId.endsWith(".m3u")) { // Seems like a playlist
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveDocumentProjection(projection));
-                this.fillPlaylistRow(documentId, c.newRow());
-				return c;
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveDocumentProjection(projection), 1);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+                c.newRow();
+                this.fillPlaylistRow(documentId, c, s);
+				return c.build();
 
 			} else { // This must be a directory
-				MatrixCursor c = new MatrixCursor(ExampleProvider.resolveDocumentProjection(projection));
-				final AssetManager assets = this.getContext().getResources().getAssets();
-                this.fillFolderRow(documentId, c.newRow(), this.hasSubDirs(assets, documentId) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
-				return c;
+				final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveDocumentProjection(projection), 1);
+				final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+                c.newRow();
+                this.fillFolderRow(documentId, c, s, this.hasSubDirs(documentId) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
+				return c.build();
 			}
 
 		} catch(final Throwable th) {
@@ -340,25 +415,25 @@ public class ExampleProvider extends DocumentsProvider {
 		return null;
 	}
 
-	private void fillURLRow(@NonNull final String documentId, @NonNull final MatrixCursor.RowBuilder row, @NonNull final String url,
+	private void fillURLRow(@NonNull final String documentId, @NonNull final TrackProviderCursorBuilder c, @NonNull final TrackProviderCursorBuilder.TrackSlots s, @NonNull final String url,
                             final long size, @NonNull String title,
                             final long duration, final boolean sendMetadata, final boolean sendWave, final boolean sendEmptyWave
 	) {
-		row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, documentId);
-		row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, "audio/mpeg");
+		c.setString(s.documentId, documentId);
+		c.setString(s.mimeType, "audio/mpeg");
 		// The display name defines name of the track "file" in "Show File Names" mode. There is also a title via MediaStore.MediaColumns.TITLE.
 		// It's up to you how you define display name, it can be anything filename alike, or it can just match track title
-		row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, ExampleProvider.getShortName(documentId));
+		c.setString(s.displayName, ExampleProvider.getShortName(documentId));
 		// As our assets data is always static, we just return own apk installation time. For real folder structure, preferable last modified for given folder should be returned.
 		// This ensures Poweramp incremental scanning process. If we return <= 0 value here, Poweramp will be forced to rescan whole provider hierarchy each time it scans
-		row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, this.mApkInstallTime);
+		c.setLong(s.lastModified, this.mApkInstallTime);
 		// Optional, real provider should preferable return real track file size here or 0
-		row.add(DocumentsContract.Document.COLUMN_SIZE, size);
+		c.setLong(s.size, size);
 		// Setting this will cause Poweramp to ask for the track album art via getDocumentThumbnail, but only if other metadata (MediaStore.MediaColumns.TITLE/MediaStore.MediaColumns.DURATION) exists
-		row.add(DocumentsContract.Document.COLUMN_FLAGS, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL);
+		c.setInt(s.flags, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL);
 
-		row.add(TrackProviderConsts.COLUMN_URL, url);
-		row.add(MediaStore.MediaColumns.DURATION, duration); // Milliseconds, long. If duration <= 0, this is endless non-seekable stream (e.g. radio)
+		c.setString(s.url, url);
+		c.setLong(s.duration, duration); // Milliseconds, long. If duration <= 0, this is endless non-seekable stream (e.g. radio)
 
 		if(sendMetadata) { // NOTE: Poweramp doesn't need extra metadata (except COLUMN_URL/DURATION for streams) for queryDocuments, but requires that for queryDocument
 			if(TrackProviderConsts.DYNAMIC_URL.equals(url)) {
@@ -371,28 +446,28 @@ public class ExampleProvider extends DocumentsProvider {
 			// Real provider should get this info from network or extract from the file
 			final int trackNum = ExampleProvider.extractTrackNum(documentId);
 
-			row.add(MediaStore.MediaColumns.TITLE, prefix + "URL Track " + trackNum);
-			row.add(MediaStore.MediaColumns.ARTIST, prefix + "URL Artist");
-			row.add(MediaStore.MediaColumns.ALBUM, prefix + "URL Album");
-			row.add(MediaStore.Audio.AudioColumns.YEAR, 2020); // Integer
-			row.add(TrackProviderConsts.COLUMN_ALBUM_ARTIST, prefix + "URL Album Artist");
-			row.add(MediaStore.MediaColumns.COMPOSER, prefix + "URL Composer");
-			row.add(TrackProviderConsts.COLUMN_GENRE, prefix + "URL Genre");
+			c.setString(s.title, prefix + "URL Track " + trackNum);
+			c.setString(s.artist, prefix + "URL Artist");
+			c.setString(s.album, prefix + "URL Album");
+			c.setInt(s.year, 2020); // Integer
+			c.setString(s.albumArtist, prefix + "URL Album Artist");
+			c.setString(s.composer, prefix + "URL Composer");
+			c.setString(s.genre, prefix + "URL Genre");
 			// Track number. Optional, but needed for proper sorting in albums
-			row.add(MediaStore.Audio.AudioColumns.TRACK, trackNum);
+			c.setInt(s.track, trackNum);
 			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_SAMPLE_RATE, 44100);
+			c.setInt(s.sampleRate, 44100);
 			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_CHANNEL_COUNT, 2);
+			c.setInt(s.channelCount, 2);
 			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_BIT_RATE, 128000);
+			c.setInt(s.bitRate, 128000);
 			// Optional, used just for Info/Tags and lists  (for hi-res)
-			row.add(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE, 16);
+			c.setInt(s.bitsPerSample, 16);
 			if(sendWave && 0 < duration) {
-				row.add(TrackProviderConsts.COLUMN_TRACK_WAVE, TrackProviderHelper.floatsToBytes(this.genRandomWave())); // We must put byte[] array here
+				c.setBlob(s.trackWave, TrackProviderHelper.floatsToBytes(this.genRandomWave())); // We must put byte[] array here
 			} else if(sendEmptyWave) {
 				// Add this for the default waveseek if you don't want URL to be downloaded one more time and scanned for the wave
-				row.add(TrackProviderConsts.COLUMN_TRACK_WAVE, new byte[0]);
+				c.setBlob(s.trackWave, new byte[0]);
 			} // Else we allow Poweramp to scan URL for wave
 		}
 	}
@@ -405,130 +480,204 @@ public class ExampleProvider extends DocumentsProvider {
 		return wave;
 	}
 
-	private void fillFolderRow(@NonNull final String documentId, @NonNull final MatrixCursor.RowBuilder row, final int flags) {
-		row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, documentId);
-		row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, DocumentsContract.Document.MIME_TYPE_DIR);
+	private void fillFolderRow(@NonNull final String documentId, @NonNull final TrackProviderCursorBuilder c, @NonNull final TrackProviderCursorBuilder.TrackSlots s, final int flags) {
+		c.setString(s.documentId, documentId);
+		c.setString(s.mimeType, DocumentsContract.Document.MIME_TYPE_DIR);
 		// Here we're returning actual folder name, but Poweramp supports anything in display name for folders, not necessary the name matching or related to the documentId or path.
-		row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, ExampleProvider.getShortDirName(documentId));
-		row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, this.mApkInstallTime);
+		c.setString(s.displayName, ExampleProvider.getShortDirName(documentId));
+		// The journal returns the newer last modified for the changed folders and all their ancestors, so Poweramp incremental scan descends
+		// just into them. Unchanged folders get our apk installation time as before
+		c.setLong(s.lastModified, this.mChangeJournal.getLastModified(documentId, this.mApkInstallTime));
 
 		final boolean hasThumb = documentId.endsWith("1");
 		if(hasThumb) {
-			row.add(DocumentsContract.Document.COLUMN_FLAGS, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL); // Thumbnails for folders are supported since build 869
+			c.setInt(s.flags, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL); // Thumbnails for folders are supported since build 869
 		}
 		// If asked to add the subfolders hint, add it
 		if(0 != flags) {
-			row.add(TrackProviderConsts.COLUMN_FLAGS, flags);
+			c.setInt(s.providerFlags, flags);
 		}
 	}
 
-	private void fillPlaylistRow(@NonNull final String documentId, @NonNull final MatrixCursor.RowBuilder row) {
+	private void fillPlaylistRow(@NonNull final String documentId, @NonNull final TrackProviderCursorBuilder c, @NonNull final TrackProviderCursorBuilder.TrackSlots s) {
 		// NOTE: for playlists, the playlist documentId should preferable end with some extension. Poweramp also looks into mime type, or assumes it's .m3u8 playlist if no mime type
-		row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, documentId);
-		row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, "audio/mpegurl");
+		c.setString(s.documentId, documentId);
+		c.setString(s.mimeType, "audio/mpegurl");
 		// The display name defines name of the track "file" in "Show File Names" mode. There is also a title via MediaStore.MediaColumns.TITLE.
 		// It's up to you how you define display name, it can be anything filename alike, or it can just match track title
-		row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, ExampleProvider.getShortName(documentId));
+		c.setString(s.displayName, ExampleProvider.getShortName(documentId));
 		// As our assets data is always static, we just return own apk installation time. For real folder structure, preferable last modified for given folder should be returned.
 		// This ensures Poweramp incremental scanning process. If we return <= 0 value here, Poweramp will be forced to rescan whole provider hierarchy each time it scans
-		row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, this.mApkInstallTime);
+		c.setLong(s.lastModified, this.mApkInstallTime);
 	}
 
-	private void fillTrackRow(
-            @NonNull final String documentId,
-            @NonNull final MatrixCursor.RowBuilder row,
-            final boolean addMetadata,
-            final boolean sendWave,
-            final boolean sendLyrics,
-            final int trackNum,
-            final int trackNumAlt,
-            final int extraFlags
-	) {
-		final boolean isFlac = documentId.endsWith(".flac");
-		final boolean isDubstep = documentId.contains("dubstep");
-
-		row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, documentId);
-		row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, isFlac ? "audio/flac" : "audio/mpeg");
-		// The display name defines name of the track "file" in "Show File Names" mode. There is also a title via MediaStore.MediaColumns.TITLE.
-		// It's up to you how you define display name, it can be anything filename alike, or it can just match track title
-		row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, ExampleProvider.getShortName(documentId));
-		// As our assets data is always static, we just return own apk installation time. For real folder structure, preferable last modified for given folder should be returned.
-		// This ensures Poweramp incremental scanning process. If we return <= 0 value here, Poweramp will be forced to rescan whole provider hierarchy each time it scans
-		row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, this.mApkInstallTime);
+	/** Per row inputs for the {@link #mTrackColumns} suppliers. One instance is reused for all rows of a query */
+	private static class TrackRow {
+		String documentId;
+		boolean addMetadata;
+		boolean sendWave;
+		boolean sendLyrics;
+		int trackNum;
+		int trackNumAlt;
+		int extraFlags;
+		boolean isFlac;
+		boolean isDubstep;
+		/** Some dump tags logic - as we have 2 static files here as an example, but they have docId like dubstep1.mp3, summer2.mp3, etc. */
+		String prefix;
+		/** Lazily loaded by {@link #getTags} */
+		ContentValues tags;
+	}
 
-		final String filePath = this.docIdToFileName(documentId); // We only have 2 real mp3s here for many "virtual" tracks
+	/**
+	 * @return the track tags from {@link #mMetadataCache} if the track is unchanged (same documentId and last modified), otherwise computes and caches them
+	 */
+	@SuppressLint("InlinedApi")
+	private @NonNull ContentValues getTags(@NonNull final TrackRow r) {
+		ContentValues tags = r.tags;
+		if(null == tags) {
+			final long lastModified = this.getTrackLastModified(r.documentId); // Same last modified we return to Poweramp for this document
+			tags = this.mMetadataCache.get(r.documentId, lastModified);
+			if(null == tags) {
+				// Real provider should get this info from network or extract from the file, this is the part worth caching
+				tags = new ContentValues();
+				tags.put(MediaStore.MediaColumns.TITLE, r.prefix + "Track " + r.trackNum);
+				tags.put(MediaStore.MediaColumns.ARTIST, r.prefix + "Artist");
+				tags.put(MediaStore.MediaColumns.DURATION, r.isDubstep ? 125000L : 217000L); // Milliseconds, long
+				tags.put(MediaStore.MediaColumns.ALBUM, r.prefix + "Album");
+				tags.put(MediaStore.Audio.AudioColumns.YEAR, r.isDubstep ? 2020 : 2019); // Integer
+				tags.put(TrackProviderConsts.COLUMN_ALBUM_ARTIST, r.prefix + "Album Artist");
+				tags.put(MediaStore.MediaColumns.COMPOSER, r.prefix + " Composer");
+				tags.put(TrackProviderConsts.COLUMN_GENRE, r.prefix + " Genre");
+				// Optional, used just for Info/Tags
+				tags.put(MediaFormat.KEY_SAMPLE_RATE, r.isDubstep ? 44100 : 48000);
+				// Optional, used just for Info/Tags
+				tags.put(MediaFormat.KEY_CHANNEL_COUNT, 2);
+				// Optional, used just for Info/Tags
+				tags.put(MediaFormat.KEY_BIT_RATE, r.isFlac ? 720000 : (r.isDubstep ? 128000 : 192000));
+				// Optional, used just for Info/Tags and lists  (for hi-res)
+				tags.put(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE, 16);
+				this.mMetadataCache.put(r.documentId, lastModified, tags);
+			}
+			r.tags = tags;
+		}
+		return tags;
+	}
 
-		// Optional, real provider should preferable return real track file size here or 0.
-		row.add(DocumentsContract.Document.COLUMN_SIZE, this.getAssetFileSize(this.getContext().getResources().getAssets(), filePath));
+	/**
+	 * Tracks get their folder last modified, so the tracks in the changed folders (see {@link #mChangeJournal}) are rescanned by Poweramp and recomputed by {@link #getTags}
+	 */
+	private long getTrackLastModified(@NonNull final String documentId) {
+		final String dir = TrackProviderChangeJournal.PATH_PARENT_RESOLVER.getParent(documentId);
+		return null != dir ? this.mChangeJournal.getLastModified(dir, this.mApkInstallTime) : this.mApkInstallTime;
+	}
 
-		// NOTE: Poweramp doesn't need extra metadata (except COLUMN_URL/DURATION for streams) for queryDocuments,
-		// but requires that for queryDocument for tracks, which are not direct fd. Direct fd tracks still can be quickly scanned by Poweramp, but
-		// socket/pipe/url tracks won't be scanned and thus metadata is required for them
+	private @Nullable String getTagString(@NonNull final TrackRow r, @NonNull final String column) {
+		return r.addMetadata ? this.getTags(r).getAsString(column) : null;
+	}
 
-		// If provided, COLUMN_TRACK_ALT will sort tracks differently (for "by track #" sorting) in Folders/Folders Hierarchy
-		if(0 < trackNumAlt) {
-			row.add(TrackProviderConsts.COLUMN_TRACK_ALT, trackNumAlt);
+	private long getTagLong(@NonNull final TrackRow r, @NonNull final String column) {
+		if(!r.addMetadata) {
+			return TrackProviderColumns.NO_VALUE;
 		}
+		final Long value = this.getTags(r).getAsLong(column);
+		return null != value ? value : TrackProviderColumns.NO_VALUE;
+	}
 
-		if(addMetadata) {
-			// Some dump tags logic - as we have 2 static files here as an example, but they have docId like dubstep1.mp3, summer2.mp3, etc.
-			// Real provider should get this info from network or extract from the file
-			final String prefix = isDubstep ? "Dubstep " : "Summer ";
-
-			int flags = 0;
-
-			// Setting this will cause Poweramp to ask for track album art via getDocumentThumbnail, but only if other metadata (MediaStore.MediaColumns.TITLE/MediaStore.MediaColumns.DURATION) exists
-			flags |= DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL;
-			flags |= TrackProviderConsts.FLAG_HAS_LYRICS;
-
-			row.add(DocumentsContract.Document.COLUMN_FLAGS, flags);
-			row.add(MediaStore.MediaColumns.TITLE, prefix + "Track " + trackNum);
-			row.add(MediaStore.MediaColumns.ARTIST, prefix + "Artist");
-			row.add(MediaStore.MediaColumns.DURATION, isDubstep ? 125000L : 217000L); // Milliseconds, long
-			row.add(MediaStore.MediaColumns.ALBUM, prefix + "Album");
-			row.add(MediaStore.Audio.AudioColumns.YEAR, isDubstep ? 2020 : 2019); // Integer
-			row.add(TrackProviderConsts.COLUMN_ALBUM_ARTIST, prefix + "Album Artist");
-			row.add(MediaStore.MediaColumns.COMPOSER, prefix + " Composer");
-			row.add(TrackProviderConsts.COLUMN_GENRE, prefix + " Genre");
+	/**
+	 * Defines the track columns. Each supplier is called only if its column is in the projection Poweramp requested, see {@link #fillTrackRow}.<br>
+	 * Real provider should get the metadata from network or extract it from the file, so skipping the columns not requested can save a lot for the large folders
+	 */
+	@SuppressLint("InlinedApi")
+	private @NonNull TrackProviderColumns<TrackRow> createTrackColumns() {
+		return new TrackProviderColumns<TrackRow>()
+			.addString(DocumentsContract.Document.COLUMN_DOCUMENT_ID, r -> r.documentId)
+			.addString(DocumentsContract.Document.COLUMN_MIME_TYPE, r -> r.isFlac ? "audio/flac" : "audio/mpeg")
+			// The display name defines name of the track "file" in "Show File Names" mode. There is also a title via MediaStore.MediaColumns.TITLE.
+			// It's up to you how you define display name, it can be anything filename alike, or it can just match track title
+			.addString(DocumentsContract.Document.COLUMN_DISPLAY_NAME, r -> ExampleProvider.getShortName(r.documentId))
+			// As our assets data is always static, we just return own apk installation time. For real folder structure, preferable last modified for given folder should be returned.
+			// This ensures Poweramp incremental scanning process. If we return <= 0 value here, Poweramp will be forced to rescan whole provider hierarchy each time it scans
+			.addLong(DocumentsContract.Document.COLUMN_LAST_MODIFIED, r -> this.getTrackLastModified(r.documentId))
+			// Optional, real provider should preferable return real track file size here or 0.
+			// We only have 2 real mp3s here for many "virtual" tracks
+			.addLong(DocumentsContract.Document.COLUMN_SIZE, r -> this.getAssetFileSize(this.docIdToFileName(r.documentId)))
+
+			// NOTE: Poweramp doesn't need extra metadata (except COLUMN_URL/DURATION for streams) for queryDocuments,
+			// but requires that for queryDocument for tracks, which are not direct fd. Direct fd tracks still can be quickly scanned by Poweramp, but
+			// socket/pipe/url tracks won't be scanned and thus metadata is required for them
+
+			// If provided, COLUMN_TRACK_ALT will sort tracks differently (for "by track #" sorting) in Folders/Folders Hierarchy
+			.addLong(TrackProviderConsts.COLUMN_TRACK_ALT, r -> 0 < r.trackNumAlt ? r.trackNumAlt : TrackProviderColumns.NO_VALUE)
+
+			// Setting FLAG_SUPPORTS_THUMBNAIL will cause Poweramp to ask for track album art via getDocumentThumbnail, but only if other metadata
+			// (MediaStore.MediaColumns.TITLE/MediaStore.MediaColumns.DURATION) exists
+			.addLong(DocumentsContract.Document.COLUMN_FLAGS, r -> r.addMetadata ? DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL | TrackProviderConsts.FLAG_HAS_LYRICS : TrackProviderColumns.NO_VALUE)
+			// The tags are served from mMetadataCache for the unchanged tracks, see getTags()
+			.addString(MediaStore.MediaColumns.TITLE, r -> this.getTagString(r, MediaStore.MediaColumns.TITLE))
+			.addString(MediaStore.MediaColumns.ARTIST, r -> this.getTagString(r, MediaStore.MediaColumns.ARTIST))
+			.addLong(MediaStore.MediaColumns.DURATION, r -> this.getTagLong(r, MediaStore.MediaColumns.DURATION))
+			.addString(MediaStore.MediaColumns.ALBUM, r -> this.getTagString(r, MediaStore.MediaColumns.ALBUM))
+			.addLong(MediaStore.Audio.AudioColumns.YEAR, r -> this.getTagLong(r, MediaStore.Audio.AudioColumns.YEAR))
+			.addString(TrackProviderConsts.COLUMN_ALBUM_ARTIST, r -> this.getTagString(r, TrackProviderConsts.COLUMN_ALBUM_ARTIST))
+			.addString(MediaStore.MediaColumns.COMPOSER, r -> this.getTagString(r, MediaStore.MediaColumns.COMPOSER))
+			.addString(TrackProviderConsts.COLUMN_GENRE, r -> this.getTagString(r, TrackProviderConsts.COLUMN_GENRE))
 			// Track number. Optional, but needed for proper sorting in albums.
 			// If not defined (or set to <= 0), Poweramp will use cursor position for track - this may be useful for folders where we want default cursor based ordering of items -
 			// exactly as provided by cursor. Just don't send MediaStore.Audio.AudioColumns.TRACK column for such tracks.
 			// NOTE: Poweramp won't scan track number from filename for provider provided tracks, nor it will cut number (e.g. "01-" from "01-trackname") from displayName
 			// as it does by default for normal filesystem tracks
-			row.add(MediaStore.Audio.AudioColumns.TRACK, trackNum);
-			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_SAMPLE_RATE, isDubstep ? 44100 : 48000);
-			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_CHANNEL_COUNT, 2);
-			// Optional, used just for Info/Tags
-			row.add(MediaFormat.KEY_BIT_RATE, isFlac ? 720000 : (isDubstep ? 128000 : 192000));
-			// Optional, used just for Info/Tags and lists  (for hi-res)
-			row.add(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE, 16);
+			.addLong(MediaStore.Audio.AudioColumns.TRACK, r -> r.addMetadata ? r.trackNum : TrackProviderColumns.NO_VALUE)
+			.addLong(MediaFormat.KEY_SAMPLE_RATE, r -> this.getTagLong(r, MediaFormat.KEY_SAMPLE_RATE))
+			.addLong(MediaFormat.KEY_CHANNEL_COUNT, r -> this.getTagLong(r, MediaFormat.KEY_CHANNEL_COUNT))
+			.addLong(MediaFormat.KEY_BIT_RATE, r -> this.getTagLong(r, MediaFormat.KEY_BIT_RATE))
+			.addLong(TrackProviderConsts.COLUMN_BITS_PER_SAMPLE, r -> this.getTagLong(r, TrackProviderConsts.COLUMN_BITS_PER_SAMPLE))
 
-			if(sendWave) {
-				row.add(TrackProviderConsts.COLUMN_TRACK_WAVE, TrackProviderHelper.floatsToBytes(this.genRandomWave()));
-			}
+			.addBlob(TrackProviderConsts.COLUMN_TRACK_WAVE, r -> r.addMetadata && r.sendWave ? TrackProviderHelper.floatsToBytes(this.genRandomWave()) : null)
 
 			// Add our own extra flags if any
-			if(0 != extraFlags) {
-				row.add(TrackProviderConsts.COLUMN_FLAGS, extraFlags);
-			}
+			.addLong(TrackProviderConsts.COLUMN_FLAGS, r -> r.addMetadata && 0 != r.extraFlags ? r.extraFlags : TrackProviderColumns.NO_VALUE)
+
+			// For dubstep add LRC (synced) lyrics
+			.addString(TrackProviderConsts.COLUMN_TRACK_LYRICS_SYNCED, r -> r.addMetadata && r.sendLyrics && r.isDubstep
+				? "[0:00.00]La la la\n[0:05.00]Synced Lyrics for track " + r.prefix + "Track " + r.trackNum + "\n" +
+				  "[0:05.00]Line\n" +
+				  "[0:10.00]Line\n" +
+				  "[0:30.00]The last line\n"
+				: null)
+			.addString(TrackProviderConsts.COLUMN_TRACK_LYRICS, r -> r.addMetadata && r.sendLyrics && !r.isDubstep
+				? "La la la\nLyrics for track " + r.prefix + "Track " + r.trackNum
+				: null);
+	}
 
-			if(sendLyrics) {
-				if(isDubstep) {
-					// For dubstep add LRC (synced) lyrics
-					row.add(
-						TrackProviderConsts.COLUMN_TRACK_LYRICS_SYNCED,
-						"[0:00.00]La la la\n[0:05.00]Synced Lyrics for track " + prefix + "Track " + trackNum + "\n" +
-						"[0:05.00]Line\n" +
-						"[0:10.00]Line\n" +
-						"[0:30.00]The last line\n"
-					);
-				} else {
-					row.add(TrackProviderConsts.COLUMN_TRACK_LYRICS, "La la la\nLyrics for track " + prefix + "Track " + trackNum);
-				}
-			}
-		}
+	/**
+	 * @param trackColumns {@link #mTrackColumns} bound to the query projection
+	 * @param row reused row inputs
+	 */
+	private void fillTrackRow(
+            @NonNull final String documentId,
+            @NonNull final TrackProviderCursorBuilder c,
+            @NonNull final TrackProviderColumns.Binding<TrackRow> trackColumns,
+            @NonNull final TrackRow row,
+            final boolean addMetadata,
+            final boolean sendWave,
+            final boolean sendLyrics,
+            final int trackNum,
+            final int trackNumAlt,
+            final int extraFlags
+	) {
+		row.documentId = documentId;
+		row.addMetadata = addMetadata;
+		row.sendWave = sendWave;
+		row.sendLyrics = sendLyrics;
+		row.trackNum = trackNum;
+		row.trackNumAlt = trackNumAlt;
+		row.extraFlags = extraFlags;
+		row.isFlac = documentId.endsWith(".flac");
+		row.isDubstep = documentId.contains("dubstep");
+		row.prefix = row.isDubstep ? "Dubstep " : "Summer ";
+		row.tags = null;
+
+		trackColumns.fill(c, row);
 	}
 
 	/**
@@ -540,12 +689,18 @@ public class ExampleProvider extends DocumentsProvider {
 		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "queryChildDocuments parentDocumentId=" + parentDocumentId + " projection=" + Arrays.toString(projection));
 
 		try {
-			final AssetManager assets = this.getContext().getResources().getAssets();
-			final String[] filesAndDirs = assets.list(parentDocumentId);
+			// Subfolders come from the assets index, so there is no AssetManager.list() call per query.
+			// Path is our documentId. Note that this provider defines paths/documentIds format. Poweramp treats them as opaque string
+			final TrackProviderHierarchyIndex index = this.getAssetIndex();
+			final int parentIx = index.indexOf(parentDocumentId);
+			final String[] dirs = new String[0 <= parentIx ? index.getChildCount(parentIx) : 0];
+			for(int i = 0; i < dirs.length; i++) {
+				dirs[i] = index.getDocumentId(index.getChild(parentIx, i));
+			}
 
 			// To demonstrate folders and files sorting based on cursor position, sort and reverse the array. Do this for Root1
 			if("root1".equals(parentDocumentId)) {
-				Arrays.sort(filesAndDirs, 0, filesAndDirs.length, new Comparator<String>() {
+				Arrays.sort(dirs, 0, dirs.length, new Comparator<String>() {
 					@Override
 					public int compare(final String o1, final String o2) {
 						return o2.compareToIgnoreCase(o1);
@@ -556,18 +711,20 @@ public class ExampleProvider extends DocumentsProvider {
 			// We are adding metadata for root2 and check if it's actually requested as a small optimization (which can be big if track metadata retrieval requires additional processing)
 			final boolean addMetadata = parentDocumentId.startsWith("root2") && null != projection && this.arrayContains(projection, MediaStore.MediaColumns.TITLE);
 
-			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "queryChildDocuments filesAndDirs=" + Arrays.toString(filesAndDirs));
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "queryChildDocuments dirs=" + Arrays.toString(dirs));
 
-			MatrixCursor c = new MatrixCursor(ExampleProvider.resolveDocumentProjection(projection));
+			// The projection is resolved into the column slots once here, not per each row cell as MatrixCursor.RowBuilder.add() does. This matters for the large folders.
+			// Capacity is folders + generated tracks (see count below) + root3 playlist and 2 dynamic URL tracks
+			final TrackProviderCursorBuilder c = new TrackProviderCursorBuilder(ExampleProvider.resolveDocumentProjection(projection), dirs.length + parentDocumentId.length() + 3);
+			final TrackProviderCursorBuilder.TrackSlots s = new TrackProviderCursorBuilder.TrackSlots(c);
+			// Only the track columns in the projection are computed per row
+			final TrackProviderColumns.Binding<TrackRow> trackColumns = this.mTrackColumns.bind(c);
+			final TrackRow trackRow = new TrackRow();
 
 			final int ix = 0;
-			for(final String fileOrDir : filesAndDirs) {
-				final String path = parentDocumentId + "/" + fileOrDir; // Path is our documentId. Note that this provider defines paths/documentIds format. Poweramp treats them as opaque string
-
-				if(this.isAssetDir(assets, path)) {
-                    this.fillFolderRow(path, c.newRow(), this.hasSubDirs(assets, path) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
-
-				} // Else this is empty.txt file, we skip it
+			for(final String path : dirs) {
+                c.newRow();
+                this.fillFolderRow(path, c, s, this.hasSubDirs(path) ? TrackProviderConsts.FLAG_HAS_SUBDIRS : TrackProviderConsts.FLAG_NO_SUBDIRS);
 			}
 
 			// Generate some number of files for given folder
@@ -582,11 +739,13 @@ public class ExampleProvider extends DocumentsProvider {
 
 			if("root3".equals(parentDocumentId)) {
 				// For root3 add m3u8 playlist
-                this.fillPlaylistRow(parentDocumentId + "/" + "streams-playlist.m3u8", c.newRow());
+                c.newRow();
+                this.fillPlaylistRow(parentDocumentId + "/" + "streams-playlist.m3u8", c, s);
 
 				// Add dynamic URL tracks
 				docId = parentDocumentId + "/" + "dubstep" + "-" + 1 + ExampleProvider.DOCID_DYNAMIC_URL_SUFFIX;
-                this.fillURLRow(docId, c.newRow(),
+                c.newRow();
+                this.fillURLRow(docId, c, s,
 						TrackProviderConsts.DYNAMIC_URL,
                         ExampleProvider.DUBSTEP_SIZE,
 						"", // NOTE: titles not sent here
@@ -594,7 +753,8 @@ public class ExampleProvider extends DocumentsProvider {
 						false, false, false); // Not sending metadata here
 
 				docId = parentDocumentId + "/" + "summer" + "-" + 2 + ExampleProvider.DOCID_DYNAMIC_URL_SUFFIX;
-                this.fillURLRow(docId, c.newRow(),
+                c.newRow();
+                this.fillURLRow(docId, c, s,
 						TrackProviderConsts.DYNAMIC_URL,
                         ExampleProvider.SUMMER_SIZE,
 						"", // NOTE: titles not sent here
@@ -606,7 +766,8 @@ public class ExampleProvider extends DocumentsProvider {
 					final boolean isDubstep = 0 != (i & 1);
 					final boolean isStream = 0 == i; // First track here will be a "stream" - non seekable, no duration
 					docId = parentDocumentId + "/" + (isDubstep ? "dubstep" : "summer") + "-" + (i + 3) + ExampleProvider.DOCID_STATIC_URL_SUFFIX;
-                    this.fillURLRow(docId, c.newRow(),
+                    c.newRow();
+                    this.fillURLRow(docId, c, s,
 							isDubstep ? ExampleProvider.DUBSTEP_HTTP_URL : ExampleProvider.SUMMER_HTTP_URL,
 							isDubstep ? ExampleProvider.DUBSTEP_SIZE : ExampleProvider.SUMMER_SIZE,
 							"", // NOTE: titles not sent here
@@ -626,11 +787,12 @@ public class ExampleProvider extends DocumentsProvider {
 					if("root1".equals(parentDocumentId)) {
 						sortAlt = count - i;
 					}
-                    this.fillTrackRow(docId, c.newRow(), addMetadata, false, false, sort, sortAlt, 0);
+                    c.newRow();
+                    this.fillTrackRow(docId, c, trackColumns, trackRow, addMetadata, false, false, sort, sortAlt, 0);
 				}
 			}
 
-			return c;
+			return c.build();
 		} catch(final Throwable th) {
 			Log.e(ExampleProvider.TAG, "documentId=" + parentDocumentId, th);
 		}
@@ -639,22 +801,48 @@ public class ExampleProvider extends DocumentsProvider {
 	}
 
 	/**
-	 * Simple method to check our assets directory structure for children folders. We have only folders and empty.txt files there
+	 * Checks our assets directory structure for children folders, O(1) via the assets index
 	 */
-	private boolean hasSubDirs(final AssetManager assets, final String path) {
+	private boolean hasSubDirs(final String path) {
+		final TrackProviderHierarchyIndex index = this.getAssetIndex();
+		final int ix = index.indexOf(path);
+		return 0 <= ix && index.hasSubDirs(ix);
+	}
+
+	/**
+	 * @return the assets folders hierarchy index, built on the first use. Android SDK doesn't provide an efficient way to check folders vs files in assets,
+	 * so the folders and their children are indexed once. The files are not indexed, see {@link #getAssetFileSize}.<br>
+	 * Real provider can build the same index for its remote tree, e.g. after each sync
+	 */
+	private synchronized @NonNull TrackProviderHierarchyIndex getAssetIndex() {
+		TrackProviderHierarchyIndex index = this.mAssetIndex;
+		if(null == index) {
+			final AssetManager assets = this.getContext().getResources().getAssets();
+			final TrackProviderHierarchyIndex.Builder builder = new TrackProviderHierarchyIndex.Builder();
+			for(final String root : ExampleProvider.ROOT_DOCUMENT_IDS) {
+				this.addAssetDir(assets, builder, root, -1);
+			}
+			index = builder.build();
+			this.mAssetIndex = index;
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "getAssetIndex " + index);
+		}
+		return index;
+	}
+
+	private void addAssetDir(@NonNull final AssetManager assets, @NonNull final TrackProviderHierarchyIndex.Builder builder, @NonNull final String path, final int parentIx) {
+		final int ix = builder.add(path, parentIx, true, 0, 0);
 		try {
 			final String[] filesAndDirs = assets.list(path);
-			if(null != filesAndDirs && 0 < filesAndDirs.length) {
+			if(null != filesAndDirs) {
 				for(final String child : filesAndDirs) {
-					if(!child.endsWith(".txt")) {
-						return true;
+					if(!child.endsWith(".txt")) { // We have only folders and empty.txt files there
+						this.addAssetDir(assets, builder, path + "/" + child, ix);
 					}
 				}
 			}
 		} catch(final IOException e) {
 			Log.e(ExampleProvider.TAG, path, e);
 		}
-		return false;
 	}
 
 	/** Send album art for tracks with track-provided metadata */
@@ -710,9 +898,14 @@ public class ExampleProvider extends DocumentsProvider {
 		if(null != pak && pak.equals(PowerampAPIHelper.getPowerampPackageName(this.getContext()))
 				&& documentId.startsWith("root2/") && documentId.contains("dubstep")
 		) {
-			// Let's open dubstep-2 via milliseconds based seekbable sockets, and other dubsteps - via byte offset seekable sockets
+			// Let's open dubstep-2 via milliseconds based seekbable sockets, dubstep-4 - via zero-copy file sending, dubstep-6 and dubstep-8 - via the shared server thread
+			// (dubstep-8 is prewarmed while dubstep-6 ends), and other dubsteps - via byte offset seekable sockets
 			if(documentId.endsWith("-2.flac")) {
 				return this.openViaSeekableSocket2(documentId, filePath, signal);
+			} else if(documentId.endsWith("-4.mp3")) {
+				return this.openViaSeekableSocketSendFile(documentId, filePath, signal);
+			} else if(documentId.endsWith("-6.mp3") || documentId.endsWith("-8.mp3")) {
+				return this.openViaServer(documentId, filePath);
 			} else {
 				return this.openViaSeekableSocket(documentId, filePath, signal);
 			}
@@ -780,15 +973,16 @@ public class ExampleProvider extends DocumentsProvider {
 			new Thread(new Runnable() {
 				public void run() {
 					// NOTE: we can use arbitrary buffer size here >0, but increasing buffer will increase non-seekable "window" at the end of file
-					// Using buffer size > MAX_DATA_SIZE will cause buffer to be split into multiple packets
-					final ByteBuffer buf = ByteBuffer.allocateDirect(TrackProviderProto.MAX_DATA_SIZE);
-					buf.order(ByteOrder.nativeOrder());
+					// Using buffer size > proto.getMaxDataSize() will cause buffer to be split into multiple packets.
+					// Here we're offering larger packets to Poweramp, if these are not accepted, each buffer is sent as a few MAX_DATA_SIZE packets
+					// Direct buffers are taken from the shared pool, so opening many tracks (e.g. during rescan) doesn't grow the native memory
+					final ByteBuffer buf = TrackProviderBufferPool.getDefault().acquire(TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE);
 
 					long bytesSent = 0;
 
 					try(final FileInputStream fis = new FileInputStream(file)) {
 						final FileChannel fc = fis.getChannel(); // We'll be using nio for the buffer loading
-						try(final TrackProviderProto proto = new TrackProviderProto(fds[1], fileLength)) {
+						try(final TrackProviderProto proto = TrackProviderOsTransport.createProto(fds[1], fileLength, TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE)) {
 
 							if(ExampleProvider.DEBUG_ALWAYS_STOP_PROTOCOL) {
 								if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocket STOP due to DEBUG_ALWAYS_STOP_PROTOCOL");
@@ -852,6 +1046,8 @@ public class ExampleProvider extends DocumentsProvider {
 					} catch(final Throwable th) {
 						// If we're here, we can't do much - close connection, release resources, and exit
 						Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
+					} finally {
+						TrackProviderBufferPool.getDefault().release(buf);
 					}
 				}
 			}).start();
@@ -895,13 +1091,17 @@ public class ExampleProvider extends DocumentsProvider {
 				@SuppressWarnings("UnusedAssignment") public void run() {
 					// NOTE: we can use arbitrary buffer size here >0, but increasing buffer will increase non-seekable "window" at the end of file
 					// Using buffer size > MAX_DATA_SIZE will cause buffer to be split into multiple packets
-					final ByteBuffer buf = ByteBuffer.allocateDirect(TrackProviderProto.MAX_DATA_SIZE);
-					buf.order(ByteOrder.nativeOrder());
+					final ByteBuffer buf = TrackProviderBufferPool.getDefault().acquire(TrackProviderProto.MAX_DATA_SIZE);
 					long bytesSent = 0;
 
 					try(final FileInputStream fis = new FileInputStream(file)) {
 						final FileChannel fc = fis.getChannel(); // We'll be using nio for the buffer loading
-						try(final TrackProviderProto proto = new TrackProviderProto(fds[1], fileLength)) {
+						try(final TrackProviderProto proto = TrackProviderOsTransport.createProto(fds[1], fileLength)) {
+							// Metrics don't allocate per packet, so they can be kept on. Here we just log them when done
+							if(ExampleProvider.LOG) proto.setMetrics(new TrackProviderProtoMetrics());
+
+							// fileLength is just an estimate here, so let Poweramp know the actual length once it's known, see below
+							proto.setLengthEstimated(true);
 
 							if(ExampleProvider.DEBUG_ALWAYS_STOP_PROTOCOL) {
 								if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocket2 STOP due to DEBUG_ALWAYS_STOP_PROTOCOL");
@@ -915,6 +1115,11 @@ public class ExampleProvider extends DocumentsProvider {
 								return; // Immediately stop. NOTE: this will call proto.close automatically
 							}
 
+							// For the transcoded or progressively downloaded tracks the actual length becomes known later, here we know it right away.
+							// The update is queued until Poweramp answers the header, and sent if Poweramp accepts it. Older Poweramp builds never answer,
+							// so the update stays queued and these just keep the header length
+							proto.sendLength(fc.size(), true);
+
 							while(true) {
 								int len;
 								while(0 < (len = fc.read(buf))) {
@@ -924,7 +1129,7 @@ public class ExampleProvider extends DocumentsProvider {
 									// NOTE: avoid sending empty buffers here (!buf.hasRemaining()), as this will cause premature EOF
 									final TrackProviderProto.SeekRequest seekRequest = proto.sendData2(buf);
 
-                                    ExampleProvider.this.handleSeekRequest2(proto, seekRequest, fc, fileLength); // May be handle seek request
+                                    ExampleProvider.this.handleSeekRequest2(proto, seekRequest, fc, documentId); // May be handle seek request
 
 									bytesSent += buf.limit();
 
@@ -948,7 +1153,7 @@ public class ExampleProvider extends DocumentsProvider {
 								// This scenario can be easily tested by pausing Poweramp close to the track end and seeking while paused
 
 								final TrackProviderProto.SeekRequest seekRequest = proto.sendEOFAndWaitForSeekOrClose2();
-								if(ExampleProvider.this.handleSeekRequest2(proto, seekRequest, fc, fileLength)) {
+								if(ExampleProvider.this.handleSeekRequest2(proto, seekRequest, fc, documentId)) {
 									if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocket2 file seek past EOF documentId=" + documentId);
 									//noinspection UnnecessaryContinue
 									continue; // We've just processed extra seek request, continue sending buffers
@@ -957,13 +1162,15 @@ public class ExampleProvider extends DocumentsProvider {
 								}
 							}
 
-							if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, " openViaSeekableSocket2 file DONE documentId=" + documentId);
+							if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, " openViaSeekableSocket2 file DONE documentId=" + documentId + " metrics=" + proto.getMetrics());
 						}
 					} catch(final TrackProviderProto.TrackProviderProtoClosed ex) {
 						if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocket2 closed documentId=" + documentId + " " + ex.getMessage());
 					} catch(final Throwable th) {
 						// If we're here, we can't do much - close connection, release resources, and exit
 						Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
+					} finally {
+						TrackProviderBufferPool.getDefault().release(buf);
 					}
 				}
 			}).start();
@@ -976,67 +1183,244 @@ public class ExampleProvider extends DocumentsProvider {
 		}
 	}
 
-	@RequiresApi(api = Build.VERSION_CODES.O)
-	private ParcelFileDescriptor openViaProxyFd(String documentId, String filePath, CancellationSignal signal) throws FileNotFoundException {
-		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaProxyFd documentId=" + documentId + " filePath=" + filePath);
-		FileInputStream fis = null;
+	/**
+	 * This version of the method uses byte offset based seeks and sends file data via {@link TrackProviderProto#sendFile}, so the data is copied
+	 * from the file to the socket by the kernel, without reading it into the buffers
+	 */
+	private ParcelFileDescriptor openViaSeekableSocketSendFile(String documentId, final String filePath, CancellationSignal signal) throws FileNotFoundException {
+		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocketSendFile documentId=" + documentId + " filePath=" + filePath);
 		try {
+			ParcelFileDescriptor[] fds = ParcelFileDescriptor.createSocketPair();
 			File file = new File(this.getContext().getFilesDir(), filePath);
 			long fileLength = file.length();
-			fis = new FileInputStream(file);
-			FileDescriptor fd = fis.getFD();
 
-			HandlerThread thread = new HandlerThread(documentId); // This is the thread we're handling fd reading on
-			thread.start();
-			final Handler handler = new Handler(thread.getLooper());
+			// NOTE: it's not possible to use timeouts on this side of the socket as Poweramp may open and hold the socket for an indefinite time while in the paused state
+			// NOTE: don't use AsyncTask or other short-time thread pools here, as:
+			// - this thread will be alive as long as Poweramp holds the file
+			// - this can take an indefinite time, as Poweramp can be paused on the file
 
-			final StorageManager storageManager = (StorageManager) this.getContext().getSystemService(Context.STORAGE_SERVICE);
+			new Thread(new Runnable() {
+				public void run() {
+					try(final FileInputStream fis = new FileInputStream(file)) {
+						final FileChannel fc = fis.getChannel(); // Used just as transferTo source, its position is not used
+						try(final TrackProviderProto proto = TrackProviderOsTransport.createProto(fds[1], fileLength, TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE)) {
 
-			FileInputStream finalFis = fis;
+							proto.sendHeader(); // Send initial header
 
-			final ParcelFileDescriptor pfd = storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, new ProxyFileDescriptorCallback() {
-				@Override
-				public long onGetSize() throws ErrnoException {
-					if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "onGetSize fileLength=" + fileLength + " documentId=" + documentId);
-					return fileLength;
+							long pos = 0;
+							while(true) {
+								// Send the rest of the file. Returns early if Poweramp requests a seek
+								TrackProviderProto.SeekRequest seekRequest = proto.sendFile(fc, pos, fileLength - pos);
+								if(null == seekRequest) {
+									// We're at EOF. Still keep file and socket opened until Poweramp closes socket, see openViaSeekableSocket
+									seekRequest = proto.sendEOFAndWaitForSeekOrClose2();
+									if(null == seekRequest) {
+										break; // We done here, Poweramp closed socket
+									}
+									if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocketSendFile file seek past EOF documentId=" + documentId);
+								}
+
+								final long newPos = ExampleProvider.resolveSeekPos(seekRequest.offsetBytes, fileLength);
+								proto.sendSeekResult(newPos);
+								if(0 <= newPos) {
+									pos = newPos;
+								}
+							}
+
+							if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, " openViaSeekableSocketSendFile file DONE documentId=" + documentId);
+						}
+					} catch(final TrackProviderProto.TrackProviderProtoClosed ex) {
+						if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaSeekableSocketSendFile closed documentId=" + documentId + " " + ex.getMessage());
+					} catch(final Throwable th) {
+						// If we're here, we can't do much - close connection, release resources, and exit
+						Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
+					}
 				}
+			}).start();
+
+			return fds[0];
 
-				public int onRead(final long offset, final int size, final byte[] data) throws ErrnoException {
-					try {
-						// NOTE: doing direct low level reads on file descriptor
-						// Real provider, for example, for http streaming, could track offset and request remote seek if needed,
-						// then read data from http stream to byte[] data
+		} catch(final Throwable th) {
+			Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
+			throw new FileNotFoundException(documentId);
+		}
+	}
 
-						if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "onRead documentId=" + documentId + " offset=" + offset + " size=" + size + " thread=" + Thread.currentThread());
+	/**
+	 * This version of the method uses byte offset based seeks and the shared {@link TrackProviderServer}, which serves all the sessions from a single thread,
+	 * instead of a thread per session. The server reads the source ahead on its read-ahead thread, so the source here may block
+	 */
+	private ParcelFileDescriptor openViaServer(@NonNull final String documentId, @NonNull final String filePath) throws FileNotFoundException {
+		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaServer documentId=" + documentId + " filePath=" + filePath);
+		TrackProviderSource source = null;
+		try {
+			final ParcelFileDescriptor[] fds = ParcelFileDescriptor.createSocketPair();
+			final TrackProviderServer server = this.getTrackProviderServer();
+
+			// If Poweramp just closed this track (pause/resume, output change, etc.), reuse the parked source. Otherwise, if this track was prewarmed,
+			// the first data is sent from the already buffered read-ahead
+			final TrackProviderSessionCache.Entry parked = this.mSessionCache.take(documentId, 0);
+			final TrackProviderReadAhead prewarmed = null == parked ? this.mPrewarm.adopt(documentId) : null;
+			final TrackProviderSeekIndex seekIndex;
+			if(null != parked) {
+				source = parked.source;
+				seekIndex = parked.seekIndex; // Parked along with the source, so it's passed to the wrap below again
+			} else if(null != prewarmed) {
+				source = prewarmed;
+				seekIndex = this.getSeekIndex(documentId, new File(this.getContext().getFilesDir(), filePath));
+			} else {
+				final File file = new File(this.getContext().getFilesDir(), filePath);
+				// Resolves the bookmark seek targets for the prefetcher below. Built once per document
+				seekIndex = this.getSeekIndex(documentId, file);
+
+				// Open the source and fetch its first chunk in parallel with the socket setup and the header send. For the local file the gain is small,
+				// but for the remote sources this saves the connection and the first request latency. See eager.getTimings()
+				final TrackProviderEagerSource eager = new TrackProviderEagerSource(() -> new TrackProviderFileSource(file), file.length(),
+						TrackProviderEagerSource.DEFAULT_FIRST_CHUNK_SIZE);
+				// Keep small pre-read windows at the likely seek targets (track start, past seek targets, bookmarks), so such seeks are answered from memory
+				source = new TrackProviderSeekPrefetcher(documentId, eager, () -> new TrackProviderFileSource(file), seekIndex, this.mSeekPredictor);
+			}
 
-						return Os.pread(fd, data, 0, size, offset);
+			// Offer the larger packets, same as the other streaming modes do
+			final TrackProviderServer.SessionConfig config = new TrackProviderServer.SessionConfig();
+			config.maxDataSize = TrackProviderProto.MAX_NEGOTIATED_DATA_SIZE;
 
-					} catch(final ErrnoException errno) {
-						Log.e(ExampleProvider.TAG, "documentId=" + documentId + " filePath=" + filePath, errno);
-						throw errno; // Rethrow
+			// Once the session ends, the source is parked in mSessionCache for a while along with its seek index, instead of being closed.
+			// Once the source reaches EOF, the next track is prewarmed
+			server.open(fds[1], new NextTrackPrewarmingSource(documentId, this.mSessionCache.wrap(documentId, source, seekIndex, 0)), config); // Server owns fds[1] and source now
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaServer parked=" + (null != parked) + " prewarmed=" + (null != prewarmed) + " " + this.mSessionCache);
 
-					} catch(final Throwable e) {
-						Log.e(ExampleProvider.TAG, "documentId=" + documentId + " filePath=" + filePath, e);
-						throw new ErrnoException("onRead", OsConstants.EBADF);
-					}
-				}
+			return fds[0];
+
+		} catch(final Throwable th) {
+			Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
+			if(null != source) {
+				source.close();
+			}
+			throw new FileNotFoundException(documentId);
+		}
+	}
+
+	/**
+	 * @return the seek index for the document, built once per document, or null if it can't be built for the file
+	 */
+	private @Nullable TrackProviderSeekIndex getSeekIndex(@NonNull final String documentId, @NonNull final File file) {
+		try(final FileInputStream in = new FileInputStream(file)) {
+			return this.mSeekIndexCache.getOrBuild(documentId, in.getChannel());
+		} catch(final IOException ex) {
+			Log.e(ExampleProvider.TAG, "documentId=" + documentId, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Prewarms the track following the given one in our "queue", so its {@link #openViaServer} session sends the first data from memory, see {@link #mPrewarm}.<br>
+	 * Called once the given track source reaches EOF, i.e. the read-ahead has the track tail buffered and Poweramp is near the track end.
+	 * Our "queue" is just the next server track in the same folder, real provider prewarms its actual next queue item here
+	 */
+	private void prewarmNextTrack(@NonNull final String documentId) {
+		// Only dubstep-6 and dubstep-8 are sent via the server, see openDocument. The folder has dubstep-8 if it has at least 8 tracks, see queryChildDocuments
+		final int slashIx = documentId.lastIndexOf('/');
+		if(!documentId.startsWith("root2/") || !documentId.endsWith("/dubstep-6.mp3") || 8 > slashIx) {
+			return;
+		}
+		final String nextDocumentId = documentId.substring(0, slashIx) + "/dubstep-8.mp3";
+		final String filePath = this.docIdToFileName(nextDocumentId);
+		if(null == filePath) {
+			return;
+		}
+		try {
+			this.mPrewarm.prewarm(nextDocumentId, new TrackProviderFileSource(new File(this.getContext().getFilesDir(), filePath)), ExampleProvider.PREWARM_BUDGET_BYTES);
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "prewarmNextTrack documentId=" + documentId + " next=" + nextDocumentId + " " + this.mPrewarm);
+		} catch(final Throwable th) {
+			Log.e(ExampleProvider.TAG, "nextDocumentId=" + nextDocumentId, th);
+		}
+	}
+
+	/** Source calling {@link #prewarmNextTrack} once the wrapped source reaches EOF, see {@link #openViaServer} */
+	private class NextTrackPrewarmingSource implements TrackProviderSource {
+		private final @NonNull String mDocumentId;
+		private final @NonNull TrackProviderSource mSource;
+		private boolean mPrewarmed;
+
+		NextTrackPrewarmingSource(@NonNull final String documentId, @NonNull final TrackProviderSource source) {
+			this.mDocumentId = documentId;
+			this.mSource = source;
+		}
 
+		@Override
+		public long getLength() {
+			return this.mSource.getLength();
+		}
+
+		@Override
+		public int read(@NonNull final ByteBuffer buf) throws IOException {
+			final int res = this.mSource.read(buf);
+			if(-1 == res && !this.mPrewarmed) {
+				this.mPrewarmed = true; // Once per session, the seeks back and forth near the end don't restart the prewarm
+				ExampleProvider.this.prewarmNextTrack(this.mDocumentId);
+			}
+			return res;
+		}
+
+		@Override
+		public long seek(final long offsetBytes, final int ms) throws IOException {
+			return this.mSource.seek(offsetBytes, ms);
+		}
+
+		@Override
+		public void close() {
+			this.mSource.close();
+		}
+	}
+
+	private synchronized @NonNull TrackProviderServer getTrackProviderServer() {
+		if(null == this.mTrackProviderServer) {
+			this.mTrackProviderServer = new TrackProviderServer();
+		}
+		return this.mTrackProviderServer;
+	}
+
+	/**
+	 * Serves the track via the proxy file descriptor. {@link TrackProviderProxyFdCallback} reads the source in the larger blocks, coalesces the adjacent reads
+	 * and prefetches ahead of the sequential reads, so the small FUSE reads are mostly answered from memory. This matters for the slow sources,
+	 * e.g. {@link com.maxmpz.poweramp.player.TrackProviderHttpSource}, which can be used here instead of the file source
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.O)
+	private ParcelFileDescriptor openViaProxyFd(String documentId, String filePath, CancellationSignal signal) throws FileNotFoundException {
+		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaProxyFd documentId=" + documentId + " filePath=" + filePath);
+		TrackProviderFileSource source = null;
+		HandlerThread thread = null;
+		try {
+			source = new TrackProviderFileSource(new File(this.getContext().getFilesDir(), filePath));
+
+			final HandlerThread finalThread = thread = new HandlerThread(documentId); // This is the thread we're handling fd reading on
+			thread.start();
+			final Handler handler = new Handler(thread.getLooper());
+
+			final StorageManager storageManager = (StorageManager) this.getContext().getSystemService(Context.STORAGE_SERVICE);
+
+			final ParcelFileDescriptor pfd = storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, new TrackProviderProxyFdCallback(source) {
 				@Override
 				public void onRelease() {
-					if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaProxyFd onRelease");
-
-					thread.quitSafely();
+					super.onRelease(); // Closes the source
 
-                    ExampleProvider.closeSilently(finalFis);
+					finalThread.quitSafely();
 
-					if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaProxyFd DONE");
+					if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "openViaProxyFd DONE " + this);
 				}
 			}, handler);
 
 			return pfd;
 		} catch(final Throwable th) {
 			Log.e(ExampleProvider.TAG, "documentId=" + documentId, th);
-            ExampleProvider.closeSilently(fis); // If we here, we failed with or prior the proxy, so close everything
+			// If we here, we failed with or prior the proxy, so close everything
+			if(null != thread) {
+				thread.quitSafely();
+			}
+			if(null != source) {
+				source.close();
+			}
 			throw new FileNotFoundException(documentId);
 		}
 	}
@@ -1065,13 +1449,19 @@ public class ExampleProvider extends DocumentsProvider {
 	/**
 	 * THREADING: worker thread<br>
 	 * NOTE: this version handles seek request based on byte offset BUT it can also handle it based on milliseconds.<br>
-	 * Still, we need to send some byte based newPos offset back to Poweramp. The resulting byte offset may be an approximation
+	 * Still, we need to send some byte based newPos offset back to Poweramp. If the seek index can be built for the document, the byte offset is resolved from it,
+	 * otherwise it's an approximation. The index is built on the first milliseconds based seek, not on open, as building it may scan the whole MP3
+	 * and delay the first data sent. It's cached per documentId for the following seeks and opens.<br>
+	 * The seek bounds and the seeks from the end use {@link TrackProviderProto#getFileLength()}, which is the length Poweramp currently knows:
+	 * the header estimate, or the actual length once {@link TrackProviderProto#sendLength} was delivered
 	 * @return true if we actually handled seek request, false otherwise
 	 */
 	private boolean handleSeekRequest2(@NonNull final TrackProviderProto proto, @Nullable final TrackProviderProto.SeekRequest seekRequest,
-                                       @NonNull final FileChannel fc, final long fileLength
+                                       @NonNull final FileChannel fc, @NonNull final String documentId
 	) {
 		if(null != seekRequest && TrackProviderProto.INVALID_SEEK_POS != seekRequest.offsetBytes) {
+			final long fileLength = proto.getFileLength();
+
 			// We have a seek request.
 			// Your code may take any reasonable time to fulfil the seek request, e.g. it can reopen http connection with appropriate offset, etc.
 			// Poweramp just waits for the seek result packet (the waiting is limited by the user-set timeout).
@@ -1080,11 +1470,17 @@ public class ExampleProvider extends DocumentsProvider {
 
 			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleSeekRequest seekRequestPos=" + seekRequest + " fileLength=" + fileLength);
 
-			// NOTE: we could seek track here based on seekRequest.ms field.
-			// In this case we still need to send back newPos as new byte offset.
-			// This may be a rough approximation, e.g. something like: newPos = seekRequest.ms * averageBytesPerMsInThisFile
+			// If we have the seek index, seek track based on seekRequest.ms field. The index maps ms to the byte offset
+			// from the file TOC/SEEKTABLE, so this is accurate for VBR files as well.
+			// In this case we still need to send back newPos as new byte offset
+			final TrackProviderSeekIndex seekIndex = 0 <= seekRequest.ms ? this.mSeekIndexCache.getOrBuild(documentId, fc) : null;
+			if(null != seekIndex) {
+				final long newPos = this.seekTrack(fc, seekIndex.getBytePos(seekRequest.ms), fileLength);
+				proto.sendSeekResult(newPos);
+				return true;
+			}
 
-			// For the sake of testing, we'll seek track properly here, but will send "fake" newPos
+			// Otherwise, for the sake of testing, we'll seek track properly here, but will send "fake" newPos
 
 			final long newPos = this.seekTrack(fc, seekRequest.offsetBytes, fileLength);
 
@@ -1118,6 +1514,19 @@ public class ExampleProvider extends DocumentsProvider {
 		}
 	}
 
+	/**
+	 * @param seekPosBytes seek request offset, >= 0 for seek from start of the file, < 0 for seek from the end of the file
+	 * @return new position within the track, or <0 if it's out of the track bounds
+	 */
+	private static long resolveSeekPos(final long seekPosBytes, final long fileLength) {
+		final long newPos = 0 <= seekPosBytes ? seekPosBytes : fileLength + seekPosBytes;
+		if(0 > newPos || fileLength < newPos) {
+			Log.e(ExampleProvider.TAG, "resolveSeekPos bad seekPosBytes=" + seekPosBytes + " fileLength=" + fileLength);
+			return -1;
+		}
+		return newPos;
+	}
+
 	/**
 	 * For tracks available on the device as file, it's much easier to send direct file descriptor pointing to the file itself. The file descriptor is seekable
 	 * and track can be reopened multiple times in this case, e.g. if tags, seek-wave, or album art scanning is needed.
@@ -1206,6 +1615,11 @@ public class ExampleProvider extends DocumentsProvider {
 	private Bundle handleRescan(final String arg, final Bundle extras) {
 		if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan extras=" + ExampleProvider.dumpBundle(extras));
 
+		// Full rescan or tags erasing - drop the cached tags, so they are recomputed for all the tracks
+		if(this.mMetadataCache.onRescan(extras)) {
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan metadata cache cleared " + this.mMetadataCache);
+		}
+
 		// Analyze optional EXTRA_PROVIDER and EXTRA_PATH here.
 		// If EXTRA_PROVIDER matches this provider, we may update the cached remote data
 		final String targetProvider = extras.getString(PowerampAPI.Scanner.EXTRA_PROVIDER);
@@ -1217,14 +1631,29 @@ public class ExampleProvider extends DocumentsProvider {
 			if(!TextUtils.isEmpty(path)) {
 
 				// - update data just for the EXTRA_PATH sub-directory hierarchy
+				// The path is opaque-treeId/opaque-documentId, see MainActivity. Our documentIds are paths, so the path documentId (or the treeId for the whole root)
+				// is the subtree root
+				final int slashIx = path.indexOf('/');
+				final String docIdPrefix = 0 <= slashIx && slashIx + 1 < path.length() ? Uri.decode(path.substring(slashIx + 1)) : Uri.decode(0 <= slashIx ? path.substring(0, slashIx) : path);
+
+				// Touch only the folders journaled as changed within the subtree. If nothing is journaled, this is a user request to refresh the whole subtree
+				final ArrayList<String> changedDirs = this.mChangeJournal.takeChanged(docIdPrefix);
+				if(!changedDirs.isEmpty()) {
+					this.refreshChangedDirs(changedDirs);
+				} else {
+					this.mMetadataCache.invalidatePrefix(docIdPrefix);
+				}
 
-				if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan targeted rescan path=" + path);
+				if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan targeted rescan path=" + path + " docIdPrefix=" + docIdPrefix + " changedDirs=" + changedDirs);
 
 			} else {
 
-				// - update data from the remote server
+				// - update data from the remote server. Here we just refresh the folders journaled as changed
 
-				if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan targeted provider rescan");
+				final ArrayList<String> changedDirs = this.mChangeJournal.takeChanged(null);
+				this.refreshChangedDirs(changedDirs);
+
+				if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan targeted provider rescan changedDirs=" + changedDirs);
 
 			}
 		} else //noinspection StatementWithEmptyBody
@@ -1238,7 +1667,9 @@ public class ExampleProvider extends DocumentsProvider {
 
 			if(extras.getBoolean(PowerampAPI.Scanner.EXTRA_ERASE_TAGS) && extras.getBoolean(PowerampAPI.Scanner.EXTRA_FULL_RESCAN)) {
 
-				// - force update all data
+				// - force update all data. The whole tree is going to be walked, so the pending journal changes are covered as well
+
+				this.mChangeJournal.takeChanged(null);
 
 				if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "handleRescan forced full update");
 
@@ -1251,6 +1682,17 @@ public class ExampleProvider extends DocumentsProvider {
 		return null;
 	}
 
+	/**
+	 * Refreshes the provider data just for the given changed folders, not their subfolders (which are journaled separately if changed).<br>
+	 * Real provider re-fetches these folder listings from the remote server here. The tags of the folder tracks are recomputed anyway, as their last modified
+	 * follows the folder one, see {@link #getTrackLastModified}
+	 */
+	private void refreshChangedDirs(@NonNull final ArrayList<String> changedDirs) {
+		for(final String dir : changedDirs) {
+			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "refreshChangedDirs dir=" + dir);
+		}
+	}
+
 	/**
 	 * @param arg the directory uri
 	 * @return bundle filled with extras: {@link TrackProviderConsts#EXTRA_ANCESTORS}
@@ -1296,8 +1738,10 @@ public class ExampleProvider extends DocumentsProvider {
 		try {
 			// As our hierarchy is defined by assets/, we could just return true here, but for a sake of example, let's verify that given documentId is inside the folder
 			// This is track, we randomly generate track entries, so we can't verify them
-			final boolean res = documentId.endsWith(".mp3") || documentId.endsWith(".m3u8") || documentId.endsWith(ExampleProvider.DOCID_STATIC_URL_SUFFIX)
-					|| documentId.startsWith(parentDocumentId) && this.isAssetDir(this.getContext().getResources().getAssets(), documentId);
+			// For the folders, the assets index answers this in O(1). The index holds only the folders, so files never match there
+			final boolean res = documentId.endsWith(".mp3") || documentId.endsWith(".flac") || documentId.endsWith(".m3u8")
+					|| documentId.endsWith(ExampleProvider.DOCID_STATIC_URL_SUFFIX) || documentId.endsWith(ExampleProvider.DOCID_DYNAMIC_URL_SUFFIX)
+					|| this.getAssetIndex().isWithin(parentDocumentId, documentId);
 
 			if(ExampleProvider.LOG) Log.w(ExampleProvider.TAG, "isChildDocument =>" + res + " parentDocumentId=" + parentDocumentId + " documentId=" + documentId);
 
@@ -1309,15 +1753,31 @@ public class ExampleProvider extends DocumentsProvider {
 	}
 
 	/**
-	 * Very inefficient way of checking folders vs files in assets, but Android SDK doesn't provide anything better.
-	 * This shouldn't be used in production providers anyway
+	 * @return the size of the real asset file our "virtual" tracks and playlists are served from (see {@link #docIdToFileName}), or 0 if it's not one of {@link #ASSET_FILES}.
+	 * Android SDK doesn't provide an efficient way to get the asset size, so the sizes are read once
 	 */
-	private boolean isAssetDir(final AssetManager assets, @NonNull final String path) {
-		// Ignore empty.txt
-		return !path.endsWith("/empty.txt");
+	private long getAssetFileSize(final String path) {
+		final long[] sizes;
+		synchronized(this) {
+			if(null == this.mAssetFileSizes) {
+				final AssetManager assets = this.getContext().getResources().getAssets();
+				final long[] readSizes = new long[ExampleProvider.ASSET_FILES.length];
+				for(int i = 0; i < readSizes.length; i++) {
+					readSizes[i] = this.readAssetFileSize(assets, ExampleProvider.ASSET_FILES[i]);
+				}
+				this.mAssetFileSizes = readSizes;
+			}
+			sizes = this.mAssetFileSizes;
+		}
+		for(int i = 0; i < sizes.length; i++) {
+			if(ExampleProvider.ASSET_FILES[i].equals(path)) {
+				return sizes[i];
+			}
+		}
+		return 0L;
 	}
 
-	private long getAssetFileSize(final AssetManager assets, final String path) {
+	private long readAssetFileSize(final AssetManager assets, final String path) {
 		try {
 			try(final AssetFileDescriptor afd = assets.openFd(path)) {
 				return afd.getLength();